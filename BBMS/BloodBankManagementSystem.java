@@ -1,9 +1,41 @@
 // Importing Java packages needed for file handling, date operations, collections, and pattern matching
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 // Main class for the Blood Bank Management System, which manages blood donations, inventory, and user roles
 public class BloodBankManagementSystem {
@@ -12,8 +44,23 @@ public class BloodBankManagementSystem {
 
     // Main method: the starting point of the program
     public static void main(String[] args) {
+        // Command-line tools (e.g. --changes) run without the interactive menu
+        if (args.length > 0) {
+            runCommandLineTool(args);
+            return;
+        }
         // Create CSV files to store data (like donor info, inventory, etc.)
         FileHandler.createCSVFiles();
+        // With a data key configured, encrypt donor, recipient and user files still stored as plain text
+        FileHandler.encryptDataFiles();
+        // Pick up the search index and forecast from the last checkpoint instead of re-reading the CSV files
+        FileHandler.restoreCheckpoint();
+        // Deliver donor notifications in the background, including any left over from the last run
+        NotificationOutbox.start();
+        // Release blood reservations when their hold time runs out, including ones that lapsed while the program was down
+        LeaseManager.start();
+        // Keep the daily history of stock levels as the inventory changes
+        StockHistory.start();
         // Show a welcome message to the user
         displayWelcomeBanner();
 
@@ -30,7 +77,8 @@ public class BloodBankManagementSystem {
                 case "2" -> handleDonorOperations();    // Go to donor operations
                 case "3" -> handleRecipientOperations(); // Go to recipient operations
                 case "4" -> {
-                    // Exit the program after closing the scanner and showing a goodbye message
+                    // Checkpoint the in-memory state, then exit after closing the scanner and showing a goodbye message
+                    FileHandler.saveCheckpoint();
                     try (scanner) {
                         displayExitBanner();
                     }
@@ -41,6 +89,868 @@ public class BloodBankManagementSystem {
         }
     }
 
+    // Runs a non-interactive tool selected by the command-line arguments
+    private static void runCommandLineTool(String[] args) {
+        try {
+            runTool(args);
+        } catch (InvalidArgument e) {
+            displayInvalidInputError("ERROR: " + args[0] + " " + e.getMessage());
+        }
+    }
+
+    // A command-line argument that is not the number its option expects
+    private static final class InvalidArgument extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidArgument(String message) {
+            super(message);
+        }
+    }
+
+    // Returns the whole-number argument at the index, or the default if it was left out
+    private static int intArgument(String[] args, int index, int defaultValue, int min) {
+        if (args.length <= index) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(args[index].trim());
+            if (value >= min) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below, like an out-of-range value
+        }
+        throw new InvalidArgument("expects a whole number of at least " + min + " as argument " + index + ", not '" + args[index] + "'");
+    }
+
+    // Returns the non-negative decimal argument at the index, or the default if it was left out
+    private static double doubleArgument(String[] args, int index, double defaultValue) {
+        if (args.length <= index) {
+            return defaultValue;
+        }
+        try {
+            double value = Double.parseDouble(args[index].trim());
+            if (value >= 0 && Double.isFinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below, like an out-of-range value
+        }
+        throw new InvalidArgument("expects a number of at least 0 as argument " + index + ", not '" + args[index] + "'");
+    }
+
+    // Runs the tool named by the first argument; a malformed numeric argument ends it with an InvalidArgument
+    private static void runTool(String[] args) {
+        switch (args[0]) {
+            case "--changes" -> {
+                // Prints the next batch of change events for a named consumer and commits its offset
+                if (args.length < 2) {
+                    displayInvalidInputError("Usage: --changes <consumer> [batch size]");
+                    return;
+                }
+                int batchSize = intArgument(args, 2, 500, 1);
+                try {
+                    ChangeFeed.FeedConsumer consumer = new ChangeFeed.FeedConsumer(args[1]);
+                    ChangeBatch batch = consumer.poll(batchSize);
+                    for (ChangeEvent event : batch.events()) {
+                        System.out.println(event.offset() + "," + event.timestamp() + "," + event.type() + "," +
+                                           event.dataset() + "," + event.key() + "," + (DataEncryption.seals(event.dataset()) ? "" : event.row()));
+                    }
+                    consumer.commit(batch);
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Failed to read change feed - " + e.getMessage());
+                }
+            }
+            case "--forecast-benchmark" -> {
+                // Times the initial forecast build over a synthetic request history (default two million rows)
+                int rows = intArgument(args, 1, 2_000_000, 1);
+                try {
+                    benchmarkForecast(rows);
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Forecast benchmark failed - " + e.getMessage());
+                }
+            }
+            case "--audit-report" -> {
+                // Prints the audit log analytics; the optional argument is how many top users to list
+                int topUsers = intArgument(args, 1, 10, 1);
+                AuditAnalytics.Report report = FileHandler.analyzeAuditLog();
+                if (report != null) {
+                    report.print(topUsers);
+                }
+            }
+            case "--search-benchmark" -> {
+                // Times index build and queries over a synthetic registry (default one million people)
+                benchmarkSearch(intArgument(args, 1, 1_000_000, 1));
+            }
+            case "--drain-notifications" -> {
+                // Delivers every notification that is due now, batch by batch, and reports how many went out
+                try {
+                    int delivered = 0;
+                    int claimed;
+                    while ((claimed = NotificationOutbox.drainOnce()) > 0) {
+                        delivered += claimed;
+                    }
+                    System.out.println("Processed " + delivered + " notification(s).");
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Failed to drain notification outbox - " + e.getMessage());
+                }
+            }
+            case "--archive" -> {
+                // Moves completed tests and fulfilled requests into the compressed archive, e.g. from a nightly job;
+                // the optional argument keeps rows that reached their final state within that many days hot
+                int afterDays = intArgument(args, 1, 0, 0);
+                long started = System.nanoTime();
+                int moved = FileHandler.archiveHistory(afterDays);
+                if (moved >= 0) {
+                    System.out.println("Archived " + moved + " row(s) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+                }
+            }
+            case "--checkpoint" -> {
+                // Writes a fresh checkpoint of the search index and forecast, e.g. from a nightly job
+                long started = System.nanoTime();
+                FileHandler.restoreCheckpoint();
+                if (FileHandler.saveCheckpoint()) {
+                    System.out.println("Wrote " + Checkpoint.FILE + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+                }
+            }
+            case "--checkpoint-benchmark" -> {
+                // Compares rebuilding the search index with restoring it from a checkpoint as the registry grows
+                try {
+                    benchmarkCheckpoint(intArgument(args, 1, 1_000_000, 1));
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Checkpoint benchmark failed - " + e.getMessage());
+                }
+            }
+            case "--records-benchmark" -> {
+                // Compares re-splitting rows on every query with decoding them once: [rows] [queries]
+                benchmarkRecords(intArgument(args, 1, 200_000, 1), intArgument(args, 2, 50, 1));
+            }
+            case "--load-test" -> {
+                // Drives a synthetic workload against a fresh data set in the working directory:
+                // [threads] [seconds] [arrivals per second, 0 = as fast as possible]
+                int threads = intArgument(args, 1, 8, 1);
+                int seconds = intArgument(args, 2, 30, 1);
+                double rate = doubleArgument(args, 3, 0);
+                try {
+                    new LoadTest().run(threads, seconds, rate);
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Load test failed - " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            case "--query" -> {
+                // Runs one ad-hoc query, e.g. --query "SELECT site, SUM(units) FROM inventory GROUP BY site"
+                FileHandler.restoreCheckpoint();
+                QueryEngine.Result result = FileHandler.runQuery(String.join(" ", Arrays.copyOfRange(args, 1, args.length)));
+                if (result != null) {
+                    result.print(new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)), false));
+                }
+            }
+            case "--stock-history" -> {
+                // Charts the recorded levels of one type and component: <blood type> <component> [days]
+                if (args.length < 3) {
+                    displayInvalidInputError("Usage: --stock-history <blood type> <component> [days]");
+                    return;
+                }
+                Admin.printStockHistory(args[1].toUpperCase(), args[2], intArgument(args, 3, 30, 1));
+            }
+            case "--nearest-benchmark" -> {
+                // Nearest-donor queries over [donors] synthetic geolocated donors, against a full scan: [donors] [queries]
+                benchmarkNearestDonors(intArgument(args, 1, 1_000_000, 1), intArgument(args, 2, 200, 1));
+            }
+            case "--stock-history-benchmark" -> {
+                // Sizes and range-query costs of the stock history over [years] of synthetic changes
+                try {
+                    benchmarkStockHistory(intArgument(args, 1, 5, 1));
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Stock history benchmark failed - " + e.getMessage());
+                }
+            }
+            case "--audit-search" -> {
+                // Indexed audit search: any of user=<id> role=<role> action=<action> from=<date> to=<date>
+                Map<String, String> filters = new HashMap<>();
+                for (int i = 1; i < args.length; i++) {
+                    int equals = args[i].indexOf('=');
+                    if (equals < 0 || !Set.of("user", "role", "action", "from", "to").contains(args[i].substring(0, equals))) {
+                        displayInvalidInputError("Usage: --audit-search [user=<id>] [role=<role>] [action=<action>] [from=YYYY-MM-DD] [to=YYYY-MM-DD]");
+                        return;
+                    }
+                    filters.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+                }
+                Admin.printAuditSearch(filters.get("user"), filters.get("role"), filters.get("action"), filters.get("from"), filters.get("to"));
+            }
+            case "--audit-index-benchmark" -> {
+                // Indexed audit searches against full scans over [years] of synthetic log, [events] a day
+                try {
+                    benchmarkAuditIndex(intArgument(args, 1, 3, 1), intArgument(args, 2, 1000, 1));
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Audit index benchmark failed - " + e.getMessage());
+                }
+            }
+            case "--new-data-key" -> {
+                // Prints a fresh random AES-256 key in base64, for BBMS_DATA_KEY or the file named by -Dbbms.dataKeyFile
+                byte[] key = new byte[32];
+                new SecureRandom().nextBytes(key);
+                System.out.println(Base64.getEncoder().encodeToString(key));
+            }
+            case "--encryption-benchmark" -> {
+                // Write, load, append and page costs of encrypted against plain files of [megabytes] of donor rows
+                try {
+                    benchmarkEncryption(intArgument(args, 1, 64, 1));
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Encryption benchmark failed - " + e.getMessage());
+                }
+            }
+            case "--id-benchmark" -> {
+                // Throughput, collisions and ordering of generated IDs against random UUIDs: [threads] [ids per thread]
+                try {
+                    benchmarkIds(intArgument(args, 1, 4, 1), intArgument(args, 2, 1_000_000, 1));
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: ID benchmark failed - " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            case "--fault-test" -> {
+                // Crashes a child process at every -Dbbms.faultPoint commit step and checks what the next one finds
+                try {
+                    new FaultTest().run();
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Fault test failed - " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            case "--fault-step" -> {
+                // One step of --fault-test, run by it in a child process: seed, rewrite, transaction, append or verify
+                if (args.length < 2) {
+                    displayInvalidInputError("Usage: --fault-step <step> [expected]");
+                    return;
+                }
+                try {
+                    FaultTest.step(args[1], args.length > 2 ? args[2] : null);
+                } catch (IOException e) {
+                    displayInvalidInputError("ERROR: Fault step failed - " + e.getMessage());
+                }
+            }
+            default -> displayInvalidInputError("Unknown option " + args[0] + ". Supported: --changes, --forecast-benchmark, --audit-report, --search-benchmark, --drain-notifications, --archive, --checkpoint, --checkpoint-benchmark, --records-benchmark, --load-test, --query, --stock-history, --stock-history-benchmark, --nearest-benchmark, --audit-search, --audit-index-benchmark, --new-data-key, --encryption-benchmark, --id-benchmark, --fault-test");
+        }
+    }
+
+    // Writes a synthetic two-year request history to a temp file and reports how fast the forecast is built from it
+    private static void benchmarkForecast(int rows) throws IOException {
+        Path history = Files.createTempFile("requests-benchmark-", ".csv");
+        try {
+            Random random = new Random(42);
+            BloodGroup[] groups = BloodGroup.values();
+            Component[] components = Component.values();
+            LocalDate start = LocalDate.now().minusDays(730);
+            try (BufferedWriter writer = Files.newBufferedWriter(history, Charset.defaultCharset())) {
+                for (int i = 0; i < rows; i++) {
+                    boolean fulfilled = random.nextInt(10) < 8;
+                    writer.write("REQ-" + i + ",RECIPIENT-" + random.nextInt(50_000) + "," + groups[random.nextInt(groups.length)].label + ","
+                                 + (1 + random.nextInt(4)) + ",High," + (fulfilled ? "FULFILLED" : "PENDING") + ","
+                                 + start.plusDays((long) i * 730 / rows) + "," + (fulfilled ? components[random.nextInt(components.length)].label : ""));
+                    writer.newLine();
+                }
+            }
+            long started = System.nanoTime();
+            DemandForecast forecast = DemandForecast.build(Map.of(history.toString(), new FileCoordinator.Versioned(0, Files.readAllLines(history, Charset.defaultCharset()))));
+            long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            System.out.println("Built forecast from " + forecast.folded() + " requests (" + Files.size(history) / (1024 * 1024) + " MB) in "
+                               + elapsedMillis + " ms, " + forecast.folded() * 1000 / elapsedMillis + " requests/s");
+            forecast.print(List.of(InventoryMatrix.EMPTY));
+        } finally {
+            Files.deleteIfExists(history);
+        }
+    }
+
+    // Builds the search index over a synthetic registry in memory and reports build time, heap use and query latency
+    private static void benchmarkSearch(int people) {
+        List<String> donors = new ArrayList<>();
+        List<String> recipients = new ArrayList<>();
+        syntheticRegistry(people, donors, recipients);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long started = System.nanoTime();
+        PersonSearchIndex index = PersonSearchIndex.build(donors, recipients);
+        long buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        System.gc();
+        long indexBytes = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+        System.out.println("Indexed " + people + " people in " + buildMillis + " ms, index heap about " + indexBytes / (1024 * 1024) + " MB");
+        String[] queries = {"DONOR-4242", "farhana", "farhna", "tanvir rahman", "0123", "sadia.khan", "mahm", "zz"};
+        for (String query : queries) {
+            index.search(query, 0, 10); // Warm up
+        }
+        for (String query : queries) {
+            long[] nanos = new long[50];
+            PersonSearchIndex.Page page = null;
+            for (int i = 0; i < nanos.length; i++) {
+                long start = System.nanoTime();
+                page = index.search(query, 0, 10);
+                nanos[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(nanos);
+            System.out.printf("%-15s %8d matches  median %6.2f ms  max %6.2f ms  top: %s%n", query, page.totalMatches(),
+                              nanos[nanos.length / 2] / 1e6, nanos[nanos.length - 1] / 1e6,
+                              page.hits().isEmpty() ? "-" : page.hits().get(0).row());
+        }
+    }
+
+    // Runs the same report queries over a synthetic test, request and inventory history held in memory, once
+    // splitting and parsing the CSV rows on every query as the loaders used to, once over records decoded a single
+    // time through the RecordCache, and reports time and bytes allocated for each
+    private static void benchmarkRecords(int rows, int queries) {
+        Random random = new Random(42);
+        BloodGroup[] groups = BloodGroup.values();
+        Component[] components = Component.values();
+        LocalDate today = LocalDate.now();
+        List<String> tests = new ArrayList<>(rows);
+        List<String> requests = new ArrayList<>(rows);
+        List<String> inventory = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            boolean done = random.nextInt(10) < 8;
+            tests.add("TEST-" + i + ",DONOR-" + random.nextInt(rows / 10 + 1) + ",Donor," + today.minusDays(random.nextInt(730)) + ","
+                      + (done ? "COMPLETED," + groups[random.nextInt(groups.length)].label : "PENDING,"));
+            requests.add("REQ-" + i + ",RECIPIENT-" + random.nextInt(rows / 10 + 1) + "," + groups[random.nextInt(groups.length)].label + ","
+                         + (1 + random.nextInt(4)) + "," + Urgency.values()[random.nextInt(3)].label + "," + (done ? "FULFILLED" : "PENDING") + ","
+                         + today.minusDays(random.nextInt(730)) + "," + (done ? components[random.nextInt(components.length)].label : ""));
+        }
+        for (BloodGroup group : groups) {
+            for (Component component : components) {
+                inventory.add(group.label + "," + component.label + "," + random.nextInt(40) + "," + today.plusDays(random.nextInt(40)) + ","
+                              + random.nextInt(3) + "," + (random.nextInt(10) == 0 ? "BLOCKED" : "AVAILABLE"));
+            }
+        }
+        FileCoordinator.Versioned testVersion = new FileCoordinator.Versioned(1, FileCoordinator.Lines.copyOf(tests));
+        FileCoordinator.Versioned requestVersion = new FileCoordinator.Versioned(1, FileCoordinator.Lines.copyOf(requests));
+        FileCoordinator.Versioned inventoryVersion = new FileCoordinator.Versioned(1, FileCoordinator.Lines.copyOf(inventory));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT; the second is reported
+            long startedBytes = threads.getCurrentThreadAllocatedBytes();
+            long started = System.nanoTime();
+            long splitResult = 0;
+            for (int q = 0; q < queries; q++) {
+                String user = "DONOR-" + q;
+                for (String line : testVersion.lines()) {
+                    String[] data = line.split(",");
+                    splitResult += data[4].equals("PENDING") ? 1 : 0;
+                    splitResult += data[1].equals(user) ? LocalDate.parse(data[3]).getDayOfMonth() : 0;
+                }
+                for (String line : requestVersion.lines()) {
+                    String[] data = line.split(",");
+                    if (data[5].equals("FULFILLED") && !LocalDate.parse(data[6]).isBefore(today.minusDays(30))) {
+                        splitResult += (long) Integer.parseInt(data[3]) * (BloodGroup.of(data[2]).ordinal() + 1);
+                    }
+                }
+                for (String line : inventoryVersion.lines()) {
+                    String[] data = line.split(",");
+                    splitResult += Integer.parseInt(data[2]) < 5 || data[5].equals("BLOCKED") ? 1 : 0;
+                    splitResult += ChronoUnit.DAYS.between(today, LocalDate.parse(data[3])) <= 7 ? Integer.parseInt(data[4]) : 0;
+                }
+            }
+            long splitNanos = System.nanoTime() - started;
+            long splitBytes = threads.getCurrentThreadAllocatedBytes() - startedBytes;
+
+            startedBytes = threads.getCurrentThreadAllocatedBytes();
+            started = System.nanoTime();
+            long typedResult = 0;
+            String prefix = "benchmark-" + round + "/"; // Fresh cache keys each round, so the decode is counted
+            for (int q = 0; q < queries; q++) {
+                String user = "DONOR-" + q;
+                for (TestRequest test : RecordCache.of(prefix + "tests.csv", testVersion, TestRequest.class, TestRequest::parse)) {
+                    typedResult += test.status() == TestStatus.PENDING ? 1 : 0;
+                    typedResult += test.userId().equals(user) ? test.requestDate().getDayOfMonth() : 0;
+                }
+                for (BloodRequest request : RecordCache.of(prefix + "requests.csv", requestVersion, BloodRequest.class, BloodRequest::parse)) {
+                    if (request.status() == RequestStatus.FULFILLED && !request.date().isBefore(today.minusDays(30))) {
+                        typedResult += (long) request.units() * (request.group().ordinal() + 1);
+                    }
+                }
+                for (InventoryItem item : RecordCache.of(prefix + "inventory.csv", inventoryVersion, InventoryItem.class, InventoryItem::parse)) {
+                    typedResult += item.units() < 5 || item.status() == StockStatus.BLOCKED ? 1 : 0;
+                    typedResult += ChronoUnit.DAYS.between(today, item.expiry()) <= 7 ? item.reserved() : 0;
+                }
+            }
+            long typedNanos = System.nanoTime() - started;
+            long typedBytes = threads.getCurrentThreadAllocatedBytes() - startedBytes;
+            if (round == 1) {
+                System.out.printf("%d queries over %,d tests, %,d requests and %d inventory rows (results %s)%n", queries, rows, rows,
+                                  inventory.size(), splitResult == typedResult ? "match" : "DIFFER");
+                System.out.printf("  split per query : %8.1f ms %10.1f MB allocated%n", splitNanos / 1e6, splitBytes / 1048576.0);
+                System.out.printf("  decoded once    : %8.1f ms %10.1f MB allocated%n", typedNanos / 1e6, typedBytes / 1048576.0);
+                System.out.printf("  speed-up %.1fx, %.1fx less allocation%n", (double) splitNanos / typedNanos, (double) splitBytes / Math.max(1, typedBytes));
+            }
+        }
+    }
+
+    // Builds the donor locator over synthetic geolocated donors spread across Bangladesh, then times "nearest
+    // eligible compatible donors" queries from random points against a full scan of the same donors
+    private static void benchmarkNearestDonors(int count, int queries) {
+        Random random = new Random(11);
+        BloodGroup[] groups = BloodGroup.values();
+        List<String> donors = new ArrayList<>(count);
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        int[] groupOf = new int[count];
+        int[] lastDay = new int[count];
+        LocalDate today = LocalDate.now();
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = 20.6 + random.nextDouble() * 6.0;
+            longitudes[i] = 88.0 + random.nextDouble() * 4.7;
+            groupOf[i] = random.nextInt(groups.length);
+            LocalDate last = random.nextInt(3) == 0 ? null : today.minusDays(random.nextInt(400));
+            lastDay[i] = last == null ? Integer.MIN_VALUE : (int) last.toEpochDay();
+            donors.add("DONOR-" + i + ",Donor " + i + ",30," + groups[groupOf[i]].label + "," + String.format("01%08d", i) + ","
+                       + (last == null ? "" : last) + "," + latitudes[i] + "," + longitudes[i]);
+        }
+        long started = System.nanoTime();
+        DonorLocator locator = DonorLocator.build(donors, new HashMap<>());
+        System.out.printf("Built k-d trees over %,d donors in %.1f ms%n", count, (System.nanoTime() - started) / 1e6);
+        int cutoff = (int) today.minusDays(90).toEpochDay();
+        int k = NotificationOutbox.TOP_DONORS;
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT; the second is reported
+            Random queriesRandom = new Random(5);
+            long treeNanos = 0;
+            long scanNanos = 0;
+            int mismatches = 0;
+            for (int q = 0; q < queries; q++) {
+                Site site = new Site("Q", "Query", 20.6 + queriesRandom.nextDouble() * 6.0, 88.0 + queriesRandom.nextDouble() * 4.7);
+                String needed = groups[queriesRandom.nextInt(groups.length)].label;
+                Set<BloodGroup> compatible = new HashSet<>();
+                for (String type : FileHandler.getCompatibleBloodTypes(needed)) {
+                    compatible.add(BloodGroup.of(type));
+                }
+                started = System.nanoTime();
+                List<DonorLocator.Match> nearest = locator.nearest(site.latitude(), site.longitude(), compatible, k, today.minusDays(90));
+                treeNanos += System.nanoTime() - started;
+
+                started = System.nanoTime();
+                PriorityQueue<double[]> scan = new PriorityQueue<>((a, b) -> Double.compare(b[0], a[0]));
+                for (int i = 0; i < count; i++) {
+                    if (compatible.contains(groups[groupOf[i]]) && lastDay[i] <= cutoff) {
+                        scan.add(new double[] {site.distanceKm(latitudes[i], longitudes[i]), i});
+                        if (scan.size() > k) {
+                            scan.poll();
+                        }
+                    }
+                }
+                scanNanos += System.nanoTime() - started;
+                double farthest = scan.isEmpty() ? 0 : scan.peek()[0];
+                if (nearest.size() != scan.size() || (!nearest.isEmpty() && Math.abs(nearest.get(nearest.size() - 1).distanceKm() - farthest) > 1e-6)) {
+                    mismatches++;
+                }
+            }
+            if (round == 1) {
+                System.out.printf("%d queries for the %d nearest eligible compatible donors (%s)%n", queries, k,
+                                  mismatches == 0 ? "same donors as a full scan" : mismatches + " DIFFER from a full scan");
+                System.out.printf("  k-d trees : %10.1f us per query%n", treeNanos / 1e3 / queries);
+                System.out.printf("  full scan : %10.1f us per query%n", scanNanos / 1e3 / queries);
+                System.out.printf("  speed-up %.0fx%n", (double) scanNanos / treeNanos);
+            }
+        }
+    }
+
+    // Writes years of synthetic stock changes (one every hour, as a random walk) into a scratch history, then
+    // reports its size against the same samples as CSV lines and what range queries of growing length read
+    private static void benchmarkStockHistory(int years) throws IOException {
+        Path dir = Files.createTempDirectory("stock-history-benchmark-");
+        try {
+            Random random = new Random(7);
+            String series = StockHistory.series("O+", "Whole Blood");
+            long today = LocalDate.now().toEpochDay();
+            long firstDay = today - 365L * years + 1;
+            int onHand = 60;
+            long csvBytes = 0;
+            long samples = 0;
+            long started = System.nanoTime();
+            for (long day = firstDay; day <= today; day++) {
+                for (int hour = 0; hour < 24; hour++) {
+                    onHand = Math.max(0, onHand + random.nextInt(9) - 4);
+                    int available = Math.max(0, onHand - random.nextInt(4));
+                    long seconds = StockHistory.startOf(day) + hour * 3600L + random.nextInt(3600);
+                    StockHistory.append(dir, series, seconds, new int[] {onHand, available});
+                    csvBytes += (LocalDateTime.ofInstant(Instant.ofEpochSecond(seconds), ZoneId.systemDefault()) + ",O+,Whole Blood," + onHand + "," + available + "\n").length();
+                    samples++;
+                }
+            }
+            long writeNanos = System.nanoTime() - started;
+            long rawBytes = Files.size(dir.resolve(series + ".raw")) + Files.size(dir.resolve(series + ".raw.idx"));
+            long dailyBytes = Files.size(dir.resolve(series + ".daily")) + Files.size(dir.resolve(series + ".daily.idx"));
+            System.out.printf("%,d samples over %d years written in %.1f ms (%.1f us each)%n", samples, years, writeNanos / 1e6, writeNanos / 1e3 / samples);
+            System.out.printf("  as CSV lines   : %,12d bytes%n", csvBytes);
+            System.out.printf("  raw blocks     : %,12d bytes (%.1f bytes/sample with index)%n", rawBytes, (double) rawBytes / samples);
+            System.out.printf("  daily rollups  : %,12d bytes%n", dailyBytes);
+            System.out.printf("%n%10s %10s %12s %10s%n", "range", "samples", "bytes read", "ms");
+            for (int days : new int[] {7, 30, 182, 365, 365 * years}) {
+                for (int round = 0; round < 2; round++) { // The first round warms up the JIT; the second is reported
+                    started = System.nanoTime();
+                    StockHistory.Range range = StockHistory.range(dir, series, today - days + 1, today);
+                    if (round == 1) {
+                        System.out.printf("%8d d %10d %12d %10.2f%n", days, range.samples().size(), range.bytesRead(), (System.nanoTime() - started) / 1e6);
+                    }
+                }
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    // Writes years of synthetic audit log into a scratch directory a day at a time, indexing it as logAction would,
+    // then times a few investigations through the index against a full scan of the log
+    private static void benchmarkAuditIndex(int years, int eventsPerDay) throws IOException {
+        Path dir = Files.createTempDirectory("audit-index-benchmark-");
+        try {
+            Random random = new Random(7);
+            String[] actions = {"Login", "View Inventory", "Add Blood Stock", "Reserve Blood", "Request Blood", "Search People",
+                                "Schedule Donation", "View Reports", "Process Test", "Logout"};
+            Path log = dir.resolve(AuditIndex.LOG_FILE);
+            LocalDate first = LocalDate.now().minusYears(years);
+            long started = System.nanoTime();
+            long indexNanos = 0;
+            long events = 0;
+            try (BufferedWriter writer = Files.newBufferedWriter(log)) {
+                for (LocalDate day = first; !day.isAfter(LocalDate.now()); day = day.plusDays(1)) {
+                    for (int i = 0; i < eventsPerDay; i++) {
+                        int user = random.nextInt(200);
+                        String role = user < 20 ? "Administrator" : user < 120 ? "Donor" : "Recipient";
+                        String userId = (user < 20 ? "ADMIN-" : user < 120 ? "DONOR-" : "RECIPIENT-") + user;
+                        String action = actions[random.nextInt(actions.length)];
+                        writer.write(new AuditEvent(day, userId, role, action, action + " #" + events).toCsv());
+                        writer.newLine();
+                        events++;
+                    }
+                    writer.flush();
+                    long indexing = System.nanoTime();
+                    AuditIndex.flush(dir, AuditIndex.FLUSH_BYTES);
+                    indexNanos += System.nanoTime() - indexing;
+                }
+            }
+            long indexBytes = 0;
+            try (java.util.stream.Stream<Path> files = Files.list(dir.resolve(AuditIndex.DIRECTORY))) {
+                for (Path file : files.toList()) {
+                    indexBytes += Files.size(file);
+                }
+            }
+            System.out.printf("%,d events over %d years written in %.1f s, of which indexing took %.1f s%n",
+                              events, years, (System.nanoTime() - started) / 1e9, indexNanos / 1e9);
+            System.out.printf("  log.csv      : %,12d bytes%n", Files.size(log));
+            System.out.printf("  audit-index  : %,12d bytes%n", indexBytes);
+            LocalDate lastMonth = LocalDate.now().minusDays(30);
+            String[][] queries = {{"ADMIN-7", null, "Reserve Blood", null}, {"DONOR-50", null, null, null},
+                                  {null, "Administrator", "Add Blood Stock", lastMonth.toString()}, {null, null, "Logout", lastMonth.toString()}};
+            System.out.printf("%n%-50s %10s %12s %12s%n", "query", "matches", "index ms", "scan ms");
+            for (String[] query : queries) {
+                LocalDate from = query[3] == null ? null : LocalDate.parse(query[3]);
+                long indexNanosQuery = 0;
+                int matches = 0;
+                for (int round = 0; round < 2; round++) { // The first round warms up the JIT; the second is reported
+                    started = System.nanoTime();
+                    matches = AuditIndex.search(dir, query[0], query[1], query[2], from, null).hits().size();
+                    indexNanosQuery = System.nanoTime() - started;
+                }
+                started = System.nanoTime();
+                int scanned = 0;
+                try (BufferedReader reader = Files.newBufferedReader(log)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        AuditEvent event = AuditEvent.parse(line);
+                        if ((query[0] == null || event.userId().equals(query[0])) && (query[1] == null || event.role().equals(query[1]))
+                            && (query[2] == null || event.action().equals(query[2])) && (from == null || !event.date().isBefore(from))) {
+                            scanned++;
+                        }
+                    }
+                }
+                long scanNanos = System.nanoTime() - started;
+                String label = (query[0] == null ? "" : "user=" + query[0] + " ") + (query[1] == null ? "" : "role=" + query[1] + " ")
+                               + (query[2] == null ? "" : "action=" + query[2] + " ") + (query[3] == null ? "" : "last 30 days");
+                System.out.printf("%-50s %10d %12.1f %12.1f%s%n", label.trim(), matches, indexNanosQuery / 1e6, scanNanos / 1e6,
+                                  matches == scanned ? "" : "  MISMATCH (scan found " + scanned + ")");
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    // Generates IDs from several threads sharing this instance's generator, on the node number it leased in the
+    // working directory's nodes.csv, then checks them: no duplicates, every thread's IDs strictly increasing, and
+    // none shared with a second instance that leases its node number the same way and generates at the same time.
+    // The same number of
+    // random UUIDs (and of the 8-character UUID prefixes IDs used to be) is generated for comparison, along with
+    // how many of each land after the previous one in sorted order, i.e. would append to the end of an index.
+    private static void benchmarkIds(int threads, int perThread) throws InterruptedException, IOException {
+        int total = threads * perThread;
+        IdGenerator generator = IdGenerator.instance();
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT; the second is reported
+            long[][] issued = new long[threads][perThread];
+            long started = System.nanoTime();
+            runOnThreads(threads, t -> {
+                for (int i = 0; i < perThread; i++) {
+                    issued[t][i] = generator.nextLong();
+                }
+            });
+            long rawNanos = System.nanoTime() - started;
+            String[] sink = new String[threads];
+            started = System.nanoTime();
+            runOnThreads(threads, t -> {
+                for (int i = 0; i < perThread; i++) {
+                    sink[t] = generator.nextId();
+                }
+            });
+            long textNanos = System.nanoTime() - started;
+            started = System.nanoTime();
+            runOnThreads(threads, t -> {
+                for (int i = 0; i < perThread; i++) {
+                    sink[t] = UUID.randomUUID().toString();
+                }
+            });
+            long uuidNanos = System.nanoTime() - started;
+            if (round == 0) {
+                continue;
+            }
+
+            int outOfOrder = 0;
+            long[] all = new long[total];
+            for (int t = 0; t < threads; t++) {
+                for (int i = 1; i < perThread; i++) {
+                    if (Long.compareUnsigned(issued[t][i - 1], issued[t][i]) >= 0) {
+                        outOfOrder++;
+                    }
+                }
+                System.arraycopy(issued[t], 0, all, t * perThread, perThread);
+            }
+            Arrays.sort(all);
+            int duplicates = 0;
+            for (int i = 1; i < total; i++) {
+                if (all[i] == all[i - 1]) {
+                    duplicates++;
+                }
+            }
+            // A second instance leasing its node number alongside this one must never produce one of its IDs
+            String secondInstance = "benchmark-" + ProcessHandle.current().pid();
+            IdGenerator other = new IdGenerator(IdGenerator.leaseNode(secondInstance));
+            long[][] pair = new long[2][perThread];
+            try {
+                runOnThreads(2, t -> {
+                    IdGenerator node = t == 0 ? generator : other;
+                    for (int i = 0; i < perThread; i++) {
+                        pair[t][i] = node.nextLong();
+                    }
+                });
+            } finally {
+                IdGenerator.releaseNodes(secondInstance);
+            }
+            Set<Long> first = new HashSet<>();
+            for (long id : pair[0]) {
+                first.add(id);
+            }
+            int shared = 0;
+            for (long id : pair[1]) {
+                if (first.contains(id)) {
+                    shared++;
+                }
+            }
+            Set<String> prefixes = new HashSet<>();
+            String previousUuid = "";
+            int uuidAppends = 0;
+            for (int i = 0; i < total; i++) {
+                String uuid = UUID.randomUUID().toString();
+                prefixes.add(uuid.substring(0, 8));
+                if (uuid.compareTo(previousUuid) > 0) {
+                    uuidAppends++;
+                }
+                previousUuid = uuid;
+            }
+            String previousId = "";
+            int idAppends = 0;
+            for (int i = 0; i < total; i++) {
+                String id = generator.nextId();
+                if (id.compareTo(previousId) > 0) {
+                    idAppends++;
+                }
+                previousId = id;
+            }
+
+            System.out.printf("%,d IDs from %d threads sharing one generator (e.g. %s)%n", total, threads, IdGenerator.next("DONOR-"));
+            System.out.printf("  generated IDs : %8.1f M/s as numbers, %8.1f M/s as text%n", total * 1e3 / rawNanos, total * 1e3 / textNanos);
+            System.out.printf("  random UUIDs  : %8.1f M/s%n", total * 1e3 / uuidNanos);
+            System.out.printf("  duplicates %d, out of order within a thread %d, shared with a concurrent second instance %d (leased nodes %d and %d)%n",
+                              duplicates, outOfOrder, shared, generator.node(), other.node());
+            System.out.printf("  8-character UUID prefixes (the old IDs): %,d collisions%n", total - prefixes.size());
+            System.out.printf("  appends at the end of a sorted index: generated IDs %.1f%%, random UUIDs %.1f%%%n",
+                              idAppends * 100.0 / total, uuidAppends * 100.0 / total);
+        }
+    }
+
+    // Runs the body once on each of several threads, passing the thread's number, and waits for all of them
+    private static void runOnThreads(int threads, java.util.function.IntConsumer body) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int number = t;
+            workers[t] = new Thread(() -> body.accept(number));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Writes the same synthetic donor rows to a plain and an encrypted file, then compares writing them, loading
+    // them back, appending single rows and reading one listing page from the middle. Needs a data key.
+    private static void benchmarkEncryption(int megabytes) throws IOException {
+        if (!DataEncryption.configured()) {
+            throw new IOException("no data key configured; set BBMS_DATA_KEY (e.g. to the output of --new-data-key)");
+        }
+        Path dir = Files.createTempDirectory("encryption-benchmark-");
+        try {
+            List<String> donors = new ArrayList<>();
+            List<String> recipients = new ArrayList<>();
+            long bytes = 0;
+            for (int people = 100_000; bytes < megabytes * 1048576L; people *= 2) {
+                donors.clear();
+                syntheticRegistry(people, donors, recipients);
+                bytes = donors.stream().mapToLong(row -> row.length() + 1).sum();
+            }
+            recipients = null;
+            Path plain = dir.resolve("plain.csv");
+            Path sealed = dir.resolve("sealed.csv");
+            System.out.printf("%,d donor rows, %.1f MB of plain text, %d KB chunks%n%n", donors.size(), bytes / 1048576.0, DataEncryption.CHUNK_BYTES >> 10);
+            System.out.printf("%-28s %12s %12s %10s%n", "operation", "plain", "encrypted", "overhead");
+            double[] write = new double[2];
+            double[] load = new double[2];
+            for (int round = 0; round < 3; round++) { // The best of three rounds, the first of which also warms up the JIT
+                for (int variant = 0; variant < 2; variant++) {
+                    Path file = variant == 0 ? plain : sealed;
+                    long started = System.nanoTime();
+                    try (DataEncryption.LineSink writer = variant == 0 ? DataEncryption.sink("plain.csv", file, false) : new DataEncryption.ChunkWriter(file, false)) {
+                        for (String row : donors) {
+                            writer.writeLine(row);
+                        }
+                    }
+                    double writeMs = (System.nanoTime() - started) / 1e6;
+                    started = System.nanoTime();
+                    int loaded;
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        loaded = new FileCoordinator.PendingRead(file, 0, channel, channel.size()).load().lines().size();
+                    }
+                    double loadMs = (System.nanoTime() - started) / 1e6;
+                    if (loaded != donors.size()) {
+                        throw new IOException(file.getFileName() + " loaded " + loaded + " of " + donors.size() + " rows");
+                    }
+                    write[variant] = round == 0 ? writeMs : Math.min(write[variant], writeMs);
+                    load[variant] = round == 0 ? loadMs : Math.min(load[variant], loadMs);
+                }
+            }
+            double mb = bytes / 1048576.0;
+            System.out.printf("%-28s %9.0f MB/s %9.0f MB/s %9.0f%%%n", "write whole file", mb / write[0] * 1000, mb / write[1] * 1000, (write[1] / write[0] - 1) * 100);
+            System.out.printf("%-28s %9.0f MB/s %9.0f MB/s %9.0f%%%n", "load whole file", mb / load[0] * 1000, mb / load[1] * 1000, (load[1] / load[0] - 1) * 100);
+
+            int appends = 5_000;
+            double[] append = new double[2];
+            for (int variant = 0; variant < 2; variant++) {
+                Path file = variant == 0 ? plain : sealed;
+                long started = System.nanoTime();
+                for (int i = 0; i < appends; i++) {
+                    try (DataEncryption.LineSink writer = DataEncryption.sink("plain.csv", file, true)) {
+                        writer.writeLine(donors.get(i));
+                    }
+                }
+                append[variant] = (System.nanoTime() - started) / 1e3 / appends;
+            }
+            System.out.printf("%-28s %9.1f us %10.1f us %9.0f%%%n", "append one row (no fsync)", append[0], append[1], (append[1] / append[0] - 1) * 100);
+
+            double[] page = new double[2];
+            for (int round = 0; round < 20; round++) {
+                for (int variant = 0; variant < 2; variant++) {
+                    Path file = variant == 0 ? plain : sealed;
+                    long middle = Files.size(file) / 2;
+                    if (variant == 1) {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                            middle = DataEncryption.chunkAtOrAfter(channel, middle); // As a page token would hold it
+                        }
+                    }
+                    long started = System.nanoTime();
+                    ListingCursor.Page result = variant == 0
+                        ? ListingCursor.fileOrderPage(file, null, middle, ListingCursor.PAGE_SIZE)
+                        : ListingCursor.sealedFileOrderPage(file, null, middle + ":0", ListingCursor.PAGE_SIZE);
+                    double ms = (System.nanoTime() - started) / 1e6;
+                    if (result.rows().size() != ListingCursor.PAGE_SIZE) {
+                        throw new IOException("a page from the middle of " + file.getFileName() + " had " + result.rows().size() + " rows");
+                    }
+                    page[variant] = round == 0 ? ms : Math.min(page[variant], ms);
+                }
+            }
+            System.out.printf("%-28s %9.2f ms %10.2f ms %9s%n", "listing page from the middle", page[0], page[1], "");
+            System.out.printf("%nOn disk: plain %,d bytes, encrypted %,d bytes (%d appends each)%n", Files.size(plain), Files.size(sealed), appends);
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    // Times cold start both ways at a quarter, half and all of the given registry size: rebuilding the search index
+    // from the rows (a lower bound for CSV replay, which also has to read the files) against mapping a checkpoint
+    // image and answering a first query from it
+    private static void benchmarkCheckpoint(int people) throws IOException {
+        Path image = Files.createTempFile("checkpoint-benchmark-", ".bin");
+        try {
+            System.out.printf("%10s %12s %10s %12s %12s%n", "people", "rebuild ms", "image MB", "restore ms", "1st query ms");
+            for (int size : new int[] {people / 4, people / 2, people}) {
+                List<String> donors = new ArrayList<>();
+                List<String> recipients = new ArrayList<>();
+                syntheticRegistry(size, donors, recipients);
+                long started = System.nanoTime();
+                PersonSearchIndex index = PersonSearchIndex.build(donors, recipients);
+                long rebuildNanos = System.nanoTime() - started;
+                donors = null;
+                recipients = null;
+                Checkpoint.write(image, new Checkpoint.Image(index, 0, 0, DemandForecast.empty()));
+                index = null;
+                System.gc();
+                started = System.nanoTime();
+                Checkpoint.Image restored = Checkpoint.read(image);
+                long restoreNanos = System.nanoTime() - started;
+                restored.index().search("farhana rahman", 0, 10);
+                long queryNanos = System.nanoTime() - started - restoreNanos;
+                System.out.printf("%10d %12.1f %10.1f %12.1f %12.1f%n", size, rebuildNanos / 1e6, Files.size(image) / 1048576.0,
+                                  restoreNanos / 1e6, queryNanos / 1e6);
+            }
+        } finally {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    // Fills the lists with a synthetic registry: half donors, half recipients, with made-up names and contacts
+    private static void syntheticRegistry(int people, List<String> donors, List<String> recipients) {
+        String[] first = {"Alice", "Bob", "Carlos", "Dina", "Emon", "Farhana", "Gazi", "Hasan", "Imran", "Jannat", "Karim", "Laila",
+                          "Mahmud", "Nusrat", "Omar", "Priya", "Rafiq", "Sadia", "Tanvir", "Umme", "Wasim", "Yasmin", "Zahid"};
+        String[] last = {"Ahmed", "Begum", "Chowdhury", "Das", "Hossain", "Islam", "Khan", "Miah", "Rahman", "Sarkar", "Talukder", "Uddin"};
+        Random random = new Random(7);
+        for (int i = 0; i < people; i++) {
+            String name = first[random.nextInt(first.length)] + " " + last[random.nextInt(last.length)] + (i % 97);
+            String contact = i % 3 == 0 ? name.toLowerCase().replace(" ", ".") + "@mail.com" : String.format("01%08d", random.nextInt(100_000_000));
+            if (i % 2 == 0) {
+                donors.add("DONOR-" + i + "," + name + "," + (18 + i % 50) + ",O+," + contact + ",");
+            } else {
+                recipients.add("RECIPIENT-" + i + "," + name + "," + (18 + i % 50) + ",A-," + contact + ",Low");
+            }
+        }
+    }
+
     // Shows a welcome message when the program starts
     private static void displayWelcomeBanner() {
         System.out.println("====================================================================");
@@ -100,8 +1010,8 @@ public class BloodBankManagementSystem {
 
     // Creates the first admin account with a secure ID and password
     private static void registerFirstAdministrator() {
-        // Generate a unique admin ID using a random UUID
-        String adminId = "ADMIN-" + UUID.randomUUID().toString().substring(0, 8).toUpperCase();
+        // Generate a unique admin ID that sorts by creation time
+        String adminId = IdGenerator.next("ADMIN-");
         System.out.println("Your system-generated Administrator ID: " + adminId);
 
         // Ask for a password and confirm it
@@ -169,11 +1079,17 @@ public class BloodBankManagementSystem {
             System.out.println("  5. Create Data Backup");
             System.out.println("  6. View All Registered Donors");
             System.out.println("  7. View All Registered Recipients");
-            System.out.println("  8. Reserve Blood Units");
+            System.out.println("  8. Manage Blood Reservations");
             System.out.println("  9. Manage Blood Availability");
             System.out.println(" 10. Register New Administrator");
-            System.out.println(" 11. Logout and Return to Main Menu");
-            System.out.print("Enter your command (1-11): ");
+            System.out.println(" 11. Manage Collection Sites");
+            System.out.println(" 12. View or Search Audit Log");
+            System.out.println(" 13. Search Donors and Recipients");
+            System.out.println(" 14. Allocate Pending Blood Requests");
+            System.out.println(" 15. Run Ad-hoc Query");
+            System.out.println(" 16. View Stock Level History");
+            System.out.println(" 17. Logout and Return to Main Menu");
+            System.out.print("Enter your command (1-17): ");
 
             String choice = scanner.nextLine();
             switch (choice) {
@@ -193,17 +1109,40 @@ public class BloodBankManagementSystem {
                 case "3" -> admin.processTestRequests(); // Handle pending blood type tests
                 case "4" -> admin.viewReports(); // Show system statistics
                 case "5" -> admin.backupData(); // Save a backup of all data
-                case "6" -> admin.viewAllDonors(); // List all donors
-                case "7" -> admin.viewAllRecipients(); // List all recipients
+                case "6" -> browseRegistry(admin, true); // List donors page by page
+                case "7" -> browseRegistry(admin, false); // List recipients page by page
                 case "8" -> {
-                    // Reserve blood units for future use
-                    System.out.print("Enter Blood Type to Reserve: ");
-                    String reserveBloodType = scanner.nextLine();
-                    System.out.print("Enter Blood Component: ");
-                    String reserveComponent = scanner.nextLine();
-                    System.out.print("Enter Units to Reserve: ");
-                    int reserveUnits = getValidIntegerInput();
-                    admin.reserveBlood(reserveBloodType, reserveComponent, reserveUnits);
+                    // Hold blood units for a while, then confirm (use) or cancel the hold; unconfirmed holds expire
+                    System.out.println("Reservation Options:");
+                    System.out.println("  1. Reserve Blood Units");
+                    System.out.println("  2. Confirm Reservation");
+                    System.out.println("  3. Cancel Reservation");
+                    System.out.println("  4. View Active Reservations");
+                    System.out.print("Select option (1-4): ");
+                    String reserveOption = scanner.nextLine();
+                    switch (reserveOption) {
+                        case "1" -> {
+                            System.out.print("Enter Blood Type to Reserve: ");
+                            String reserveBloodType = scanner.nextLine();
+                            System.out.print("Enter Blood Component: ");
+                            String reserveComponent = scanner.nextLine();
+                            System.out.print("Enter Units to Reserve: ");
+                            int reserveUnits = getValidIntegerInput();
+                            System.out.print("Enter Hold Time in Hours: ");
+                            int holdHours = getValidIntegerInput();
+                            admin.reserveBlood(reserveBloodType, reserveComponent, reserveUnits, holdHours);
+                        }
+                        case "2" -> {
+                            System.out.print("Enter Reservation ID: ");
+                            admin.confirmReservation(scanner.nextLine().trim());
+                        }
+                        case "3" -> {
+                            System.out.print("Enter Reservation ID: ");
+                            admin.cancelReservation(scanner.nextLine().trim());
+                        }
+                        case "4" -> admin.viewReservations();
+                        default -> displayInvalidInputError("Invalid reservation operation selection.");
+                    }
                 }
                 case "9" -> {
                     // Manage blood stock (block specific units, types, or all)
@@ -211,7 +1150,8 @@ public class BloodBankManagementSystem {
                     System.out.println("  1. Block Specific Units");
                     System.out.println("  2. Block Entire Blood Type");
                     System.out.println("  3. Block All Blood Stock");
-                    System.out.print("Select option (1-3): ");
+                    System.out.println("  4. Process Shipment or Recall (several changes at once)");
+                    System.out.print("Select option (1-4): ");
                     String blockOption = scanner.nextLine();
                     switch (blockOption) {
                         case "1" -> {
@@ -234,27 +1174,181 @@ public class BloodBankManagementSystem {
                             // Block the entire blood inventory
                             admin.blockEntireStock();
                         }
+                        case "4" -> processStockBatch(admin);
                         default -> displayInvalidInputError("Invalid block operation selection.");
                     }
                 }
                 case "10" -> admin.registerNewAdministrator(); // Create a new admin account
                 case "11" -> {
+                    // View or add collection sites, each with its own inventory, requests and schedules
+                    System.out.println("Site Management Options:");
+                    System.out.println("  1. View Collection Sites");
+                    System.out.println("  2. Register New Collection Site");
+                    System.out.print("Select option (1-2): ");
+                    String siteOption = scanner.nextLine();
+                    switch (siteOption) {
+                        case "1" -> admin.viewSites();
+                        case "2" -> {
+                            System.out.print("Enter Site ID (e.g., DHAKA-NORTH): ");
+                            String siteId = scanner.nextLine().trim().toUpperCase();
+                            System.out.print("Enter Site Name: ");
+                            String siteName = scanner.nextLine();
+                            System.out.print("Enter Latitude: ");
+                            double latitude = getValidDecimalInput();
+                            System.out.print("Enter Longitude: ");
+                            double longitude = getValidDecimalInput();
+                            admin.registerSite(siteId, siteName, latitude, longitude);
+                        }
+                        default -> displayInvalidInputError("Invalid site operation selection.");
+                    }
+                }
+                case "12" -> {
+                    // Activity breakdowns over the whole log, or an indexed search for particular events
+                    System.out.println("Audit Log Options:");
+                    System.out.println("  1. Activity Breakdown");
+                    System.out.println("  2. Search Audit Trail");
+                    System.out.print("Select option (1-2): ");
+                    String auditOption = scanner.nextLine();
+                    switch (auditOption) {
+                        case "1" -> admin.viewAuditAnalytics();
+                        case "2" -> {
+                            System.out.print("Enter User ID (press Enter for any): ");
+                            String auditUser = scanner.nextLine();
+                            System.out.print("Enter Role (e.g., Administrator, press Enter for any): ");
+                            String auditRole = scanner.nextLine();
+                            System.out.print("Enter Action (e.g., Reserve Blood, press Enter for any): ");
+                            String auditAction = scanner.nextLine();
+                            System.out.print("Enter From Date (YYYY-MM-DD, press Enter for none): ");
+                            String auditFrom = scanner.nextLine();
+                            System.out.print("Enter To Date (YYYY-MM-DD, press Enter for none): ");
+                            String auditTo = scanner.nextLine();
+                            admin.searchAuditTrail(auditUser, auditRole, auditAction, auditFrom, auditTo);
+                        }
+                        default -> displayInvalidInputError("Invalid audit log selection.");
+                    }
+                }
+                case "13" -> {
+                    // Ranked search by name, contact or ID, one page at a time
+                    System.out.print("Enter name, contact or ID to search: ");
+                    String query = scanner.nextLine();
+                    int page = 0;
+                    while (admin.searchPeople(query, page)) {
+                        System.out.print("Enter N for the next page, or press Enter to finish: ");
+                        if (!scanner.nextLine().trim().equalsIgnoreCase("N")) {
+                            break;
+                        }
+                        page++;
+                    }
+                }
+                case "14" -> admin.allocatePendingRequests(); // Serve waiting requests from compatible stock
+                case "15" -> {
+                    // e.g. SELECT blood_type, COUNT, SUM(units) FROM requests WHERE status = PENDING GROUP BY blood_type
+                    System.out.println("Query: [EXPLAIN] SELECT fields | COUNT | SUM/AVG/MIN/MAX(field) FROM donors | recipients | inventory | requests | tests");
+                    System.out.println("       [WHERE field = != < <= > >= ~ value AND ...] [GROUP BY field] [ORDER BY column [DESC]] [LIMIT n]");
+                    System.out.print("Enter query: ");
+                    admin.runQuery(scanner.nextLine());
+                }
+                case "16" -> {
+                    // Levels of one blood type and component over the past days, from the stock history
+                    System.out.print("Enter Blood Type (e.g., O+): ");
+                    String historyBloodType = scanner.nextLine().trim().toUpperCase();
+                    System.out.print("Enter Blood Component (Whole Blood/Plasma/Platelets): ");
+                    String historyComponent = scanner.nextLine().trim();
+                    System.out.print("Enter Number of Days to Show: ");
+                    admin.viewStockHistory(historyBloodType, historyComponent, getValidIntegerInput());
+                }
+                case "17" -> {
                     System.out.println("Logging out from administrator account...");
                     return; // Go back to the main menu
                 }
-                default -> displayInvalidInputError("Invalid command selection. Please enter a number between 1 and 11.");
+                default -> displayInvalidInputError("Invalid command selection. Please enter a number between 1 and 17.");
             }
         }
     }
 
-    // Manages donor operations like registration and login
-    private static void handleDonorOperations() {
-        System.out.print("\nAre you an existing donor? (YES/NO): ");
-        String existing = scanner.nextLine();
-        Donor donor;
-        String id;
-
-        if (existing.equalsIgnoreCase("YES")) {
+    // Asks for listing options, then shows donors or recipients one page at a time
+    private static void browseRegistry(Admin admin, boolean donors) {
+        System.out.print("Filter by Blood Type (press Enter for all): ");
+        String bloodGroup = scanner.nextLine().trim();
+        System.out.println("Sort by:  1. Registration Order  2. Name  3. Age");
+        System.out.print("Select option (1-3, press Enter for 1): ");
+        ListingCursor.Order order = switch (scanner.nextLine().trim()) {
+            case "2" -> ListingCursor.Order.NAME;
+            case "3" -> ListingCursor.Order.AGE;
+            default -> ListingCursor.Order.FILE;
+        };
+        String filter = bloodGroup.isEmpty() ? null : bloodGroup;
+        String token = null;
+        while (true) {
+            token = donors ? admin.viewAllDonors(filter, order, token) : admin.viewAllRecipients(filter, order, token);
+            if (token == null) {
+                return;
+            }
+            System.out.print("Enter N for the next page, or press Enter to finish: ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("N")) {
+                return;
+            }
+        }
+    }
+
+    // Collects stock changes into one batch that is committed (or discarded) as a whole
+    private static void processStockBatch(Admin admin) {
+        Transaction batch = admin.startBatch();
+        while (true) {
+            System.out.println("\nBatch Options (" + batch.size() + " changes staged):");
+            System.out.println("  1. Add Stock");
+            System.out.println("  2. Block Specific Units");
+            System.out.println("  3. Block Entire Blood Type");
+            System.out.println("  4. Block All Blood Stock");
+            System.out.println("  5. Commit Batch");
+            System.out.println("  6. Discard Batch");
+            System.out.print("Select option (1-6): ");
+            switch (scanner.nextLine()) {
+                case "1" -> {
+                    System.out.print("Enter Blood Type (e.g., O+): ");
+                    String bloodType = scanner.nextLine();
+                    System.out.print("Enter Blood Component (Whole Blood/Plasma/Platelets): ");
+                    String component = scanner.nextLine();
+                    System.out.print("Enter Number of Units: ");
+                    int units = getValidIntegerInput();
+                    System.out.print("Enter Expiration Date (YYYY-MM-DD): ");
+                    batch.addStock(bloodType, component, units, scanner.nextLine());
+                }
+                case "2" -> {
+                    System.out.print("Enter Blood Type: ");
+                    String bloodType = scanner.nextLine();
+                    System.out.print("Enter Blood Component: ");
+                    String component = scanner.nextLine();
+                    System.out.print("Enter Units to Block: ");
+                    batch.blockUnits(bloodType, component, getValidIntegerInput());
+                }
+                case "3" -> {
+                    System.out.print("Enter Blood Type: ");
+                    batch.blockBloodType(scanner.nextLine());
+                }
+                case "4" -> batch.blockEntireStock();
+                case "5" -> {
+                    admin.commitBatch(batch);
+                    return;
+                }
+                case "6" -> {
+                    batch.discard();
+                    System.out.println("\nBatch discarded. No changes were made.");
+                    return;
+                }
+                default -> displayInvalidInputError("Invalid batch operation selection.");
+            }
+        }
+    }
+
+    // Manages donor operations like registration and login
+    private static void handleDonorOperations() {
+        System.out.print("\nAre you an existing donor? (YES/NO): ");
+        String existing = scanner.nextLine();
+        Donor donor;
+        String id;
+
+        if (existing.equalsIgnoreCase("YES")) {
             // Log in an existing donor
             System.out.print("Enter Donor ID: ");
             id = scanner.nextLine();
@@ -278,7 +1372,7 @@ public class BloodBankManagementSystem {
             System.out.println("\n--------------------------------------------------------------------");
             System.out.println("  REGISTERING NEW DONOR");
             System.out.println("--------------------------------------------------------------------");
-            id = "DONOR-" + UUID.randomUUID().toString().substring(0, 8).toUpperCase();
+            id = IdGenerator.next("DONOR-");
             System.out.println("Your system-generated Donor ID: " + id);
             System.out.print("Enter Full Name: ");
             String name = scanner.nextLine();
@@ -288,6 +1382,9 @@ public class BloodBankManagementSystem {
             String bloodType = scanner.nextLine();
             System.out.print("Enter Contact (10-digit phone or email): ");
             String contact = scanner.nextLine();
+            System.out.print("Enter Your Location as latitude,longitude (press Enter to skip): ");
+            String locationInput = scanner.nextLine();
+            double[] location = locationInput.isBlank() ? null : parseLocation(locationInput);
             System.out.print("Create Password: ");
             String password = scanner.nextLine();
             System.out.print("Confirm Password: ");
@@ -312,6 +1409,9 @@ public class BloodBankManagementSystem {
 
             // Create a new donor object
             donor = new Donor(id, name, age, bloodType, contact, null);
+            if (location != null) {
+                donor.setLocation(location[0], location[1]);
+            }
             System.out.print("Do you want to donate blood now or enroll in the donor list? (DONATE/ENROLL): ");
             String donationChoice = scanner.nextLine();
             if (donationChoice.equalsIgnoreCase("DONATE")) {
@@ -349,8 +1449,9 @@ public class BloodBankManagementSystem {
             System.out.println("  2. Schedule Blood Donation");
             System.out.println("  3. View Donation History");
             System.out.println("  4. View Blood Test Report");
-            System.out.println("  5. Logout and Return to Main Menu");
-            System.out.print("Enter your command (1-5): ");
+            System.out.println("  5. Update My Location");
+            System.out.println("  6. Logout and Return to Main Menu");
+            System.out.print("Enter your command (1-6): ");
 
             String choice = scanner.nextLine();
             switch (choice) {
@@ -368,10 +1469,18 @@ public class BloodBankManagementSystem {
                 case "3" -> donor.viewDonationHistory(); // Show past donations
                 case "4" -> donor.viewBloodTestReportHistory(); // Show blood test results
                 case "5" -> {
+                    // Where the donor lives decides their collection site and which requests they are matched with
+                    System.out.print("Enter Your Location as latitude,longitude (e.g., 23.81,90.41): ");
+                    double[] location = parseLocation(scanner.nextLine());
+                    if (location != null) {
+                        donor.updateLocation(location[0], location[1]);
+                    }
+                }
+                case "6" -> {
                     System.out.println("Logging out from donor account...");
                     return; // Go back to the main menu
                 }
-                default -> displayInvalidInputError("Invalid command selection. Please enter a number between 1 and 5.");
+                default -> displayInvalidInputError("Invalid command selection. Please enter a number between 1 and 6.");
             }
         }
     }
@@ -407,7 +1516,7 @@ public class BloodBankManagementSystem {
             System.out.println("\n--------------------------------------------------------------------");
             System.out.println("  REGISTERING NEW RECIPIENT");
             System.out.println("--------------------------------------------------------------------");
-            id = "RECIPIENT-" + UUID.randomUUID().toString().substring(0, 8).toUpperCase();
+            id = IdGenerator.next("RECIPIENT-");
             System.out.println("Your system-generated Recipient ID: " + id);
             System.out.print("Enter Full Name: ");
             String name = scanner.nextLine();
@@ -473,11 +1582,13 @@ public class BloodBankManagementSystem {
                     // Request blood units from inventory
                     System.out.print("Enter Blood Type Needed: ");
                     String bloodType = scanner.nextLine();
+                    System.out.print("Enter Blood Component (Whole Blood/Plasma/Platelets): ");
+                    String component = scanner.nextLine();
                     System.out.print("Enter Units Needed: ");
                     int units = getValidIntegerInput();
                     System.out.print("Enter Urgency (Low/Medium/High): ");
                     String urgency = scanner.nextLine();
-                    recipient.requestBlood(bloodType, units, urgency);
+                    recipient.requestBlood(bloodType, component, units, urgency);
                 }
                 case "3" -> recipient.viewRequestStatus(); // Show status of blood requests
                 case "4" -> recipient.viewBloodTestReportHistory(); // Show blood test results
@@ -508,6 +1619,35 @@ public class BloodBankManagementSystem {
         }
     }
 
+    // Ensures the user enters a valid decimal number (e.g., a coordinate)
+    private static double getValidDecimalInput() {
+        while (true) {
+            try {
+                return Double.parseDouble(scanner.nextLine());
+            } catch (NumberFormatException e) {
+                displayInvalidInputError("Please enter a valid decimal number.");
+            }
+        }
+    }
+
+    // Parses "latitude,longitude" in decimal degrees; reports and returns null if it is not a valid location
+    private static double[] parseLocation(String input) {
+        String[] parts = input.split(",");
+        try {
+            if (parts.length == 2) {
+                double latitude = Double.parseDouble(parts[0].trim());
+                double longitude = Double.parseDouble(parts[1].trim());
+                if (Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180) {
+                    return new double[] {latitude, longitude};
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        displayInvalidInputError("Please enter a location as latitude,longitude, e.g. 23.81,90.41.");
+        return null;
+    }
+
     // Abstract class for common attributes and methods for Donors and Recipients
     static abstract class Person {
         // Fields to store user details
@@ -610,6 +1750,7 @@ public class BloodBankManagementSystem {
 
     // Admin class to handle admin-specific tasks
     static class Admin {
+        static final int AUDIT_SEARCH_LIMIT = 50; // Audit search matches printed, newest first
         private final String administratorId; // Admin’s unique ID
         private final String administratorPassword; // Admin’s password
 
@@ -621,15 +1762,15 @@ public class BloodBankManagementSystem {
 
         // Checks if the admin’s ID and password are correct
         public boolean authenticate() {
-            try (BufferedReader reader = new BufferedReader(new FileReader("users.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
+            try {
+                for (String line : FileCoordinator.readLines("users.csv")) {
                     String[] data = line.split(",");
                     if (data[0].equals(administratorId) && data[1].equals("Administrator") && data[2].equals(administratorPassword)) {
                         FileHandler.logAction(administratorId, "Administrator", "Login", "Successful authentication");
                         return true;
                     }
                 }
+                FileHandler.logAction(administratorId, "Administrator", "Login Failed", "Invalid credentials");
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to read user data - " + e.getMessage());
@@ -643,7 +1784,7 @@ public class BloodBankManagementSystem {
             System.out.println("\n--------------------------------------------------------------------");
             System.out.println("  REGISTERING NEW ADMINISTRATOR");
             System.out.println("--------------------------------------------------------------------");
-            String newId = "ADMIN-" + UUID.randomUUID().toString().substring(0, 8).toUpperCase();
+            String newId = IdGenerator.next("ADMIN-");
             System.out.println("Generated Administrator ID: " + newId);
             System.out.print("Create Password for new administrator: ");
             String password = scanner.nextLine();
@@ -679,7 +1820,7 @@ public class BloodBankManagementSystem {
 
         // Shows the current blood inventory with details
         public void viewInventory() {
-            List<String> inventory = FileHandler.loadInventoryData();
+            List<InventoryItem> inventory = FileHandler.loadInventoryData();
             if (inventory.isEmpty()) {
                 System.out.println("\nInventory is currently empty.");
                 return;
@@ -689,24 +1830,22 @@ public class BloodBankManagementSystem {
             System.out.println("\n================ BLOOD INVENTORY STATUS =================");
             System.out.println("Type | Component     | Units | Expiration   | Reserved | Status");
             System.out.println("---------------------------------------------------------");
-            for (String item : inventory) {
-                String[] data = item.split(",");
-                System.out.printf("%-5s| %-13s| %6s| %12s| %9s| %-8s%n", data[0], data[1], data[2], data[3], data[4], data[5]);
-                int units = Integer.parseInt(data[2]);
-                int reserved = Integer.parseInt(data[4]);
-                if (units < 5) {
-                    System.out.println("WARNING: Low stock for " + data[0] + " " + data[1] + " (" + units + " units)");
+            LocalDate today = LocalDate.now();
+            for (InventoryItem item : inventory) {
+                System.out.printf("%-5s| %-13s| %6d| %12s| %9d| %-8s%n", item.bloodType(), item.component(), item.units(), item.expiry(),
+                                  item.reserved(), item.status());
+                if (item.units() < 5) {
+                    System.out.println("WARNING: Low stock for " + item.bloodType() + " " + item.component() + " (" + item.units() + " units)");
                 }
-                if (data[5].equals("BLOCKED")) {
-                    System.out.println("NOTICE: " + data[0] + " " + data[1] + " is currently BLOCKED");
+                if (item.status() == StockStatus.BLOCKED) {
+                    System.out.println("NOTICE: " + item.bloodType() + " " + item.component() + " is currently BLOCKED");
                 }
-                if (reserved > 0) {
-                    System.out.println("NOTE: " + reserved + " units reserved for " + data[0] + " " + data[1]);
+                if (item.reserved() > 0) {
+                    System.out.println("NOTE: " + item.reserved() + " units reserved for " + item.bloodType() + " " + item.component());
                 }
-                LocalDate expDate = LocalDate.parse(data[3]);
-                long daysToExpire = ChronoUnit.DAYS.between(LocalDate.now(), expDate);
+                long daysToExpire = ChronoUnit.DAYS.between(today, item.expiry());
                 if (daysToExpire <= 7 && daysToExpire >= 0) {
-                    System.out.println("ALERT: Expiring soon for " + data[0] + " " + data[1] + " on " + expDate);
+                    System.out.println("ALERT: Expiring soon for " + item.bloodType() + " " + item.component() + " on " + item.expiry());
                 }
             }
             FileHandler.logAction(administratorId, "Administrator", "View Inventory", "Viewed full inventory");
@@ -721,7 +1860,7 @@ public class BloodBankManagementSystem {
 
         // Processes pending blood type test requests
         public void processTestRequests() {
-            List<String> tests = FileHandler.loadTestRequests();
+            List<TestRequest> tests = FileHandler.loadTestRequests();
             if (tests.isEmpty()) {
                 System.out.println("\nNo pending test requests.");
                 return;
@@ -731,40 +1870,49 @@ public class BloodBankManagementSystem {
             System.out.println("\n================ PENDING TEST REQUESTS =================");
             System.out.println("Test ID | User ID | User Type | Request Date | Status");
             System.out.println("----------------------------------------------------");
-            for (String test : tests) {
-                String[] data = test.split(",");
-                if (data[4].equals("PENDING")) {
-                    System.out.printf("%-36s| %-8s| %-10s| %-12s| %-8s%n", data[0], data[1], data[2], data[3], data[4]);
-                    System.out.print("Enter Blood Type Result for Test " + data[0] + " (e.g., A+): ");
+            for (TestRequest test : tests) {
+                if (test.status() == TestStatus.PENDING) {
+                    System.out.printf("%-36s| %-8s| %-10s| %-12s| %-8s%n", test.id(), test.userId(), test.userType(), test.requestDate(), test.status());
+                    System.out.print("Enter Blood Type Result for Test " + test.id() + " (e.g., A+): ");
                     String result = scanner.nextLine();
-                    FileHandler.updateTestRequest(data[0], result);
-                    if (data[2].equals("Donor")) {
-                        Donor donor = FileHandler.loadDonor(data[1]);
+                    FileHandler.updateTestRequest(test.id(), result);
+                    if (test.userType().equals("Donor")) {
+                        Donor donor = FileHandler.loadDonor(test.userId());
                         donor.setBloodGroup(result);
                         FileHandler.saveDonorInformation(donor);
                     } else {
-                        Recipient recipient = FileHandler.loadRecipient(data[1]);
+                        Recipient recipient = FileHandler.loadRecipient(test.userId());
                         recipient.setBloodGroup(result);
                         FileHandler.saveRecipientInformation(recipient);
                     }
-                    System.out.println("Test " + data[0] + " updated with blood type: " + result);
-                    FileHandler.logAction(administratorId, "Administrator", "Process Test", "Updated test " + data[0] + " with " + result);
+                    System.out.println("Test " + test.id() + " updated with blood type: " + result);
+                    FileHandler.logAction(administratorId, "Administrator", "Process Test", "Updated test " + test.id() + " with " + result);
                 }
             }
         }
 
         // Shows system statistics like donor and recipient counts
         public void viewReports() {
-            int donorCount = FileHandler.loadDonors().size();
-            int recipientCount = FileHandler.loadRecipients().size();
-            int pendingTests = FileHandler.loadTestRequests().size();
-            int inventoryUnits = FileHandler.loadInventoryData().stream()
-                .mapToInt(line -> Integer.valueOf(line.split(",")[2]))
-                .sum();
-            int reservedUnits = FileHandler.loadInventoryData().stream().mapToInt(line -> {
-                String[] data = line.split(",");
-                return Integer.valueOf(data[4]);
-            }).sum();
+            // All figures, the forecast and the network-wide stock included, come from one snapshot, so they are
+            // consistent with each other even while other operators write. Once it is pinned, the forecast and the
+            // sites' inventories are decoded from it side by side with the counts below.
+            String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+            List<Site> sites = SiteRegistry.all();
+            CompletableFuture<FileCoordinator.Snapshot> loadingSnapshot = AsyncFileHandler.loadReportSnapshot(sites);
+            CompletableFuture<DemandForecast> loadingForecast = AsyncFileHandler.loadDemandForecast(loadingSnapshot, sites);
+            CompletableFuture<List<InventoryMatrix>> loadingInventories = AsyncFileHandler.loadSiteInventories(loadingSnapshot, sites);
+            FileCoordinator.Snapshot snapshot = loadingSnapshot.join();
+            if (snapshot == null) {
+                return;
+            }
+            int donorCount = snapshot.lines("donors.csv").size();
+            int recipientCount = snapshot.lines("recipients.csv").size();
+            int pendingTests = (int) RecordCache.of("tests.csv", snapshot.datasets().get("tests.csv"), TestRequest.class, TestRequest::parse).stream()
+                .filter(test -> test.status() == TestStatus.PENDING)
+                .count();
+            InventoryMatrix inventory = InventoryMatrix.of(inventoryFile, snapshot.version(inventoryFile));
+            int inventoryUnits = inventory.totalUnits();
+            int reservedUnits = inventory.totalReserved();
 
             // Display the statistics
             System.out.println("\n================ SYSTEM REPORTS AND ANALYTICS =================");
@@ -773,6 +1921,10 @@ public class BloodBankManagementSystem {
             System.out.println("Total Pending Test Requests: " + pendingTests);
             System.out.println("Total Available Inventory Units: " + inventoryUnits);
             System.out.println("Total Reserved Units: " + reservedUnits);
+            DemandForecast forecast = loadingForecast.join();
+            if (forecast != null) {
+                forecast.print(loadingInventories.join());
+            }
             FileHandler.logAction(administratorId, "Administrator", "View Reports", "Viewed system reports");
         }
 
@@ -783,49 +1935,109 @@ public class BloodBankManagementSystem {
             FileHandler.logAction(administratorId, "Administrator", "Backup Data", "Backed up all CSV files");
         }
 
-        // Lists all registered donors
-        public void viewAllDonors() {
-            List<String> donors = FileHandler.loadDonors();
-            if (donors.isEmpty()) {
-                System.out.println("\nNo donors registered in the system.");
-            } else {
-                System.out.println("\n================ ALL REGISTERED DONORS =================");
-                System.out.println("ID | Name | Age | Blood Type | Contact");
-                System.out.println("------------------------------------------------");
-                for (String donor : donors) {
-                    System.out.println(donor.replace(",", " | "));
-                }
+        // Lists one page of registered donors; returns the token of the next page, or null after the last one
+        public String viewAllDonors(String bloodGroup, ListingCursor.Order order, String token) {
+            ListingCursor.Page page = FileHandler.loadListingPage("donors.csv", bloodGroup, order, token);
+            if (page == null) {
+                return null;
+            }
+            printListing(page, token == null, bloodGroup, "DONORS", "ID | Name | Age | Blood Type | Contact");
+            if (token == null) {
+                FileHandler.logAction(administratorId, "Administrator", "View Donors", "Viewed all registered donors");
             }
-            FileHandler.logAction(administratorId, "Administrator", "View Donors", "Viewed all registered donors");
+            return page.nextToken();
         }
 
-        // Lists all registered recipients
-        public void viewAllRecipients() {
-            List<String> recipients = FileHandler.loadRecipients();
-            if (recipients.isEmpty()) {
-                System.out.println("\nNo recipients registered in the system.");
-            } else {
-                System.out.println("\n================ ALL REGISTERED RECIPIENTS =================");
-                System.out.println("ID | Name | Age | Blood Type | Contact | Urgency");
-                System.out.println("-----------------------------------------------------");
-                for (String recipient : recipients) {
-                    System.out.println(recipient.replace(",", " | "));
-                }
+        // Lists one page of registered recipients; returns the token of the next page, or null after the last one
+        public String viewAllRecipients(String bloodGroup, ListingCursor.Order order, String token) {
+            ListingCursor.Page page = FileHandler.loadListingPage("recipients.csv", bloodGroup, order, token);
+            if (page == null) {
+                return null;
+            }
+            printListing(page, token == null, bloodGroup, "RECIPIENTS", "ID | Name | Age | Blood Type | Contact | Urgency");
+            if (token == null) {
+                FileHandler.logAction(administratorId, "Administrator", "View Recipients", "Viewed all registered recipients");
             }
-            FileHandler.logAction(administratorId, "Administrator", "View Recipients", "Viewed all registered recipients");
+            return page.nextToken();
         }
 
-        // Reserves blood units for specific needs
-        public void reserveBlood(String bloodType, String component, int units) {
-            boolean success = FileHandler.reserveBlood(bloodType, component, units);
-            if (success) {
+        // Renders a listing page through one buffered writer instead of a console write per row
+        private void printListing(ListingCursor.Page page, boolean firstPage, String bloodGroup, String kind, String header) {
+            if (page.rows().isEmpty() && firstPage) {
+                System.out.println(bloodGroup == null ? "\nNo " + kind.toLowerCase() + " registered in the system."
+                                                      : "\nNo " + kind.toLowerCase() + " with blood type " + bloodGroup + ".");
+                return;
+            }
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), 1 << 16), false);
+            if (firstPage) {
+                out.println();
+                out.println("================ ALL REGISTERED " + kind + (bloodGroup == null ? "" : " (" + bloodGroup + ")") + " =================");
+                out.println(header);
+                out.println("------------------------------------------------");
+            }
+            for (String row : page.rows()) {
+                out.println(row.replace(",", " | "));
+            }
+            out.flush();
+        }
+
+        // Holds blood units for specific needs; the hold is released automatically unless confirmed in time
+        public void reserveBlood(String bloodType, String component, int units, int holdHours) {
+            if (units <= 0 || holdHours <= 0) {
+                displayInvalidInputError("Units and hold time must be positive numbers.");
+                return;
+            }
+            Lease lease = FileHandler.reserveBlood(administratorId, bloodType, component, units, TimeUnit.HOURS.toMillis(holdHours));
+            if (lease != null) {
                 System.out.println("\n" + units + " units of " + bloodType + " " + component + " reserved successfully.");
-                FileHandler.logAction(administratorId, "Administrator", "Reserve Blood", "Reserved " + units + " units of " + bloodType + " " + component);
+                System.out.println("Reservation ID: " + lease.id() + " (held until " + Lease.formatTime(lease.expiresAt()) + ")");
+                FileHandler.logAction(administratorId, "Administrator", "Reserve Blood",
+                                      "Reserved " + units + " units of " + bloodType + " " + component + " as " + lease.id());
             } else {
                 displayInvalidInputError("Failed to reserve: Insufficient units or blood is blocked.");
             }
         }
 
+        // Uses the units held by a reservation; they leave the inventory for good
+        public void confirmReservation(String leaseId) {
+            Lease lease = FileHandler.settleReservation(leaseId, Lease.CONFIRMED);
+            if (lease != null) {
+                System.out.println("\nReservation " + leaseId + " confirmed: " + lease.units() + " units of " + lease.bloodType() + " "
+                                   + lease.component() + " issued.");
+                FileHandler.logAction(administratorId, "Administrator", "Confirm Reservation", "Confirmed reservation " + leaseId);
+            } else {
+                displayInvalidInputError("No active reservation with ID " + leaseId + ".");
+            }
+        }
+
+        // Returns the units held by a reservation to available stock
+        public void cancelReservation(String leaseId) {
+            Lease lease = FileHandler.settleReservation(leaseId, Lease.CANCELLED);
+            if (lease != null) {
+                System.out.println("\nReservation " + leaseId + " cancelled: " + lease.units() + " units of " + lease.bloodType() + " "
+                                   + lease.component() + " returned to stock.");
+                FileHandler.logAction(administratorId, "Administrator", "Cancel Reservation", "Cancelled reservation " + leaseId);
+            } else {
+                displayInvalidInputError("No active reservation with ID " + leaseId + ".");
+            }
+        }
+
+        // Lists the reservations still holding units at this site, soonest to expire first
+        public void viewReservations() {
+            List<Lease> leases = FileHandler.loadActiveReservations();
+            System.out.println("\n================ ACTIVE RESERVATIONS =================");
+            System.out.println("Reservation ID | Owner | Blood Type | Component | Units | Expires");
+            System.out.println("------------------------------------------------------");
+            for (Lease lease : leases) {
+                System.out.println(lease.id() + " | " + lease.owner() + " | " + lease.bloodType() + " | " + lease.component() + " | "
+                                   + lease.units() + " | " + Lease.formatTime(lease.expiresAt()));
+            }
+            if (leases.isEmpty()) {
+                System.out.println("No active reservations.");
+            }
+            FileHandler.logAction(administratorId, "Administrator", "View Reservations", "Viewed " + leases.size() + " active reservations");
+        }
+
         // Blocks specific blood units from being used
         public void blockBlood(String bloodType, String component, int units) {
             boolean success = FileHandler.blockBlood(bloodType, component, units);
@@ -854,11 +2066,250 @@ public class BloodBankManagementSystem {
             System.out.println("\nEntire blood stock blocked successfully.");
             FileHandler.logAction(administratorId, "Administrator", "Block Entire Stock", "Blocked entire blood stock");
         }
+
+        // Starts a batch of changes by this administrator, to be committed as one unit
+        public Transaction startBatch() {
+            return new Transaction(administratorId, "Administrator");
+        }
+
+        // Commits a batch of stock changes as one unit and reports the outcome
+        public void commitBatch(Transaction batch) {
+            List<String> staged = batch.describe();
+            Transaction.Result result = FileHandler.commitTransaction(batch);
+            if (result == null) {
+                return;
+            }
+            if (!result.committed()) {
+                displayInvalidInputError("Batch not committed: nothing to change for \"" + result.refusedChange() + "\". No changes were made.");
+                return;
+            }
+            System.out.println("\nBatch committed: " + staged.size() + " changes, " + result.changedRows() + " inventory lines updated.");
+            for (String change : staged) {
+                System.out.println("  - " + change);
+            }
+        }
+
+        // Lists all collection sites with their distance from this site
+        public void viewSites() {
+            Site home = SiteRegistry.home();
+            System.out.println("\n================ COLLECTION SITES =================");
+            System.out.println("ID | Name | Latitude | Longitude | Distance (km)");
+            System.out.println("--------------------------------------------------");
+            for (Site site : SiteRegistry.all()) {
+                System.out.printf("%-12s| %-20s| %9.4f| %10.4f| %8.1f%s%n", site.id(), site.name(), site.latitude(), site.longitude(),
+                                  home.distanceKm(site), site.equals(home) ? "  (this site)" : "");
+            }
+            FileHandler.logAction(administratorId, "Administrator", "View Sites", "Viewed collection sites");
+        }
+
+        // Registers a new collection site with its own inventory, request and schedule files
+        public void registerSite(String siteId, String name, double latitude, double longitude) {
+            if (SiteRegistry.register(new Site(siteId, name, latitude, longitude))) {
+                System.out.println("\nCollection site " + siteId + " (" + name + ") registered successfully.");
+                FileHandler.logAction(administratorId, "Administrator", "Register Site", "Registered site " + siteId);
+            } else {
+                displayInvalidInputError("Failed to register site: ID must be unique (letters, digits, '-') and name must not contain commas.");
+            }
+        }
+
+        // Shows one page of donors and recipients matching the query; returns whether there is a next page
+        public boolean searchPeople(String query, int page) {
+            PersonSearchIndex.Page results = FileHandler.searchPeople(query, page, PersonSearchIndex.PAGE_SIZE);
+            if (results == null) {
+                return false;
+            }
+            if (results.totalMatches() == 0) {
+                System.out.println("\nNo donors or recipients match \"" + query + "\".");
+            } else {
+                System.out.println("\n================ SEARCH RESULTS FOR \"" + query + "\" =================");
+                System.out.println("Showing " + (page * results.pageSize() + 1) + "-" + (page * results.pageSize() + results.hits().size())
+                                   + " of " + results.totalMatches() + " matches");
+                System.out.println("Type | ID | Name | Age | Blood Type | Contact | ...");
+                System.out.println("-----------------------------------------------------");
+                for (PersonSearchIndex.Hit hit : results.hits()) {
+                    System.out.println(hit.kind() + " | " + hit.row().replace(",", " | "));
+                }
+            }
+            if (page == 0) {
+                FileHandler.logAction(administratorId, "Administrator", "Search People", "Searched for " + query.replace(",", " "));
+            }
+            return results.hasNext();
+        }
+
+        // Serves as many pending blood requests as the stock of every site allows, solved together, and lists the outcome
+        public void allocatePendingRequests() {
+            long started = System.nanoTime();
+            List<AllocationEngine.Allocation> served = FileHandler.allocatePendingRequests();
+            if (served == null) {
+                return;
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (served.isEmpty()) {
+                System.out.println("\nNo pending blood requests could be served from the current stock.");
+            } else {
+                System.out.println("\n================ ALLOCATED BLOOD REQUESTS =================");
+                System.out.println("Request ID | Recipient ID | Blood Type | Units | Urgency | Served From");
+                System.out.println("-------------------------------------------------------------------");
+                for (AllocationEngine.Allocation allocation : served) {
+                    AllocationEngine.Demand demand = allocation.demand();
+                    StringJoiner sources = new StringJoiner(", ");
+                    for (AllocationEngine.Take take : allocation.takes()) {
+                        String[] lot = take.lot().row().split(",");
+                        sources.add(take.units() + " x " + lot[0] + " " + lot[1] + " @ " + take.lot().site().id());
+                    }
+                    System.out.println(demand.requestId() + " | " + demand.recipientId() + " | " + demand.bloodType() + " | "
+                                       + demand.units() + " | " + demand.urgency() + " | " + sources);
+                }
+            }
+            System.out.println("Served " + served.size() + " pending request(s) in " + elapsedMillis + " ms.");
+            FileHandler.logAction(administratorId, "Administrator", "Allocate Requests", "Served " + served.size() + " pending requests");
+        }
+
+        // Runs an ad-hoc query over the registries, stock and history and prints the result table
+        public void runQuery(String query) {
+            QueryEngine.Result result = FileHandler.runQuery(query);
+            if (result != null) {
+                result.print(new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)), false));
+                FileHandler.logAction(administratorId, "Administrator", "Run Query", "Returned " + result.rows().size() + " rows for " + query.replace(",", " "));
+            }
+        }
+
+        // Charts the on-hand and available units of one type and component over the last days
+        public void viewStockHistory(String bloodType, String component, int days) {
+            if (printStockHistory(bloodType, component, days)) {
+                FileHandler.logAction(administratorId, "Administrator", "View Stock History", "Viewed " + days + " days of " + bloodType + " " + component);
+            }
+        }
+
+        // Prints the chart, or the changes themselves for a short range; returns false if nothing could be shown
+        static boolean printStockHistory(String bloodType, String component, int days) {
+            Component known = Component.of(component);
+            if (BloodGroup.of(bloodType) == null || known == null || days < 1) {
+                displayInvalidInputError("Enter a valid blood type, component and a positive number of days.");
+                return false;
+            }
+            long started = System.nanoTime();
+            StockHistory.Range range = FileHandler.loadStockHistory(bloodType, known.label, LocalDate.now().minusDays(days - 1), LocalDate.now());
+            if (range == null) {
+                return false;
+            }
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset())), false);
+            out.println("\n================ STOCK HISTORY: " + bloodType + " " + known.label + ", LAST " + days + " DAYS ================");
+            if (range.samples().isEmpty() && range.opening() == null) {
+                out.println("No stock changes recorded for " + bloodType + " " + known.label + " in this period.");
+            } else if (!range.daily()) {
+                out.println("Time             | On Hand | Available");
+                out.println("---------------------------------------");
+                if (range.opening() != null) {
+                    out.printf("(before)         | %7d | %9d%n", range.opening().values()[0], range.opening().values()[1]);
+                }
+                for (StockHistory.Sample sample : range.samples()) {
+                    out.printf("%s | %7d | %9d%n", Lease.formatTime(sample.time() * 1000), sample.values()[0], sample.values()[1]);
+                }
+            } else {
+                printStockChart(out, range, LocalDate.now().minusDays(days - 1), days);
+            }
+            out.printf("%d sample(s), %d bytes read, %.1f ms%n", range.samples().size(), range.bytesRead(), (System.nanoTime() - started) / 1e6);
+            out.flush();
+            return true;
+        }
+
+        // One bar per period of at most 30 periods: the closing on-hand level, its low-high range and the closing
+        // available level; periods without changes carry the previous level forward
+        private static void printStockChart(PrintWriter out, StockHistory.Range range, LocalDate from, int days) {
+            int perBar = (days + 29) / 30;
+            int peak = 1;
+            for (StockHistory.Sample sample : range.samples()) {
+                peak = Math.max(peak, sample.values()[1]);
+            }
+            int[] close = range.opening() == null ? null : new int[] {range.opening().values()[2], range.opening().values()[5]};
+            if (close != null) {
+                peak = Math.max(peak, close[0]);
+            }
+            out.println("Period starting | Close (Low-High) | Avail | Units on hand");
+            out.println("--------------------------------------------------------------------------");
+            int next = 0;
+            for (LocalDate start = from; days > 0; start = start.plusDays(perBar), days -= perBar) {
+                long end = start.toEpochDay() + Math.min(perBar, days);
+                int low = close == null ? Integer.MAX_VALUE : close[0];
+                int high = close == null ? Integer.MIN_VALUE : close[0];
+                while (next < range.samples().size() && range.samples().get(next).time() < end) {
+                    int[] values = range.samples().get(next++).values();
+                    low = Math.min(low, values[0]);
+                    high = Math.max(high, values[1]);
+                    close = new int[] {values[2], values[5]};
+                }
+                if (close == null) {
+                    out.printf("%s      |     -             |     - |%n", start);
+                    continue;
+                }
+                out.printf("%s      | %5d (%4d-%-4d) | %5d | %s%n", start, close[0], low, high, close[1],
+                           "#".repeat((int) Math.round(40.0 * Math.max(0, close[0]) / peak)));
+            }
+        }
+
+        // Shows activity breakdowns from the audit log and writes the per-user daily counts to audit-activity.csv
+        public void viewAuditAnalytics() {
+            AuditAnalytics.Report report = FileHandler.analyzeAuditLog();
+            if (report != null) {
+                report.print(10);
+                FileHandler.logAction(administratorId, "Administrator", "View Audit Analytics", "Analyzed " + report.stats().events + " log entries");
+            }
+        }
+
+        // Lists the audit events matching the given filters (blank = any; dates as YYYY-MM-DD)
+        public void searchAuditTrail(String userId, String role, String action, String from, String to) {
+            int found = printAuditSearch(userId, role, action, from, to);
+            if (found >= 0) {
+                FileHandler.logAction(administratorId, "Administrator", "Search Audit Trail", "Found " + found + " entries");
+            }
+        }
+
+        // Prints the newest matches first, up to AUDIT_SEARCH_LIMIT of them; returns how many matched, or -1 if the
+        // filters were invalid or the search failed
+        static int printAuditSearch(String userId, String role, String action, String from, String to) {
+            LocalDate fromDate;
+            LocalDate toDate;
+            try {
+                fromDate = from == null || from.isBlank() ? null : LocalDate.parse(from.trim());
+                toDate = to == null || to.isBlank() ? null : LocalDate.parse(to.trim());
+            } catch (java.time.format.DateTimeParseException e) {
+                displayInvalidInputError("Invalid date format. Use YYYY-MM-DD.");
+                return -1;
+            }
+            long started = System.nanoTime();
+            AuditIndex.Result result = FileHandler.searchAuditTrail(blankToNull(userId), blankToNull(role), blankToNull(action), fromDate, toDate);
+            if (result == null) {
+                return -1;
+            }
+            List<AuditIndex.Hit> hits = result.hits();
+            System.out.println("\n================ AUDIT TRAIL SEARCH =================");
+            System.out.printf("%d matching entries in %.1f ms (%d index segments, %d recent lines scanned)%n",
+                              hits.size(), (System.nanoTime() - started) / 1e6, result.segments(), result.tailEvents());
+            if (!hits.isEmpty()) {
+                System.out.println("Date       | User            | Role          | Action               | Details");
+                System.out.println("--------------------------------------------------------------------------------------");
+                for (int i = hits.size() - 1; i >= Math.max(0, hits.size() - AUDIT_SEARCH_LIMIT); i--) {
+                    AuditEvent event = hits.get(i).event();
+                    System.out.printf("%s | %-15s | %-13s | %-20s | %s%n", event.date(), event.userId(), event.role(), event.action(), event.details());
+                }
+                if (hits.size() > AUDIT_SEARCH_LIMIT) {
+                    System.out.println("(showing the newest " + AUDIT_SEARCH_LIMIT + "; narrow the filters to see older entries)");
+                }
+            }
+            return hits.size();
+        }
+
+        private static String blankToNull(String value) {
+            return value == null || value.isBlank() ? null : value.trim();
+        }
     }
 
     // Donor class for managing donor-specific actions
     static class Donor extends Person implements SystemUser {
         private LocalDate lastDonationDate; // Tracks the last time the donor gave blood
+        private Double latitude; // Where the donor lives, if they shared it
+        private Double longitude;
 
         // Constructor to initialize a Donor
         public Donor(String identificationNumber, String fullName, int ageValue, String bloodGroup, String contactInformation, LocalDate lastDonationDate) {
@@ -876,6 +2327,30 @@ public class BloodBankManagementSystem {
             this.lastDonationDate = lastDonationDate;
         }
 
+        // Returns the donor's latitude, or null if no location was given
+        public Double getLatitude() {
+            return latitude;
+        }
+
+        // Returns the donor's longitude, or null if no location was given
+        public Double getLongitude() {
+            return longitude;
+        }
+
+        // Sets where the donor lives (decimal degrees)
+        public void setLocation(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        // Saves a new home location, used to match the donor with nearby requests and collection sites
+        public void updateLocation(double latitude, double longitude) {
+            setLocation(latitude, longitude);
+            FileHandler.saveDonorInformation(this);
+            System.out.println("\nLocation updated. Your nearest collection site is " + SiteRegistry.nearest(latitude, longitude).name() + ".");
+            FileHandler.logAction(identificationNumber, "Donor", "Update Location", "Set location to " + latitude + " " + longitude);
+        }
+
         // Identifies the user as a Donor
         @Override
         public String getUserRoleCategory() {
@@ -904,17 +2379,16 @@ public class BloodBankManagementSystem {
         // Shows the donor’s blood test history
         @Override
         public void viewBloodTestReportHistory() {
-            List<String> tests = FileHandler.loadTestRequests(identificationNumber);
+            List<TestRequest> tests = FileHandler.loadTestRequests(identificationNumber);
             if (tests.isEmpty()) {
                 System.out.println("\nNo blood test requests found.");
             } else {
                 System.out.println("\n================ BLOOD TEST REPORT FOR " + fullName + " =================");
                 System.out.println("Test ID | Request Date | Status | Blood Type");
                 System.out.println("--------------------------------------------");
-                for (String test : tests) {
-                    String[] data = test.split(",");
-                    String bloodTypeResult = data.length > 5 && !data[5].isEmpty() ? data[5] : "Not yet determined";
-                    System.out.printf("%-36s| %-12s| %-8s| %-10s%n", data[0], data[3], data[4], bloodTypeResult);
+                for (TestRequest test : tests) {
+                    String bloodTypeResult = !test.result().isEmpty() ? test.result() : "Not yet determined";
+                    System.out.printf("%-36s| %-12s| %-8s| %-10s%n", test.id(), test.requestDate(), test.status(), bloodTypeResult);
                 }
             }
         }
@@ -930,10 +2404,11 @@ public class BloodBankManagementSystem {
         public void scheduleDonation(String date) {
             try {
                 LocalDate donationDate = LocalDate.parse(date);
-                FileHandler.saveSchedule(identificationNumber, donationDate, "Blood Bank");
+                Site site = latitude != null ? SiteRegistry.nearest(latitude, longitude) : SiteRegistry.home();
+                FileHandler.saveSchedule(identificationNumber, donationDate, site);
                 setLastDonationDate(donationDate);
                 FileHandler.saveDonorInformation(this);
-                System.out.println("\nDonation scheduled for " + date);
+                System.out.println("\nDonation scheduled for " + date + " at " + site.name());
                 FileHandler.logAction(identificationNumber, "Donor", "Schedule Donation", "Scheduled donation for " + date);
             } catch (Exception e) {
                 displayInvalidInputError("Invalid date format. Use YYYY-MM-DD.");
@@ -942,15 +2417,15 @@ public class BloodBankManagementSystem {
 
         // Shows the donor’s past donations
         public void viewDonationHistory() {
-            List<String> schedules = FileHandler.loadSchedules(identificationNumber);
+            List<Schedule> schedules = FileHandler.loadSchedules(identificationNumber);
             if (schedules.isEmpty()) {
                 System.out.println("\nNo donation history found.");
             } else {
                 System.out.println("\n================ DONATION HISTORY FOR " + fullName + " =================");
                 System.out.println("Donor ID | Date | Location");
                 System.out.println("--------------------------------");
-                for (String schedule : schedules) {
-                    System.out.println(schedule.replace(",", " | "));
+                for (Schedule schedule : schedules) {
+                    System.out.println(schedule.donorId() + " | " + schedule.date() + " | " + schedule.location());
                 }
             }
         }
@@ -1020,45 +2495,50 @@ public class BloodBankManagementSystem {
         // Shows the recipient’s blood test history
         @Override
         public void viewBloodTestReportHistory() {
-            List<String> tests = FileHandler.loadTestRequests(identificationNumber);
+            List<TestRequest> tests = FileHandler.loadTestRequests(identificationNumber);
             if (tests.isEmpty()) {
                 System.out.println("\nNo blood test requests found.");
             } else {
                 System.out.println("\n================ BLOOD TEST REPORT FOR " + fullName + " =================");
                 System.out.println("Test ID | Request Date | Status | Blood Type");
                 System.out.println("--------------------------------------------");
-                for (String test : tests) {
-                    String[] data = test.split(",");
-                    String bloodTypeResult = data.length > 5 && !data[5].isEmpty() ? data[5] : "Not yet determined";
-                    System.out.printf("%-36s| %-12s| %-8s| %-10s%n", data[0], data[3], data[4], bloodTypeResult);
+                for (TestRequest test : tests) {
+                    String bloodTypeResult = !test.result().isEmpty() ? test.result() : "Not yet determined";
+                    System.out.printf("%-36s| %-12s| %-8s| %-10s%n", test.id(), test.requestDate(), test.status(), bloodTypeResult);
                 }
             }
         }
 
-        // Requests blood units from inventory or donors
-        public void requestBlood(String bloodType, int units, String urgency) {
-            if (FileHandler.isBloodBlocked(bloodType)) {
-                displayInvalidInputError("Blood type " + bloodType + " is currently blocked by admin.");
-                return;
-            }
-            if (FileHandler.isEntireStockBlocked()) {
-                displayInvalidInputError("Entire blood stock is blocked by admin.");
+        // Requests blood units of one component from inventory or donors
+        public void requestBlood(String bloodType, String component, int units, String urgency) {
+            if (Component.of(component) == null) {
+                displayInvalidInputError("Enter a valid blood component (Whole Blood/Plasma/Platelets).");
                 return;
             }
-            String requestId = UUID.randomUUID().toString();
-            boolean fulfilled = FileHandler.processBloodRequest(requestId, identificationNumber, bloodType, units, urgency);
+            // Blocks apply to the stock of the site that set them, so other sites may still serve the request
+            String requestId = IdGenerator.next("");
+            boolean fulfilled = FileHandler.processBloodRequest(requestId, identificationNumber, bloodType, component, units, urgency);
             if (!fulfilled) {
+                if (FileHandler.isEntireStockBlocked()) {
+                    System.out.println("\nThe entire blood stock of this site is currently blocked by admin.");
+                } else if (FileHandler.isBloodBlocked(bloodType)) {
+                    System.out.println("\nBlood type " + bloodType + " is currently blocked by admin at this site.");
+                }
                 List<String> donors = FileHandler.findCompatibleDonors(bloodType);
                 if (donors.isEmpty()) {
                     System.out.println("\nNo compatible donors found for blood type " + bloodType + ".");
                 } else {
-                    System.out.println("\nBlood not available in inventory. Contact the following compatible donors:");
-                    System.out.println("Name | Contact | Blood Type");
-                    System.out.println("--------------------------------");
+                    System.out.println("\nBlood not available in inventory. Contact the following nearby compatible donors:");
+                    System.out.println("Name | Contact | Blood Type | Distance (km)");
+                    System.out.println("--------------------------------------------");
                     for (String donor : donors) {
                         System.out.println(donor.replace(",", " | "));
                     }
                 }
+                int queued = FileHandler.queueDonorNotifications(requestId, bloodType, urgency);
+                if (queued > 0) {
+                    System.out.println(queued + " eligible donor(s) will be notified of this request.");
+                }
             } else {
                 System.out.println("\nBlood request fulfilled from inventory.");
             }
@@ -1067,15 +2547,17 @@ public class BloodBankManagementSystem {
 
         // Shows the status of the recipient’s blood requests
         public void viewRequestStatus() {
-            List<String> requests = FileHandler.loadRequests(identificationNumber);
+            List<BloodRequest> requests = FileHandler.loadRequests(identificationNumber);
             if (requests.isEmpty()) {
                 System.out.println("\nNo blood requests found.");
             } else {
                 System.out.println("\n================ BLOOD REQUEST STATUS FOR " + fullName + " =================");
-                System.out.println("Request ID | Blood Type | Units | Urgency | Status");
-                System.out.println("--------------------------------------------------");
-                for (String request : requests) {
-                    System.out.println(request.replace(",", " | "));
+                System.out.println("Request ID | Recipient ID | Blood Type | Units | Urgency | Status | Date | Component");
+                System.out.println("-----------------------------------------------------------------------------------");
+                for (BloodRequest request : requests) {
+                    System.out.println(request.id() + " | " + request.recipientId() + " | " + request.bloodType() + " | " + request.units() + " | "
+                                       + (request.urgency() == null ? "" : request.urgency().label) + " | " + request.status() + " | "
+                                       + (request.date() == null ? "" : request.date()) + " | " + request.component());
                 }
             }
         }
@@ -1085,7 +2567,7 @@ public class BloodBankManagementSystem {
     static class FileHandler {
         // Creates CSV files for storing data if they don’t exist
         public static void createCSVFiles() {
-            String[] files = {"donors.csv", "recipients.csv", "tests.csv", "inventory.csv", "requests.csv", "schedules.csv", "log.csv", "users.csv"};
+            String[] files = {"donors.csv", "recipients.csv", "tests.csv", "inventory.csv", "requests.csv", "schedules.csv", "log.csv", "users.csv", "sites.csv", "outbox.csv"};
             for (String file : files) {
                 try {
                     File f = new File(file);
@@ -1099,12 +2581,45 @@ public class BloodBankManagementSystem {
                     System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 }
             }
+            SiteRegistry.createSiteFiles(SiteRegistry.home());
+            try {
+                // Finish any transaction that reached its commit point before a crash, before its temp files could age out
+                FileCoordinator.recoverTransactions();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to finish an interrupted transaction - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+            try {
+                FileCoordinator.removeStaleTemps(Paths.get("").toAbsolutePath());
+                FileCoordinator.removeStaleTemps(Paths.get(SiteRegistry.homeFile("inventory.csv")).toAbsolutePath().getParent());
+            } catch (IOException e) {
+                System.out.println("WARNING: Could not remove leftover temp files - " + e.getMessage());
+            }
+        }
+
+        // Encrypts the sensitive datasets that are still plain text, if a data key is configured
+        public static void encryptDataFiles() {
+            if (!DataEncryption.seals("users.csv")) {
+                return;
+            }
+            for (String file : new TreeSet<>(DataEncryption.SENSITIVE)) {
+                try {
+                    if (DataEncryption.seal(file)) {
+                        System.out.println("Encrypted data file: " + file);
+                    }
+                } catch (IOException e) {
+                    System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    System.out.println("   ERROR: Failed to encrypt " + file + " - " + e.getMessage());
+                    System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                }
+            }
         }
 
         // Checks if the users.csv file is empty (no users registered)
         public static boolean isUsersFileEmpty() {
-            try (BufferedReader reader = new BufferedReader(new FileReader("users.csv"))) {
-                return reader.readLine() == null;
+            try {
+                return FileCoordinator.readLines("users.csv").isEmpty();
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Could not check users file - " + e.getMessage());
@@ -1115,9 +2630,8 @@ public class BloodBankManagementSystem {
 
         // Saves a user’s credentials to users.csv
         public static void saveUser(String userId, String userRole, String password) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("users.csv", true))) {
-                writer.write(userId + "," + userRole + "," + password);
-                writer.newLine();
+            try {
+                FileCoordinator.append("users.csv", userId + "," + userRole + "," + password);
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to save user - " + e.getMessage());
@@ -1127,14 +2641,15 @@ public class BloodBankManagementSystem {
 
         // Checks if a user’s ID, role, and password match
         public static boolean authenticateUser(String id, String role, String password) {
-            try (BufferedReader reader = new BufferedReader(new FileReader("users.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
+            try {
+                for (String line : FileCoordinator.readLines("users.csv")) {
                     String[] data = line.split(",");
                     if (data[0].equals(id) && data[1].equals(role) && data[2].equals(password)) {
+                        logAction(id, role, "Login", "Successful authentication");
                         return true;
                     }
                 }
+                logAction(id, role, "Login Failed", "Invalid credentials");
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to read user data - " + e.getMessage());
@@ -1145,29 +2660,28 @@ public class BloodBankManagementSystem {
 
         // Saves donor info to donors.csv
         public static void saveDonorInformation(Donor donor) {
-            List<String> donors = loadDonors();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("donors.csv"))) {
-                boolean exists = false;
-                for (String line : donors) {
-                    String[] data = line.split(",");
-                    if (data[0].equals(donor.getIdentificationNumber())) {
-                        writer.write(donor.getIdentificationNumber() + "," + donor.getName() + "," + 
-                                   donor.getAgeValue() + "," + donor.getBloodGroup() + "," + 
-                                   donor.getContactInformation() + "," + 
-                                   (donor.getLastDonationDate() != null ? donor.getLastDonationDate() : ""));
-                        exists = true;
-                    } else {
-                        writer.write(line);
+            String row = donor.getIdentificationNumber() + "," + donor.getName() + "," +
+                         donor.getAgeValue() + "," + donor.getBloodGroup() + "," +
+                         donor.getContactInformation() + "," +
+                         (donor.getLastDonationDate() != null ? donor.getLastDonationDate() : "") +
+                         (donor.getLatitude() != null ? "," + donor.getLatitude() + "," + donor.getLongitude() : "");
+            try {
+                ChangeBus.commitRows(ChangeType.DONOR_SAVED, "donors.csv", () -> FileCoordinator.rewrite("donors.csv", (donors, out) -> {
+                    boolean exists = false;
+                    for (String line : donors) {
+                        String[] data = line.split(",");
+                        if (data[0].equals(donor.getIdentificationNumber())) {
+                            out.add(row);
+                            exists = true;
+                        } else {
+                            out.add(line);
+                        }
                     }
-                    writer.newLine();
-                }
-                if (!exists) {
-                    writer.write(donor.getIdentificationNumber() + "," + donor.getName() + "," + 
-                               donor.getAgeValue() + "," + donor.getBloodGroup() + "," + 
-                               donor.getContactInformation() + "," + 
-                               (donor.getLastDonationDate() != null ? donor.getLastDonationDate() : ""));
-                    writer.newLine();
-                }
+                    if (!exists) {
+                        out.add(row);
+                    }
+                    return List.of(row);
+                }));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to save donor - " + e.getMessage());
@@ -1177,13 +2691,16 @@ public class BloodBankManagementSystem {
 
         // Loads a donor’s info from donors.csv
         public static Donor loadDonor(String id) {
-            try (BufferedReader reader = new BufferedReader(new FileReader("donors.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
+            try {
+                for (String line : FileCoordinator.readLines("donors.csv")) {
                     String[] data = line.split(",");
                     if (data[0].equals(id)) {
                         LocalDate lastDonation = data.length > 5 && !data[5].isEmpty() ? LocalDate.parse(data[5]) : null;
-                        return new Donor(data[0], data[1], Integer.parseInt(data[2]), data[3], data[4], lastDonation);
+                        Donor donor = new Donor(data[0], data[1], Integer.parseInt(data[2]), data[3], data[4], lastDonation);
+                        if (data.length > 7) {
+                            donor.setLocation(Double.parseDouble(data[6]), Double.parseDouble(data[7]));
+                        }
+                        return donor;
                     }
                 }
             } catch (IOException e) {
@@ -1196,27 +2713,26 @@ public class BloodBankManagementSystem {
 
         // Saves recipient info to recipients.csv
         public static void saveRecipientInformation(Recipient recipient) {
-            List<String> recipients = loadRecipients();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("recipients.csv"))) {
-                boolean exists = false;
-                for (String line : recipients) {
-                    String[] data = line.split(",");
-                    if (data[0].equals(recipient.getIdentificationNumber())) {
-                        writer.write(recipient.getIdentificationNumber() + "," + recipient.getName() + "," + 
-                                   recipient.getAgeValue() + "," + recipient.getBloodGroup() + "," + 
-                                   recipient.getContactInformation() + "," + recipient.getMedicalUrgencyLevel());
-                        exists = true;
-                    } else {
-                        writer.write(line);
+            String row = recipient.getIdentificationNumber() + "," + recipient.getName() + "," +
+                         recipient.getAgeValue() + "," + recipient.getBloodGroup() + "," +
+                         recipient.getContactInformation() + "," + recipient.getMedicalUrgencyLevel();
+            try {
+                ChangeBus.commitRows(ChangeType.RECIPIENT_SAVED, "recipients.csv", () -> FileCoordinator.rewrite("recipients.csv", (recipients, out) -> {
+                    boolean exists = false;
+                    for (String line : recipients) {
+                        String[] data = line.split(",");
+                        if (data[0].equals(recipient.getIdentificationNumber())) {
+                            out.add(row);
+                            exists = true;
+                        } else {
+                            out.add(line);
+                        }
                     }
-                    writer.newLine();
-                }
-                if (!exists) {
-                    writer.write(recipient.getIdentificationNumber() + "," + recipient.getName() + "," + 
-                               recipient.getAgeValue() + "," + recipient.getBloodGroup() + "," + 
-                               recipient.getContactInformation() + "," + recipient.getMedicalUrgencyLevel());
-                    writer.newLine();
-                }
+                    if (!exists) {
+                        out.add(row);
+                    }
+                    return List.of(row);
+                }));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to save recipient - " + e.getMessage());
@@ -1226,9 +2742,8 @@ public class BloodBankManagementSystem {
 
         // Loads a recipient’s info from recipients.csv
         public static Recipient loadRecipient(String id) {
-            try (BufferedReader reader = new BufferedReader(new FileReader("recipients.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
+            try {
+                for (String line : FileCoordinator.readLines("recipients.csv")) {
                     String[] data = line.split(",");
                     if (data[0].equals(id)) {
                         return new Recipient(data[0], data[1], Integer.parseInt(data[2]), data[3], data[4], data[5]);
@@ -1244,10 +2759,13 @@ public class BloodBankManagementSystem {
 
         // Saves a blood type test request to tests.csv
         public static void saveTestRequest(String userId, String userType, LocalDate requestDate, String status) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("tests.csv", true))) {
-                String testId = UUID.randomUUID().toString();
-                writer.write(testId + "," + userId + "," + userType + "," + requestDate + "," + status + ",");
-                writer.newLine();
+            try {
+                String testId = IdGenerator.next("");
+                String row = testId + "," + userId + "," + userType + "," + requestDate + "," + status + ",";
+                ChangeBus.commitRows(ChangeType.TEST_REQUESTED, "tests.csv", () -> {
+                    FileCoordinator.append("tests.csv", row);
+                    return List.of(row);
+                });
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to save test request - " + e.getMessage());
@@ -1255,17 +2773,17 @@ public class BloodBankManagementSystem {
             }
         }
 
-        // Loads test requests for a specific user
-        public static List<String> loadTestRequests(String userId) {
-            List<String> tests = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("tests.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] data = line.split(",");
-                    if (data[1].equals(userId)) {
-                        tests.add(line);
+        // Loads test requests for a specific user, including completed ones moved to the archive
+        public static List<TestRequest> loadTestRequests(String userId) {
+            List<TestRequest> tests = new ArrayList<>();
+            try {
+                List<TestRequest> hot = new ArrayList<>();
+                for (TestRequest test : RecordCache.of("tests.csv", TestRequest.class, TestRequest::parse)) {
+                    if (test.userId().equals(userId)) {
+                        hot.add(test);
                     }
                 }
+                tests.addAll(HistoryArchive.span(HistoryArchive.Tier.of("tests.csv"), userId, hot, TestRequest::id, TestRequest::parse));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to load test requests - " + e.getMessage());
@@ -1274,14 +2792,11 @@ public class BloodBankManagementSystem {
             return tests;
         }
 
-        // Loads all test requests
-        public static List<String> loadTestRequests() {
-            List<String> tests = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("tests.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    tests.add(line);
-                }
+        // Loads the test requests in the hot tier: every pending one, and completed ones not archived yet
+        public static List<TestRequest> loadTestRequests() {
+            List<TestRequest> tests = new ArrayList<>();
+            try {
+                tests.addAll(RecordCache.of("tests.csv", TestRequest.class, TestRequest::parse));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to load test requests - " + e.getMessage());
@@ -1292,17 +2807,21 @@ public class BloodBankManagementSystem {
 
         // Updates a test request with the blood type result
         public static void updateTestRequest(String testId, String bloodType) {
-            List<String> tests = loadTestRequests();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("tests.csv"))) {
-                for (String test : tests) {
-                    String[] data = test.split(",");
-                    if (data[0].equals(testId)) {
-                        writer.write(data[0] + "," + data[1] + "," + data[2] + "," + data[3] + ",COMPLETED," + bloodType);
-                    } else {
-                        writer.write(test);
+            try {
+                ChangeBus.commitRows(ChangeType.TEST_COMPLETED, "tests.csv", () -> FileCoordinator.rewrite("tests.csv", (tests, out) -> {
+                    List<String> updated = new ArrayList<>();
+                    for (String test : tests) {
+                        String[] data = test.split(",");
+                        if (data[0].equals(testId)) {
+                            String row = data[0] + "," + data[1] + "," + data[2] + "," + data[3] + ",COMPLETED," + bloodType;
+                            out.add(row);
+                            updated.add(row);
+                        } else {
+                            out.add(test);
+                        }
                     }
-                    writer.newLine();
-                }
+                    return updated;
+                }));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to update test request - " + e.getMessage());
@@ -1312,41 +2831,70 @@ public class BloodBankManagementSystem {
 
         // Updates the blood inventory with new units
         public static void updateInventory(String bloodType, String component, int units, String expDate) {
-            List<String> inventory = loadInventoryData();
-            boolean updated = false;
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("inventory.csv"))) {
-                for (String item : inventory) {
-                    String[] data = item.split(",");
-                    if (data[0].equals(bloodType) && data[1].equals(component)) {
-                        int newUnits = Integer.parseInt(data[2]) + units;
-                        int reserved = Integer.parseInt(data[4]);
+            try {
+                String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+                ChangeBus.commitRows(ChangeType.INVENTORY_UPDATED, inventoryFile, () -> FileCoordinator.rewrite(inventoryFile, addingStock(bloodType, component, units, expDate)));
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to update inventory - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+        }
+
+        // Inventory change that adds units to a type and component's line (or starts one); returns the changed row
+        static FileCoordinator.Rewrite<List<String>> addingStock(String bloodType, String component, int units, String expDate) {
+            return (inventory, out) -> {
+                List<String> updated = new ArrayList<>();
+                for (String item : inventory) {
+                    String[] data = item.split(",");
+                    if (data[0].equals(bloodType) && data[1].equals(component)) {
+                        int newUnits = Integer.parseInt(data[2]) + units;
+                        int reserved = Integer.parseInt(data[4]);
                         String status = data[5];
-                        writer.write(bloodType + "," + component + "," + newUnits + "," + expDate + "," + reserved + "," + status);
-                        updated = true;
+                        String row = bloodType + "," + component + "," + newUnits + "," + expDate + "," + reserved + "," + status;
+                        out.add(row);
+                        updated.add(row);
                     } else {
-                        writer.write(item);
+                        out.add(item);
                     }
-                    writer.newLine();
                 }
-                if (!updated) {
-                    writer.write(bloodType + "," + component + "," + units + "," + expDate + ",0,AVAILABLE");
-                    writer.newLine();
+                if (updated.isEmpty()) {
+                    String row = bloodType + "," + component + "," + units + "," + expDate + ",0,AVAILABLE";
+                    out.add(row);
+                    updated.add(row);
                 }
+                return updated;
+            };
+        }
+
+        // Pins everything the reports show: the registry and tests, and the inventory and request history of the
+        // given sites; returns null if it can’t be read
+        public static FileCoordinator.Snapshot loadReportSnapshot(List<Site> sites) {
+            List<String> files = new ArrayList<>(List.of("donors.csv", "recipients.csv", "tests.csv"));
+            for (Site site : sites) {
+                files.add(site.file("inventory.csv"));
+                files.add(site.file("requests.csv"));
+            }
+            return loadSnapshot(files.toArray(new String[0]));
+        }
+
+        // Loads a consistent snapshot of several datasets for reporting; returns null if it can’t be read
+        public static FileCoordinator.Snapshot loadSnapshot(String... files) {
+            try {
+                return FileCoordinator.snapshot(files);
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to update inventory - " + e.getMessage());
+                System.out.println("   ERROR: Failed to load report data - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
             }
         }
 
         // Loads all inventory data
-        public static List<String> loadInventoryData() {
-            List<String> inventory = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("inventory.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    inventory.add(line);
-                }
+        public static List<InventoryItem> loadInventoryData() {
+            List<InventoryItem> inventory = new ArrayList<>();
+            try {
+                inventory.addAll(RecordCache.of(SiteRegistry.homeFile("inventory.csv"), InventoryItem.class, InventoryItem::parse));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to load inventory - " + e.getMessage());
@@ -1355,110 +2903,257 @@ public class BloodBankManagementSystem {
             return inventory;
         }
 
-        // Reserves blood units from the inventory
-        public static boolean reserveBlood(String bloodType, String component, int units) {
-            List<String> inventory = loadInventoryData();
-            boolean success = false;
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("inventory.csv"))) {
-                for (String item : inventory) {
-                    String[] data = item.split(",");
-                    if (data[0].equals(bloodType) && data[1].equals(component) && data[5].equals("AVAILABLE")) {
-                        int availableUnits = Integer.parseInt(data[2]);
-                        int reserved = Integer.parseInt(data[4]);
-                        if (availableUnits >= units) {
-                            int newUnits = availableUnits - units;
-                            reserved += units;
-                            writer.write(data[0] + "," + data[1] + "," + newUnits + "," + data[3] + "," + reserved + "," + data[5]);
-                            success = true;
-                        } else {
-                            writer.write(item);
-                        }
-                    } else {
-                        writer.write(item);
-                    }
-                    writer.newLine();
-                }
+        // Holds units of the earliest-expiring matching lot for an owner; returns the lease, or null if no lot has enough
+        public static Lease reserveBlood(String owner, String bloodType, String component, int units, long holdMillis) {
+            try {
+                return LeaseManager.reserve(owner, bloodType, component, units, holdMillis);
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to reserve blood - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Confirms or cancels an active reservation; returns the settled lease, or null if it is not active
+        public static Lease settleReservation(String leaseId, String status) {
+            try {
+                return LeaseManager.settle(leaseId, status);
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to update reservation - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Returns the active reservations at this site, soonest to expire first (empty if they can’t be read)
+        public static List<Lease> loadActiveReservations() {
+            try {
+                return LeaseManager.active();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load reservations - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return new ArrayList<>();
             }
-            return success;
         }
 
         // Blocks specific blood units
         public static boolean blockBlood(String bloodType, String component, int units) {
-            List<String> inventory = loadInventoryData();
-            boolean success = false;
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("inventory.csv"))) {
+            try {
+                String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+                List<String> changed = ChangeBus.commitRows(ChangeType.BLOOD_BLOCKED, inventoryFile, () -> FileCoordinator.rewrite(inventoryFile, blockingUnits(bloodType, component, units)));
+                return !changed.isEmpty();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to block blood - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return false;
+            }
+        }
+
+        // Blocks all units of a specific blood type
+        public static boolean blockBloodType(String bloodType) {
+            try {
+                String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+                List<String> changed = ChangeBus.commitRows(ChangeType.BLOOD_BLOCKED, inventoryFile, () -> FileCoordinator.rewrite(inventoryFile, blockingType(bloodType)));
+                return !changed.isEmpty();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to block blood type - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return false;
+            }
+        }
+
+        // Blocks the entire blood inventory
+        public static void blockEntireStock() {
+            try {
+                String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+                ChangeBus.commitRows(ChangeType.BLOOD_BLOCKED, inventoryFile, () -> FileCoordinator.rewrite(inventoryFile, blockingAll()));
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to block entire stock - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+        }
+
+        // Inventory change that blocks the available lines of a type and component holding at least the given units
+        static FileCoordinator.Rewrite<List<String>> blockingUnits(String bloodType, String component, int units) {
+            return (inventory, out) -> {
+                List<String> blocked = new ArrayList<>();
                 for (String item : inventory) {
                     String[] data = item.split(",");
                     if (data[0].equals(bloodType) && data[1].equals(component) && data[5].equals("AVAILABLE")) {
                         int availableUnits = Integer.parseInt(data[2]);
                         if (availableUnits >= units) {
-                            writer.write(data[0] + "," + data[1] + "," + availableUnits + "," + data[3] + "," + data[4] + ",BLOCKED");
-                            success = true;
+                            String row = data[0] + "," + data[1] + "," + availableUnits + "," + data[3] + "," + data[4] + ",BLOCKED";
+                            out.add(row);
+                            blocked.add(row);
                         } else {
-                            writer.write(item);
+                            out.add(item);
                         }
                     } else {
-                        writer.write(item);
+                        out.add(item);
                     }
-                    writer.newLine();
                 }
-            } catch (IOException e) {
-                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to block blood - " + e.getMessage());
-                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-            }
-            return success;
+                return blocked;
+            };
         }
 
-        // Blocks all units of a specific blood type
-        public static boolean blockBloodType(String bloodType) {
-            List<String> inventory = loadInventoryData();
-            boolean success = false;
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("inventory.csv"))) {
+        // Inventory change that blocks every available line of a blood type
+        static FileCoordinator.Rewrite<List<String>> blockingType(String bloodType) {
+            return (inventory, out) -> {
+                List<String> blocked = new ArrayList<>();
                 for (String item : inventory) {
                     String[] data = item.split(",");
                     if (data[0].equals(bloodType) && data[5].equals("AVAILABLE")) {
-                        writer.write(data[0] + "," + data[1] + "," + data[2] + "," + data[3] + "," + data[4] + ",BLOCKED");
-                        success = true;
+                        String row = data[0] + "," + data[1] + "," + data[2] + "," + data[3] + "," + data[4] + ",BLOCKED";
+                        out.add(row);
+                        blocked.add(row);
                     } else {
-                        writer.write(item);
+                        out.add(item);
+                    }
+                }
+                return blocked;
+            };
+        }
+
+        // Inventory change that blocks every line; returns those that were not blocked already
+        static FileCoordinator.Rewrite<List<String>> blockingAll() {
+            return (inventory, out) -> {
+                List<String> blocked = new ArrayList<>();
+                for (String item : inventory) {
+                    String[] data = item.split(",");
+                    String row = data[0] + "," + data[1] + "," + data[2] + "," + data[3] + "," + data[4] + ",BLOCKED";
+                    out.add(row);
+                    if (!data[5].equals("BLOCKED")) {
+                        blocked.add(row);
                     }
-                    writer.newLine();
                 }
+                return blocked;
+            };
+        }
+
+        // Returns the home site's inventory decoded into primitive arrays (empty if it can’t be read)
+        public static InventoryMatrix loadInventoryMatrix() {
+            String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+            try {
+                return InventoryMatrix.of(inventoryFile, FileCoordinator.read(inventoryFile));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to block blood type - " + e.getMessage());
+                System.out.println("   ERROR: Failed to load inventory - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return InventoryMatrix.EMPTY;
             }
-            return success;
         }
 
-        // Blocks the entire blood inventory
-        public static void blockEntireStock() {
-            List<String> inventory = loadInventoryData();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("inventory.csv"))) {
-                for (String item : inventory) {
-                    String[] data = item.split(",");
-                    writer.write(data[0] + "," + data[1] + "," + data[2] + "," + data[3] + "," + data[4] + ",BLOCKED");
-                    writer.newLine();
-                }
+        // Decodes the inventory of each site as pinned by a report snapshot, for network-wide figures
+        public static List<InventoryMatrix> loadSiteInventories(FileCoordinator.Snapshot snapshot, List<Site> sites) {
+            List<InventoryMatrix> inventories = new ArrayList<>();
+            for (Site site : sites) {
+                String inventoryFile = site.file("inventory.csv");
+                inventories.add(InventoryMatrix.of(inventoryFile, snapshot.version(inventoryFile)));
+            }
+            return inventories;
+        }
+
+        // Installs the search index and forecast from checkpoint.bin when it is still valid; otherwise they are
+        // rebuilt from the CSV files on first use, as without a checkpoint
+        public static void restoreCheckpoint() {
+            try {
+                Checkpoint.restore();
+            } catch (IOException e) {
+                System.out.println("WARNING: Checkpoint could not be used, data will be reloaded from the CSV files - " + e.getMessage());
+            }
+        }
+
+        // Writes checkpoint.bin from the current search index and forecast; returns whether it was written
+        public static boolean saveCheckpoint() {
+            try {
+                Checkpoint.save();
+                return true;
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to block entire stock - " + e.getMessage());
+                System.out.println("   ERROR: Failed to write checkpoint - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return false;
+            }
+        }
+
+        // Returns the demand forecast as of the request history pinned by a report snapshot
+        public static DemandForecast loadDemandForecast(FileCoordinator.Snapshot snapshot, List<Site> sites) {
+            try {
+                return DemandForecast.of(snapshot, DemandForecast.files(sites));
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load request history - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Reads one page of donors.csv or recipients.csv; returns null if it can’t be read
+        public static ListingCursor.Page loadListingPage(String file, String bloodGroup, ListingCursor.Order order, String token) {
+            try {
+                return ListingCursor.page(file, bloodGroup, order, token, ListingCursor.PAGE_SIZE);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load " + file + " - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Searches donors and recipients by name, contact or ID; returns null if the search index can’t be loaded
+        public static PersonSearchIndex.Page searchPeople(String query, int page, int pageSize) {
+            try {
+                return PersonSearchIndex.current().search(query, page, pageSize);
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to search donors and recipients - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Scans log.csv in parallel and writes the per-user daily counts to audit-activity.csv; returns null on failure
+        public static AuditAnalytics.Report analyzeAuditLog() {
+            try {
+                AuditAnalytics.Report report = AuditAnalytics.analyze(Paths.get("log.csv"));
+                report.writeUserActivity(Paths.get("audit-activity.csv"));
+                return report;
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to analyze audit log - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Finds audit events by user, role, action and date range (null = any) through the audit index; returns
+        // null on failure
+        public static AuditIndex.Result searchAuditTrail(String userId, String role, String action, LocalDate from, LocalDate to) {
+            try {
+                return AuditIndex.search(Paths.get(""), userId, role, action, from, to);
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to search the audit log - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
             }
         }
 
         // Checks if a specific blood type is blocked
         public static boolean isBloodBlocked(String bloodType) {
-            List<String> inventory = loadInventoryData();
-            for (String item : inventory) {
-                String[] data = item.split(",");
-                if (data[0].equals(bloodType) && data[5].equals("BLOCKED")) {
+            BloodGroup group = BloodGroup.of(bloodType);
+            if (group != null) {
+                return loadInventoryMatrix().isBlocked(group);
+            }
+            // Labels outside the eight blood groups are not in the matrix, so look at the rows themselves
+            for (InventoryItem item : loadInventoryData()) {
+                if (item.bloodType().equals(bloodType) && item.status() == StockStatus.BLOCKED) {
                     return true;
                 }
             }
@@ -1467,44 +3162,33 @@ public class BloodBankManagementSystem {
 
         // Checks if the entire inventory is blocked
         public static boolean isEntireStockBlocked() {
-            List<String> inventory = loadInventoryData();
-            for (String item : inventory) {
-                String[] data = item.split(",");
-                if (!data[5].equals("BLOCKED")) {
-                    return false;
-                }
-            }
-            return !inventory.isEmpty();
+            return loadInventoryMatrix().isEntirelyBlocked();
         }
 
-        // Processes a blood request by checking inventory or finding donors
-        public static boolean processBloodRequest(String requestId, String recipientId, String bloodType, int units, String urgency) {
-            if (isBloodBlocked(bloodType) || isEntireStockBlocked()) {
-                return false;
-            }
-            List<String> inventory = loadInventoryData();
+        // Processes a blood request for one component by checking inventory or finding donors
+        public static boolean processBloodRequest(String requestId, String recipientId, String bloodType, String component, int units, String urgency) {
+            // Every site is searched in parallel for compatible stock that isn't blocked there and the allocation
+            // engine picks the lots; if another operator takes them first, the plan is made again from the new stock.
+            // The row records the component asked for, so a request left pending is served with it later.
             boolean fulfilled = false;
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("inventory.csv"))) {
-                for (String item : inventory) {
-                    String[] data = item.split(",");
-                    if (data[0].equals(bloodType) && Integer.parseInt(data[2]) >= units && data[5].equals("AVAILABLE")) {
-                        int newUnits = Integer.parseInt(data[2]) - units;
-                        writer.write(data[0] + "," + data[1] + "," + newUnits + "," + data[3] + "," + data[4] + "," + data[5]);
-                        fulfilled = true;
-                    } else {
-                        writer.write(item);
-                    }
-                    writer.newLine();
+            AllocationEngine.Demand demand = new AllocationEngine.Demand(requestId, recipientId, bloodType, units, urgency, component);
+            Set<String> groups = AllocationEngine.compatibleGroups(demand);
+            for (int attempt = 0; attempt < 3 && !fulfilled; attempt++) {
+                List<AllocationEngine.Allocation> plan = AllocationEngine.solve(List.of(demand), CrossSiteSearch.findAvailableLots(groups));
+                if (plan.isEmpty()) {
+                    break;
                 }
-            } catch (IOException e) {
-                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to process blood request - " + e.getMessage());
-                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                fulfilled = AllocationEngine.apply(plan.get(0));
             }
             String status = fulfilled ? "FULFILLED" : "PENDING";
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("requests.csv", true))) {
-                writer.write(requestId + "," + recipientId + "," + bloodType + "," + units + "," + urgency + "," + status);
-                writer.newLine();
+            LocalDate today = LocalDate.now();
+            try {
+                String row = requestId + "," + recipientId + "," + bloodType + "," + units + "," + urgency + "," + status + "," + today + "," + component;
+                String requestsFile = SiteRegistry.homeFile("requests.csv");
+                ChangeBus.commitRows(ChangeType.REQUEST_RECORDED, requestsFile, () -> {
+                    FileCoordinator.append(requestsFile, row);
+                    return List.of(row);
+                });
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 System.out.println("   ERROR: Failed to save blood request - " + e.getMessage());
@@ -1513,139 +3197,368 @@ public class BloodBankManagementSystem {
             return fulfilled;
         }
 
-        // Finds donors with compatible blood types
-        public static List<String> findCompatibleDonors(String bloodType) {
-            List<String> donors = loadDonors();
-            List<String> compatible = new ArrayList<>();
-            String[] compatibleTypes = getCompatibleBloodTypes(bloodType);
-            for (String donor : donors) {
-                String[] data = donor.split(",");
-                for (String type : compatibleTypes) {
-                    if (data[3].equals(type) && !data[3].equals("UNKNOWN")) {
-                        compatible.add(data[1] + "," + data[4] + "," + data[3]);
-                        break;
+        // Serves the pending requests of this site together from the stock of every site, marks those served
+        // as FULFILLED and returns their allocations; returns null if the data can't be read or saved
+        public static List<AllocationEngine.Allocation> allocatePendingRequests() {
+            String requestsFile = SiteRegistry.homeFile("requests.csv");
+            try {
+                // Each request is served with the component it names; rows from before requests named one ask for whole blood
+                List<AllocationEngine.Demand> demands = new ArrayList<>();
+                for (String line : FileCoordinator.readLines(requestsFile)) {
+                    String[] data = line.split(",");
+                    if (data.length > 5 && data[5].equals("PENDING")) {
+                        String component = data.length > 7 && Component.of(data[7]) != null ? data[7] : Component.WHOLE_BLOOD.label;
+                        demands.add(new AllocationEngine.Demand(data[0], data[1], data[2], Integer.parseInt(data[3]), data[4], component));
+                    }
+                }
+                if (demands.isEmpty()) {
+                    return List.of();
+                }
+                List<SiteLot> lots = CrossSiteSearch.findAvailableLots(Set.of("A+", "A-", "B+", "B-", "AB+", "AB-", "O+", "O-"));
+                Map<String, AllocationEngine.Allocation> served = new LinkedHashMap<>();
+                for (AllocationEngine.Allocation allocation : AllocationEngine.solve(demands, lots)) {
+                    if (AllocationEngine.apply(allocation)) {
+                        served.put(allocation.demand().requestId(), allocation);
                     }
                 }
+                if (served.isEmpty()) {
+                    return List.of();
+                }
+                ChangeBus.commitRows(ChangeType.REQUEST_RECORDED, requestsFile, () -> FileCoordinator.rewrite(requestsFile, (requests, out) -> {
+                    List<String> updated = new ArrayList<>();
+                    for (String line : requests) {
+                        String[] data = line.split(",", -1);
+                        AllocationEngine.Allocation allocation = served.get(data[0]);
+                        if (allocation != null && data[5].equals("PENDING")) {
+                            line = data[0] + "," + data[1] + "," + data[2] + "," + data[3] + "," + data[4] + ",FULFILLED,"
+                                   + (data.length > 6 ? data[6] : LocalDate.now()) + "," + allocation.component();
+                            updated.add(line);
+                        }
+                        out.add(line);
+                    }
+                    return updated;
+                }));
+                return new ArrayList<>(served.values());
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to allocate pending requests - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
             }
-            return compatible;
         }
 
-        // Loads all donors from donors.csv
-        public static List<String> loadDonors() {
-            List<String> donors = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("donors.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    donors.add(line);
-                }
+        // Samples of one type and component's stock levels between two dates, or null if the history cannot be read
+        public static StockHistory.Range loadStockHistory(String bloodType, String component, LocalDate from, LocalDate to) {
+            try {
+                return StockHistory.range(bloodType, component, from, to);
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to load donors - " + e.getMessage());
+                System.out.println("   ERROR: Failed to load stock history - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
             }
-            return donors;
         }
 
-        // Loads all recipients from recipients.csv
-        public static List<String> loadRecipients() {
-            List<String> recipients = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("recipients.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    recipients.add(line);
-                }
+        // Parses and runs an ad-hoc query; a malformed query is reported as invalid input
+        public static QueryEngine.Result runQuery(String query) {
+            try {
+                return QueryEngine.run(query);
+            } catch (IllegalArgumentException e) {
+                displayInvalidInputError("Invalid query: " + e.getMessage());
+                return null;
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to load recipients - " + e.getMessage());
+                System.out.println("   ERROR: Failed to run query - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
             }
-            return recipients;
         }
 
-        // Loads blood requests for a specific recipient
-        public static List<String> loadRequests(String recipientId) {
-            List<String> requests = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("requests.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] data = line.split(",");
-                    if (data[1].equals(recipientId)) {
-                        requests.add(line);
+        // Takes the units of an allocation from the lots found by the cross-site search, each from the first row
+        // with the lot's type, component and expiry that is still AVAILABLE with enough units. The inventory files
+        // of every site involved are rewritten in one FileCoordinator.rewriteAll, so either every lot gives its
+        // units or, if one no longer has them (another operator got there first), none does and false is returned.
+        static boolean consumeLots(List<AllocationEngine.Take> takes) {
+            Map<String, List<AllocationEngine.Take>> byFile = new LinkedHashMap<>();
+            for (AllocationEngine.Take take : takes) {
+                byFile.computeIfAbsent(take.lot().site().file("inventory.csv"), file -> new ArrayList<>()).add(take);
+            }
+            Map<String, List<String>> changed = new LinkedHashMap<>(); // Inventory file -> rows consumed
+            Map<String, FileCoordinator.Rewrite<?>> bodies = new HashMap<>();
+            for (Map.Entry<String, List<AllocationEngine.Take>> entry : byFile.entrySet()) {
+                bodies.put(entry.getKey(), (inventory, out) -> {
+                    List<String> rows = new ArrayList<>(inventory);
+                    List<String> consumed = new ArrayList<>();
+                    for (AllocationEngine.Take take : entry.getValue()) {
+                        String[] target = take.lot().row().split(",");
+                        int index = -1;
+                        for (int i = 0; i < rows.size() && index < 0; i++) {
+                            String[] data = rows.get(i).split(",");
+                            if (data[0].equals(target[0]) && data[1].equals(target[1]) && data[3].equals(target[3])
+                                    && Integer.parseInt(data[2]) >= take.units() && data[5].equals("AVAILABLE")) {
+                                index = i;
+                            }
+                        }
+                        if (index < 0) {
+                            throw new LotUnavailable();
+                        }
+                        String[] data = rows.get(index).split(",");
+                        String row = data[0] + "," + data[1] + "," + (Integer.parseInt(data[2]) - take.units()) + "," + data[3] + "," + data[4] + "," + data[5];
+                        rows.set(index, row);
+                        consumed.add(row);
                     }
-                }
+                    out.addAll(rows);
+                    changed.put(entry.getKey(), consumed);
+                    return null;
+                });
+            }
+            try {
+                ChangeBus.commit(bodies.keySet(), () -> {
+                    FileCoordinator.rewriteAll(bodies);
+                    List<ChangeBus.RowChanges> events = new ArrayList<>();
+                    changed.forEach((file, rows) -> events.add(new ChangeBus.RowChanges(ChangeType.INVENTORY_CONSUMED, file, rows)));
+                    return events;
+                });
+            } catch (LotUnavailable e) {
+                return false;
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to load requests - " + e.getMessage());
+                System.out.println("   ERROR: Failed to process blood request - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return false;
             }
-            return requests;
+            return true;
         }
 
-        // Loads donation schedules for a specific donor
-        public static List<String> loadSchedules(String donorId) {
-            List<String> schedules = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader("schedules.csv"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] data = line.split(",");
-                    if (data[0].equals(donorId)) {
-                        schedules.add(line);
-                    }
+        // Raised inside consumeLots when a lot no longer has the units, which abandons the whole allocation
+        private static final class LotUnavailable extends IOException {
+            private static final long serialVersionUID = 1L;
+        }
+
+        // Finds the compatible donors nearest to this site who could give blood today, as name,contact,bloodType,km
+        public static List<String> findCompatibleDonors(String bloodType) {
+            List<String> donors = new ArrayList<>();
+            for (DonorLocator.Match match : nearestEligibleDonors(bloodType, DonorLocator.CONTACT_LIMIT)) {
+                String[] data = match.row().split(",");
+                donors.add(data[1] + "," + data[4] + "," + data[3] + ","
+                           + (Double.isInfinite(match.distanceKm()) ? "unknown" : String.format("%.1f", match.distanceKm())));
+            }
+            return donors;
+        }
+
+        // Returns up to the given number of donors who could give blood for the blood type today (compatible,
+        // blood group known, 90 days since their last donation), nearest to this site first
+        public static List<String> findEligibleDonors(String bloodType, int limit) {
+            List<String> eligible = new ArrayList<>();
+            for (DonorLocator.Match match : nearestEligibleDonors(bloodType, limit)) {
+                eligible.add(match.row());
+            }
+            return eligible;
+        }
+
+        private static List<DonorLocator.Match> nearestEligibleDonors(String bloodType, int limit) {
+            List<BloodGroup> groups = new ArrayList<>();
+            for (String type : getCompatibleBloodTypes(bloodType)) {
+                if (BloodGroup.of(type) != null) {
+                    groups.add(BloodGroup.of(type));
                 }
+            }
+            Site home = SiteRegistry.home();
+            try {
+                return DonorLocator.current().nearest(home.latitude(), home.longitude(), groups, limit, LocalDate.now().minusDays(90));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to load schedules - " + e.getMessage());
+                System.out.println("   ERROR: Failed to find nearby donors - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return List.of();
             }
-            return schedules;
         }
 
-        // Saves a donation schedule
-        public static void saveSchedule(String donorId, LocalDate date, String location) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("schedules.csv", true))) {
-                writer.write(donorId + "," + date + "," + location);
-                writer.newLine();
+        // Queues outreach to the top eligible donors for an unfulfilled request; returns how many were queued
+        public static int queueDonorNotifications(String requestId, String bloodType, String urgency) {
+            try {
+                return NotificationOutbox.enqueue(requestId, bloodType, urgency, findEligibleDonors(bloodType, NotificationOutbox.TOP_DONORS));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to save schedule - " + e.getMessage());
+                System.out.println("   ERROR: Failed to queue donor notifications - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return 0;
             }
         }
 
-        // Logs an action to log.csv for tracking
-        public static void logAction(String userId, String role, String action, String details) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("log.csv", true))) {
-                String timestamp = LocalDate.now().toString();
-                writer.write(timestamp + "," + userId + "," + role + "," + action + "," + details);
-                writer.newLine();
+        // Loads all donors from donors.csv
+        public static List<String> loadDonors() {
+            List<String> donors = new ArrayList<>();
+            try {
+                donors.addAll(FileCoordinator.readLines("donors.csv"));
             } catch (IOException e) {
                 System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                System.out.println("   ERROR: Failed to log action - " + e.getMessage());
+                System.out.println("   ERROR: Failed to load donors - " + e.getMessage());
                 System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
             }
+            return donors;
         }
 
-        // Backs up all CSV files to separate backup files
-        public static void backupData() {
-            String[] files = {"donors.csv", "recipients.csv", "tests.csv", "inventory.csv", "requests.csv", "schedules.csv", "log.csv", "users.csv"};
-            for (String file : files) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file));
-                     BufferedWriter writer = new BufferedWriter(new FileWriter(file + "backup_"))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        writer.write(line);
-                        writer.newLine();
-                    }
+        // Loads all recipients from recipients.csv
+        public static List<String> loadRecipients() {
+            List<String> recipients = new ArrayList<>();
+            try {
+                recipients.addAll(FileCoordinator.readLines("recipients.csv"));
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load recipients - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+            return recipients;
+        }
+
+        // Loads blood requests for a specific recipient from every site, including fulfilled ones moved to the archive
+        public static List<BloodRequest> loadRequests(String recipientId) {
+            List<BloodRequest> requests = new ArrayList<>();
+            try {
+                for (Site site : SiteRegistry.all()) {
+                    List<BloodRequest> hot = new ArrayList<>();
+                    for (BloodRequest request : RecordCache.of(site.file("requests.csv"), BloodRequest.class, BloodRequest::parse)) {
+                        if (request.recipientId().equals(recipientId)) {
+                            hot.add(request);
+                        }
+                    }
+                    requests.addAll(HistoryArchive.span(HistoryArchive.Tier.of(site.file("requests.csv")), recipientId, hot,
+                                                        BloodRequest::id, BloodRequest::parse));
+                }
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load requests - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+            return requests;
+        }
+
+        // Loads donation schedules for a specific donor from every site
+        public static List<Schedule> loadSchedules(String donorId) {
+            List<Schedule> schedules = new ArrayList<>();
+            try {
+                for (Site site : SiteRegistry.all()) {
+                    for (Schedule schedule : RecordCache.of(site.file("schedules.csv"), Schedule.class, Schedule::parse)) {
+                        if (schedule.donorId().equals(donorId)) {
+                            schedules.add(schedule);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load schedules - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+            return schedules;
+        }
+
+        // Saves a donation schedule at a site
+        public static void saveSchedule(String donorId, LocalDate date, Site site) {
+            try {
+                String row = donorId + "," + date + "," + site.name();
+                String schedulesFile = site.file("schedules.csv");
+                ChangeBus.commitRows(ChangeType.SCHEDULE_SAVED, schedulesFile, () -> {
+                    FileCoordinator.append(schedulesFile, row);
+                    return List.of(row);
+                });
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to save schedule - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+        }
+
+        // Logs an action to log.csv for tracking
+        public static void logAction(String userId, String role, String action, String details) {
+            try {
+                FileCoordinator.append("log.csv", new AuditEvent(LocalDate.now(), userId, role, action, details).toCsv());
+                AuditIndex.logged();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to log action - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+        }
+
+        // Logs several actions to log.csv with a single append, e.g. every change of a committed transaction
+        public static void logActions(List<AuditEvent> events) {
+            List<String> lines = new ArrayList<>(events.size());
+            for (AuditEvent event : events) {
+                lines.add(event.toCsv());
+            }
+            try {
+                FileCoordinator.appendAll("log.csv", lines);
+                AuditIndex.logged();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to log actions - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+        }
+
+        // Commits a batch of changes as one unit; returns the outcome, or null if it could not be written (nothing changed then)
+        public static Transaction.Result commitTransaction(Transaction transaction) {
+            try {
+                return transaction.commit();
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to commit changes - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return null;
+            }
+        }
+
+        // Backs up all CSV files to separate backup files, and copies the archive segments and indexes alongside
+        public static void backupData() {
+            List<String> files = new ArrayList<>(List.of("donors.csv", "recipients.csv", "tests.csv", "log.csv", "users.csv", "sites.csv"));
+            for (Site site : SiteRegistry.all()) {
+                for (String dataset : Site.DATASETS) {
+                    files.add(site.file(dataset));
+                }
+            }
+            for (String file : files) {
+                // Backups of sensitive datasets are encrypted like the datasets themselves
+                try (DataEncryption.LineSink writer = DataEncryption.sink(file, Paths.get(file + "backup_"), false)) {
+                    for (String line : FileCoordinator.readLines(file)) {
+                        writer.writeLine(line);
+                    }
                 } catch (IOException e) {
                     System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                     System.out.println("   ERROR: Failed to back up " + file + " - " + e.getMessage());
                     System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
                 }
             }
+            for (HistoryArchive.Tier tier : HistoryArchive.tiers()) {
+                try {
+                    HistoryArchive.backup(tier);
+                } catch (IOException e) {
+                    System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    System.out.println("   ERROR: Failed to back up the archive of " + tier.hotFile() + " - " + e.getMessage());
+                    System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                }
+            }
+        }
+
+        // Moves completed tests and fulfilled requests older than the given number of days into the archive;
+        // returns how many rows moved, or -1 if a dataset could not be archived
+        public static int archiveHistory(int afterDays) {
+            int moved = 0;
+            for (HistoryArchive.Tier tier : HistoryArchive.tiers()) {
+                try {
+                    moved += HistoryArchive.archive(tier, afterDays);
+                } catch (IOException e) {
+                    System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    System.out.println("   ERROR: Failed to archive " + tier.hotFile() + " - " + e.getMessage());
+                    System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    return -1;
+                }
+            }
+            return moved;
         }
 
         // Returns compatible blood types for a given blood type
-        private static String[] getCompatibleBloodTypes(String bloodType) {
+        static String[] getCompatibleBloodTypes(String bloodType) {
             Map<String, String[]> compatibility = new HashMap<>();
             compatibility.put("A+", new String[]{"A+", "A-", "O+", "O-"});
             compatibility.put("A-", new String[]{"A-", "O-"});
@@ -1658,4 +3571,8344 @@ public class BloodBankManagementSystem {
             return compatibility.getOrDefault(bloodType, new String[]{bloodType});
         }
     }
+
+    // AsyncFileHandler class offering every FileHandler operation without blocking the caller: each call runs on
+    // the I/O executor and returns a CompletableFuture, so a UI or server can start independent reads and writes
+    // together and wait only for the slowest. Results and failures are those of the FileHandler method (errors
+    // are reported there and come back as null, false or an empty list); the dataset locks still order
+    // conflicting writes, so running operations concurrently never mixes their changes.
+    static final class AsyncFileHandler {
+        private AsyncFileHandler() {
+        }
+
+        private static <T> CompletableFuture<T> supply(java.util.function.Supplier<T> operation) {
+            return CompletableFuture.supplyAsync(operation, FileCoordinator.IO);
+        }
+
+        private static CompletableFuture<Void> run(Runnable operation) {
+            return CompletableFuture.runAsync(operation, FileCoordinator.IO);
+        }
+
+        // Users and people
+
+        public static CompletableFuture<Boolean> isUsersFileEmpty() {
+            return supply(FileHandler::isUsersFileEmpty);
+        }
+
+        public static CompletableFuture<Void> saveUser(String userId, String userRole, String password) {
+            return run(() -> FileHandler.saveUser(userId, userRole, password));
+        }
+
+        public static CompletableFuture<Boolean> authenticateUser(String id, String role, String password) {
+            return supply(() -> FileHandler.authenticateUser(id, role, password));
+        }
+
+        public static CompletableFuture<Void> saveDonorInformation(Donor donor) {
+            return run(() -> FileHandler.saveDonorInformation(donor));
+        }
+
+        public static CompletableFuture<Donor> loadDonor(String id) {
+            return supply(() -> FileHandler.loadDonor(id));
+        }
+
+        public static CompletableFuture<Void> saveRecipientInformation(Recipient recipient) {
+            return run(() -> FileHandler.saveRecipientInformation(recipient));
+        }
+
+        public static CompletableFuture<Recipient> loadRecipient(String id) {
+            return supply(() -> FileHandler.loadRecipient(id));
+        }
+
+        public static CompletableFuture<List<String>> loadDonors() {
+            return supply(FileHandler::loadDonors);
+        }
+
+        public static CompletableFuture<List<String>> loadRecipients() {
+            return supply(FileHandler::loadRecipients);
+        }
+
+        public static CompletableFuture<ListingCursor.Page> loadListingPage(String file, String bloodGroup, ListingCursor.Order order, String token) {
+            return supply(() -> FileHandler.loadListingPage(file, bloodGroup, order, token));
+        }
+
+        public static CompletableFuture<PersonSearchIndex.Page> searchPeople(String query, int page, int pageSize) {
+            return supply(() -> FileHandler.searchPeople(query, page, pageSize));
+        }
+
+        public static CompletableFuture<List<String>> findCompatibleDonors(String bloodType) {
+            return supply(() -> FileHandler.findCompatibleDonors(bloodType));
+        }
+
+        public static CompletableFuture<List<String>> findEligibleDonors(String bloodType, int limit) {
+            return supply(() -> FileHandler.findEligibleDonors(bloodType, limit));
+        }
+
+        // Tests, requests and schedules
+
+        public static CompletableFuture<Void> saveTestRequest(String userId, String userType, LocalDate requestDate, String status) {
+            return run(() -> FileHandler.saveTestRequest(userId, userType, requestDate, status));
+        }
+
+        public static CompletableFuture<List<TestRequest>> loadTestRequests(String userId) {
+            return supply(() -> FileHandler.loadTestRequests(userId));
+        }
+
+        public static CompletableFuture<List<TestRequest>> loadTestRequests() {
+            return supply(() -> FileHandler.loadTestRequests());
+        }
+
+        public static CompletableFuture<Void> updateTestRequest(String testId, String bloodType) {
+            return run(() -> FileHandler.updateTestRequest(testId, bloodType));
+        }
+
+        public static CompletableFuture<Boolean> processBloodRequest(String requestId, String recipientId, String bloodType, String component, int units, String urgency) {
+            return supply(() -> FileHandler.processBloodRequest(requestId, recipientId, bloodType, component, units, urgency));
+        }
+
+        public static CompletableFuture<List<AllocationEngine.Allocation>> allocatePendingRequests() {
+            return supply(FileHandler::allocatePendingRequests);
+        }
+
+        public static CompletableFuture<List<BloodRequest>> loadRequests(String recipientId) {
+            return supply(() -> FileHandler.loadRequests(recipientId));
+        }
+
+        public static CompletableFuture<Integer> queueDonorNotifications(String requestId, String bloodType, String urgency) {
+            return supply(() -> FileHandler.queueDonorNotifications(requestId, bloodType, urgency));
+        }
+
+        public static CompletableFuture<List<Schedule>> loadSchedules(String donorId) {
+            return supply(() -> FileHandler.loadSchedules(donorId));
+        }
+
+        public static CompletableFuture<Void> saveSchedule(String donorId, LocalDate date, Site site) {
+            return run(() -> FileHandler.saveSchedule(donorId, date, site));
+        }
+
+        // Inventory and reservations
+
+        public static CompletableFuture<Void> updateInventory(String bloodType, String component, int units, String expDate) {
+            return run(() -> FileHandler.updateInventory(bloodType, component, units, expDate));
+        }
+
+        public static CompletableFuture<List<InventoryItem>> loadInventoryData() {
+            return supply(FileHandler::loadInventoryData);
+        }
+
+        public static CompletableFuture<InventoryMatrix> loadInventoryMatrix() {
+            return supply(FileHandler::loadInventoryMatrix);
+        }
+
+        public static CompletableFuture<Lease> reserveBlood(String owner, String bloodType, String component, int units, long holdMillis) {
+            return supply(() -> FileHandler.reserveBlood(owner, bloodType, component, units, holdMillis));
+        }
+
+        public static CompletableFuture<Lease> settleReservation(String leaseId, String status) {
+            return supply(() -> FileHandler.settleReservation(leaseId, status));
+        }
+
+        public static CompletableFuture<List<Lease>> loadActiveReservations() {
+            return supply(FileHandler::loadActiveReservations);
+        }
+
+        public static CompletableFuture<Boolean> blockBlood(String bloodType, String component, int units) {
+            return supply(() -> FileHandler.blockBlood(bloodType, component, units));
+        }
+
+        public static CompletableFuture<Boolean> blockBloodType(String bloodType) {
+            return supply(() -> FileHandler.blockBloodType(bloodType));
+        }
+
+        public static CompletableFuture<Void> blockEntireStock() {
+            return run(FileHandler::blockEntireStock);
+        }
+
+        public static CompletableFuture<Boolean> isBloodBlocked(String bloodType) {
+            return supply(() -> FileHandler.isBloodBlocked(bloodType));
+        }
+
+        public static CompletableFuture<Boolean> isEntireStockBlocked() {
+            return supply(FileHandler::isEntireStockBlocked);
+        }
+
+        public static CompletableFuture<StockHistory.Range> loadStockHistory(String bloodType, String component, LocalDate from, LocalDate to) {
+            return supply(() -> FileHandler.loadStockHistory(bloodType, component, from, to));
+        }
+
+        // Reports, audit and maintenance
+
+        public static CompletableFuture<FileCoordinator.Snapshot> loadSnapshot(String... files) {
+            return supply(() -> FileHandler.loadSnapshot(files));
+        }
+
+        public static CompletableFuture<FileCoordinator.Snapshot> loadReportSnapshot(List<Site> sites) {
+            return supply(() -> FileHandler.loadReportSnapshot(sites));
+        }
+
+        // Decodes every site's inventory from a report snapshot as soon as it is pinned; null if it couldn't be
+        public static CompletableFuture<List<InventoryMatrix>> loadSiteInventories(CompletableFuture<FileCoordinator.Snapshot> snapshot, List<Site> sites) {
+            return snapshot.thenApplyAsync(pinned -> pinned == null ? null : FileHandler.loadSiteInventories(pinned, sites), FileCoordinator.IO);
+        }
+
+        // Folds the request history of a report snapshot into the forecast as soon as it is pinned; null if it couldn't be
+        public static CompletableFuture<DemandForecast> loadDemandForecast(CompletableFuture<FileCoordinator.Snapshot> snapshot, List<Site> sites) {
+            return snapshot.thenApplyAsync(pinned -> pinned == null ? null : FileHandler.loadDemandForecast(pinned, sites), FileCoordinator.IO);
+        }
+
+        public static CompletableFuture<QueryEngine.Result> runQuery(String query) {
+            return supply(() -> FileHandler.runQuery(query));
+        }
+
+        public static CompletableFuture<Void> logAction(String userId, String role, String action, String details) {
+            return run(() -> FileHandler.logAction(userId, role, action, details));
+        }
+
+        public static CompletableFuture<Void> logActions(List<AuditEvent> events) {
+            return run(() -> FileHandler.logActions(events));
+        }
+
+        public static CompletableFuture<Transaction.Result> commitTransaction(Transaction transaction) {
+            return supply(() -> FileHandler.commitTransaction(transaction));
+        }
+
+        public static CompletableFuture<AuditAnalytics.Report> analyzeAuditLog() {
+            return supply(FileHandler::analyzeAuditLog);
+        }
+
+        public static CompletableFuture<AuditIndex.Result> searchAuditTrail(String userId, String role, String action, LocalDate from, LocalDate to) {
+            return supply(() -> FileHandler.searchAuditTrail(userId, role, action, from, to));
+        }
+
+        public static CompletableFuture<Void> backupData() {
+            return run(FileHandler::backupData);
+        }
+
+        public static CompletableFuture<Integer> archiveHistory(int afterDays) {
+            return supply(() -> FileHandler.archiveHistory(afterDays));
+        }
+
+        public static CompletableFuture<Boolean> saveCheckpoint() {
+            return supply(FileHandler::saveCheckpoint);
+        }
+    }
+
+    // FileCoordinator class to keep several running instances from overwriting each other's changes.
+    // Every dataset gets a companion ".lock" file: readers hold a shared lock on it, writers an exclusive one,
+    // and its first 8 bytes hold a change sequence that is bumped on every commit. The next 8 bytes name the journal
+    // of a multi-dataset transaction that has not finished renaming this dataset yet, and the 8 after that where an
+    // append to an encrypted dataset started, while it is in progress (both 0 when there is none).
+    // Each commit publishes a new immutable version of the dataset, so readers never see a half-written file.
+    static class FileCoordinator {
+        private static final Map<String, DatasetLock> locks = new ConcurrentHashMap<>();
+        private static final Path JOURNAL_DIR = Paths.get("transactions"); // Commit journals of multi-dataset rewrites
+        // Runs blocking file work off the caller's thread. Threads are added as needed (and dropped after a minute
+        // idle), so a task that waits on other I/O tasks can never starve them.
+        static final ExecutorService IO = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "bbms-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Callback that produces the new lines of a dataset from its current lines
+        interface Rewrite<T> {
+            T apply(List<String> lines, List<String> out) throws IOException;
+        }
+
+        // Write action that may fail with an I/O error
+        interface IOAction<T> {
+            T run() throws IOException;
+        }
+
+        // Immutable lines of a dataset as of a given change sequence
+        record Versioned(long sequence, List<String> lines) {}
+
+        // Consistent view of several datasets, each pinned at the version that was committed when the snapshot was taken
+        record Snapshot(Map<String, Versioned> datasets) {
+            Versioned version(String file) {
+                Versioned versioned = datasets.get(file);
+                if (versioned == null) {
+                    throw new IllegalArgumentException(file + " is not part of this snapshot");
+                }
+                return versioned;
+            }
+
+            List<String> lines(String file) {
+                return version(file).lines();
+            }
+        }
+
+        // Returns the current lines of a dataset, re-reading the file only if another writer has committed since the last read
+        public static List<String> readLines(String file) throws IOException {
+            return read(file).lines();
+        }
+
+        // Returns the current lines of a dataset together with the change sequence they belong to
+        public static Versioned read(String file) throws IOException {
+            return snapshot(file).datasets().get(file);
+        }
+
+        // The dataset's change sequence as last committed, read without taking a lock. It is only a hint (it may
+        // be overtaken as soon as it is read), but it never goes back, so a value cached along with it can be
+        // reused for as long as the hint stays the same.
+        public static long sequenceHint(String file) throws IOException {
+            return lockFor(file).readSlot(0);
+        }
+
+        // Pins a consistent view of several datasets. The change sequences of all of them are captured together
+        // under shared locks, but any file contents that must be loaded are read after the locks are released,
+        // through handles opened on the pinned versions: a replaced file stays readable through an open handle,
+        // and an appended one is read only up to its pinned length. Long reads therefore never hold up writers.
+        public static Snapshot snapshot(String... files) throws IOException {
+            while (true) {
+                try {
+                    return pin(files);
+                } catch (Overtaken e) {
+                    // An encrypted file was appended to over its pinned end marker while it was read; pin it again
+                }
+            }
+        }
+
+        // Raised when a pinned version of an encrypted file was overwritten by an append before it could be read
+        private static final class Overtaken extends IOException {
+            private static final long serialVersionUID = 1L;
+        }
+
+        private static Snapshot pin(String... files) throws IOException {
+            List<DatasetLock> pinned = new ArrayList<>();
+            for (String file : new TreeSet<>(Arrays.asList(files))) {
+                pinned.add(lockFor(file));
+            }
+            Map<String, Versioned> datasets = new HashMap<>();
+            Map<DatasetLock, PendingRead> pending = new LinkedHashMap<>();
+            int locked = 0;
+            try {
+                try {
+                    for (DatasetLock lock : pinned) {
+                        lock.lockShared();
+                        locked++;
+                        long sequence = lock.readSequence();
+                        Versioned cached = lock.cached;
+                        if (cached != null && cached.sequence() == sequence) {
+                            datasets.put(lock.file, cached);
+                        } else {
+                            FileChannel channel = FileChannel.open(Paths.get(lock.file), StandardOpenOption.READ);
+                            pending.put(lock, new PendingRead(Paths.get(lock.file), sequence, channel, channel.size()));
+                        }
+                    }
+                } finally {
+                    for (int i = locked - 1; i >= 0; i--) {
+                        pinned.get(i).unlockShared();
+                    }
+                }
+                // Files are loaded side by side, the last one on the calling thread, so a snapshot takes about as
+                // long as its largest file rather than all of them in turn
+                List<DatasetLock> loading = new ArrayList<>(pending.keySet());
+                List<Future<Versioned>> loads = new ArrayList<>();
+                try {
+                    for (int i = 0; i < loading.size() - 1; i++) {
+                        loads.add(IO.submit(pending.get(loading.get(i))::load));
+                    }
+                    Versioned own = loading.isEmpty() ? null : pending.get(loading.get(loading.size() - 1)).load();
+                    for (int i = 0; i < loading.size(); i++) {
+                        Versioned versioned = i < loads.size() ? await(loads.get(i)) : own;
+                        loading.get(i).offer(versioned);
+                        datasets.put(loading.get(i).file, versioned);
+                    }
+                } finally {
+                    // The channels are closed below, so every load must have stopped first, even after a failure
+                    for (Future<Versioned> load : loads) {
+                        try {
+                            load.get();
+                        } catch (ExecutionException | InterruptedException | CancellationException e) {
+                            // Already reported through await, or the snapshot is failing anyway
+                        }
+                    }
+                }
+            } finally {
+                for (PendingRead read : pending.values()) {
+                    read.channel().close();
+                }
+            }
+            return new Snapshot(Collections.unmodifiableMap(datasets));
+        }
+
+        // Rewrites a dataset: the new contents are prepared in a temp file without holding the exclusive lock,
+        // forced to disk, then swapped in with an atomic rename if nobody committed in the meantime (otherwise
+        // prepared again). A crash at any point leaves either the old or the new file, never a partial one.
+        public static <T> T rewrite(String file, Rewrite<T> body) throws IOException {
+            DatasetLock lock = lockFor(file);
+            Path target = Paths.get(file).toAbsolutePath();
+            while (true) {
+                Versioned current = read(file);
+                List<String> out = new ArrayList<>(current.lines().size() + 1);
+                T result = body.apply(current.lines(), out);
+                Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+                try {
+                    try (DataEncryption.LineSink writer = DataEncryption.sink(file, temp, false)) {
+                        for (int i = 0; i < out.size(); i++) {
+                            if (i == out.size() / 2) {
+                                GroupCommit.faultPoint("mid-write", writer);
+                            }
+                            writer.writeLine(out.get(i));
+                        }
+                    }
+                    GroupCommit.force(temp);
+                    GroupCommit.faultPoint("before-rename", null);
+                    boolean committed = false;
+                    lock.lockExclusive();
+                    try {
+                        if (lock.readSequence() == current.sequence()) {
+                            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                            lock.writeSequence(current.sequence() + 1);
+                            lock.offer(new Versioned(current.sequence() + 1, Lines.copyOf(out)));
+                            committed = true;
+                        }
+                    } finally {
+                        lock.unlockExclusive();
+                    }
+                    if (committed) {
+                        GroupCommit.faultPoint("after-rename", null);
+                        GroupCommit.forceDirectory(target.getParent());
+                        return result;
+                    }
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+
+        // Rewrites several datasets as one unit. All of them are locked exclusively (in name order, so two such
+        // commits can't deadlock) and stay locked until every new version is in place, so no reader or writer
+        // ever sees some of the changes without the others. The new versions are prepared and forced as temp
+        // files, each dataset's lock file is marked with the transaction's journal number, and then the journal
+        // naming every temp file and its target is forced: that is the commit point. If the writer stops after
+        // it, whichever instance or tool next locks a marked dataset renames that dataset's temp file into place
+        // before using it; if it stops before, the journal is missing and the marks are simply cleared.
+        // The bodies are applied once each, and an exception from any of them abandons the whole unit.
+        public static void rewriteAll(Map<String, Rewrite<?>> bodies) throws IOException {
+            List<String> files = new ArrayList<>(new TreeSet<>(bodies.keySet()));
+            List<DatasetLock> held = new ArrayList<>();
+            Map<String, Path> temps = new LinkedHashMap<>();
+            Path journal = null;
+            boolean committed = false;
+            try {
+                for (String file : files) {
+                    DatasetLock lock = lockFor(file);
+                    lock.lockExclusive();
+                    held.add(lock);
+                }
+                // Numbered once every dataset is held, so journal names sort in the order transactions commit
+                long journalNumber = IdGenerator.nextNumber();
+                journal = journalPath(journalNumber);
+                Map<String, Versioned> written = new HashMap<>();
+                for (String file : files) {
+                    Versioned current = read(file);
+                    List<String> out = new ArrayList<>(current.lines().size() + 1);
+                    bodies.get(file).apply(current.lines(), out);
+                    Path target = Paths.get(file).toAbsolutePath();
+                    Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+                    temps.put(file, temp);
+                    try (DataEncryption.LineSink writer = DataEncryption.sink(file, temp, false)) {
+                        for (String line : out) {
+                            writer.writeLine(line);
+                        }
+                    }
+                    GroupCommit.force(temp);
+                    written.put(file, new Versioned(current.sequence() + 1, Lines.copyOf(out)));
+                }
+                List<String> entries = new ArrayList<>();
+                for (Map.Entry<String, Path> temp : temps.entrySet()) {
+                    entries.add(temp.getKey() + "\t" + temp.getValue());
+                }
+                for (DatasetLock lock : held) {
+                    lock.writePendingJournal(journalNumber);
+                }
+                GroupCommit.faultPoint("before-journal", null);
+                Files.createDirectories(JOURNAL_DIR);
+                Path pending = Files.createTempFile(JOURNAL_DIR, "commit.", ".tmp");
+                Files.write(pending, entries);
+                GroupCommit.force(pending);
+                Files.move(pending, journal, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+                GroupCommit.forceDirectory(JOURNAL_DIR);
+                GroupCommit.faultPoint("after-journal", null);
+                for (int i = 0; i < files.size(); i++) {
+                    String file = files.get(i);
+                    Files.move(temps.get(file), Paths.get(file).toAbsolutePath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    held.get(i).writeSequence(written.get(file).sequence());
+                    held.get(i).writePendingJournal(0);
+                    held.get(i).offer(written.get(file));
+                }
+            } finally {
+                // Past the commit point, temp files that could not be renamed are left for the journal's roll-forward
+                if (!committed) {
+                    for (Path temp : temps.values()) {
+                        Files.deleteIfExists(temp);
+                    }
+                }
+                for (int i = held.size() - 1; i >= 0; i--) {
+                    held.get(i).unlockExclusive();
+                }
+            }
+            Set<Path> directories = new HashSet<>();
+            for (String file : files) {
+                directories.add(Paths.get(file).toAbsolutePath().getParent());
+            }
+            for (Path directory : directories) {
+                GroupCommit.forceDirectory(directory);
+            }
+            Files.deleteIfExists(journal);
+        }
+
+        // Cuts a dataset back to where an append that a crash interrupted started; an encrypted one gets back the
+        // end marker the append wrote over. Called with the dataset's exclusive file lock just taken, so the writer
+        // is known not to be running any more.
+        private static void undoAppend(DatasetLock lock, long start) throws IOException {
+            Path path = Paths.get(lock.file);
+            if (Files.exists(path)) {
+                if (start >= DataEncryption.HEADER && DataEncryption.isSealed(path)) {
+                    DataEncryption.endAt(path, start);
+                    GroupCommit.force(path);
+                } else {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                        if (channel.size() > start) {
+                            channel.truncate(start);
+                            channel.force(true);
+                        }
+                    }
+                }
+            }
+            lock.writeSequence(lock.readSequence() + 1);
+            lock.writeAppendStart(0);
+        }
+
+        private static Path journalPath(long number) {
+            return JOURNAL_DIR.resolve(IdGenerator.encode(number) + ".commit");
+        }
+
+        // Finishes a dataset's part of a transaction whose writer stopped after marking it. Called with the
+        // dataset's exclusive file lock just taken, so the writer is known not to be running any more. If the
+        // journal exists the transaction committed: the dataset's temp file (if not renamed yet) is moved into
+        // place and its sequence bumped. Without a journal it never committed and nothing changes.
+        private static void finishTransaction(DatasetLock lock, long number) throws IOException {
+            Path journal = journalPath(number);
+            if (Files.exists(journal)) {
+                boolean unfinished = false;
+                for (String entry : Files.readAllLines(journal)) {
+                    String[] fields = entry.split("\t");
+                    Path temp = Paths.get(fields[1]);
+                    if (fields[0].equals(lock.file)) {
+                        Path target = Paths.get(fields[0]).toAbsolutePath();
+                        if (Files.exists(temp)) {
+                            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                            GroupCommit.forceDirectory(target.getParent());
+                        }
+                        // Bumped even if the rename had happened, as the writer may have stopped before recording it
+                        lock.writeSequence(lock.readSequence() + 1);
+                    } else if (Files.exists(temp)) {
+                        unfinished = true;
+                    }
+                }
+                if (!unfinished) {
+                    Files.deleteIfExists(journal);
+                }
+            }
+            lock.writePendingJournal(0);
+        }
+
+        // Finishes every transaction left behind by a crash at start-up, rather than waiting for its datasets to be
+        // used: locking each dataset a journal names finishes its part, and journals left with nothing to rename
+        // (and half-written ones from before a commit point) are deleted.
+        public static void recoverTransactions() throws IOException {
+            if (!Files.isDirectory(JOURNAL_DIR)) {
+                return;
+            }
+            // Journal names sort by commit time, so interrupted transactions are finished in the order they committed
+            List<Path> journals = new ArrayList<>();
+            try (DirectoryStream<Path> found = Files.newDirectoryStream(JOURNAL_DIR, "*.commit")) {
+                found.forEach(journals::add);
+            }
+            Collections.sort(journals);
+            for (Path journal : journals) {
+                List<String> entries;
+                try {
+                    entries = Files.readAllLines(journal);
+                } catch (NoSuchFileException e) {
+                    continue; // Finished meanwhile by another instance
+                }
+                boolean unfinished = false;
+                for (String entry : entries) {
+                    String[] fields = entry.split("\t");
+                    DatasetLock lock = lockFor(fields[0]);
+                    lock.lockExclusive();
+                    lock.unlockExclusive();
+                    unfinished |= Files.exists(Paths.get(fields[1]));
+                }
+                if (!unfinished) {
+                    Files.deleteIfExists(journal);
+                }
+            }
+            removeStaleTemps(JOURNAL_DIR);
+        }
+
+        // Appends a single line to a dataset under the exclusive lock and waits for it to reach the disk
+        public static void append(String file, String line) throws IOException {
+            appendAll(file, List.of(line));
+        }
+
+        // Appends several lines to a dataset as one commit, so they reach the disk together with a single wait.
+        // Where the append starts is recorded in the lock file while it runs, and the lines are forced before the
+        // record is cleared, so if a crash cuts it short partway the dataset is cut back to that start (an encrypted
+        // one also gets back the end marker the append wrote over) and readers see all of the lines or none.
+        public static void appendAll(String file, List<String> newLines) throws IOException {
+            DatasetLock lock = lockFor(file);
+            Path path = Paths.get(file);
+            lock.lockExclusive();
+            try {
+                long sequence = lock.readSequence();
+                lock.writeAppendStart(DataEncryption.appendStart(path) + 1);
+                try (DataEncryption.LineSink writer = DataEncryption.sink(file, path, true)) {
+                    int written = 0;
+                    for (String line : newLines) {
+                        writer.writeLine(line);
+                        if (++written == (newLines.size() + 1) / 2) {
+                            GroupCommit.faultPoint("mid-append", writer);
+                        }
+                    }
+                }
+                GroupCommit.force(path);
+                lock.writeAppendStart(0);
+                lock.writeSequence(sequence + 1);
+                // Extend the cached version in place of re-reading it, if it is the one just appended to
+                Versioned cached = lock.cached;
+                if (cached != null && cached.sequence() == sequence && cached.lines() instanceof Lines lines) {
+                    for (String line : newLines) {
+                        lines = lines.plus(line);
+                    }
+                    lock.offer(new Versioned(sequence + 1, lines));
+                }
+            } finally {
+                lock.unlockExclusive();
+            }
+        }
+
+        // Runs a custom write against a dataset under the exclusive lock, records it as a new commit
+        // and waits for the file to reach the disk
+        public static <T> T exclusive(String file, IOAction<T> action) throws IOException {
+            DatasetLock lock = lockFor(file);
+            T result;
+            lock.lockExclusive();
+            try {
+                result = action.run();
+                lock.writeSequence(lock.readSequence() + 1);
+            } finally {
+                lock.unlockExclusive();
+            }
+            GroupCommit.force(Paths.get(file));
+            return result;
+        }
+
+        // Runs a write against several datasets under their exclusive locks (taken in name order), with each marked
+        // in its lock file as owing change events. The marks are forced before the write starts and cleared after
+        // it, unless it changed a dataset but reports its events were not recorded: then the mark stays for the
+        // next one to lock the dataset to act on.
+        public static void owingEvents(Collection<String> files, IOAction<Boolean> action) throws IOException {
+            List<DatasetLock> owing = new ArrayList<>();
+            for (String file : new TreeSet<>(files)) {
+                owing.add(lockFor(file));
+            }
+            long[] sequences = new long[owing.size()];
+            int locked = 0;
+            boolean recorded = false;
+            try {
+                for (DatasetLock lock : owing) {
+                    lock.lockExclusive();
+                    sequences[locked++] = lock.readSequence();
+                    lock.writeEventsOwed(1, true);
+                }
+                recorded = action.run();
+            } finally {
+                IOException failure = null;
+                for (int i = locked - 1; i >= 0; i--) {
+                    DatasetLock lock = owing.get(i);
+                    try {
+                        if (recorded || lock.readSequence() == sequences[i]) {
+                            lock.writeEventsOwed(0, false);
+                        }
+                    } catch (IOException e) {
+                        failure = failure == null ? e : failure;
+                    } finally {
+                        lock.unlockExclusive();
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+
+        // Records where an append that a caller of exclusive() is about to make to the dataset starts, and forces
+        // it to disk, or with -1 clears it once the appended bytes are on disk. If a crash comes in between, whoever
+        // next locks the dataset cuts it back to that start.
+        public static void markAppend(String file, long start) throws IOException {
+            lockFor(file).writeAppendStart(start + 1);
+        }
+
+        // Runs a read against a dataset under the shared lock, so no commit to it is in progress meanwhile
+        public static <T> T shared(String file, IOAction<T> action) throws IOException {
+            DatasetLock lock = lockFor(file);
+            lock.lockShared();
+            try {
+                return action.run();
+            } finally {
+                lock.unlockShared();
+            }
+        }
+
+        // Deletes temp files left behind by rewrites that were interrupted by a crash. Only files untouched for an
+        // hour are removed, because a newer one may belong to a rewrite another running instance is preparing.
+        public static void removeStaleTemps(Path dir) throws IOException {
+            if (!Files.isDirectory(dir)) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+            try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, "*.tmp")) {
+                for (Path temp : temps) {
+                    if (Files.getLastModifiedTime(temp).toMillis() < cutoff) {
+                        Files.deleteIfExists(temp);
+                    }
+                }
+            }
+        }
+
+        private static DatasetLock lockFor(String file) {
+            return locks.computeIfAbsent(file, DatasetLock::new);
+        }
+
+        // Waits for a load on the I/O executor, passing on its I/O error as it is
+        private static <T> T await(Future<T> load) throws IOException {
+            try {
+                return load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while loading a dataset");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        // A file version opened under a shared lock, to be read after the lock is released
+        private record PendingRead(Path file, long sequence, FileChannel channel, long size) {
+            Versioned load() throws IOException {
+                if (DataEncryption.isSealed(channel)) {
+                    try {
+                        return new Versioned(sequence, Lines.copyOf(DataEncryption.readLines(file, channel, size)));
+                    } catch (IOException e) {
+                        // An append writes over the end marker the pinned length ends with
+                        if (locks.containsKey(file.toString()) && sequenceHint(file.toString()) != sequence) {
+                            throw new Overtaken();
+                        }
+                        throw e;
+                    }
+                }
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Dataset too large to load: " + size + " bytes");
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+                    // keep reading up to the pinned length
+                }
+                List<String> lines = new ArrayList<>();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new ByteArrayInputStream(buffer.array(), 0, buffer.position()), Charset.defaultCharset()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines.add(line);
+                    }
+                }
+                return new Versioned(sequence, Lines.copyOf(lines));
+            }
+        }
+
+        // Immutable list of lines. Versions produced by appending share one backing array: a version only ever
+        // reads the slots below its own size, and a slot is filled only once, so older versions stay unchanged.
+        static final class Lines extends AbstractList<String> implements RandomAccess {
+            private final String[] items; // Backing array shared with other versions
+            private final int size; // Number of slots that belong to this version
+            private final AtomicInteger used; // Number of slots filled in the backing array
+
+            private Lines(String[] items, int size, AtomicInteger used) {
+                this.items = items;
+                this.size = size;
+                this.used = used;
+            }
+
+            // Whether a version was made by appending to an older one, so the older one's lines are its prefix
+            static boolean extendsVersion(List<String> version, List<String> older) {
+                return version instanceof Lines newer && older instanceof Lines old && newer.items == old.items && newer.size >= old.size;
+            }
+
+            static Lines copyOf(List<String> lines) {
+                String[] items = lines.toArray(new String[Math.max(16, lines.size() + lines.size() / 2)]);
+                return new Lines(items, lines.size(), new AtomicInteger(lines.size()));
+            }
+
+            // Returns a new version with one more line, sharing the backing array when this is its latest version
+            Lines plus(String line) {
+                if (size < items.length && used.compareAndSet(size, size + 1)) {
+                    items[size] = line;
+                    return new Lines(items, size + 1, used);
+                }
+                String[] grown = Arrays.copyOf(items, Math.max(16, size * 2));
+                grown[size] = line;
+                return new Lines(grown, size + 1, new AtomicInteger(size + 1));
+            }
+
+            @Override
+            public String get(int index) {
+                Objects.checkIndex(index, size);
+                return items[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+
+        // Shared/exclusive lock for one dataset, combining an in-process lock with a FileChannel lock.
+        // FileChannel locks are held per JVM, so the shared file lock is taken by the first reader and released by the last.
+        static class DatasetLock {
+            private final String file; // Dataset file name
+            private final ReentrantReadWriteLock localLock = new ReentrantReadWriteLock(); // Coordinates threads of this instance
+            private FileChannel channel; // Open channel on the ".lock" file, kept for the life of the process
+            private FileLock sharedFileLock; // Shared file lock held on behalf of all local readers
+            private int sharedHolders; // Number of local readers currently holding the shared file lock
+            private FileLock exclusiveFileLock; // Exclusive file lock held by the local writer
+            private volatile Versioned cached; // Newest version seen by this instance
+
+            DatasetLock(String file) {
+                this.file = file;
+            }
+
+            private synchronized FileChannel channel() throws IOException {
+                if (channel == null) {
+                    channel = FileChannel.open(Paths.get(file + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                return channel;
+            }
+
+            // Takes the shared lock. If a transaction was left unfinished on this dataset, it is finished first under
+            // the exclusive lock, so a reader never sees the dataset as it was before a committed transaction.
+            void lockShared() throws IOException {
+                while (true) {
+                    localLock.readLock().lock();
+                    if (localLock.isWriteLockedByCurrentThread()) {
+                        return; // Already covered by this thread's exclusive file lock
+                    }
+                    boolean unfinished = false;
+                    try {
+                        synchronized (this) {
+                            if (sharedHolders == 0) {
+                                sharedFileLock = acquireFileLock(true);
+                                if (unfinished()) {
+                                    sharedFileLock.release();
+                                    sharedFileLock = null;
+                                    unfinished = true;
+                                }
+                            }
+                            if (!unfinished) {
+                                sharedHolders++;
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        localLock.readLock().unlock();
+                        throw e;
+                    }
+                    if (!unfinished) {
+                        return;
+                    }
+                    localLock.readLock().unlock();
+                    lockExclusive(); // Finishes or undoes the interrupted work
+                    unlockExclusive();
+                }
+            }
+
+            void unlockShared() throws IOException {
+                try {
+                    if (!localLock.isWriteLockedByCurrentThread()) {
+                        synchronized (this) {
+                            if (--sharedHolders == 0) {
+                                sharedFileLock.release();
+                                sharedFileLock = null;
+                            }
+                        }
+                    }
+                } finally {
+                    localLock.readLock().unlock();
+                }
+            }
+
+            // Takes the exclusive lock, first finishing any transaction, and undoing any append, a crash left unfinished,
+            // and recording a reload of the dataset if a crash lost the events of its last change
+            void lockExclusive() throws IOException {
+                localLock.writeLock().lock();
+                if (localLock.getWriteHoldCount() > 1) {
+                    return;
+                }
+                try {
+                    exclusiveFileLock = acquireFileLock(false);
+                    long journal = readPendingJournal();
+                    if (journal != 0) {
+                        finishTransaction(this, journal);
+                    }
+                    long appendStart = readAppendStart();
+                    if (appendStart != 0) {
+                        undoAppend(this, appendStart - 1);
+                    }
+                    if (readEventsOwed() != 0 && ChangeBus.announceReload(file)) {
+                        writeEventsOwed(0, false);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (exclusiveFileLock != null) {
+                        exclusiveFileLock.release();
+                        exclusiveFileLock = null;
+                    }
+                    localLock.writeLock().unlock();
+                    throw e;
+                }
+            }
+
+            void unlockExclusive() throws IOException {
+                try {
+                    if (localLock.getWriteHoldCount() == 1) {
+                        exclusiveFileLock.release();
+                        exclusiveFileLock = null;
+                    }
+                } finally {
+                    localLock.writeLock().unlock();
+                }
+            }
+
+            // Waits for the file lock by polling with a growing back-off. A blocking lock() is avoided on purpose:
+            // the OS tracks file locks per process, so one thread waiting while another thread of the same process
+            // holds a different dataset's lock can be misreported as a deadlock between two instances.
+            private FileLock acquireFileLock(boolean shared) throws IOException {
+                long backoffNanos = 20_000;
+                while (true) {
+                    FileLock fileLock = channel().tryLock(0, Long.MAX_VALUE, shared);
+                    if (fileLock != null) {
+                        return fileLock;
+                    }
+                    LockSupport.parkNanos(backoffNanos);
+                    backoffNanos = Math.min(backoffNanos * 2, 5_000_000);
+                }
+            }
+
+            // Reads the committed change sequence; must be called while holding a lock
+            long readSequence() throws IOException {
+                return readSlot(0);
+            }
+
+            // Records a new change sequence and forces it to disk, so a commit is never found on disk without its
+            // sequence bump (a cached version would then pass for current); must be called while holding the exclusive lock
+            void writeSequence(long sequence) throws IOException {
+                writeSlot(0, sequence, true);
+            }
+
+            // Reads the journal of the transaction still to finish on this dataset, or 0; must be called while holding a lock
+            long readPendingJournal() throws IOException {
+                return readSlot(1);
+            }
+
+            // Records (or with 0 clears) the transaction still to finish on this dataset and forces it to disk;
+            // must be called while holding the exclusive lock
+            void writePendingJournal(long journal) throws IOException {
+                writeSlot(1, journal, true);
+            }
+
+            // Reads where an append still in progress started, plus one (0 when none is); must be called while holding a lock
+            long readAppendStart() throws IOException {
+                return readSlot(2);
+            }
+
+            // Records (or with 0 clears) the start of an append, plus one, and forces it to disk; must be called
+            // while holding the exclusive lock
+            void writeAppendStart(long start) throws IOException {
+                writeSlot(2, start, true);
+            }
+
+            // Reads whether a change to this dataset may have been committed without its change events; must be
+            // called while holding a lock
+            long readEventsOwed() throws IOException {
+                return readSlot(3);
+            }
+
+            // Records (or with 0 clears) that a change may be committed without its change events; must be called
+            // while holding the exclusive lock
+            void writeEventsOwed(long owed, boolean force) throws IOException {
+                writeSlot(3, owed, force);
+            }
+
+            // Whether a crash left work on this dataset that must be finished or undone before it is read
+            private boolean unfinished() throws IOException {
+                return readPendingJournal() != 0 || readAppendStart() != 0 || readEventsOwed() != 0;
+            }
+
+            private long readSlot(int slot) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+                FileChannel ch = channel();
+                while (buffer.hasRemaining() && ch.read(buffer, (long) slot * Long.BYTES + buffer.position()) > 0) {
+                    // keep reading until the value is complete or the file ends
+                }
+                return buffer.hasRemaining() ? 0 : buffer.flip().getLong();
+            }
+
+            private void writeSlot(int slot, long value, boolean force) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(value).flip();
+                FileChannel ch = channel();
+                while (buffer.hasRemaining()) {
+                    ch.write(buffer, (long) slot * Long.BYTES + buffer.position());
+                }
+                if (force) {
+                    ch.force(false);
+                }
+            }
+
+            // Publishes a version to the cache unless a newer one is already there
+            synchronized void offer(Versioned versioned) {
+                if (cached == null || cached.sequence() < versioned.sequence()) {
+                    cached = versioned;
+                }
+            }
+        }
+    }
+
+    // GroupCommit class to make commits durable without paying for one fsync per commit.
+    // A committing thread queues the file it needs forced and waits; a waiting thread that finds no flush in
+    // progress becomes the leader, lingers briefly so concurrent commits can join, then forces each file of the
+    // group once and releases everyone in it. Tuning: -Dbbms.commitDelayMicros is how long a leader lingers
+    // (lower for latency), -Dbbms.commitBatch caps the commits per group, and -Dbbms.fsync=false skips
+    // forcing altogether (fastest, but recent commits may be lost on power failure).
+    static class GroupCommit {
+        private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("bbms.fsync", "true"));
+        private static final long DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("bbms.commitDelayMicros", 500));
+        private static final int MAX_BATCH = Math.max(1, Integer.getInteger("bbms.commitBatch", 64));
+        private static final String FAULT_POINT = System.getProperty("bbms.faultPoint"); // Commit step at which to halt, for crash testing
+        private static final Object monitor = new Object();
+        private static final ArrayDeque<Pending> queue = new ArrayDeque<>(); // Commits waiting for the next group
+        private static boolean flushing; // Whether a leader is currently lingering or forcing a group
+
+        // A file waiting to be forced on behalf of one commit
+        private static final class Pending {
+            private final Path path;
+            private final boolean directory;
+            private boolean done;
+            private IOException failure;
+
+            Pending(Path path, boolean directory) {
+                this.path = path;
+                this.directory = directory;
+            }
+        }
+
+        // Blocks until the contents of the file are on disk
+        public static void force(Path file) throws IOException {
+            await(new Pending(file, false));
+        }
+
+        // Blocks until the entries of the directory (e.g. a rename into it) are on disk
+        public static void forceDirectory(Path dir) throws IOException {
+            await(new Pending(dir, true));
+        }
+
+        // Halts the process at the named commit step when -Dbbms.faultPoint names it, as if it had been killed there.
+        // Whatever has been written so far is flushed to the OS first, so the crash leaves a genuinely partial commit.
+        static void faultPoint(String point, Flushable written) throws IOException {
+            if (point.equals(FAULT_POINT)) {
+                if (written != null) {
+                    written.flush();
+                }
+                Runtime.getRuntime().halt(FaultTest.HALTED);
+            }
+        }
+
+        private static void await(Pending pending) throws IOException {
+            if (!ENABLED) {
+                return;
+            }
+            synchronized (monitor) {
+                queue.add(pending);
+                if (queue.size() >= MAX_BATCH) {
+                    monitor.notifyAll(); // A full group need not wait out the leader's delay
+                }
+            }
+            while (true) {
+                List<Pending> group = new ArrayList<>();
+                synchronized (monitor) {
+                    while (flushing && !pending.done) {
+                        try {
+                            monitor.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for commit to reach the disk");
+                        }
+                    }
+                    if (pending.done) {
+                        break;
+                    }
+                    flushing = true;
+                    long deadline = System.nanoTime() + DELAY_NANOS;
+                    long remaining;
+                    while (queue.size() < MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break; // Flush what has gathered so far; the waiters depend on it
+                        }
+                    }
+                    while (!queue.isEmpty() && group.size() < MAX_BATCH) {
+                        group.add(queue.poll());
+                    }
+                }
+                Map<Path, IOException> outcomes = new HashMap<>();
+                try {
+                    for (Pending member : group) {
+                        if (!outcomes.containsKey(member.path)) {
+                            outcomes.put(member.path, forceNow(member));
+                        }
+                    }
+                } finally {
+                    synchronized (monitor) {
+                        for (Pending member : group) {
+                            member.failure = outcomes.get(member.path);
+                            member.done = true;
+                        }
+                        flushing = false;
+                        monitor.notifyAll();
+                    }
+                }
+            }
+            if (pending.failure != null) {
+                throw new IOException("Failed to force " + pending.path + " to disk - " + pending.failure.getMessage(), pending.failure);
+            }
+        }
+
+        // Forces one file to disk, returning the failure instead of throwing so that it is reported to its own commit only
+        private static IOException forceNow(Pending pending) {
+            try (FileChannel channel = FileChannel.open(pending.path, StandardOpenOption.READ)) {
+                channel.force(true);
+                return null;
+            } catch (IOException e) {
+                // Some platforms cannot open or force a directory; rename durability is then left to the file system
+                return pending.directory ? null : e;
+            }
+        }
+    }
+
+    // The eight ABO/Rh blood groups, interned from their labels ("A+", "O-", ...) when inventory rows are read
+    enum BloodGroup {
+        A_POS("A+"), A_NEG("A-"), B_POS("B+"), B_NEG("B-"), AB_POS("AB+"), AB_NEG("AB-"), O_POS("O+"), O_NEG("O-");
+
+        final String label; // Label as stored in the CSV files
+
+        BloodGroup(String label) {
+            this.label = label;
+        }
+
+        // Returns the blood group for a label, or null if it is not one of the eight
+        static BloodGroup of(String label) {
+            return switch (label) {
+                case "A+" -> A_POS;
+                case "A-" -> A_NEG;
+                case "B+" -> B_POS;
+                case "B-" -> B_NEG;
+                case "AB+" -> AB_POS;
+                case "AB-" -> AB_NEG;
+                case "O+" -> O_POS;
+                case "O-" -> O_NEG;
+                default -> null;
+            };
+        }
+    }
+
+    // Blood components kept in inventory, interned from their labels when inventory rows are read
+    enum Component {
+        WHOLE_BLOOD("Whole Blood"), PLASMA("Plasma"), PLATELETS("Platelets");
+
+        final String label; // Label as stored in the CSV files
+
+        Component(String label) {
+            this.label = label;
+        }
+
+        // Returns the component for a label, or null if it is not a known component
+        static Component of(String label) {
+            return switch (label) {
+                case "Whole Blood" -> WHOLE_BLOOD;
+                case "Plasma" -> PLASMA;
+                case "Platelets" -> PLATELETS;
+                default -> null;
+            };
+        }
+    }
+
+    // InventoryMatrix class: one version of an inventory dataset decoded into primitive arrays indexed by
+    // blood group x component, so totals and status checks are plain loops over a few cache lines.
+    // Labels are interned once while decoding; rows with a type or component outside the enums only count
+    // towards the overflow totals, which keeps the report figures exact.
+    static final class InventoryMatrix {
+        static final int COMPONENTS = Component.values().length;
+        static final int CELLS = BloodGroup.values().length * COMPONENTS;
+        static final InventoryMatrix EMPTY = new InventoryMatrix(new FileCoordinator.Versioned(-1, List.of()));
+        private static final Map<String, InventoryMatrix> latest = new ConcurrentHashMap<>(); // Newest matrix per dataset file
+
+        private final long sequence; // Change sequence of the dataset version this was decoded from
+        private final int[] available = new int[CELLS]; // Units in AVAILABLE rows
+        private final int[] blocked = new int[CELLS]; // Units in BLOCKED rows
+        private final int[] reserved = new int[CELLS]; // Reserved units
+        private final int[] rows = new int[CELLS]; // Number of rows per cell
+        private final int[] blockedRows = new int[CELLS]; // Number of BLOCKED rows per cell
+        private final int[] groupBlockedRows = new int[BloodGroup.values().length]; // BLOCKED rows per blood group, whatever their component
+        private int otherUnits; // Units in rows with an unrecognised type or component
+        private int otherReserved;
+        private int otherRows;
+        private int otherBlockedRows;
+
+        private InventoryMatrix(FileCoordinator.Versioned version) {
+            this.sequence = version.sequence();
+            for (String item : version.lines()) {
+                String[] data = item.split(",");
+                int units = Integer.parseInt(data[2]);
+                int reservedUnits = Integer.parseInt(data[4]);
+                boolean isBlocked = data[5].equals("BLOCKED");
+                BloodGroup group = BloodGroup.of(data[0]);
+                Component component = Component.of(data[1]);
+                // Components are typed in freely, so a block counts against the group even when its component is unrecognised
+                if (group != null && isBlocked) {
+                    groupBlockedRows[group.ordinal()]++;
+                }
+                if (group == null || component == null) {
+                    otherUnits += units;
+                    otherReserved += reservedUnits;
+                    otherRows++;
+                    otherBlockedRows += isBlocked ? 1 : 0;
+                    continue;
+                }
+                int cell = cell(group, component);
+                if (isBlocked) {
+                    blocked[cell] += units;
+                    blockedRows[cell]++;
+                } else {
+                    available[cell] += units;
+                }
+                reserved[cell] += reservedUnits;
+                rows[cell]++;
+            }
+        }
+
+        // Returns the matrix for a dataset version, decoding it only the first time that version is seen
+        static InventoryMatrix of(String file, FileCoordinator.Versioned version) {
+            InventoryMatrix matrix = latest.get(file);
+            if (matrix != null && matrix.sequence == version.sequence()) {
+                return matrix;
+            }
+            InventoryMatrix decoded = new InventoryMatrix(version);
+            latest.merge(file, decoded, (current, fresh) -> current.sequence >= fresh.sequence ? current : fresh);
+            return decoded;
+        }
+
+        static int cell(BloodGroup group, Component component) {
+            return group.ordinal() * COMPONENTS + component.ordinal();
+        }
+
+        // Available units of one cell
+        int available(BloodGroup group, Component component) {
+            return available[cell(group, component)];
+        }
+
+        // Units in stock whether available or blocked (reserved units are already taken out of stock)
+        int totalUnits() {
+            int total = otherUnits;
+            for (int cell = 0; cell < CELLS; cell++) {
+                total += available[cell] + blocked[cell];
+            }
+            return total;
+        }
+
+        int totalReserved() {
+            int total = otherReserved;
+            for (int cell = 0; cell < CELLS; cell++) {
+                total += reserved[cell];
+            }
+            return total;
+        }
+
+        // Whether any row of the blood group is blocked, in any component
+        boolean isBlocked(BloodGroup group) {
+            return groupBlockedRows[group.ordinal()] > 0;
+        }
+
+        // Whether there is stock and every row of it is blocked
+        boolean isEntirelyBlocked() {
+            int total = otherRows;
+            if (otherBlockedRows != otherRows) {
+                return false;
+            }
+            for (int cell = 0; cell < CELLS; cell++) {
+                if (blockedRows[cell] != rows[cell]) {
+                    return false;
+                }
+                total += rows[cell];
+            }
+            return total > 0;
+        }
+    }
+
+    // DemandForecast class to estimate when each blood group will run out.
+    // The request history (requests.csv of every site) is folded in once; after that each use folds in only the
+    // rows appended since, by this or any other running copy, up to the versions pinned by the caller's snapshot.
+    // Per blood group x component it keeps an exponentially weighted daily consumption
+    // rate and a 30-day ring of daily totals, so a forecast costs the same no matter how long the history is.
+    // Requests recorded before they named a component are counted in a separate "any component" slot.
+    static final class DemandForecast {
+        private static final double ALPHA = Double.parseDouble(System.getProperty("bbms.demandAlpha", "0.25")); // EWMA weight of the newest day
+        private static final int REORDER_DAYS = Integer.getInteger("bbms.reorderDays", 7); // Alert below this many days of supply
+        private static final int WINDOW_DAYS = 30; // Length of the rolling window
+        private static final int SLOTS_PER_GROUP = InventoryMatrix.COMPONENTS + 1; // Components plus "any component"
+        private static final int SLOTS = BloodGroup.values().length * SLOTS_PER_GROUP;
+        private static DemandForecast instance; // Built on first use; guarded by the class lock
+
+        private final double[] ewma = new double[SLOTS]; // Units per day up to the end of lastDay - 1
+        private final long[] lastDay = new long[SLOTS]; // Epoch day of the newest request seen
+        private final int[] lastDayUnits = new int[SLOTS]; // Units requested on lastDay so far
+        private final int[] windowUnits = new int[SLOTS * WINDOW_DAYS]; // Daily totals, indexed by epoch day modulo the window
+        private final long[] windowDay = new long[SLOTS * WINDOW_DAYS]; // Epoch day each windowUnits entry belongs to
+        private long folded; // Requests folded in
+        private long undated; // Requests from before request dates were recorded, which can't be placed in time
+        private final Map<String, Consumed> consumed = new LinkedHashMap<>(); // How far each request file has been folded in
+        private final int[] commas = new int[7]; // Comma positions of the row being parsed
+
+        // Version of a request file folded in so far, how many of its lines that covers, and a checksum of the last
+        // of them to notice when the file has been rewritten rather than appended to
+        record Consumed(long sequence, int lines, long lastLineCrc) {}
+
+        private DemandForecast() {
+            Arrays.fill(lastDay, Long.MIN_VALUE);
+            Arrays.fill(windowDay, Long.MIN_VALUE);
+        }
+
+        // Returns the forecast as the request history of every site stands now
+        static DemandForecast get() throws IOException {
+            List<String> files = files(SiteRegistry.all());
+            return of(FileCoordinator.snapshot(files.toArray(new String[0])), files);
+        }
+
+        // Returns the forecast as of the given request files pinned by a snapshot, folding in the whole history the
+        // first time and only the rows appended since on later calls. The caller gets a copy, which keeps the
+        // figures of its snapshot while later calls fold in newer rows.
+        static synchronized DemandForecast of(FileCoordinator.Snapshot snapshot, List<String> files) throws IOException {
+            Map<String, FileCoordinator.Versioned> pinned = new LinkedHashMap<>();
+            for (String file : files) {
+                pinned.put(file, snapshot.version(file));
+            }
+            if (instance == null || !instance.catchUp(pinned)) {
+                instance = build(pinned);
+            }
+            return instance.copy();
+        }
+
+        // The request file of each site
+        static List<String> files(List<Site> sites) {
+            List<String> files = new ArrayList<>();
+            for (Site site : sites) {
+                files.add(site.file("requests.csv"));
+            }
+            return files;
+        }
+
+        // Installs a forecast restored from a checkpoint; the next get() folds in whatever was appended after it
+        static synchronized void restore(DemandForecast forecast) {
+            instance = forecast;
+        }
+
+        static DemandForecast empty() {
+            return new DemandForecast();
+        }
+
+        // Streams the archived requests of each file, then folds in the pinned version of the file itself
+        static DemandForecast build(Map<String, FileCoordinator.Versioned> pinned) throws IOException {
+            DemandForecast forecast = new DemandForecast();
+            for (String file : pinned.keySet()) {
+                HistoryArchive.scan(HistoryArchive.Tier.of(file), forecast::addRow);
+            }
+            forecast.catchUp(pinned);
+            return forecast;
+        }
+
+        // Folds in the lines of each pinned version beyond those already folded in. Returns false if the set of
+        // files changed, or a file was rewritten or is older than the version folded in, in which case the forecast
+        // has to be rebuilt.
+        private boolean catchUp(Map<String, FileCoordinator.Versioned> pinned) {
+            if (!pinned.keySet().containsAll(consumed.keySet())) {
+                return false;
+            }
+            for (Map.Entry<String, FileCoordinator.Versioned> entry : pinned.entrySet()) {
+                List<String> lines = entry.getValue().lines();
+                Consumed seen = consumed.get(entry.getKey());
+                int from = seen == null ? 0 : seen.lines();
+                if (seen != null && (entry.getValue().sequence() < seen.sequence() || lines.size() < from
+                                     || (from > 0 && lineCrc(lines.get(from - 1)) != seen.lastLineCrc()))) {
+                    return false;
+                }
+                for (int i = from; i < lines.size(); i++) {
+                    if (!lines.get(i).isEmpty()) {
+                        addRow(lines.get(i));
+                    }
+                }
+                consumed.put(entry.getKey(), new Consumed(entry.getValue().sequence(), lines.size(),
+                                                          lines.isEmpty() ? 0 : lineCrc(lines.get(lines.size() - 1))));
+            }
+            return true;
+        }
+
+        private static long lineCrc(String line) {
+            CRC32 crc = new CRC32();
+            crc.update(line.getBytes(Charset.defaultCharset()));
+            return crc.getValue();
+        }
+
+        // Independent copy of the forecast state
+        private DemandForecast copy() {
+            DemandForecast copy = new DemandForecast();
+            System.arraycopy(ewma, 0, copy.ewma, 0, SLOTS);
+            System.arraycopy(lastDay, 0, copy.lastDay, 0, SLOTS);
+            System.arraycopy(lastDayUnits, 0, copy.lastDayUnits, 0, SLOTS);
+            System.arraycopy(windowUnits, 0, copy.windowUnits, 0, windowUnits.length);
+            System.arraycopy(windowDay, 0, copy.windowDay, 0, windowDay.length);
+            copy.folded = folded;
+            copy.undated = undated;
+            copy.consumed.putAll(consumed);
+            return copy;
+        }
+
+        // Writes the forecast state, including how far each request file has been folded in
+        void writeTo(Checkpoint.ImageWriter out) throws IOException {
+            out.putDouble(ALPHA);
+            out.putInt(consumed.size());
+            for (Map.Entry<String, Consumed> entry : consumed.entrySet()) {
+                out.putString(entry.getKey());
+                out.putLong(entry.getValue().sequence());
+                out.putInt(entry.getValue().lines());
+                out.putLong(entry.getValue().lastLineCrc());
+            }
+            out.putInt(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                out.putDouble(ewma[slot]);
+                out.putLong(lastDay[slot]);
+                out.putInt(lastDayUnits[slot]);
+            }
+            out.putInts(windowUnits, windowUnits.length);
+            for (long day : windowDay) {
+                out.putLong(day);
+            }
+            out.putLong(folded);
+            out.putLong(undated);
+        }
+
+        // Reads a forecast written by writeTo; returns null if it was made with a different smoothing weight
+        static DemandForecast readFrom(ByteBuffer in) {
+            DemandForecast forecast = new DemandForecast();
+            boolean sameAlpha = in.getDouble() == ALPHA;
+            int files = in.getInt();
+            for (int i = 0; i < files; i++) {
+                forecast.consumed.put(Checkpoint.getString(in), new Consumed(in.getLong(), in.getInt(), in.getLong()));
+            }
+            if (in.getInt() != SLOTS) {
+                throw new IllegalStateException("forecast layout differs");
+            }
+            for (int slot = 0; slot < SLOTS; slot++) {
+                forecast.ewma[slot] = in.getDouble();
+                forecast.lastDay[slot] = in.getLong();
+                forecast.lastDayUnits[slot] = in.getInt();
+            }
+            in.asIntBuffer().get(forecast.windowUnits);
+            in.position(in.position() + 4 * forecast.windowUnits.length);
+            in.asLongBuffer().get(forecast.windowDay);
+            in.position(in.position() + 8 * forecast.windowDay.length);
+            forecast.folded = in.getLong();
+            forecast.undated = in.getLong();
+            return sameAlpha ? forecast : null;
+        }
+
+        // Parses id,recipientId,bloodType,units,urgency,status,date,component without splitting the whole row
+        private void addRow(String line) {
+            int found = 0;
+            for (int i = 0; i < line.length() && found < commas.length; i++) {
+                if (line.charAt(i) == ',') {
+                    commas[found++] = i;
+                }
+            }
+            if (found < 6) {
+                undated++;
+                return;
+            }
+            BloodGroup group = BloodGroup.of(line.substring(commas[1] + 1, commas[2]));
+            if (group == null) {
+                return;
+            }
+            int units = Integer.parseInt(line, commas[2] + 1, commas[3], 10);
+            int dateEnd = found > 6 ? commas[6] : line.length();
+            long day = LocalDate.of(Integer.parseInt(line, commas[5] + 1, commas[5] + 5, 10),
+                                    Integer.parseInt(line, commas[5] + 6, commas[5] + 8, 10),
+                                    Integer.parseInt(line, commas[5] + 9, dateEnd, 10)).toEpochDay();
+            Component component = found > 6 ? Component.of(line.substring(commas[6] + 1)) : null;
+            add(slot(group, component), units, day);
+        }
+
+        private static int slot(BloodGroup group, Component component) {
+            return group.ordinal() * SLOTS_PER_GROUP + (component == null ? InventoryMatrix.COMPONENTS : component.ordinal());
+        }
+
+        private void add(int slot, int units, long day) {
+            if (lastDay[slot] == Long.MIN_VALUE) {
+                lastDay[slot] = day;
+            } else if (day > lastDay[slot]) {
+                ewma[slot] = rateAsOf(slot, day);
+                lastDay[slot] = day;
+                lastDayUnits[slot] = 0;
+            }
+            // Requests arriving out of order (other sites' files) are counted on the newest day seen
+            lastDayUnits[slot] += units;
+            long bucketDay = Math.max(day, lastDay[slot] - WINDOW_DAYS + 1);
+            int bucket = slot * WINDOW_DAYS + Math.floorMod(bucketDay, WINDOW_DAYS);
+            if (windowDay[bucket] != bucketDay) {
+                windowDay[bucket] = bucketDay;
+                windowUnits[bucket] = 0;
+            }
+            windowUnits[bucket] += units;
+            folded++;
+        }
+
+        // EWMA rate covering every completed day before the given day: the newest day is folded in,
+        // then each day without requests decays the rate once more
+        private double rateAsOf(int slot, long day) {
+            if (lastDay[slot] == Long.MIN_VALUE) {
+                return 0;
+            }
+            if (day <= lastDay[slot]) {
+                return ewma[slot];
+            }
+            double rate = ALPHA * lastDayUnits[slot] + (1 - ALPHA) * ewma[slot];
+            return rate * Math.pow(1 - ALPHA, day - lastDay[slot] - 1);
+        }
+
+        // Average units per day over the last `days` days (including today)
+        private double windowAverage(int slot, int days, long today) {
+            long total = 0;
+            for (int i = 0; i < WINDOW_DAYS; i++) {
+                long day = windowDay[slot * WINDOW_DAYS + i];
+                if (day > today - days && day <= today) {
+                    total += windowUnits[slot * WINDOW_DAYS + i];
+                }
+            }
+            return (double) total / days;
+        }
+
+        // Prints days of supply and reorder alerts per blood group against the given inventories
+        void print(List<InventoryMatrix> inventories) {
+            long today = LocalDate.now().toEpochDay();
+            List<String> alerts = new ArrayList<>();
+            System.out.println("\n================ DEMAND FORECAST (ALL SITES) =================");
+            System.out.println("Type | Available | EWMA/day | 7-day avg | 30-day avg | Days of Supply");
+            System.out.println("----------------------------------------------------------------------");
+            for (BloodGroup group : BloodGroup.values()) {
+                int stock = 0;
+                for (InventoryMatrix inventory : inventories) {
+                    for (Component component : Component.values()) {
+                        stock += inventory.available(group, component);
+                    }
+                }
+                double rate = 0;
+                double week = 0;
+                double month = 0;
+                for (int slot = group.ordinal() * SLOTS_PER_GROUP; slot < (group.ordinal() + 1) * SLOTS_PER_GROUP; slot++) {
+                    rate += rateAsOf(slot, today);
+                    week += windowAverage(slot, 7, today);
+                    month += windowAverage(slot, WINDOW_DAYS, today);
+                }
+                if (stock == 0 && rate == 0 && month == 0) {
+                    continue;
+                }
+                // The faster of the smoothed and the weekly rate, so a sudden surge is not averaged away
+                double demand = Math.max(rate, week);
+                String daysOfSupply = demand > 0 ? String.format("%.1f", stock / demand) : "-";
+                System.out.printf("%-5s| %10d| %9.2f| %10.2f| %11.2f| %s%n", group.label, stock, rate, week, month, daysOfSupply);
+                if (demand > 0 && stock / demand < REORDER_DAYS) {
+                    alerts.add("REORDER ALERT: " + group.label + " has " + daysOfSupply + " days of supply left (threshold " + REORDER_DAYS + " days)");
+                }
+            }
+            alerts.forEach(System.out::println);
+            if (undated > 0) {
+                System.out.println("NOTE: " + undated + " older requests have no date and are not part of the forecast");
+            }
+        }
+
+        long folded() {
+            return folded;
+        }
+    }
+
+    // ListingCursor class to page through donors.csv or recipients.csv (id,name,age,bloodGroup,...) straight from
+    // the file, with the blood type filter applied while reading. In file order a page token is the byte offset
+    // of the next row, so a page costs one seek and reads only as far as it needs. Sorted by name or age, the
+    // token is the sort key of the last row shown; each page is one streaming pass that keeps only the next
+    // page's rows in a bounded heap. Either way memory stays proportional to the page size, and a token stays
+    // valid when rows are added or changed between pages.
+    static final class ListingCursor {
+        static final int PAGE_SIZE = 20; // Rows per page in the admin menu
+        private static final int READ_BYTES = 1 << 16;
+
+        // Row order of a listing
+        enum Order { FILE, NAME, AGE }
+
+        // One page of rows and the token of the next page (null after the last one)
+        record Page(List<String> rows, String nextToken) {}
+
+        static Page page(String file, String bloodGroup, Order order, String token, int pageSize) throws IOException {
+            Path path = Paths.get(file);
+            if (!Files.exists(path)) {
+                return new Page(List.of(), null);
+            }
+            // Readers share the dataset lock, so the file can't be swapped out halfway through a page
+            return FileCoordinator.shared(file, () -> {
+                if (order != Order.FILE) {
+                    return sortedPage(path, bloodGroup, order, token, pageSize);
+                }
+                return DataEncryption.isSealed(path)
+                    ? sealedFileOrderPage(path, bloodGroup, token, pageSize)
+                    : fileOrderPage(path, bloodGroup, token == null ? 0 : Long.parseLong(token), pageSize);
+            });
+        }
+
+        private static boolean matches(String row, String bloodGroup) {
+            if (bloodGroup == null) {
+                return true;
+            }
+            String[] data = row.split(",");
+            return data.length > 3 && data[3].equalsIgnoreCase(bloodGroup);
+        }
+
+        // Reads rows from the offset on until the page is full. If the file was rewritten since the token was
+        // issued the offset may land mid-row; that partial row is skipped.
+        private static Page fileOrderPage(Path path, String bloodGroup, long offset, int pageSize) throws IOException {
+            List<String> rows = new ArrayList<>(pageSize);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long position = Math.min(offset, size);
+                boolean skipping = false;
+                if (position > 0) {
+                    ByteBuffer previous = ByteBuffer.allocate(1);
+                    channel.read(previous, position - 1);
+                    skipping = previous.get(0) != '\n';
+                }
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+                long lineStart = position;
+                while (position < size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, position);
+                    if (read <= 0) {
+                        break;
+                    }
+                    byte[] bytes = buffer.array();
+                    int from = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (bytes[i] != '\n') {
+                            continue;
+                        }
+                        line.write(bytes, from, i - from);
+                        from = i + 1;
+                        if (skipping) {
+                            skipping = false;
+                        } else {
+                            String row = line.toString(Charset.defaultCharset());
+                            if (!row.isEmpty() && matches(row, bloodGroup)) {
+                                rows.add(row);
+                            }
+                        }
+                        line.reset();
+                        lineStart = position + i + 1;
+                        if (rows.size() == pageSize) {
+                            return new Page(rows, lineStart < size ? Long.toString(lineStart) : null);
+                        }
+                    }
+                    line.write(bytes, from, read - from);
+                    position += read;
+                }
+                if (!skipping && line.size() > 0) {
+                    String row = line.toString(Charset.defaultCharset());
+                    if (matches(row, bloodGroup)) {
+                        rows.add(row);
+                    }
+                }
+            }
+            return new Page(rows, null);
+        }
+
+        // File order over an encrypted file: the token is "<chunk position>:<rows of that chunk already read>", so
+        // a page decrypts only the chunks it shows. If the file was rewritten since the token was issued and the
+        // position is no longer a chunk, the page starts at the next chunk.
+        private static Page sealedFileOrderPage(Path path, String bloodGroup, String token, int pageSize) throws IOException {
+            List<String> rows = new ArrayList<>(pageSize);
+            String[] next = {null};
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long position = 0;
+                int skip = 0;
+                if (token != null && token.contains(":")) {
+                    position = Long.parseLong(token.substring(0, token.indexOf(':')));
+                    skip = Integer.parseInt(token.substring(token.indexOf(':') + 1));
+                    if (!DataEncryption.isChunk(channel, position)) {
+                        position = DataEncryption.chunkAtOrAfter(channel, position);
+                        skip = 0;
+                    }
+                }
+                long first = position;
+                int skipped = skip;
+                long[] last = {0, 0}; // Chunk and index of the last row read
+                DataEncryption.readLines(path, channel, position, channel.size(), (chunk, index, row) -> {
+                    if (chunk == first && index < skipped) {
+                        return true;
+                    }
+                    if (rows.size() == pageSize) {
+                        next[0] = last[0] + ":" + (last[1] + 1); // There is at least one more row
+                        return false;
+                    }
+                    if (!row.isEmpty() && matches(row, bloodGroup)) {
+                        rows.add(row);
+                    }
+                    last[0] = chunk;
+                    last[1] = index;
+                    return true;
+                });
+            }
+            return new Page(rows, next[0]);
+        }
+
+        // Streams every row of the file in order, decrypting it if it is encrypted
+        private static void forEachRow(Path path, Consumer<String> action) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (DataEncryption.isSealed(channel)) {
+                    DataEncryption.readLines(path, channel, 0, channel.size(), (chunk, index, row) -> {
+                        action.accept(row);
+                        return true;
+                    });
+                    return;
+                }
+            }
+            try (BufferedReader reader = Files.newBufferedReader(path, Charset.defaultCharset())) {
+                String row;
+                while ((row = reader.readLine()) != null) {
+                    action.accept(row);
+                }
+            }
+        }
+
+        // Sort key that orders rows by the chosen column, then by ID so that keys are unique
+        private static String sortKey(String row, Order order) {
+            String[] data = row.split(",");
+            String column = order == Order.NAME ? data[1].toLowerCase() : String.format("%03d", Integer.parseInt(data[2].trim()));
+            return column + "\u0000" + data[0];
+        }
+
+        // Streams the whole file, keeping the pageSize smallest rows whose key follows the token
+        private static Page sortedPage(Path path, String bloodGroup, Order order, String after, int pageSize) throws IOException {
+            PriorityQueue<String[]> page = new PriorityQueue<>((a, b) -> b[0].compareTo(a[0])); // Largest key on top
+            boolean[] more = {false};
+            forEachRow(path, row -> {
+                if (row.isEmpty() || !matches(row, bloodGroup)) {
+                    return;
+                }
+                String key = sortKey(row, order);
+                if (after != null && key.compareTo(after) <= 0) {
+                    return;
+                }
+                if (page.size() < pageSize) {
+                    page.add(new String[] {key, row});
+                } else {
+                    more[0] = true;
+                    if (key.compareTo(page.peek()[0]) < 0) {
+                        page.poll();
+                        page.add(new String[] {key, row});
+                    }
+                }
+            });
+            List<String[]> sorted = new ArrayList<>(page);
+            sorted.sort((a, b) -> a[0].compareTo(b[0]));
+            List<String> rows = new ArrayList<>(sorted.size());
+            for (String[] entry : sorted) {
+                rows.add(entry[1]);
+            }
+            return new Page(rows, more[0] ? sorted.get(sorted.size() - 1)[0] : null);
+        }
+    }
+
+    // PersonSearchIndex class for ranked search over donors and recipients by name, contact or ID.
+    // Every word of those fields is lower-cased and cut into trigrams, padded in front so that a word's first
+    // trigrams double as prefix keys (as in "  j", " jo", "joh"), and each trigram maps to a sorted posting list of
+    // document numbers. Every word of a query must be matched, allowing a typo or two in longer words.
+    // The index is built once per process and then kept current from saves in this process and, through the
+    // change feed, from saves in other instances. A saved person gets a new document number and the old one is
+    // tombstoned; once a quarter of the documents are tombstones the index is rebuilt.
+    // An index restored from a checkpoint keeps its rows and posting lists in the mapped image and decodes them
+    // only as searches reach them, so restoring costs about the same at any registry size.
+    static final class PersonSearchIndex {
+        static final int PAGE_SIZE = 10; // Results per page in the admin menu
+        private static final int FEED_BATCH = 1000; // Change events read per catch-up step
+        private static final Postings NONE = new Postings(); // Stands in for a trigram no document contains
+        private static PersonSearchIndex instance; // Guarded by the class lock
+        private static long feedOffset; // Change feed position the index is current up to
+        private static boolean subscribed; // Whether saves in this process are forwarded to the index
+
+        // One search result
+        record Hit(String kind, String row, int score) {}
+
+        // One page of results, best first
+        record Page(List<Hit> hits, int totalMatches, int page, int pageSize) {
+            boolean hasNext() {
+                return (long) (page + 1) * pageSize < totalMatches;
+            }
+        }
+
+        // Growable, ascending list of document numbers
+        private static final class Postings {
+            private int[] docs;
+            private int size;
+
+            Postings() {
+                docs = new int[2];
+            }
+
+            Postings(int[] docs) {
+                this.docs = docs;
+                this.size = docs.length;
+            }
+
+            void add(int doc) {
+                if (size == docs.length) {
+                    docs = Arrays.copyOf(docs, size * 2);
+                }
+                docs[size++] = doc;
+            }
+
+            boolean contains(int doc) {
+                return Arrays.binarySearch(docs, 0, size, doc) >= 0;
+            }
+
+            void trim() {
+                docs = Arrays.copyOf(docs, size);
+            }
+        }
+
+        // A query word: its trigrams' posting lists and how many of them a match must contain
+        private static final class Term {
+            final Postings[] lists;
+            final int required;
+            final Postings wholeWord; // Documents where the query word is a complete word
+            final Postings prefix; // Documents with a word starting with the query word's first characters
+
+            Term(Postings[] lists, int required, Postings wholeWord, Postings prefix) {
+                this.lists = lists;
+                this.required = required;
+                this.wholeWord = wholeWord;
+                this.prefix = prefix;
+            }
+        }
+
+        // Document number -> CSV row. Rows restored from a checkpoint are decoded from the image when asked for.
+        private static final class Rows {
+            private final ByteBuffer image; // Restored rows, UTF-8, back to back
+            private final IntBuffer starts; // Start of each restored row in the image, plus the end of the last
+            private final int restored; // Number of restored rows
+            private final List<String> added = new ArrayList<>(); // Rows added since
+
+            Rows(ByteBuffer image, IntBuffer starts) {
+                this.image = image;
+                this.starts = starts;
+                this.restored = starts.limit() - 1;
+            }
+
+            String get(int doc) {
+                if (doc >= restored) {
+                    return added.get(doc - restored);
+                }
+                byte[] bytes = new byte[starts.get(doc + 1) - starts.get(doc)];
+                image.get(starts.get(doc), bytes);
+                return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+            }
+
+            int size() {
+                return restored + added.size();
+            }
+
+            void add(String row) {
+                added.add(row);
+            }
+        }
+
+        private final Rows rows; // Document number -> CSV row
+        private final BitSet recipients; // Documents that are recipients rather than donors
+        private final BitSet deleted; // Tombstoned documents
+        private int[] byId = new int[1024]; // Open-addressing table of live documents by kind and ID, as doc + 1 (0 = free)
+        private int ids; // Occupied slots in byId
+        private final Map<Long, Postings> postings = new HashMap<>(); // Packed trigram -> documents containing it (loaded ones, if restored)
+        private LongBuffer imageKeys; // Restored index: all trigrams in ascending order, loaded into postings on first use
+        private IntBuffer imageStarts; // Start of each trigram's documents in imageDocs, plus the end of the last
+        private IntBuffer imageDocs; // Restored index: the posting lists back to back
+        private long[] scratch = new long[64]; // Trigrams of the document being added
+        private int[] hits = new int[0]; // Scratch: matched trigrams of the pivot word per document
+        private int[] touched = new int[64]; // Scratch: documents with a non-zero hit count
+
+        private PersonSearchIndex() {
+            rows = new Rows(ByteBuffer.allocate(0), IntBuffer.wrap(new int[1]));
+            recipients = new BitSet();
+            deleted = new BitSet();
+        }
+
+        private PersonSearchIndex(Rows rows, BitSet recipients, BitSet deleted) {
+            this.rows = rows;
+            this.recipients = recipients;
+            this.deleted = deleted;
+        }
+
+        // Returns the index, building it on first use and applying saves made since by any instance
+        static synchronized PersonSearchIndex current() throws IOException {
+            if (!subscribed) {
+                ChangeBus.subscribe(event -> {
+                    if (event.type() == ChangeType.DONOR_SAVED || event.type() == ChangeType.RECIPIENT_SAVED) {
+                        apply(event);
+                    }
+                });
+                subscribed = true;
+            }
+            if (instance == null) {
+                rebuild();
+            }
+            while (true) {
+                ChangeBatch batch = ChangeFeed.read(feedOffset, FEED_BATCH);
+                boolean reloaded = false;
+                for (ChangeEvent event : batch.events()) {
+                    if (event.type() == ChangeType.DONOR_SAVED || event.type() == ChangeType.RECIPIENT_SAVED) {
+                        instance.put(event.type() == ChangeType.RECIPIENT_SAVED, event.row());
+                    } else if (event.type() == ChangeType.FEED_TRIMMED || event.type() == ChangeType.DATASET_RELOADED
+                               && (event.dataset().equals("donors.csv") || event.dataset().equals("recipients.csv"))) {
+                        reloaded = true;
+                    }
+                }
+                if (reloaded || batch.events().isEmpty() && batch.nextOffset() < ChangeFeed.endOffset()) {
+                    // Saves whose events were lost or trimmed off, or unreadable data at the remembered position
+                    // (the feed was cut back after a crash)
+                    rebuild();
+                    continue;
+                }
+                feedOffset = batch.nextOffset();
+                if (batch.events().size() < FEED_BATCH) {
+                    break;
+                }
+            }
+            if (instance.deleted.cardinality() * 4 > Math.max(64, instance.rows.size())) {
+                rebuild();
+            }
+            return instance;
+        }
+
+        // Installs an index restored from a checkpoint, current up to the given change feed position
+        static synchronized void restore(PersonSearchIndex index, long offset) {
+            instance = index;
+            feedOffset = offset;
+        }
+
+        private static synchronized void apply(ChangeEvent event) {
+            if (instance != null) {
+                instance.put(event.type() == ChangeType.RECIPIENT_SAVED, event.row());
+            }
+        }
+
+        // Rebuilds from the current files; the feed position is taken first so no save can fall in between
+        private static void rebuild() throws IOException {
+            long offset = ChangeFeed.endOffset();
+            FileCoordinator.Snapshot snapshot = FileCoordinator.snapshot("donors.csv", "recipients.csv");
+            instance = build(snapshot.lines("donors.csv"), snapshot.lines("recipients.csv"));
+            feedOffset = offset;
+        }
+
+        static PersonSearchIndex build(List<String> donors, List<String> recipients) {
+            PersonSearchIndex index = new PersonSearchIndex();
+            donors.forEach(row -> index.put(false, row));
+            recipients.forEach(row -> index.put(true, row));
+            index.postings.values().forEach(Postings::trim);
+            return index;
+        }
+
+        // Adds or replaces a person; a row identical to the indexed one is ignored
+        synchronized void put(boolean recipient, String row) {
+            int comma = row.indexOf(',');
+            if (comma <= 0) {
+                return;
+            }
+            String id = row.substring(0, comma);
+            int slot = slotOf(recipient, id);
+            int previous = byId[slot] - 1;
+            if (previous >= 0) {
+                if (rows.get(previous).equals(row)) {
+                    return;
+                }
+                deleted.set(previous);
+            }
+            int doc = rows.size();
+            rows.add(row);
+            recipients.set(doc, recipient);
+            byId[slot] = doc + 1;
+            if (previous < 0 && ++ids * 2 > byId.length) {
+                growIds();
+            }
+            // ID, name and contact are fields 0, 1 and 4
+            int count = 0;
+            int field = 0;
+            int wordStart = -1;
+            for (int i = 0; i <= row.length(); i++) {
+                boolean inWord = i < row.length() && Character.isLetterOrDigit(row.charAt(i));
+                if (inWord && wordStart < 0) {
+                    wordStart = i;
+                } else if (!inWord && wordStart >= 0) {
+                    if (field == 0 || field == 1 || field == 4) {
+                        if (count + (i - wordStart) + 2 > scratch.length) {
+                            scratch = Arrays.copyOf(scratch, (count + i - wordStart + 2) * 2);
+                        }
+                        count = trigrams(row, wordStart, i, true, scratch, count);
+                        scratch[count++] = prefixKey(row, wordStart, i);
+                    }
+                    wordStart = -1;
+                }
+                if (i < row.length() && row.charAt(i) == ',') {
+                    field++;
+                }
+            }
+            Arrays.sort(scratch, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || scratch[i] != scratch[i - 1]) {
+                    Postings list = postingsFor(scratch[i]);
+                    if (list == null) {
+                        list = new Postings();
+                        postings.put(scratch[i], list);
+                    }
+                    list.add(doc);
+                }
+            }
+        }
+
+        // Posting list of a trigram, loading it from the checkpoint image the first time; null if no document has it
+        private Postings postingsFor(long key) {
+            Postings list = postings.get(key);
+            if (list == null && imageKeys != null) {
+                int index = imageIndexOf(key);
+                if (index >= 0) {
+                    int[] docs = new int[imageStarts.get(index + 1) - imageStarts.get(index)];
+                    imageDocs.get(imageStarts.get(index), docs);
+                    list = new Postings(docs);
+                    postings.put(key, list);
+                }
+            }
+            return list;
+        }
+
+        private Postings lookup(long key) {
+            Postings list = postingsFor(key);
+            return list != null ? list : NONE;
+        }
+
+        // Binary search for a trigram among the image's keys
+        private int imageIndexOf(long key) {
+            int low = 0;
+            int high = imageKeys.limit() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long found = imageKeys.get(middle);
+                if (found < key) {
+                    low = middle + 1;
+                } else if (found > key) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        // Writes the index in checkpoint format: rows, kind and tombstone bits, the ID table, then every posting
+        // list in ascending trigram order (those never loaded from a restored image are copied over as they are)
+        synchronized void writeTo(Checkpoint.ImageWriter out) throws IOException {
+            int count = rows.size();
+            List<byte[]> added = new ArrayList<>(rows.added.size());
+            int[] starts = new int[count + 1];
+            for (int doc = 0; doc <= rows.restored; doc++) {
+                starts[doc] = rows.starts.get(doc);
+            }
+            for (int doc = rows.restored; doc < count; doc++) {
+                byte[] bytes = rows.added.get(doc - rows.restored).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                added.add(bytes);
+                starts[doc + 1] = starts[doc] + bytes.length;
+            }
+            out.putInt(count);
+            out.putInts(starts, starts.length);
+            out.putBuffer(rows.image.slice(0, rows.starts.get(rows.restored)));
+            for (byte[] bytes : added) {
+                out.putBytes(bytes);
+            }
+            for (BitSet bits : List.of(recipients, deleted)) {
+                long[] words = bits.toLongArray();
+                out.putInt(words.length);
+                out.putLongs(words);
+            }
+            out.putInt(ids);
+            out.putInt(byId.length);
+            out.putInts(byId, byId.length);
+
+            long[] loaded = new long[postings.size()];
+            int n = 0;
+            for (long key : postings.keySet()) {
+                loaded[n++] = key;
+            }
+            Arrays.sort(loaded);
+            int imageCount = imageKeys == null ? 0 : imageKeys.limit();
+            // Merge the loaded keys with the image's, counting the union first
+            int total = 0;
+            for (int i = 0, j = 0; i < loaded.length || j < imageCount; total++) {
+                if (j == imageCount || (i < loaded.length && loaded[i] < imageKeys.get(j))) {
+                    i++;
+                } else if (i == loaded.length || loaded[i] > imageKeys.get(j)) {
+                    j++;
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+            long[] keys = new long[total];
+            int[] listStarts = new int[total + 1];
+            int k = 0;
+            for (int i = 0, j = 0; i < loaded.length || j < imageCount; k++) {
+                if (j == imageCount || (i < loaded.length && loaded[i] <= imageKeys.get(j))) {
+                    if (j < imageCount && loaded[i] == imageKeys.get(j)) {
+                        j++;
+                    }
+                    keys[k] = loaded[i];
+                    listStarts[k + 1] = listStarts[k] + postings.get(loaded[i++]).size;
+                } else {
+                    keys[k] = imageKeys.get(j);
+                    listStarts[k + 1] = listStarts[k] + imageStarts.get(j + 1) - imageStarts.get(j);
+                    j++;
+                }
+            }
+            out.putInt(total);
+            out.putLongs(keys);
+            out.putInts(listStarts, listStarts.length);
+            for (long key : keys) {
+                Postings list = postings.get(key);
+                if (list != null) {
+                    out.putInts(list.docs, list.size);
+                } else {
+                    int index = imageIndexOf(key);
+                    int from = imageStarts.get(index);
+                    out.putIntBuffer(imageDocs.slice(from, imageStarts.get(index + 1) - from));
+                }
+            }
+        }
+
+        // Maps an index written by writeTo. Only the small tables are copied; rows and posting lists stay in the image.
+        static PersonSearchIndex readFrom(ByteBuffer in) {
+            int count = in.getInt();
+            IntBuffer starts = Checkpoint.intView(in, count + 1);
+            ByteBuffer image = in.slice(in.position(), starts.get(count));
+            in.position(in.position() + starts.get(count));
+            BitSet recipients = BitSet.valueOf(Checkpoint.longView(in, in.getInt()));
+            BitSet deleted = BitSet.valueOf(Checkpoint.longView(in, in.getInt()));
+            PersonSearchIndex index = new PersonSearchIndex(new Rows(image, starts), recipients, deleted);
+            index.ids = in.getInt();
+            index.byId = new int[in.getInt()];
+            Checkpoint.intView(in, index.byId.length).get(index.byId);
+            int keys = in.getInt();
+            index.imageKeys = Checkpoint.longView(in, keys);
+            index.imageStarts = Checkpoint.intView(in, keys + 1);
+            index.imageDocs = Checkpoint.intView(in, index.imageStarts.get(keys));
+            return index;
+        }
+
+        // Slot holding the live document with this kind and ID, or the free slot where it belongs
+        private int slotOf(boolean recipient, String id) {
+            int mask = byId.length - 1;
+            int slot = (id.hashCode() * 0x9E3779B1 + (recipient ? 1 : 0)) & mask;
+            while (byId[slot] != 0) {
+                int doc = byId[slot] - 1;
+                String row = rows.get(doc);
+                if (recipients.get(doc) == recipient && row.startsWith(id) && row.length() > id.length() && row.charAt(id.length()) == ',') {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // Current row of the live donor or recipient with this ID, or null
+        synchronized String row(boolean recipient, String id) {
+            int entry = byId[slotOf(recipient, id)];
+            return entry == 0 || deleted.get(entry - 1) ? null : rows.get(entry - 1);
+        }
+
+        private void growIds() {
+            int[] old = byId;
+            byId = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    String row = rows.get(entry - 1);
+                    byId[slotOf(recipients.get(entry - 1), row.substring(0, row.indexOf(',')))] = entry;
+                }
+            }
+        }
+
+        // Appends the padded trigrams of text[from, to) to out, lower-cased. Document words are also padded at the
+        // end, so a complete word has one more trigram than a prefix of it; query words are not, so they match as
+        // prefixes. Returns the new count.
+        private static int trigrams(CharSequence text, int from, int to, boolean document, long[] out, int count) {
+            int padded = (to - from) + 2 + (document ? 1 : 0);
+            for (int i = 0; i + 3 <= padded; i++) {
+                out[count++] = (paddedChar(text, from, to, i) << 32) | (paddedChar(text, from, to, i + 1) << 16) | paddedChar(text, from, to, i + 2);
+            }
+            return count;
+        }
+
+        // Key for the first (up to) four characters of a word. Trigrams alone can't tell "0123..." from "...0123",
+        // so these keys mark which documents really have a word beginning that way.
+        private static long prefixKey(CharSequence text, int from, int to) {
+            int length = Math.min(4, to - from);
+            long key = (1L << 63) | ((long) length << 60);
+            for (int i = 0; i < length; i++) {
+                key |= (long) (Character.toLowerCase(text.charAt(from + i)) & 0x7FFF) << (45 - 15 * i);
+            }
+            return key;
+        }
+
+        private static long paddedChar(CharSequence text, int from, int to, int position) {
+            int index = from + position - 2;
+            return position < 2 || index >= to ? ' ' : Character.toLowerCase(text.charAt(index));
+        }
+
+        // Splits the query into words and looks up their trigrams. A word of up to three characters must match
+        // exactly; longer words may miss a third of their trigrams, which absorbs a typo.
+        private List<Term> terms(String query) {
+            List<Term> terms = new ArrayList<>();
+            int wordStart = -1;
+            for (int i = 0; i <= query.length(); i++) {
+                boolean inWord = i < query.length() && Character.isLetterOrDigit(query.charAt(i));
+                if (inWord && wordStart < 0) {
+                    wordStart = i;
+                } else if (!inWord && wordStart >= 0) {
+                    int length = i - wordStart;
+                    long[] trigrams = new long[length + 1];
+                    trigrams(query, wordStart, i, true, trigrams, 0);
+                    Postings[] lists = new Postings[length];
+                    for (int t = 0; t < length; t++) {
+                        lists[t] = lookup(trigrams[t]);
+                    }
+                    int required = length <= 3 ? length : length - Math.max(1, length / 3);
+                    terms.add(new Term(lists, required, lookup(trigrams[length]), lookup(prefixKey(query, wordStart, i))));
+                    wordStart = -1;
+                }
+            }
+            return terms;
+        }
+
+        // Ranks the live documents matching every query word. The most selective word is the pivot: a document
+        // holding `required` of its n trigrams must appear in one of its n - required + 1 shortest posting lists,
+        // so only those lists produce candidates, and the longer ones just add to the candidates' counts. The
+        // other words then count only towards the surviving candidates. The score is the share of matched
+        // trigrams, plus bonuses for words that start a field word, for complete words and for an exact ID;
+        // only the results up to the requested page are kept, in a bounded heap.
+        synchronized Page search(String query, int page, int pageSize) {
+            List<Term> terms = terms(query);
+            if (terms.isEmpty()) {
+                return new Page(List.of(), 0, page, pageSize);
+            }
+            Term pivot = null;
+            Postings[] pivotLists = null;
+            long cheapest = Long.MAX_VALUE;
+            for (Term term : terms) {
+                Postings[] lists = term.lists.clone();
+                Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+                long cost = 0;
+                for (int i = 0; i <= lists.length - term.required; i++) {
+                    cost += lists[i].size;
+                }
+                if (cost < cheapest) {
+                    cheapest = cost;
+                    pivot = term;
+                    pivotLists = lists;
+                }
+            }
+            if (hits.length < rows.size()) {
+                hits = new int[Math.max(rows.size(), hits.length * 2)];
+            }
+            int candidates = 0;
+            for (int l = 0; l < pivotLists.length; l++) {
+                Postings list = pivotLists[l];
+                if (l <= pivotLists.length - pivot.required) {
+                    for (int i = 0; i < list.size; i++) {
+                        int doc = list.docs[i];
+                        if (hits[doc]++ == 0) {
+                            if (candidates == touched.length) {
+                                touched = Arrays.copyOf(touched, candidates * 2);
+                            }
+                            touched[candidates++] = doc;
+                        }
+                    }
+                } else if ((long) candidates * 20 < list.size) {
+                    for (int c = 0; c < candidates; c++) {
+                        if (list.contains(touched[c])) {
+                            hits[touched[c]]++;
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < list.size; i++) {
+                        if (hits[list.docs[i]] > 0) {
+                            hits[list.docs[i]]++;
+                        }
+                    }
+                }
+            }
+            // Keep the pivot's matches, scored so far, and mark each with a hit count of 1 for the other words
+            int[] scores = new int[candidates];
+            int kept = 0;
+            for (int c = 0; c < candidates; c++) {
+                int doc = touched[c];
+                int matched = hits[doc];
+                hits[doc] = 0;
+                if (matched >= pivot.required && !deleted.get(doc)) {
+                    touched[kept] = doc;
+                    scores[kept++] = matched * 100 / pivot.lists.length + (pivot.wholeWord.contains(doc) ? 25 : 0);
+                    hits[doc] = 1;
+                }
+            }
+            candidates = kept;
+            for (Term term : terms) {
+                if (term == pivot) {
+                    continue;
+                }
+                for (Postings list : term.lists) {
+                    if ((long) candidates * 20 < list.size) {
+                        for (int c = 0; c < candidates; c++) {
+                            if (list.contains(touched[c])) {
+                                hits[touched[c]]++;
+                            }
+                        }
+                    } else {
+                        for (int i = 0; i < list.size; i++) {
+                            if (hits[list.docs[i]] > 0) {
+                                hits[list.docs[i]]++;
+                            }
+                        }
+                    }
+                }
+                kept = 0;
+                for (int c = 0; c < candidates; c++) {
+                    int doc = touched[c];
+                    int matched = hits[doc] - 1;
+                    if (matched >= term.required) {
+                        touched[kept] = doc;
+                        scores[kept++] = scores[c] + matched * 100 / term.lists.length + (term.wholeWord.contains(doc) ? 25 : 0);
+                        hits[doc] = 1;
+                    } else {
+                        hits[doc] = 0;
+                    }
+                }
+                candidates = kept;
+            }
+
+            // Each word whose prefix key a candidate holds raises its hit count above the marker value of 1
+            for (Term term : terms) {
+                if ((long) candidates * 20 < term.prefix.size) {
+                    for (int c = 0; c < candidates; c++) {
+                        if (term.prefix.contains(touched[c])) {
+                            hits[touched[c]]++;
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < term.prefix.size; i++) {
+                        if (hits[term.prefix.docs[i]] > 0) {
+                            hits[term.prefix.docs[i]]++;
+                        }
+                    }
+                }
+            }
+
+            String id = query.trim();
+            int exactDonor = byId[slotOf(false, id)] - 1;
+            int exactRecipient = byId[slotOf(true, id)] - 1;
+            int keep = (page + 1) * pageSize;
+            PriorityQueue<Long> best = new PriorityQueue<>(); // (score << 32 | MAX - doc): higher score, then older first
+            for (int c = 0; c < candidates; c++) {
+                int doc = touched[c];
+                int score = scores[c] + 50 * (hits[doc] - 1) + (doc == exactDonor || doc == exactRecipient ? 1000 : 0);
+                hits[doc] = 0;
+                long ranked = ((long) score << 32) | (Integer.MAX_VALUE - doc);
+                if (best.size() < keep) {
+                    best.add(ranked);
+                } else if (ranked > best.peek()) {
+                    best.poll();
+                    best.add(ranked);
+                }
+            }
+            int matches = candidates;
+            List<Hit> hits = new ArrayList<>();
+            while (best.size() > page * pageSize) {
+                long ranked = best.poll();
+                int doc = Integer.MAX_VALUE - (int) ranked;
+                hits.add(new Hit(recipients.get(doc) ? "Recipient" : "Donor", rows.get(doc), (int) (ranked >>> 32)));
+            }
+            Collections.reverse(hits);
+            return new Page(hits, matches, page, pageSize);
+        }
+
+    }
+
+    // AuditAnalytics class for activity breakdowns over log.csv (date,userId,role,action,details).
+    // The file is split into byte ranges that are parsed in parallel on a fork-join pool straight from the
+    // file, without loading it whole; the per-range aggregates are merged on the way back up.
+    // A range owns every line that starts inside it, so ranges need not be cut on line boundaries.
+    // Parallelism can be set with -Dbbms.auditThreads (default: all cores).
+    static class AuditAnalytics {
+        private static final int BLOCK_BYTES = 1 << 20; // Read size within a range
+        private static final long MIN_RANGE_BYTES = 4L << 20; // Ranges are not split below this size
+
+        // Open-addressing table of long keys to counts, for the per-user daily counts: one probe into two flat
+        // arrays instead of a boxed key and a hash bucket per lookup
+        static final class LongCounts {
+            private long[] keys = new long[1024];
+            private long[] counts = new long[1024]; // 0 marks a free slot; stored counts are always positive
+            private int size;
+
+            // Receives one key and its count
+            interface Visitor {
+                void visit(long key, long count);
+            }
+
+            void add(long key, long delta) {
+                int mask = keys.length - 1;
+                int slot = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+                while (counts[slot] != 0) {
+                    if (keys[slot] == key) {
+                        counts[slot] += delta;
+                        return;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                counts[slot] = delta;
+                if (++size * 2 > keys.length) {
+                    long[] oldKeys = keys;
+                    long[] oldCounts = counts;
+                    keys = new long[oldKeys.length * 2];
+                    counts = new long[oldKeys.length * 2];
+                    size = 0;
+                    for (int i = 0; i < oldKeys.length; i++) {
+                        if (oldCounts[i] != 0) {
+                            add(oldKeys[i], oldCounts[i]);
+                        }
+                    }
+                }
+            }
+
+            void forEach(Visitor visitor) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (counts[i] != 0) {
+                        visitor.visit(keys[i], counts[i]);
+                    }
+                }
+            }
+        }
+
+        // Aggregates of one byte range, or of several merged together. Users are numbered in the order they are
+        // first seen and counted in flat arrays; action names and dates are decoded once and then recognised by
+        // their bytes, since both repeat on almost every line.
+        static final class Stats {
+            long events; // Parsed log entries
+            long malformed; // Lines that are not date,userId,role,action,...
+            long reservations;
+            final Map<String, Integer> userNumbers = new HashMap<>(); // userId -> number
+            final List<String> userIds = new ArrayList<>(); // number -> userId
+            long[] userActions = new long[64]; // Actions per user number
+            long[] userFailedLogins = new long[64]; // Failed logins per user number
+            final LongCounts userDays = new LongCounts(); // (user number << 32 | epoch day) -> actions
+            final Map<String, long[]> actionCounts = new HashMap<>();
+            final Map<Long, long[]> eventsPerDay = new HashMap<>(); // Time histogram by epoch day
+            final Map<String, long[]> reservedUnits = new HashMap<>(); // Blood type -> units reserved
+            private final int[] commas = new int[4]; // Comma positions of the line being parsed
+            private final List<byte[]> actionBytes = new ArrayList<>(); // Distinct action names seen, as bytes
+            private final List<String> actionNames = new ArrayList<>(); // The same names, decoded
+            private final byte[] lastDate = new byte[10]; // Date field of the previous entry
+            private long lastDay = Long.MIN_VALUE; // Its epoch day
+            private long[] lastDayCounter;
+
+            // Returns the number of a user, assigning the next one on first sight
+            int userNumber(String userId) {
+                Integer number = userNumbers.get(userId);
+                if (number == null) {
+                    number = userIds.size();
+                    userNumbers.put(userId, number);
+                    userIds.add(userId);
+                    if (number == userActions.length) {
+                        userActions = Arrays.copyOf(userActions, number * 2);
+                        userFailedLogins = Arrays.copyOf(userFailedLogins, number * 2);
+                    }
+                }
+                return number;
+            }
+
+            static long userDay(int user, long day) {
+                return ((long) user << 32) | (day & 0xFFFFFFFFL);
+            }
+            // Parses one line (without its line terminator) from the given bytes
+            void add(byte[] bytes, int from, int to, Charset charset) {
+                if (to > from && bytes[to - 1] == '\r') {
+                    to--;
+                }
+                int found = 0;
+                for (int i = from; i < to && found < commas.length; i++) {
+                    if (bytes[i] == ',') {
+                        commas[found++] = i;
+                    }
+                }
+                if (found < 4 || commas[0] - from != 10) {
+                    malformed++;
+                    return;
+                }
+                if (lastDay == Long.MIN_VALUE || !Arrays.equals(bytes, from, from + 10, lastDate, 0, 10)) {
+                    try {
+                        lastDay = LocalDate.of(digits(bytes, from, 4), digits(bytes, from + 5, 2), digits(bytes, from + 8, 2)).toEpochDay();
+                    } catch (RuntimeException e) {
+                        lastDay = Long.MIN_VALUE;
+                        malformed++;
+                        return;
+                    }
+                    System.arraycopy(bytes, from, lastDate, 0, 10);
+                    lastDayCounter = eventsPerDay.computeIfAbsent(lastDay, k -> new long[1]);
+                }
+                String userId = new String(bytes, commas[0] + 1, commas[1] - commas[0] - 1, charset);
+                String action = action(bytes, commas[2] + 1, commas[3], charset);
+                events++;
+                lastDayCounter[0]++;
+                actionCounts.computeIfAbsent(action, k -> new long[1])[0]++;
+                int user = userNumber(userId);
+                userActions[user]++;
+                userDays.add(userDay(user, lastDay), 1);
+                if (action.equals("Login Failed")) {
+                    userFailedLogins[user]++;
+                } else if (action.equals("Reserve Blood")) {
+                    // Details read "Reserved <units> units of <type> <component>"
+                    String[] words = new String(bytes, commas[3] + 1, to - commas[3] - 1, charset).split(" ");
+                    reservations++;
+                    if (words.length >= 5 && !words[1].isEmpty() && words[1].chars().allMatch(Character::isDigit)) {
+                        reservedUnits.computeIfAbsent(words[4], k -> new long[1])[0] += Long.parseLong(words[1]);
+                    }
+                }
+            }
+
+            // Returns the action name in [from, to), decoding it only the first time it is seen
+            private String action(byte[] bytes, int from, int to, Charset charset) {
+                for (int i = 0; i < actionBytes.size(); i++) {
+                    byte[] known = actionBytes.get(i);
+                    if (Arrays.equals(bytes, from, to, known, 0, known.length)) {
+                        return actionNames.get(i);
+                    }
+                }
+                String name = new String(bytes, from, to - from, charset);
+                actionBytes.add(Arrays.copyOfRange(bytes, from, to));
+                actionNames.add(name);
+                return name;
+            }
+
+            private static int digits(byte[] bytes, int from, int count) {
+                int value = 0;
+                for (int i = from; i < from + count; i++) {
+                    if (bytes[i] < '0' || bytes[i] > '9') {
+                        throw new NumberFormatException("Not a digit at " + i);
+                    }
+                    value = value * 10 + (bytes[i] - '0');
+                }
+                return value;
+            }
+
+            // Folds another range's aggregates into this one
+            Stats merge(Stats other) {
+                events += other.events;
+                malformed += other.malformed;
+                reservations += other.reservations;
+                int[] renumber = new int[other.userIds.size()];
+                for (int user = 0; user < renumber.length; user++) {
+                    renumber[user] = userNumber(other.userIds.get(user));
+                    userActions[renumber[user]] += other.userActions[user];
+                    userFailedLogins[renumber[user]] += other.userFailedLogins[user];
+                }
+                other.userDays.forEach((key, count) -> userDays.add(userDay(renumber[(int) (key >>> 32)], (int) key), count));
+                other.actionCounts.forEach((k, v) -> actionCounts.computeIfAbsent(k, x -> new long[1])[0] += v[0]);
+                other.eventsPerDay.forEach((k, v) -> eventsPerDay.computeIfAbsent(k, x -> new long[1])[0] += v[0]);
+                other.reservedUnits.forEach((k, v) -> reservedUnits.computeIfAbsent(k, x -> new long[1])[0] += v[0]);
+                lastDay = Long.MIN_VALUE;
+                return this;
+            }
+        }
+
+        // Result of an analysis run
+        record Report(Stats stats, long bytes, long elapsedMillis, int threads) {
+            // Prints the breakdowns, listing the given number of most active users
+            void print(int topUsers) {
+                System.out.println("\n================ AUDIT LOG ANALYTICS =================");
+                System.out.printf("Entries: %d (%d malformed lines skipped), %.1f MB scanned in %d ms on %d threads%n",
+                                  stats.events, stats.malformed, bytes / (1024.0 * 1024.0), elapsedMillis, threads);
+
+                System.out.println("\nMost active users:");
+                Map<String, Long> actionsPerUser = new HashMap<>();
+                Map<String, Long> failedLogins = new HashMap<>();
+                for (int user = 0; user < stats.userIds.size(); user++) {
+                    actionsPerUser.put(stats.userIds.get(user), stats.userActions[user]);
+                    if (stats.userFailedLogins[user] > 0) {
+                        failedLogins.put(stats.userIds.get(user), stats.userFailedLogins[user]);
+                    }
+                }
+                List<Map.Entry<String, Long>> top = topK(actionsPerUser, topUsers);
+                for (int i = 0; i < top.size(); i++) {
+                    System.out.printf("  %2d. %-20s %d actions%n", i + 1, top.get(i).getKey(), top.get(i).getValue());
+                }
+
+                System.out.println("\nActions by type:");
+                Map<String, Long> actionCounts = new HashMap<>();
+                stats.actionCounts.forEach((action, count) -> actionCounts.put(action, count[0]));
+                for (Map.Entry<String, Long> entry : topK(actionCounts, actionCounts.size())) {
+                    System.out.printf("  %-22s %d%n", entry.getKey(), entry.getValue());
+                }
+
+                long failed = failedLogins.values().stream().mapToLong(Long::longValue).sum();
+                System.out.println("\nFailed logins: " + failed);
+                for (Map.Entry<String, Long> entry : topK(failedLogins, topUsers)) {
+                    System.out.printf("  %-20s %d attempts%n", entry.getKey(), entry.getValue());
+                }
+
+                System.out.println("\nReservations: " + stats.reservations);
+                new TreeMap<>(stats.reservedUnits).forEach((type, units) -> System.out.printf("  %-5s %d units%n", type, units[0]));
+
+                // Daily histogram of the most recent days with activity, scaled to the busiest of them
+                System.out.println("\nDaily activity (most recent 14 days with entries):");
+                NavigableMap<Long, long[]> days = new TreeMap<>(stats.eventsPerDay).descendingMap();
+                List<Map.Entry<Long, long[]>> recent = new ArrayList<>(days.entrySet()).subList(0, Math.min(14, days.size()));
+                long busiest = recent.stream().mapToLong(day -> day.getValue()[0]).max().orElse(1);
+                for (int i = recent.size() - 1; i >= 0; i--) {
+                    Map.Entry<Long, long[]> day = recent.get(i);
+                    int bar = (int) Math.max(1, day.getValue()[0] * 40 / busiest);
+                    System.out.printf("  %s %-40s %d%n", LocalDate.ofEpochDay(day.getKey()), "#".repeat(bar), day.getValue()[0]);
+                }
+                System.out.println("\nPer-user daily counts written to audit-activity.csv");
+            }
+
+            // Writes userId,date,actions rows, sorted by user then date
+            void writeUserActivity(Path file) throws IOException {
+                List<long[]> rows = new ArrayList<>();
+                stats.userDays.forEach((key, count) -> rows.add(new long[] {key >>> 32, (int) key, count}));
+                rows.sort(Comparator.<long[], String>comparing(row -> stats.userIds.get((int) row[0])).thenComparingLong(row -> row[1]));
+                List<String> lines = new ArrayList<>(rows.size());
+                for (long[] row : rows) {
+                    lines.add(stats.userIds.get((int) row[0]) + "," + LocalDate.ofEpochDay(row[1]) + "," + row[2]);
+                }
+                Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".tmp");
+                Files.write(temp, lines, Charset.defaultCharset());
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        // Returns the k largest entries by value with a bounded min-heap
+        static List<Map.Entry<String, Long>> topK(Map<String, Long> counts, int k) {
+            PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                heap.add(entry);
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+            }
+            List<Map.Entry<String, Long>> top = new ArrayList<>(heap);
+            top.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            return top;
+        }
+
+        // Analyzes the log as it is when the scan starts; entries appended meanwhile are left for the next run
+        static Report analyze(Path log) throws IOException {
+            int threads = Integer.getInteger("bbms.auditThreads", Runtime.getRuntime().availableProcessors());
+            long started = System.nanoTime();
+            if (!Files.exists(log)) {
+                return new Report(new Stats(), 0, 0, threads);
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long rangeBytes = Math.max(MIN_RANGE_BYTES, size / (threads * 4L) + 1);
+                Stats stats = pool.invoke(new ScanTask(channel, 0, size, size, rangeBytes, Charset.defaultCharset()));
+                return new Report(stats, size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), threads);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // Splits its byte range in halves until it is small enough, then scans it
+        private static final class ScanTask extends RecursiveTask<Stats> {
+            private static final long serialVersionUID = 1L;
+            private final FileChannel channel;
+            private final long start; // First byte of the range
+            private final long end; // Byte after the range
+            private final long size; // File size pinned when the analysis started
+            private final long rangeBytes; // Largest range scanned without splitting
+            private final Charset charset;
+
+            ScanTask(FileChannel channel, long start, long end, long size, long rangeBytes, Charset charset) {
+                this.channel = channel;
+                this.start = start;
+                this.end = end;
+                this.size = size;
+                this.rangeBytes = rangeBytes;
+                this.charset = charset;
+            }
+
+            @Override
+            protected Stats compute() {
+                if (end - start > rangeBytes) {
+                    long middle = start + (end - start) / 2;
+                    ScanTask right = new ScanTask(channel, middle, end, size, rangeBytes, charset);
+                    right.fork();
+                    Stats left = new ScanTask(channel, start, middle, size, rangeBytes, charset).compute();
+                    return left.merge(right.join());
+                }
+                try {
+                    return scan();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            // Parses every complete line starting in [start, end). A range that starts mid-line skips to the next
+            // line, which the previous range reads to its end instead; a last line without its newline is still
+            // being appended and is left out.
+            private Stats scan() throws IOException {
+                Stats stats = new Stats();
+                byte[] buffer = new byte[(int) Math.min(BLOCK_BYTES, Math.max(64, end - start + 1))];
+                long bufferPosition = start > 0 ? start - 1 : 0; // File offset of buffer[0]; one byte back shows if start begins a line
+                boolean skipping = start > 0; // Still inside the line that started before this range
+                int filled = 0;
+                int scanned = 0;
+                int lineStart = 0;
+                while (true) {
+                    if (filled == buffer.length) {
+                        // Keep the unfinished line, growing the buffer if a single line fills it
+                        if (lineStart > 0) {
+                            System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+                            bufferPosition += lineStart;
+                            filled -= lineStart;
+                            scanned -= lineStart;
+                            lineStart = 0;
+                        } else {
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        }
+                    }
+                    long remaining = size - bufferPosition - filled;
+                    if (remaining <= 0) {
+                        return stats;
+                    }
+                    filled += channel.read(ByteBuffer.wrap(buffer, filled, (int) Math.min(buffer.length - filled, remaining)), bufferPosition + filled);
+                    for (; scanned < filled; scanned++) {
+                        if (buffer[scanned] != '\n') {
+                            continue;
+                        }
+                        if (skipping) {
+                            skipping = false;
+                        } else {
+                            stats.add(buffer, lineStart, scanned, charset);
+                        }
+                        lineStart = scanned + 1;
+                        if (bufferPosition + lineStart >= end) {
+                            return stats;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Kinds of changes published by FileHandler mutations
+    enum ChangeType {
+        DONOR_SAVED, RECIPIENT_SAVED, TEST_REQUESTED, TEST_COMPLETED, INVENTORY_UPDATED,
+        INVENTORY_CONSUMED, BLOOD_RESERVED, BLOOD_RELEASED, BLOOD_BLOCKED, REQUEST_RECORDED, SCHEDULE_SAVED,
+        DATASET_RELOADED, // The dataset changed in ways the feed lost track of (a crash cut off its events); reload it whole
+        FEED_TRIMMED // Events from the requested offset on were trimmed off the feed; reload everything
+    }
+
+    // A committed change: its position in the change feed, what happened, and the affected row as stored in the dataset
+    record ChangeEvent(long offset, long nextOffset, long timestamp, ChangeType type, String dataset, String key, String row) {}
+
+    // A batch of events read from the change feed and the offset to continue from
+    record ChangeBatch(List<ChangeEvent> events, long nextOffset) {}
+
+    // ChangeBus class to hand committed changes to the durable change feed and to in-process listeners
+    static class ChangeBus {
+        private static final List<Consumer<ChangeEvent>> listeners = new CopyOnWriteArrayList<>();
+
+        // Registers a listener for every future change; the returned action unsubscribes it
+        public static Runnable subscribe(Consumer<ChangeEvent> listener) {
+            listeners.add(listener);
+            return () -> listeners.remove(listener);
+        }
+
+        // Rows a commit changed in one dataset, all changed the same way
+        record RowChanges(ChangeType type, String dataset, List<String> rows) {}
+
+        // Commits a change to one dataset and records an event for each row it reports changed
+        public static List<String> commitRows(ChangeType type, String dataset, FileCoordinator.IOAction<List<String>> change) throws IOException {
+            List<String> rows = new ArrayList<>();
+            commit(List.of(dataset), () -> {
+                rows.addAll(change.run());
+                return List.of(new RowChanges(type, dataset, rows));
+            });
+            return rows;
+        }
+
+        // Commits a change to several datasets and records its events in the change feed before the datasets are
+        // unlocked, so no other writer can slip a change in between. Until the events are recorded the datasets
+        // are marked in their lock files as owing them: if a crash or a failed feed append comes between the data
+        // and its events, whoever locks the dataset next records it as reloaded in their place. Listeners are
+        // notified after the locks are released, as they may read the datasets themselves.
+        public static void commit(Collection<String> datasets, FileCoordinator.IOAction<List<RowChanges>> change) throws IOException {
+            List<ChangeEvent> events = new ArrayList<>();
+            FileCoordinator.owingEvents(datasets, () -> {
+                boolean recorded = true;
+                for (RowChanges changes : change.run()) {
+                    for (String row : changes.rows()) {
+                        String[] data = row.split(",");
+                        String key = changes.dataset().endsWith("inventory.csv") ? data[0] + "/" + data[1] : data[0];
+                        ChangeEvent event = record(changes.type(), changes.dataset(), key, row);
+                        recorded &= event.offset() >= 0;
+                        events.add(event);
+                    }
+                }
+                return recorded;
+            });
+            for (ChangeEvent event : events) {
+                notifyListeners(event);
+            }
+        }
+
+        // Records that a dataset must be reloaded whole, as the events of a change to it were lost. Listeners aren't
+        // notified: this runs while the dataset is being locked, and they catch up from the feed anyway.
+        static boolean announceReload(String dataset) {
+            return record(ChangeType.DATASET_RELOADED, dataset, "", "").offset() >= 0;
+        }
+
+        // Appends a change to the change feed; on failure reports it and returns the event without an offset
+        private static ChangeEvent record(ChangeType type, String dataset, String key, String row) {
+            long timestamp = System.currentTimeMillis();
+            try {
+                return ChangeFeed.append(timestamp, type, dataset, key, row);
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to record change event - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return new ChangeEvent(-1, -1, timestamp, type, dataset, key, row);
+            }
+        }
+
+        private static void notifyListeners(ChangeEvent event) {
+            for (Consumer<ChangeEvent> listener : listeners) {
+                try {
+                    listener.accept(event);
+                } catch (RuntimeException e) {
+                    System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    System.out.println("   ERROR: Change listener failed - " + e.getMessage());
+                    System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                }
+            }
+        }
+    }
+
+    // ChangeFeed class for the durable, append-only change log (changes.log).
+    // Each record is [length][CRC32][body] and is addressed by its byte offset, so readers can resume anywhere
+    // without rescanning. Where each append starts is recorded in the feed's lock file until the record is on
+    // disk, so a record a crash cut short (in any instance) is cut off by whoever next locks the feed.
+    // Once the feed outgrows bbms.feedTrimBytes its older half is trimmed off. A trimmed feed starts with a header
+    // giving the offset of its first record, so offsets keep counting from the feed's very first event; a reader
+    // asking for a trimmed offset gets a FEED_TRIMMED event that moves it on to the oldest one still kept.
+    // Rows of datasets that are sealed at rest are sealed in the feed too, so it never holds their PII in plain text.
+    static class ChangeFeed {
+        private static final String FEED_FILE = "changes.log";
+        private static final String SEALED_ROW = "\u0000"; // Leads a sealed row, which no CSV row starts with
+        private static final int HEADER_BYTES = 8; // Record length and CRC32, one int each
+        private static final int MAX_RECORD_BYTES = 1 << 20; // Anything larger is treated as corruption
+        private static final byte[] TRIMMED_MAGIC = "BBMSFEED".getBytes(java.nio.charset.StandardCharsets.US_ASCII); // Starts a trimmed feed
+        private static final int TRIMMED_HEADER_BYTES = 16; // Magic and the offset of the first record kept
+        private static final long TRIM_BYTES = Long.getLong("bbms.feedTrimBytes", 64L << 20); // Feed size that triggers a trim
+
+        // Where a feed file's records start and the offset its first record has (both 0 until it is first trimmed)
+        private record Layout(long start, long base) {
+            long position(long offset) {
+                return offset - base + start;
+            }
+
+            long offset(long position) {
+                return position - start + base;
+            }
+        }
+
+        // Appends an event and returns it with its assigned offset
+        static ChangeEvent append(long timestamp, ChangeType type, String dataset, String key, String row) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(timestamp);
+                out.writeUTF(type.name());
+                out.writeUTF(dataset);
+                out.writeUTF(key);
+                out.writeUTF(DataEncryption.seals(dataset) ? SEALED_ROW + Base64.getEncoder().encodeToString(
+                        DataEncryption.sealValue(rowContext(dataset, key), row.getBytes(java.nio.charset.StandardCharsets.UTF_8))) : row);
+            }
+            byte[] body = bytes.toByteArray();
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + body.length);
+            record.putInt(body.length).putInt(checksum(body)).put(body).flip();
+            return FileCoordinator.exclusive(FEED_FILE, () -> {
+                try (FileChannel channel = FileChannel.open(Paths.get(FEED_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    Layout layout = layout(channel);
+                    long position = channel.size();
+                    FileCoordinator.markAppend(FEED_FILE, position);
+                    int length = record.limit();
+                    writeFully(channel, record.limit(length / 2), position);
+                    GroupCommit.faultPoint("mid-feed-append", null); // Leaves half a record behind, as a crash here would
+                    writeFully(channel, record.limit(length), position);
+                    channel.force(false);
+                    FileCoordinator.markAppend(FEED_FILE, -1);
+                    long end = position + length;
+                    if (end > TRIM_BYTES) {
+                        trim(channel, layout);
+                    }
+                    return new ChangeEvent(layout.offset(position), layout.offset(end), timestamp, type, dataset, key, row);
+                }
+            });
+        }
+
+        // Returns the offset the next event will be appended at
+        public static long endOffset() throws IOException {
+            Path path = Paths.get(FEED_FILE);
+            return FileCoordinator.shared(FEED_FILE, () -> {
+                if (!Files.exists(path)) {
+                    return 0L;
+                }
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    return layout(channel).offset(channel.size());
+                }
+            });
+        }
+
+        // Checksum of the feed's first bytes (at most maxBytes) up to the given offset. It tells a feed that was
+        // deleted and started over, or trimmed since, from the one the offset was taken from.
+        static long prefixChecksum(long offset, int maxBytes) throws IOException {
+            CRC32 crc = new CRC32();
+            Path path = Paths.get(FEED_FILE);
+            if (offset > 0 && Files.exists(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long length = Math.min(Math.max(0, layout(channel).position(offset)), channel.size());
+                    ByteBuffer prefix = ByteBuffer.allocate((int) Math.min(maxBytes, length));
+                    readFully(channel, prefix, 0);
+                    crc.update(prefix.flip());
+                }
+            }
+            return crc.getValue();
+        }
+
+        // Reads up to maxEvents events starting at the given offset
+        public static ChangeBatch read(long fromOffset, int maxEvents) throws IOException {
+            List<ChangeEvent> events = new ArrayList<>();
+            Path path = Paths.get(FEED_FILE);
+            if (!Files.exists(path)) {
+                return new ChangeBatch(events, fromOffset);
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                Layout layout = layout(channel);
+                if (fromOffset < layout.base()) {
+                    events.add(new ChangeEvent(fromOffset, layout.base(), System.currentTimeMillis(), ChangeType.FEED_TRIMMED, FEED_FILE, "", ""));
+                    return new ChangeBatch(events, layout.base());
+                }
+                long position = layout.position(fromOffset);
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (events.size() < maxEvents) {
+                    byte[] body = readRecord(channel, position, size, header);
+                    if (body == null) {
+                        break;
+                    }
+                    long next = position + HEADER_BYTES + body.length;
+                    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+                        long timestamp = in.readLong();
+                        ChangeType type = ChangeType.valueOf(in.readUTF());
+                        String dataset = in.readUTF();
+                        String key = in.readUTF();
+                        String row = in.readUTF();
+                        if (row.startsWith(SEALED_ROW)) {
+                            row = new String(DataEncryption.openValue(rowContext(dataset, key), Base64.getDecoder().decode(row.substring(SEALED_ROW.length()))),
+                                             java.nio.charset.StandardCharsets.UTF_8);
+                        }
+                        events.add(new ChangeEvent(layout.offset(position), layout.offset(next), timestamp, type, dataset, key, row));
+                    }
+                    position = next;
+                }
+                return new ChangeBatch(events, layout.offset(position));
+            }
+        }
+
+        // Returns the body of the complete, intact record at the given offset, or null at the end of the feed
+        private static byte[] readRecord(FileChannel channel, long position, long size, ByteBuffer header) throws IOException {
+            if (position + HEADER_BYTES > size) {
+                return null;
+            }
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || length > MAX_RECORD_BYTES || position + HEADER_BYTES + length > size) {
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(channel, body, position + HEADER_BYTES);
+            return checksum(body.array()) == header.getInt(4) ? body.array() : null;
+        }
+
+        // What a sealed row is bound to, so it can't be moved to another record
+        private static String rowContext(String dataset, String key) {
+            return FEED_FILE + "/" + dataset + "/" + key;
+        }
+
+        // Reads where the records of a feed file start and the offset of the first one
+        private static Layout layout(FileChannel channel) throws IOException {
+            if (channel.size() >= TRIMMED_HEADER_BYTES) {
+                ByteBuffer header = ByteBuffer.allocate(TRIMMED_HEADER_BYTES);
+                readFully(channel, header, 0);
+                // An untrimmed feed starts with a record length, which is never as large as the magic reads
+                if (Arrays.equals(Arrays.copyOf(header.array(), TRIMMED_MAGIC.length), TRIMMED_MAGIC)) {
+                    return new Layout(TRIMMED_HEADER_BYTES, header.getLong(TRIMMED_MAGIC.length));
+                }
+            }
+            return new Layout(0, 0);
+        }
+
+        // Drops the older half of the feed. The newer records are copied to a temp file behind a header giving
+        // the offset of the first one, which then replaces the feed in one atomic rename; readers that have the
+        // old file open finish reading it undisturbed. Called while holding the feed's exclusive lock.
+        private static void trim(FileChannel channel, Layout layout) throws IOException {
+            long size = channel.size();
+            long half = layout.start() + (size - layout.start()) / 2;
+            long cut = layout.start();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            byte[] body;
+            while (cut < half && (body = readRecord(channel, cut, size, header)) != null) {
+                cut += HEADER_BYTES + body.length;
+            }
+            Path feed = Paths.get(FEED_FILE).toAbsolutePath();
+            Path temp = Files.createTempFile(feed.getParent(), FEED_FILE + ".", ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer trimmedHeader = ByteBuffer.allocate(TRIMMED_HEADER_BYTES).put(TRIMMED_MAGIC).putLong(layout.offset(cut)).flip();
+                while (trimmedHeader.hasRemaining()) {
+                    out.write(trimmedHeader);
+                }
+                for (long copied = 0; copied < size - cut; ) {
+                    copied += channel.transferTo(cut + copied, size - cut - copied, out);
+                }
+                out.force(true);
+            }
+            Files.move(temp, feed, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            GroupCommit.forceDirectory(feed.getParent());
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of " + FEED_FILE);
+                }
+            }
+        }
+
+        private static int checksum(byte[] body) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+
+        // Named consumer of the feed that remembers its committed offset in changes-<name>.offset, so it can
+        // replay from where it stopped after a restart
+        static class FeedConsumer {
+            private final String name; // Consumer name, e.g. "warehouse"
+            private final Path offsetFile; // Where the committed offset is kept
+
+            FeedConsumer(String name) {
+                this.name = name;
+                this.offsetFile = Paths.get("changes-" + name + ".offset");
+            }
+
+            // Returns the offset after the last committed batch (0 for a new consumer)
+            public long committedOffset() throws IOException {
+                if (!Files.exists(offsetFile)) {
+                    return 0;
+                }
+                String text = Files.readString(offsetFile).trim();
+                return text.isEmpty() ? 0 : Long.parseLong(text);
+            }
+
+            // Reads the next batch after the committed offset without committing it
+            public ChangeBatch poll(int maxEvents) throws IOException {
+                return read(committedOffset(), maxEvents);
+            }
+
+            // Marks a batch as consumed, atomically replacing the stored offset
+            public void commit(ChangeBatch batch) throws IOException {
+                Path temp = Files.createTempFile(offsetFile.toAbsolutePath().getParent(), "changes-" + name + ".", ".tmp");
+                Files.writeString(temp, Long.toString(batch.nextOffset()));
+                GroupCommit.force(temp);
+                Files.move(temp, offsetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                GroupCommit.forceDirectory(temp.getParent());
+            }
+        }
+    }
+
+    // A collection site. MAIN keeps its partition in the top-level CSV files; every other site under sites/<id>/
+    record Site(String id, String name, double latitude, double longitude) {
+        static final String MAIN_ID = "MAIN";
+        static final String[] DATASETS = {"inventory.csv", "requests.csv", "schedules.csv", "leases.csv"}; // Datasets partitioned by site
+
+        // Returns the path of one of this site's datasets
+        String file(String dataset) {
+            return id.equals(MAIN_ID) ? dataset : "sites/" + id + "/" + dataset;
+        }
+
+        // Great-circle distance to another site in kilometres (haversine formula)
+        double distanceKm(Site other) {
+            return distanceKm(other.latitude, other.longitude);
+        }
+
+        // Great-circle distance to a point in kilometres
+        double distanceKm(double otherLatitude, double otherLongitude) {
+            double dLat = Math.toRadians(otherLatitude - latitude);
+            double dLon = Math.toRadians(otherLongitude - longitude);
+            double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                     + Math.cos(Math.toRadians(latitude)) * Math.cos(Math.toRadians(otherLatitude)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+            return 6371.0 * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        }
+    }
+
+    // An inventory row at some site that can cover a request, with its distance from this site and expiry date
+    record SiteLot(Site site, String row, double distanceKm, LocalDate expiry) {}
+
+    // SiteRegistry class to keep track of collection sites (sites.csv: id,name,latitude,longitude)
+    // and of the site this instance operates as (-Dbbms.site=<id>, MAIN by default)
+    static class SiteRegistry {
+        private static final String SITES_FILE = "sites.csv";
+        private static volatile boolean unknownHomeReported; // Report a mistyped bbms.site only once
+        private static volatile Home cachedHome; // Site last resolved as home, with the sites.csv version it came from
+
+        // The home site resolved for a site ID from one version of sites.csv
+        private record Home(String id, long sequence, Site site) {}
+
+        // Returns all registered sites; MAIN is always present, at 0,0 unless sites.csv gives its location
+        public static List<Site> all() {
+            List<Site> sites = new ArrayList<>();
+            try {
+                if (Files.exists(Paths.get(SITES_FILE))) {
+                    for (String line : FileCoordinator.readLines(SITES_FILE)) {
+                        String[] data = line.split(",");
+                        sites.add(new Site(data[0], data[1], Double.parseDouble(data[2]), Double.parseDouble(data[3])));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to load sites - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            }
+            if (sites.stream().noneMatch(site -> site.id().equals(Site.MAIN_ID))) {
+                sites.add(0, new Site(Site.MAIN_ID, "Blood Bank", 0, 0));
+            }
+            return sites;
+        }
+
+        // Returns the site this instance operates as, resolved again only when sites.csv has changed
+        public static Site home() {
+            String homeId = System.getProperty("bbms.site", Site.MAIN_ID);
+            long sequence;
+            try {
+                sequence = FileCoordinator.sequenceHint(SITES_FILE);
+            } catch (IOException e) {
+                return resolveHome(homeId);
+            }
+            Home cached = cachedHome;
+            if (cached != null && cached.id().equals(homeId) && cached.sequence() == sequence) {
+                return cached.site();
+            }
+            Site site = resolveHome(homeId);
+            cachedHome = new Home(homeId, sequence, site);
+            return site;
+        }
+
+        private static Site resolveHome(String homeId) {
+            List<Site> sites = all();
+            for (Site site : sites) {
+                if (site.id().equals(homeId)) {
+                    return site;
+                }
+            }
+            if (!unknownHomeReported) {
+                unknownHomeReported = true;
+                System.out.println("WARNING: Unknown site " + homeId + ", operating as " + Site.MAIN_ID);
+            }
+            return sites.stream().filter(site -> site.id().equals(Site.MAIN_ID)).findFirst().orElseThrow();
+        }
+
+        // Returns the site closest to a point
+        public static Site nearest(double latitude, double longitude) {
+            return all().stream().min(Comparator.comparingDouble((Site site) -> site.distanceKm(latitude, longitude))).orElseThrow();
+        }
+
+        // Returns the path of one of this instance's own site datasets
+        public static String homeFile(String dataset) {
+            return home().file(dataset);
+        }
+
+        // Adds a site to sites.csv and creates its partition; fails if the ID is taken or invalid
+        public static boolean register(Site site) {
+            if (!site.id().matches("[A-Z0-9-]+") || site.name().contains(",")) {
+                return false;
+            }
+            if (all().stream().anyMatch(existing -> existing.id().equals(site.id()))) {
+                return false;
+            }
+            try {
+                FileCoordinator.append(SITES_FILE, site.id() + "," + site.name() + "," + site.latitude() + "," + site.longitude());
+            } catch (IOException e) {
+                System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                System.out.println("   ERROR: Failed to save site - " + e.getMessage());
+                System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                return false;
+            }
+            createSiteFiles(site);
+            return true;
+        }
+
+        // Creates the partitioned dataset files of a site if they don’t exist
+        public static void createSiteFiles(Site site) {
+            for (String dataset : Site.DATASETS) {
+                try {
+                    Path path = Paths.get(site.file(dataset));
+                    if (path.getParent() != null) {
+                        Files.createDirectories(path.getParent());
+                    }
+                    if (!Files.exists(path)) {
+                        Files.createFile(path);
+                    }
+                } catch (IOException e) {
+                    System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    System.out.println("   ERROR: Failed to create " + site.file(dataset) + " - " + e.getMessage());
+                    System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                }
+            }
+        }
+    }
+
+    // CrossSiteSearch class to query every site's partition in parallel, giving up on slow sites after a deadline
+    // (-Dbbms.siteSearchTimeoutMs, 2000 ms by default)
+    static class CrossSiteSearch {
+        private static final long TIMEOUT_MS = Long.getLong("bbms.siteSearchTimeoutMs", 2000);
+        private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "site-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Work done against a single site
+        interface SiteTask<T> {
+            T run(Site site) throws Exception;
+        }
+
+        // Returns every unexpired, available lot of the given blood groups across all sites, ordered by distance
+        // from this site, then by expiry. Blocks are judged per site, as the admin set them there: a lot is left
+        // out if its blood group is blocked at its own site.
+        public static List<SiteLot> findAvailableLots(Set<String> bloodGroups) {
+            Site home = SiteRegistry.home();
+            LocalDate today = LocalDate.now();
+            List<SiteLot> lots = new ArrayList<>();
+            fanOut(site -> {
+                List<SiteLot> found = new ArrayList<>();
+                String inventoryFile = site.file("inventory.csv");
+                FileCoordinator.Versioned inventory = FileCoordinator.read(inventoryFile);
+                InventoryMatrix matrix = InventoryMatrix.of(inventoryFile, inventory);
+                for (String item : inventory.lines()) {
+                    String[] data = item.split(",");
+                    BloodGroup group = BloodGroup.of(data[0]);
+                    if (bloodGroups.contains(data[0]) && data[5].equals("AVAILABLE") && Integer.parseInt(data[2]) > 0
+                            && (group == null || !matrix.isBlocked(group))) {
+                        LocalDate expiry = LocalDate.parse(data[3]);
+                        if (!expiry.isBefore(today)) {
+                            found.add(new SiteLot(site, item, home.distanceKm(site), expiry));
+                        }
+                    }
+                }
+                return found;
+            }).values().forEach(lots::addAll);
+            lots.sort(Comparator.comparingDouble(SiteLot::distanceKm).thenComparing(SiteLot::expiry));
+            return lots;
+        }
+
+        // Maps each donor ID to the site of their most recent scheduled donation
+        public static Map<String, Site> locateDonors() {
+            Map<String, Site> donorSites = new HashMap<>();
+            Map<String, LocalDate> latest = new HashMap<>();
+            fanOut(site -> {
+                Map<String, LocalDate> visits = new HashMap<>();
+                for (String line : FileCoordinator.readLines(site.file("schedules.csv"))) {
+                    String[] data = line.split(",");
+                    visits.merge(data[0], LocalDate.parse(data[1]), (a, b) -> a.isAfter(b) ? a : b);
+                }
+                return visits;
+            }).forEach((site, visits) -> visits.forEach((donorId, date) -> {
+                LocalDate known = latest.get(donorId);
+                if (known == null || date.isAfter(known)) {
+                    latest.put(donorId, date);
+                    donorSites.put(donorId, site);
+                }
+            }));
+            return donorSites;
+        }
+
+        // Runs the task against every site in parallel; sites that fail or miss the deadline are left out
+        static <T> Map<Site, T> fanOut(SiteTask<T> task) {
+            List<Site> sites = SiteRegistry.all();
+            List<Callable<T>> calls = new ArrayList<>();
+            for (Site site : sites) {
+                calls.add(() -> task.run(site));
+            }
+            Map<Site, T> results = new LinkedHashMap<>();
+            try {
+                List<Future<T>> futures = executor.invokeAll(calls, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                for (int i = 0; i < futures.size(); i++) {
+                    Future<T> future = futures.get(i);
+                    if (future.isCancelled()) {
+                        System.out.println("WARNING: Site " + sites.get(i).id() + " did not answer in time and was skipped");
+                        continue;
+                    }
+                    try {
+                        results.put(sites.get(i), future.get());
+                    } catch (ExecutionException e) {
+                        System.out.println("WARNING: Site " + sites.get(i).id() + " could not be searched - " + e.getCause().getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return results;
+        }
+    }
+
+    // One queued message to a donor. "due" is when a PENDING message may next be tried, when the lease on a
+    // SENDING one runs out, or when a SENT, SKIPPED or FAILED one reached that state. The contact is never stored
+    // in the outbox (its column stays empty): it is looked up in donors.csv when the message is sent.
+    record Notification(String id, String requestId, String donorId, String contact, String bloodType, String urgency,
+                        String status, int attempts, long due, long created, String lastError) {
+        static Notification parse(String line) {
+            String[] data = line.split(",", -1);
+            return new Notification(data[0], data[1], data[2], data[3], data[4], data[5], data[6],
+                                    Integer.parseInt(data[7]), Long.parseLong(data[8]), Long.parseLong(data[9]), data.length > 10 ? data[10] : "");
+        }
+
+        Notification withContact(String newContact) {
+            return new Notification(id, requestId, donorId, newContact, bloodType, urgency, status, attempts, due, created, lastError);
+        }
+
+        Notification with(String newStatus, int newAttempts, long newDue, String error) {
+            return new Notification(id, requestId, donorId, contact, bloodType, urgency, newStatus, newAttempts, newDue, created,
+                                    error == null ? "" : error.replace(',', ';').replace('\n', ' '));
+        }
+
+        String toCsv() {
+            return id + "," + requestId + "," + donorId + ",," + bloodType + "," + urgency + "," + status + ","
+                   + attempts + "," + due + "," + created + "," + lastError;
+        }
+
+        // Text of the message sent to the donor
+        String message() {
+            return (urgency.equalsIgnoreCase("High") ? "URGENT: " : "") + "A patient at " + SiteRegistry.home().name() + " needs "
+                   + bloodType + " blood and you are an eligible donor. Please contact the blood bank to donate. Ref "
+                   + requestId.substring(0, Math.min(8, requestId.length()));
+        }
+    }
+
+    // Delivers notifications over one channel. A sender is opened for each batch and closed after it, so a
+    // channel can reuse one connection or file handle for the whole batch.
+    interface NotificationSender extends Closeable {
+        void send(Notification notification) throws IOException;
+    }
+
+    // Writes messages to a local spool file (notifications.log by default), synced to disk when the batch closes.
+    // The spool is plain text, so it names donors by ID only once their data is sealed at rest.
+    static class FileNotificationSender implements NotificationSender {
+        private final FileOutputStream stream;
+        private final BufferedWriter writer;
+
+        FileNotificationSender(String file) throws IOException {
+            stream = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, Charset.defaultCharset()));
+        }
+
+        @Override
+        public void send(Notification notification) throws IOException {
+            String contact = DataEncryption.seals("donors.csv") ? "" : " <" + notification.contact() + ">";
+            writer.write(LocalDate.now() + " | " + notification.id() + " | to " + notification.donorId() + contact + " | " + notification.message());
+            writer.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (stream; writer) {
+                writer.flush();
+                stream.getFD().sync();
+            }
+        }
+    }
+
+    // Hands messages to an SMTP relay (an SMS gateway or a local stand-in), one connection per batch;
+    // a donor's contact number becomes the mailbox at the gateway's domain
+    static class SmtpNotificationSender implements NotificationSender {
+        private static final String HOST = System.getProperty("bbms.smtpHost", "localhost");
+        private static final int PORT = Integer.getInteger("bbms.smtpPort", 2525);
+        private static final String DOMAIN = System.getProperty("bbms.smtpDomain", "sms.localhost");
+        private java.net.Socket socket;
+        private BufferedReader in;
+        private Writer out;
+
+        @Override
+        public void send(Notification notification) throws IOException {
+            try {
+                if (socket == null) {
+                    socket = new java.net.Socket();
+                    socket.connect(new java.net.InetSocketAddress(HOST, PORT), 5000);
+                    socket.setSoTimeout(10_000);
+                    in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "US-ASCII"));
+                    expect(220);
+                    command("HELO bbms", 250);
+                }
+                command("MAIL FROM:<bloodbank@" + DOMAIN + ">", 250);
+                command("RCPT TO:<" + notification.contact() + "@" + DOMAIN + ">", 250);
+                command("DATA", 354);
+                out.write("Subject: Blood donation request\r\nMessage-ID: <" + notification.id() + "@" + DOMAIN + ">\r\n\r\n"
+                          + notification.message() + "\r\n");
+                command(".", 250);
+            } catch (IOException e) {
+                // The conversation is out of step after a failure, so the next message starts a new connection
+                disconnect();
+                throw e;
+            }
+        }
+
+        private void command(String line, int expected) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+            expect(expected);
+        }
+
+        // Reads a (possibly multi-line) reply and checks its code
+        private void expect(int expected) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("SMTP server closed the connection");
+                }
+            } while (line.length() > 3 && line.charAt(3) == '-');
+            int code = line.length() >= 3 ? Integer.parseInt(line.substring(0, 3)) : -1;
+            if (code != expected && !(expected == 250 && code == 251)) {
+                throw new IOException("SMTP server replied " + line);
+            }
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do with a broken connection
+                }
+                socket = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (socket != null) {
+                try {
+                    command("QUIT", 221);
+                } finally {
+                    disconnect();
+                }
+            }
+        }
+    }
+
+    // NotificationOutbox class to reach donors when a blood request can't be filled. The request path only appends
+    // the messages to outbox.csv (one commit for all donors of a request); a background thread drains the outbox in
+    // batches through the configured sender, at a limited rate, retrying failures with exponential back-off.
+    // A batch is claimed by marking it SENDING with a lease, so several running copies of the program never send
+    // the same message at once, and messages whose lease ran out (after a crash) are sent again. A donor who was
+    // messaged in the last day, or already has a message on its way, is not messaged again.
+    static class NotificationOutbox {
+        static final String FILE = "outbox.csv";
+        static final int TOP_DONORS = Integer.getInteger("bbms.notifyTopN", 5); // Donors contacted per unfulfilled request
+        private static final int BATCH = Integer.getInteger("bbms.notifyBatch", 20);
+        private static final double RATE = Double.parseDouble(System.getProperty("bbms.notifyRate", "5")); // Messages per second
+        private static final int MAX_ATTEMPTS = Integer.getInteger("bbms.notifyAttempts", 5);
+        private static final long RETRY_MS = Long.getLong("bbms.notifyRetryMs", 30_000); // First retry delay, doubled each time
+        private static final long LEASE_MS = 5 * 60_000;
+        private static final long COOLDOWN_MS = Long.getLong("bbms.notifyCooldownHours", 24) * 3_600_000;
+        private static final long RETENTION_MS = 7L * 24 * 3_600_000; // Finished messages are kept this long
+        private static final long POLL_MS = Long.getLong("bbms.notifyPollMs", 5000);
+        private static final Semaphore wake = new Semaphore(0);
+        private static final RateLimiter limiter = new RateLimiter(RATE);
+        private static volatile FileCoordinator.IOAction<NotificationSender> senders = defaultSenders();
+        private static Thread drainer;
+
+        // Picks the sender from -Dbbms.notifier (file or smtp)
+        private static FileCoordinator.IOAction<NotificationSender> defaultSenders() {
+            String spool = System.getProperty("bbms.notifyFile", "notifications.log");
+            return switch (System.getProperty("bbms.notifier", "file")) {
+                case "smtp" -> SmtpNotificationSender::new;
+                case "file" -> () -> new FileNotificationSender(spool);
+                default -> throw new IllegalArgumentException("Unknown notifier " + System.getProperty("bbms.notifier") + " (use file or smtp)");
+            };
+        }
+
+        // Replaces the channel messages are delivered through
+        static void useSender(FileCoordinator.IOAction<NotificationSender> factory) {
+            senders = factory;
+        }
+
+        // Starts the background drainer once per process
+        static synchronized void start() {
+            if (drainer != null) {
+                return;
+            }
+            drainer = new Thread(NotificationOutbox::run, "notification-outbox");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        private static void run() {
+            while (true) {
+                try {
+                    if (drainOnce() == 0) {
+                        wake.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS);
+                        wake.drainPermits();
+                    }
+                } catch (IOException e) {
+                    System.out.println("WARNING: Notification outbox could not be drained - " + e.getMessage());
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_MS));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Queues one message per donor, leaving out donors who already have one pending or were messaged recently;
+        // returns how many were queued
+        static int enqueue(String requestId, String bloodType, String urgency, List<String> donors) throws IOException {
+            if (donors.isEmpty()) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            Set<String> recent = recentlyContacted(FileCoordinator.readLines(FILE), now);
+            List<String> rows = new ArrayList<>();
+            for (String donor : donors) {
+                String[] data = donor.split(",");
+                if (recent.add(data[0])) {
+                    rows.add(new Notification(IdGenerator.next(""), requestId, data[0], "", bloodType, urgency,
+                                              "PENDING", 0, now, now, "").toCsv());
+                }
+            }
+            if (!rows.isEmpty()) {
+                FileCoordinator.appendAll(FILE, rows);
+                wake.release();
+            }
+            return rows.size();
+        }
+
+        // Donors with a message waiting, on its way, or delivered within the cool-down period
+        private static Set<String> recentlyContacted(List<String> lines, long now) {
+            Set<String> donors = new HashSet<>();
+            for (String line : lines) {
+                Notification n = Notification.parse(line);
+                if (n.status().equals("PENDING") || n.status().equals("SENDING") || (n.status().equals("SENT") && now - n.due() < COOLDOWN_MS)) {
+                    donors.add(n.donorId());
+                }
+            }
+            return donors;
+        }
+
+        // Claims, sends and settles one batch; returns the number of messages claimed (0 when nothing is due)
+        static int drainOnce() throws IOException {
+            List<Notification> batch = claim();
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            Map<String, String> failures = new HashMap<>(); // Message ID -> error
+            NotificationSender sender = null;
+            try {
+                sender = senders.run();
+            } catch (IOException | RuntimeException e) {
+                for (Notification n : batch) {
+                    failures.put(n.id(), "Sender unavailable: " + e.getMessage());
+                }
+            }
+            if (sender != null) {
+                try (NotificationSender open = sender) {
+                    Map<String, String> contacts = contacts(batch);
+                    for (Notification n : batch) {
+                        String contact = contacts.get(n.donorId());
+                        if (contact == null) {
+                            failures.put(n.id(), "Donor is no longer registered");
+                            continue;
+                        }
+                        limiter.acquire();
+                        try {
+                            open.send(n.withContact(contact));
+                        } catch (IOException e) {
+                            failures.put(n.id(), e.getMessage());
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closing flushes the batch; if that fails none of it can be counted as delivered
+                    for (Notification n : batch) {
+                        failures.putIfAbsent(n.id(), e.getMessage());
+                    }
+                }
+            }
+            settle(batch, failures);
+            return batch.size();
+        }
+
+        // Contacts of the donors in a batch, read from donors.csv at the time of sending
+        private static Map<String, String> contacts(List<Notification> batch) throws IOException {
+            Set<String> wanted = new HashSet<>();
+            for (Notification n : batch) {
+                wanted.add(n.donorId());
+            }
+            Map<String, String> contacts = new HashMap<>();
+            for (String line : FileCoordinator.readLines("donors.csv")) {
+                String[] data = line.split(",");
+                if (data.length > 4 && wanted.contains(data[0])) {
+                    contacts.put(data[0], data[4]);
+                }
+            }
+            return contacts;
+        }
+
+        // Marks the most urgent due messages SENDING under a fresh lease, skips duplicates for the same donor
+        // and drops finished messages past the retention period
+        private static List<Notification> claim() throws IOException {
+            return FileCoordinator.rewrite(FILE, (lines, out) -> {
+                long now = System.currentTimeMillis();
+                List<Notification> all = new ArrayList<>(lines.size());
+                Set<String> busy = new HashSet<>(); // Donors messaged recently or with a message on its way
+                List<Integer> due = new ArrayList<>();
+                for (String line : lines) {
+                    Notification n = Notification.parse(line);
+                    boolean ready = (n.status().equals("PENDING") || n.status().equals("SENDING")) && n.due() <= now;
+                    if (ready) {
+                        due.add(all.size());
+                    } else if (n.status().equals("SENDING") || (n.status().equals("SENT") && now - n.due() < COOLDOWN_MS)) {
+                        busy.add(n.donorId());
+                    }
+                    all.add(n);
+                }
+                due.sort(Comparator.<Integer>comparingInt(i -> urgencyRank(all.get(i).urgency())).thenComparingLong(i -> all.get(i).created()));
+                List<Notification> claimed = new ArrayList<>();
+                for (int index : due) {
+                    if (claimed.size() == BATCH) {
+                        break;
+                    }
+                    Notification n = all.get(index);
+                    if (!busy.add(n.donorId())) {
+                        all.set(index, n.with("SKIPPED", n.attempts(), now, "Donor already contacted"));
+                    } else {
+                        Notification leased = n.with("SENDING", n.attempts(), now + LEASE_MS, n.lastError());
+                        all.set(index, leased);
+                        claimed.add(leased);
+                    }
+                }
+                for (Notification n : all) {
+                    boolean finished = n.status().equals("SENT") || n.status().equals("SKIPPED") || n.status().equals("FAILED");
+                    if (!finished || now - n.due() < RETENTION_MS) {
+                        out.add(n.toCsv());
+                    }
+                }
+                return claimed;
+            });
+        }
+
+        // Records the outcome of a batch: SENT, or back to PENDING with a longer delay, or FAILED after the last attempt.
+        // Messages whose lease was taken over by someone else in the meantime are left alone.
+        private static void settle(List<Notification> batch, Map<String, String> failures) throws IOException {
+            Map<String, Notification> leased = new HashMap<>();
+            for (Notification n : batch) {
+                leased.put(n.id(), n);
+            }
+            FileCoordinator.rewrite(FILE, (lines, out) -> {
+                long now = System.currentTimeMillis();
+                for (String line : lines) {
+                    Notification n = Notification.parse(line);
+                    Notification mine = leased.get(n.id());
+                    if (mine != null && n.status().equals("SENDING") && n.due() == mine.due()) {
+                        String error = failures.get(n.id());
+                        int attempts = n.attempts() + 1;
+                        if (error == null) {
+                            n = n.with("SENT", attempts, now, "");
+                        } else if (attempts >= MAX_ATTEMPTS) {
+                            n = n.with("FAILED", attempts, now, error);
+                        } else {
+                            n = n.with("PENDING", attempts, now + Math.min(RETRY_MS << (attempts - 1), 3_600_000), error);
+                        }
+                        line = n.toCsv();
+                    }
+                    out.add(line);
+                }
+                return null;
+            });
+        }
+
+        private static int urgencyRank(String urgency) {
+            return switch (urgency.toLowerCase()) {
+                case "high" -> 0;
+                case "medium" -> 1;
+                default -> 2;
+            };
+        }
+
+        // Token bucket that lets a burst of up to one second's worth of messages through, then spaces them out
+        static final class RateLimiter {
+            private final double perSecond;
+            private double tokens;
+            private long refilledAt = System.nanoTime();
+
+            RateLimiter(double perSecond) {
+                this.perSecond = perSecond;
+                this.tokens = perSecond;
+            }
+
+            synchronized void acquire() {
+                while (true) {
+                    long now = System.nanoTime();
+                    tokens = Math.min(perSecond, tokens + (now - refilledAt) * perSecond / 1e9);
+                    refilledAt = now;
+                    if (tokens >= 1) {
+                        tokens -= 1;
+                        return;
+                    }
+                    LockSupport.parkNanos((long) ((1 - tokens) / perSecond * 1e9));
+                }
+            }
+        }
+    }
+
+    // Checkpoint class for fast cold start: the search index and demand forecast, fully built, are written to a
+    // versioned binary image (checkpoint.bin) on exit and memory-mapped on the next start instead of re-reading
+    // the CSV files. The image records the change feed position the index is current up to and how far each
+    // request file had been folded into the forecast, so after restoring, both just catch up on what changed
+    // since. If the image is from another version, or the feed or a request file no longer continues from the
+    // recorded position, that part is left to be rebuilt from the CSV files as before. The index holds donor and
+    // recipient rows, so when those are sealed at rest the whole image is sealed too, and read into memory instead.
+    static class Checkpoint {
+        static final String FILE = "checkpoint.bin";
+        private static final int MAGIC = 0x42424D43; // "BBMC", also written last to mark a complete image
+        private static final int SEALED_MAGIC = 0x42424D53; // "BBMS", leads a sealed image
+        private static final int VERSION = 2;
+        private static final int FEED_PREFIX_BYTES = 4096; // Change feed bytes checksummed to recognise the same feed
+
+        // The state held in one checkpoint
+        record Image(PersonSearchIndex index, long feedOffset, long feedCrc, DemandForecast forecast) {}
+
+        // Buffered writer of big-endian primitives and arrays to a file channel
+        static final class ImageWriter implements Closeable {
+            private final WritableByteChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+            ImageWriter(Path file) throws IOException {
+                this(FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+            }
+
+            ImageWriter(WritableByteChannel channel) {
+                this.channel = channel;
+            }
+
+            private void room(int bytes) throws IOException {
+                if (buffer.remaining() < bytes) {
+                    flush();
+                }
+            }
+
+            private void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            void putInt(int value) throws IOException {
+                room(4);
+                buffer.putInt(value);
+            }
+
+            void putLong(long value) throws IOException {
+                room(8);
+                buffer.putLong(value);
+            }
+
+            void putDouble(double value) throws IOException {
+                room(8);
+                buffer.putDouble(value);
+            }
+
+            void putString(String value) throws IOException {
+                byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                putInt(bytes.length);
+                putBytes(bytes);
+            }
+
+            void putBytes(byte[] bytes) throws IOException {
+                putBuffer(ByteBuffer.wrap(bytes));
+            }
+
+            void putBuffer(ByteBuffer bytes) throws IOException {
+                while (bytes.hasRemaining()) {
+                    room(1);
+                    int chunk = Math.min(bytes.remaining(), buffer.remaining());
+                    buffer.put(bytes.slice(bytes.position(), chunk));
+                    bytes.position(bytes.position() + chunk);
+                }
+            }
+
+            void putInts(int[] values, int count) throws IOException {
+                putIntBuffer(IntBuffer.wrap(values, 0, count));
+            }
+
+            void putIntBuffer(IntBuffer values) throws IOException {
+                while (values.hasRemaining()) {
+                    room(4);
+                    int chunk = Math.min(values.remaining(), buffer.remaining() / 4);
+                    buffer.asIntBuffer().put(values.slice(values.position(), chunk));
+                    buffer.position(buffer.position() + 4 * chunk);
+                    values.position(values.position() + chunk);
+                }
+            }
+
+            void putLongs(long[] values) throws IOException {
+                LongBuffer source = LongBuffer.wrap(values);
+                while (source.hasRemaining()) {
+                    room(8);
+                    int chunk = Math.min(source.remaining(), buffer.remaining() / 8);
+                    buffer.asLongBuffer().put(source.slice(source.position(), chunk));
+                    buffer.position(buffer.position() + 8 * chunk);
+                    source.position(source.position() + chunk);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try (channel) {
+                    flush();
+                }
+            }
+        }
+
+        // Views the next count ints of the buffer without copying them, and moves past them
+        static IntBuffer intView(ByteBuffer in, int count) {
+            IntBuffer view = in.slice(in.position(), 4 * count).asIntBuffer();
+            in.position(in.position() + 4 * count);
+            return view;
+        }
+
+        // Views the next count longs of the buffer without copying them, and moves past them
+        static LongBuffer longView(ByteBuffer in, int count) {
+            LongBuffer view = in.slice(in.position(), 8 * count).asLongBuffer();
+            in.position(in.position() + 8 * count);
+            return view;
+        }
+
+        static String getString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        // Writes the image to a temp file next to the target, forces it to disk and renames it into place;
+        // sealed (built in memory, so no plain copy touches the disk) when person data is sealed at rest
+        static void write(Path target, Image image) throws IOException {
+            target = target.toAbsolutePath();
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+            try {
+                if (DataEncryption.seals("donors.csv")) {
+                    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                    try (ImageWriter out = new ImageWriter(Channels.newChannel(plain))) {
+                        writeImage(out, image);
+                    }
+                    byte[] sealed = DataEncryption.sealValue(FILE, plain.toByteArray());
+                    try (ImageWriter out = new ImageWriter(temp)) {
+                        out.putInt(SEALED_MAGIC);
+                        out.putBytes(sealed);
+                    }
+                } else {
+                    try (ImageWriter out = new ImageWriter(temp)) {
+                        writeImage(out, image);
+                    }
+                }
+                GroupCommit.force(temp);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                GroupCommit.forceDirectory(target.getParent());
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private static void writeImage(ImageWriter out, Image image) throws IOException {
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(image.feedOffset());
+            out.putLong(image.feedCrc());
+            image.index().writeTo(out);
+            image.forecast().writeTo(out);
+            out.putInt(MAGIC);
+        }
+
+        // Maps an image (or decrypts a sealed one into memory); returns null if it was written by another version or
+        // is incomplete. The mapping stays valid after a newer checkpoint replaces the file, since that is a rename
+        // and never a rewrite in place.
+        static Image read(Path file) throws IOException {
+            ByteBuffer in;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (in.limit() >= 4 && in.getInt(0) == SEALED_MAGIC) {
+                byte[] sealed = new byte[in.limit() - 4];
+                in.get(4, sealed);
+                in = ByteBuffer.wrap(DataEncryption.openValue(FILE, sealed));
+            }
+            if (in.limit() < 28 || in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt(in.limit() - 4) != MAGIC) {
+                return null;
+            }
+            long feedOffset = in.getLong();
+            long feedCrc = in.getLong();
+            PersonSearchIndex index = PersonSearchIndex.readFrom(in);
+            DemandForecast forecast = DemandForecast.readFrom(in);
+            return new Image(index, feedOffset, feedCrc, forecast);
+        }
+
+        // Installs whatever parts of checkpoint.bin are still valid
+        static void restore() throws IOException {
+            Path file = Paths.get(FILE);
+            if (!Files.exists(file)) {
+                return;
+            }
+            Image image;
+            try {
+                image = read(file);
+            } catch (RuntimeException e) {
+                throw new IOException(FILE + " is damaged (" + e + ")");
+            }
+            if (image == null) {
+                return;
+            }
+            // The index can only catch up from the feed it was checkpointed against, and only if the feed still reaches that far
+            if (image.feedOffset() <= ChangeFeed.endOffset() && feedCrc(image.feedOffset()) == image.feedCrc()) {
+                PersonSearchIndex.restore(image.index(), image.feedOffset());
+            }
+            // The forecast checks its request files itself when first used
+            if (image.forecast() != null) {
+                DemandForecast.restore(image.forecast());
+            }
+        }
+
+        // Brings the index and forecast up to date and checkpoints them; other threads wait meanwhile
+        static void save() throws IOException {
+            synchronized (PersonSearchIndex.class) {
+                PersonSearchIndex index = PersonSearchIndex.current();
+                long offset = PersonSearchIndex.feedOffset;
+                synchronized (DemandForecast.class) {
+                    write(Paths.get(FILE), new Image(index, offset, feedCrc(offset), DemandForecast.get()));
+                }
+            }
+        }
+
+        // Checksum of the first bytes of the change feed up to the offset, which tells a feed that was deleted and
+        // started over, or trimmed, from the one the checkpoint was taken against
+        private static long feedCrc(long offset) throws IOException {
+            return ChangeFeed.prefixChecksum(offset, FEED_PREFIX_BYTES);
+        }
+    }
+
+    // LoadTest class: a synthetic workload for the core operations, run in an empty working directory.
+    // It creates a population of donors, recipients and inventory with realistic blood group frequencies,
+    // then drives a weighted mix of operations from a pool of threads, either as fast as they go (closed loop)
+    // or at a target arrival rate with Poisson arrivals (open loop; latency is then measured from each arrival,
+    // so queueing behind slow operations shows up in the tail). At the end it reports throughput and latency
+    // percentiles per operation and checks the data: no negative units, inventory that balances against the
+    // restocks and fulfilled requests, and no lost request or donor rows.
+    static class LoadTest {
+        private static final double[] GROUP_SHARE = {0.34, 0.06, 0.09, 0.02, 0.03, 0.01, 0.38, 0.07}; // BloodGroup order
+        private static final String[] NAMES = {"Alice", "Bob", "Carlos", "Dina", "Emon", "Farhana", "Gazi", "Hasan", "Imran", "Jannat",
+                                               "Karim", "Laila", "Mahmud", "Nusrat", "Omar", "Priya", "Rafiq", "Sadia", "Tanvir", "Zahid"};
+        private static final String[] SURNAMES = {"Ahmed", "Begum", "Chowdhury", "Das", "Hossain", "Islam", "Khan", "Miah", "Rahman", "Sarkar"};
+
+        // Operations in the mix and their weights (out of 100)
+        enum Operation {
+            REQUEST_BLOOD(35), RESTOCK(10), REGISTER_DONOR(10), SEARCH(20), LIST_DONORS(10), INVENTORY_REPORT(10), SCHEDULE_DONATION(5);
+
+            final int weight;
+
+            Operation(int weight) {
+                this.weight = weight;
+            }
+        }
+
+        // Latency samples of one operation, in nanoseconds
+        static final class Latencies {
+            private long[] samples = new long[1024];
+            private int size;
+
+            synchronized void add(long nanos) {
+                if (size == samples.length) {
+                    samples = Arrays.copyOf(samples, size * 2);
+                }
+                samples[size++] = nanos;
+            }
+
+            synchronized long[] sorted() {
+                long[] copy = Arrays.copyOf(samples, size);
+                Arrays.sort(copy);
+                return copy;
+            }
+        }
+
+        private final int donors = Integer.getInteger("bbms.loadDonors", 10_000);
+        private final int recipients = Integer.getInteger("bbms.loadRecipients", 5_000);
+        private final int unitsPerGroup = Integer.getInteger("bbms.loadUnits", 2_000); // Initial units of each group and component
+        private final Map<Operation, Latencies> latencies = new EnumMap<>(Operation.class);
+        private final AtomicInteger nextDonor = new AtomicInteger();
+        private final AtomicLong restocked = new AtomicLong();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile String firstFailure; // First exception thrown by an operation, for the report
+        private long initialUnits;
+
+        LoadTest() {
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new Latencies());
+            }
+        }
+
+        // Populates the working directory, runs the workload and prints the report
+        void run(int threads, int seconds, double arrivalsPerSecond) throws IOException, InterruptedException {
+            if (Files.exists(Paths.get("donors.csv")) && Files.size(Paths.get("donors.csv")) > 0) {
+                throw new IOException("the working directory already holds data; run the load test from an empty directory");
+            }
+            FileHandler.createCSVFiles();
+            StockHistory.start();
+            populate();
+            nextDonor.set(donors);
+            System.out.println("Populated " + donors + " donors, " + recipients + " recipients and " + initialUnits + " units; running "
+                               + (arrivalsPerSecond > 0 ? arrivalsPerSecond + " arrivals/s" : "closed loop") + " on " + threads + " threads for " + seconds + " s");
+
+            // Operations report errors on the console; during the run that output is counted instead of shown
+            PrintStream console = System.out;
+            CountingOutput errors = new CountingOutput();
+            System.setOut(new PrintStream(errors, true));
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.SECONDS.toNanos(seconds);
+            long completed;
+            try {
+                if (arrivalsPerSecond > 0) {
+                    completed = openLoop(pool, deadline, arrivalsPerSecond);
+                } else {
+                    completed = closedLoop(pool, threads, deadline);
+                }
+            } finally {
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                System.setOut(console);
+            }
+            double elapsed = (System.nanoTime() - started) / 1e9;
+            report(completed, elapsed, errors.errorLines());
+        }
+
+        // Writes the synthetic population through the coordinator, one commit per dataset
+        private void populate() throws IOException {
+            // The rows are generated up front, since a rewrite body runs again if another writer commits first
+            Random random = new Random(1);
+            List<String> donorRows = new ArrayList<>();
+            List<String> recipientRows = new ArrayList<>();
+            List<String> users = new ArrayList<>();
+            users.add("ADMIN-LOAD,Administrator,load");
+            for (int i = 0; i < donors; i++) {
+                LocalDate last = random.nextInt(3) == 0 ? null : LocalDate.now().minusDays(random.nextInt(400));
+                donorRows.add("DONOR-" + i + "," + name(random) + "," + (18 + random.nextInt(47)) + "," + group(random).label + ","
+                              + String.format("01%08d", i) + "," + (last == null ? "" : last));
+                users.add("DONOR-" + i + ",Donor,load");
+            }
+            for (int i = 0; i < recipients; i++) {
+                recipientRows.add("RECIPIENT-" + i + "," + name(random) + "," + (1 + random.nextInt(90)) + "," + group(random).label + ","
+                                  + String.format("02%08d", i) + "," + urgency(random));
+                users.add("RECIPIENT-" + i + ",Recipient,load");
+            }
+            String expiry = LocalDate.now().plusDays(35).toString();
+            List<String> inventoryRows = new ArrayList<>();
+            for (BloodGroup group : BloodGroup.values()) {
+                for (Component component : Component.values()) {
+                    inventoryRows.add(group.label + "," + component.label + "," + unitsPerGroup + "," + expiry + ",0,AVAILABLE");
+                }
+            }
+            FileCoordinator.rewrite("donors.csv", replacingWith(donorRows));
+            FileCoordinator.rewrite("recipients.csv", replacingWith(recipientRows));
+            FileCoordinator.rewrite("users.csv", replacingWith(users));
+            FileCoordinator.rewrite(SiteRegistry.homeFile("inventory.csv"), replacingWith(inventoryRows));
+            initialUnits = totalUnits();
+        }
+
+        private static FileCoordinator.Rewrite<Void> replacingWith(List<String> rows) {
+            return (lines, out) -> {
+                out.addAll(rows);
+                return null;
+            };
+        }
+
+        // Each thread issues operations back to back until the deadline
+        private long closedLoop(ExecutorService pool, int threads, long deadline) throws InterruptedException {
+            AtomicLong completed = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                pool.execute(() -> {
+                    Random random = new Random(seed);
+                    while (System.nanoTime() < deadline) {
+                        execute(pick(random), random, System.nanoTime());
+                        completed.incrementAndGet();
+                    }
+                    done.countDown();
+                });
+            }
+            done.await();
+            return completed.get();
+        }
+
+        // Operations arrive at exponentially distributed intervals and queue for the pool
+        private long openLoop(ExecutorService pool, long deadline, double arrivalsPerSecond) throws InterruptedException {
+            Random random = new Random(2);
+            long arrival = System.nanoTime();
+            long issued = 0;
+            while (true) {
+                arrival += (long) (-Math.log(1 - random.nextDouble()) / arrivalsPerSecond * 1e9);
+                if (arrival >= deadline) {
+                    break;
+                }
+                long wait = arrival - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Operation operation = pick(random);
+                long seed = random.nextLong();
+                long scheduled = arrival;
+                pool.execute(() -> execute(operation, new Random(seed), scheduled));
+                issued++;
+            }
+            return issued;
+        }
+
+        private static Operation pick(Random random) {
+            int roll = random.nextInt(100);
+            for (Operation operation : Operation.values()) {
+                roll -= operation.weight;
+                if (roll < 0) {
+                    return operation;
+                }
+            }
+            return Operation.SEARCH;
+        }
+
+        // Runs one operation through the same entry points as the menus and records its latency from `since`
+        private void execute(Operation operation, Random random, long since) {
+            try {
+                switch (operation) {
+                    case REQUEST_BLOOD -> {
+                        int id = random.nextInt(recipients);
+                        Recipient recipient = new Recipient("RECIPIENT-" + id, "Load Recipient", 40, group(random).label, "0200000000", "Low");
+                        recipient.requestBlood(group(random).label, Component.values()[random.nextInt(Component.values().length)].label,
+                                               1 + random.nextInt(4), urgency(random));
+                        requested.incrementAndGet();
+                    }
+                    case RESTOCK -> {
+                        int units = 5 + random.nextInt(16);
+                        FileHandler.updateInventory(group(random).label, Component.values()[random.nextInt(Component.values().length)].label,
+                                                    units, LocalDate.now().plusDays(35).toString());
+                        restocked.addAndGet(units);
+                    }
+                    case REGISTER_DONOR -> {
+                        int id = nextDonor.getAndIncrement();
+                        FileHandler.saveDonorInformation(new Donor("DONOR-" + id, name(random), 18 + random.nextInt(47), group(random).label,
+                                                                   String.format("01%08d", id), null));
+                    }
+                    case SEARCH -> {
+                        String name = NAMES[random.nextInt(NAMES.length)];
+                        FileHandler.searchPeople(name.substring(0, Math.min(name.length(), 3 + random.nextInt(3))), 0, 10);
+                    }
+                    case LIST_DONORS -> FileHandler.loadListingPage("donors.csv", group(random).label, ListingCursor.Order.FILE, null);
+                    case INVENTORY_REPORT -> {
+                        List<Site> sites = SiteRegistry.all();
+                        FileCoordinator.Snapshot snapshot = FileHandler.loadReportSnapshot(sites);
+                        if (snapshot != null) {
+                            FileHandler.loadSiteInventories(snapshot, sites);
+                            FileHandler.loadDemandForecast(snapshot, sites);
+                        }
+                    }
+                    case SCHEDULE_DONATION -> FileHandler.saveSchedule("DONOR-" + random.nextInt(donors), LocalDate.now().plusDays(1 + random.nextInt(30)), SiteRegistry.home());
+                }
+            } catch (RuntimeException e) {
+                if (failures.getAndIncrement() == 0) {
+                    firstFailure = operation + ": " + e;
+                }
+            }
+            latencies.get(operation).add(System.nanoTime() - since);
+        }
+
+        private static BloodGroup group(Random random) {
+            double roll = random.nextDouble();
+            for (int i = 0; i < GROUP_SHARE.length; i++) {
+                roll -= GROUP_SHARE[i];
+                if (roll < 0) {
+                    return BloodGroup.values()[i];
+                }
+            }
+            return BloodGroup.O_POS;
+        }
+
+        private static String urgency(Random random) {
+            int roll = random.nextInt(100);
+            return roll < 20 ? "High" : roll < 50 ? "Medium" : "Low";
+        }
+
+        private static String name(Random random) {
+            return NAMES[random.nextInt(NAMES.length)] + " " + SURNAMES[random.nextInt(SURNAMES.length)];
+        }
+
+        private static long totalUnits() throws IOException {
+            long units = 0;
+            for (Site site : SiteRegistry.all()) {
+                for (String line : FileCoordinator.readLines(site.file("inventory.csv"))) {
+                    units += Integer.parseInt(line.split(",")[2]);
+                }
+            }
+            return units;
+        }
+
+        // Prints throughput, latency percentiles and the integrity checks
+        private void report(long completed, double elapsedSeconds, long errorLines) throws IOException {
+            System.out.println("\n================ LOAD TEST RESULTS =================");
+            System.out.printf("%d operations in %.1f s: %.1f ops/s, %d error messages, %d exceptions%n",
+                              completed, elapsedSeconds, completed / elapsedSeconds, errorLines, failures.get());
+            if (firstFailure != null) {
+                System.out.println("First exception: " + firstFailure);
+            }
+            System.out.printf("%-18s %8s %10s %10s %10s %10s%n", "Operation", "Count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+            for (Map.Entry<Operation, Latencies> entry : latencies.entrySet()) {
+                long[] sorted = entry.getValue().sorted();
+                if (sorted.length == 0) {
+                    continue;
+                }
+                System.out.printf("%-18s %8d %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), sorted.length, percentile(sorted, 50),
+                                  percentile(sorted, 95), percentile(sorted, 99), sorted[sorted.length - 1] / 1e6);
+            }
+
+            System.out.println("\nIntegrity checks:");
+            boolean negative = false;
+            for (Site site : SiteRegistry.all()) {
+                for (String line : FileCoordinator.readLines(site.file("inventory.csv"))) {
+                    String[] data = line.split(",");
+                    negative |= Integer.parseInt(data[2]) < 0 || Integer.parseInt(data[4]) < 0;
+                }
+            }
+            check("No negative unit or reserved counts", !negative, "");
+
+            long fulfilledUnits = 0;
+            long requestRows = 0;
+            for (Site site : SiteRegistry.all()) {
+                for (String line : FileCoordinator.readLines(site.file("requests.csv"))) {
+                    String[] data = line.split(",");
+                    requestRows++;
+                    if (data[5].equals("FULFILLED")) {
+                        fulfilledUnits += Integer.parseInt(data[3]);
+                    }
+                }
+            }
+            long expected = initialUnits + restocked.get() - fulfilledUnits;
+            long actual = totalUnits();
+            check("Inventory balances (initial + restocked - fulfilled)", expected == actual, "expected " + expected + ", found " + actual);
+            check("Every blood request recorded", requestRows == requested.get(), requested.get() + " issued, " + requestRows + " recorded");
+
+            List<String> donorRows = FileCoordinator.readLines("donors.csv");
+            Set<String> ids = new HashSet<>();
+            for (String line : donorRows) {
+                ids.add(line.substring(0, line.indexOf(',')));
+            }
+            int registered = nextDonor.get();
+            check("Every donor registration kept, no duplicates", donorRows.size() == registered && ids.size() == registered,
+                  registered + " registered, " + donorRows.size() + " rows, " + ids.size() + " distinct IDs");
+
+            int stale = 0;
+            int series = 0;
+            for (BloodGroup group : BloodGroup.values()) {
+                for (Component component : Component.values()) {
+                    int[] recorded = StockHistory.latest(group.label, component.label);
+                    if (recorded != null) {
+                        series++;
+                        stale += Arrays.equals(recorded, StockHistory.levels(group.label, component.label)) ? 0 : 1;
+                    }
+                }
+            }
+            check("Stock history ends at the current levels", series > 0 && stale == 0, stale + " of " + series + " series behind");
+        }
+
+        private static double percentile(long[] sorted, int percent) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1)] / 1e6;
+        }
+
+        private static void check(String name, boolean passed, String detail) {
+            System.out.println("  [" + (passed ? "PASS" : "FAIL") + "] " + name + (passed || detail.isEmpty() ? "" : " - " + detail));
+        }
+
+        // Discards console output but counts the lines that report an error
+        static final class CountingOutput extends OutputStream {
+            private final StringBuilder line = new StringBuilder();
+            private long errorLines;
+
+            @Override
+            public synchronized void write(int b) {
+                if (b == '\n') {
+                    if (line.indexOf("ERROR") >= 0) {
+                        errorLines++;
+                    }
+                    line.setLength(0);
+                } else if (line.length() < 200) {
+                    line.append((char) b);
+                }
+            }
+
+            synchronized long errorLines() {
+                return errorLines;
+            }
+        }
+    }
+
+    // FaultTest class: crash testing of the commit steps named by -Dbbms.faultPoint. For each step a child process
+    // seeds donors.csv and recipients.csv in a fresh temp directory, a second child starts the write that passes
+    // the step with -Dbbms.faultPoint set and is halted there, and a third one reads the datasets as the next user
+    // would (finishing or undoing what the crash left) and reports whether it found the old or the new contents.
+    // Each step must leave exactly the outcome its commit protocol promises, never a mix. Any other -Dbbms.*
+    // settings, and BBMS_DATA_KEY, are passed on to the children, so the sealed formats can be crash tested too.
+    static class FaultTest {
+        private static final List<String> OLD_DONORS = List.of("D1,Amina Rahman,34,O+,01711000001,2024-01-10", "D2,Bilal Khan,41,A-,01711000002,",
+                                                               "D3,Chandra Das,29,B+,01711000003,2024-03-02", "D4,Dilruba Islam,52,AB+,01711000004,");
+        private static final List<String> NEW_DONORS = List.of("D1,Amina Rahman,34,O+,01711000001,2024-06-18", "D2,Bilal Khan,41,A-,01711000002,2024-06-18",
+                                                               "D3,Chandra Das,29,B+,01711000003,2024-03-02", "D4,Dilruba Islam,52,AB+,01711000004,2024-06-18");
+        private static final List<String> OLD_RECIPIENTS = List.of("R1,Ehsan Ali,63,A+,01811000001,High", "R2,Fatema Noor,8,O-,01811000002,Low");
+        private static final List<String> NEW_RECIPIENTS = List.of("R1,Ehsan Ali,63,A+,01811000001,Low", "R2,Fatema Noor,8,O-,01811000002,High");
+        private static final List<String> APPENDED_DONORS = List.of("D5,Gias Uddin,38,O-,01711000005,", "D6,Hena Akter,26,A+,01711000006,");
+
+        private static final int HALTED = 137; // Exit status of a process halted at its fault point
+
+        // A commit step, the write that passes it, and what a crash there must leave behind
+        record Case(String point, String write, String expected) {}
+
+        // How a child process ended and what it printed
+        record Outcome(int exitStatus, List<String> output) {}
+
+        void run() throws IOException, InterruptedException {
+            List<Case> cases = List.of(new Case("mid-write", "rewrite", "old"), new Case("before-rename", "rewrite", "old"),
+                                       new Case("after-rename", "rewrite", "new"), new Case("before-journal", "transaction", "old"),
+                                       new Case("after-journal", "transaction", "new"), new Case("mid-append", "append", "old"));
+            System.out.printf("%-16s %-12s %-9s %-9s %s%n", "Fault point", "Write", "Expected", "Found", "Result");
+            int failures = 0;
+            for (Case test : cases) {
+                Path dir = Files.createTempDirectory("fault-test-");
+                String found;
+                try {
+                    child(dir, null, "seed");
+                    if (child(dir, test.point(), test.write()).exitStatus() != HALTED) {
+                        found = "no crash"; // The step was never reached, or the child failed before it
+                    } else {
+                        List<String> verdict = child(dir, null, "verify", test.write()).output();
+                        found = verdict.isEmpty() ? "nothing" : verdict.get(verdict.size() - 1);
+                    }
+                } finally {
+                    try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+                        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                            Files.delete(file);
+                        }
+                    }
+                }
+                boolean passed = found.equals(test.expected());
+                failures += passed ? 0 : 1;
+                System.out.printf("%-16s %-12s %-9s %-9s %s%n", test.point(), test.write(), test.expected(), found, passed ? "PASS" : "FAIL");
+            }
+            System.out.println(failures == 0 ? "All fault points PASS" : failures + " fault point(s) FAIL");
+        }
+
+        // Runs one step in a child JVM working in the given directory
+        private static Outcome child(Path dir, String faultPoint, String... step) throws IOException, InterruptedException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("bbms.") && !name.equals("bbms.faultPoint")) {
+                    command.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            if (faultPoint != null) {
+                command.add("-Dbbms.faultPoint=" + faultPoint);
+            }
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), BloodBankManagementSystem.class.getName(), "--fault-step"));
+            command.addAll(Arrays.asList(step));
+            Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+            List<String> output;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                output = reader.lines().toList();
+            }
+            return new Outcome(process.waitFor(), output);
+        }
+
+        // Runs one step in the working directory. The writes print nothing unless they fail or outlive their fault point.
+        static void step(String step, String write) throws IOException {
+            switch (step) {
+                case "seed" -> {
+                    Files.createFile(Paths.get("donors.csv"));
+                    Files.createFile(Paths.get("recipients.csv"));
+                    FileCoordinator.rewrite("donors.csv", replacingWith(OLD_DONORS));
+                    FileCoordinator.rewrite("recipients.csv", replacingWith(OLD_RECIPIENTS));
+                }
+                case "rewrite" -> FileCoordinator.rewrite("donors.csv", replacingWith(NEW_DONORS));
+                case "transaction" -> FileCoordinator.rewriteAll(Map.of("donors.csv", replacingWith(NEW_DONORS),
+                                                                        "recipients.csv", replacingWith(NEW_RECIPIENTS)));
+                case "append" -> FileCoordinator.appendAll("donors.csv", APPENDED_DONORS);
+                case "verify" -> {
+                    // As at start-up, then as any reader: each finishes or undoes whatever the crash left behind
+                    FileCoordinator.recoverTransactions();
+                    List<String> donors = FileCoordinator.readLines("donors.csv");
+                    List<String> recipients = FileCoordinator.readLines("recipients.csv");
+                    List<String> newDonors = "append".equals(write) ? java.util.stream.Stream.concat(OLD_DONORS.stream(), APPENDED_DONORS.stream()).toList() : NEW_DONORS;
+                    List<String> newRecipients = "transaction".equals(write) ? NEW_RECIPIENTS : OLD_RECIPIENTS;
+                    if (donors.equals(OLD_DONORS) && recipients.equals(OLD_RECIPIENTS)) {
+                        System.out.println("old");
+                    } else if (donors.equals(newDonors) && recipients.equals(newRecipients)) {
+                        System.out.println("new");
+                    } else {
+                        System.out.println("partial");
+                    }
+                    return;
+                }
+                default -> throw new IOException("unknown step " + step);
+            }
+            if (!step.equals("seed")) {
+                System.out.println("completed"); // The fault point was not reached
+            }
+        }
+
+        private static FileCoordinator.Rewrite<Void> replacingWith(List<String> lines) {
+            return (current, out) -> {
+                out.addAll(lines);
+                return null;
+            };
+        }
+    }
+
+    // AllocationEngine class to decide which inventory lots serve which blood requests. A request is served with
+    // the one component it asks for (requests recorded before they named one ask for whole blood), from lots of that
+    // component only. Red cells may come from any compatible blood group; other components, whose compatibility
+    // doesn't follow the red-cell rules, only from the patient's own group. Each unit taken costs a penalty that
+    // encodes the policies in order of weight: a different (compatible) group costs more than an exact match, O-
+    // given to anyone but an O- patient costs more again (less so for High urgency, since O- is kept for
+    // emergencies), then distance to the site and days left before expiry, so the nearest, soonest-expiring stock
+    // goes first. Serving a unit earns an urgency weight larger than any penalty. Requests are solved together as a min-cost flow
+    // (source -> request -> lot -> sink), which maximises the urgency-weighted units served and, among those
+    // plans, minimises the penalties. A request is served in full or not at all, so a request left partly
+    // served is dropped (least urgent first) and the rest solved again.
+    static class AllocationEngine {
+        private static final long MISMATCH_COST = 1000; // Per unit of a compatible but different group
+        private static final long UNIVERSAL_DONOR_COST = 2000; // Per unit of O- for a non-O- patient
+        private static final long UNIVERSAL_DONOR_URGENT_COST = 600; // The same for a High urgency request
+        private static final int MAX_DISTANCE_KM = 500; // Distance counted up to this far, one per km
+        private static final int MAX_EXPIRY_DAYS = 100; // Days to expiry counted up to this many, three per day
+
+        // A request to be served, with the component it is served with
+        record Demand(String requestId, String recipientId, String bloodType, int units, String urgency, String component) {}
+
+        // Units taken from one lot
+        record Take(SiteLot lot, int units) {}
+
+        // The lots serving one request in full
+        record Allocation(Demand demand, List<Take> takes) {
+            // Component the request is served with, as recorded in requests.csv
+            String component() {
+                return demand.component();
+            }
+        }
+
+        // Blood groups whose lots may serve the demand: the compatible groups for red cells, the patient's own otherwise
+        static Set<String> compatibleGroups(Demand demand) {
+            if (Component.of(demand.component()) != Component.WHOLE_BLOOD) {
+                return Set.of(demand.bloodType());
+            }
+            return new HashSet<>(Arrays.asList(FileHandler.getCompatibleBloodTypes(demand.bloodType())));
+        }
+
+        // Reward for serving one unit of a request of this urgency
+        static long urgencyWeight(String urgency) {
+            return switch (urgency.toLowerCase()) {
+                case "high" -> 20_000;
+                case "medium" -> 12_000;
+                default -> 6_000;
+            };
+        }
+
+        // Penalty for serving one unit of the demand from a lot of the given group, distance and days to expiry,
+        // or -1 if the group is not among the compatible ones
+        static long unitCost(Demand demand, Set<String> compatible, String group, double distanceKm, long daysToExpiry) {
+            if (!compatible.contains(group)) {
+                return -1;
+            }
+            long cost = 0;
+            if (!group.equals(demand.bloodType())) {
+                cost += MISMATCH_COST;
+                if (group.equals("O-")) {
+                    cost += demand.urgency().equalsIgnoreCase("High") ? UNIVERSAL_DONOR_URGENT_COST : UNIVERSAL_DONOR_COST;
+                }
+            }
+            cost += (long) Math.min(distanceKm, MAX_DISTANCE_KM);
+            cost += 3L * Math.min(daysToExpiry, MAX_EXPIRY_DAYS);
+            return cost;
+        }
+
+        // Plans which lots serve which demands; demands that can't be served in full are left out
+        static List<Allocation> solve(List<Demand> demands, List<SiteLot> lots) {
+            List<Demand> active = new ArrayList<>(demands);
+            while (true) {
+                FlowNetwork network = new FlowNetwork(active, lots);
+                network.run();
+                Demand partial = null;
+                for (int d = 0; d < active.size(); d++) {
+                    int served = network.served(d);
+                    Demand demand = active.get(d);
+                    if (served > 0 && served < demand.units() && (partial == null
+                            || urgencyWeight(demand.urgency()) < urgencyWeight(partial.urgency())
+                            || (urgencyWeight(demand.urgency()) == urgencyWeight(partial.urgency()) && demand.units() > partial.units()))) {
+                        partial = demand;
+                    }
+                }
+                if (partial == null) {
+                    List<Allocation> allocations = new ArrayList<>();
+                    for (int d = 0; d < active.size(); d++) {
+                        if (network.served(d) == active.get(d).units()) {
+                            allocations.add(new Allocation(active.get(d), network.takes(d)));
+                        }
+                    }
+                    return allocations;
+                }
+                active.remove(partial);
+            }
+        }
+
+        // Takes the units of an allocation from its lots, all at once. If a lot no longer has them (another
+        // operator got there first), nothing is taken and false is returned.
+        static boolean apply(Allocation allocation) {
+            return FileHandler.consumeLots(allocation.takes());
+        }
+
+        // Residual graph for successive shortest paths. Nodes: 0 source, 1 sink, then demands, then lots.
+        // Edge e and e ^ 1 are a forward edge and its reverse.
+        private static final class FlowNetwork {
+            private final List<Demand> demands;
+            private final List<SiteLot> lots;
+            private final int nodes;
+            private int[] head;
+            private int[] next = new int[64];
+            private int[] to = new int[64];
+            private int[] capacity = new int[64];
+            private long[] cost = new long[64];
+            private int edges;
+            private final int[] demandEdge; // Edge from the source to each demand
+            private final int[] firstLotEdge; // First edge from each demand to a lot (edges to lots are added in a row)
+            private final int[] lotEdges; // Number of edges from each demand to lots
+
+            FlowNetwork(List<Demand> demands, List<SiteLot> lots) {
+                this.demands = demands;
+                this.lots = lots;
+                nodes = 2 + demands.size() + lots.size();
+                head = new int[nodes];
+                Arrays.fill(head, -1);
+                demandEdge = new int[demands.size()];
+                firstLotEdge = new int[demands.size()];
+                lotEdges = new int[demands.size()];
+                LocalDate today = LocalDate.now();
+                String[] groups = new String[lots.size()];
+                String[] components = new String[lots.size()];
+                long[] daysToExpiry = new long[lots.size()];
+                for (int l = 0; l < lots.size(); l++) {
+                    String[] data = lots.get(l).row().split(",");
+                    groups[l] = data[0];
+                    components[l] = data[1];
+                    daysToExpiry[l] = ChronoUnit.DAYS.between(today, lots.get(l).expiry());
+                    addEdge(2 + demands.size() + l, 1, Integer.parseInt(data[2]), 0);
+                }
+                Map<String, Set<String>> compatibility = new HashMap<>(); // Compatible groups per blood type and component
+                for (int d = 0; d < demands.size(); d++) {
+                    Demand demand = demands.get(d);
+                    Set<String> compatible = compatibility.computeIfAbsent(demand.bloodType() + "/" + demand.component(),
+                        key -> compatibleGroups(demand));
+                    demandEdge[d] = addEdge(0, 2 + d, demand.units(), 0);
+                    firstLotEdge[d] = edges;
+                    for (int l = 0; l < lots.size(); l++) {
+                        if (!components[l].equals(demand.component())) {
+                            continue;
+                        }
+                        long unitCost = unitCost(demand, compatible, groups[l], lots.get(l).distanceKm(), daysToExpiry[l]);
+                        if (unitCost >= 0) {
+                            addEdge(2 + d, 2 + demands.size() + l, demand.units(), unitCost - urgencyWeight(demand.urgency()));
+                            lotEdges[d]++;
+                        }
+                    }
+                }
+            }
+
+            private int addEdge(int from, int target, int edgeCapacity, long edgeCost) {
+                if (edges + 2 > to.length) {
+                    next = Arrays.copyOf(next, to.length * 2);
+                    capacity = Arrays.copyOf(capacity, to.length * 2);
+                    cost = Arrays.copyOf(cost, to.length * 2);
+                    to = Arrays.copyOf(to, to.length * 2);
+                }
+                int edge = edges;
+                to[edges] = target;
+                capacity[edges] = edgeCapacity;
+                cost[edges] = edgeCost;
+                next[edges] = head[from];
+                head[from] = edges++;
+                to[edges] = from;
+                capacity[edges] = 0;
+                cost[edges] = -edgeCost;
+                next[edges] = head[target];
+                head[target] = edges++;
+                return edge;
+            }
+
+            // Primal-dual min-cost flow: augments along cheapest source-sink paths while they pay off. Costs are
+            // negative, so node potentials are seeded with one Bellman-Ford pass; after that reduced costs are
+            // non-negative, each round finds the cheapest path cost with Dijkstra, and every path of that cost
+            // (reduced cost 0 on all its edges) is then saturated by depth-first search before the next round.
+            void run() {
+                long[] potential = new long[nodes];
+                long[] distance = new long[nodes];
+                Arrays.fill(potential, Long.MAX_VALUE);
+                potential[0] = 0;
+                // Edges only run source -> demand -> lot -> sink at this point, so the passes settle in three rounds
+                for (int round = 0; round < 3; round++) {
+                    for (int edge = 0; edge < edges; edge += 2) {
+                        int from = to[edge ^ 1];
+                        if (potential[from] != Long.MAX_VALUE && potential[from] + cost[edge] < potential[to[edge]]) {
+                            potential[to[edge]] = potential[from] + cost[edge];
+                        }
+                    }
+                }
+                PriorityQueue<long[]> queue = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[0]));
+                boolean[] visited = new boolean[nodes];
+                while (true) {
+                    Arrays.fill(distance, Long.MAX_VALUE);
+                    distance[0] = 0;
+                    queue.add(new long[] {0, 0});
+                    while (!queue.isEmpty()) {
+                        long[] entry = queue.poll();
+                        int node = (int) entry[1];
+                        if (entry[0] > distance[node]) {
+                            continue;
+                        }
+                        for (int edge = head[node]; edge >= 0; edge = next[edge]) {
+                            int target = to[edge];
+                            if (capacity[edge] > 0 && potential[target] != Long.MAX_VALUE) {
+                                long reduced = distance[node] + cost[edge] + potential[node] - potential[target];
+                                if (reduced < distance[target]) {
+                                    distance[target] = reduced;
+                                    queue.add(new long[] {reduced, target});
+                                }
+                            }
+                        }
+                    }
+                    if (distance[1] == Long.MAX_VALUE || distance[1] + potential[1] - potential[0] >= 0) {
+                        return; // No path, or serving more would not pay off
+                    }
+                    for (int node = 0; node < nodes; node++) {
+                        if (distance[node] != Long.MAX_VALUE) {
+                            potential[node] += distance[node];
+                        }
+                    }
+                    do {
+                        Arrays.fill(visited, false);
+                    } while (augment(0, Integer.MAX_VALUE, potential, visited) > 0);
+                }
+            }
+
+            // Pushes up to `limit` units from the node to the sink along edges of reduced cost 0; returns the units pushed
+            private int augment(int node, int limit, long[] potential, boolean[] visited) {
+                if (node == 1) {
+                    return limit;
+                }
+                visited[node] = true;
+                for (int edge = head[node]; edge >= 0; edge = next[edge]) {
+                    int target = to[edge];
+                    if (capacity[edge] > 0 && !visited[target] && potential[target] != Long.MAX_VALUE
+                            && cost[edge] + potential[node] - potential[target] == 0) {
+                        int pushed = augment(target, Math.min(limit, capacity[edge]), potential, visited);
+                        if (pushed > 0) {
+                            capacity[edge] -= pushed;
+                            capacity[edge ^ 1] += pushed;
+                            return pushed;
+                        }
+                    }
+                }
+                return 0;
+            }
+
+            // Units routed to a demand
+            int served(int demand) {
+                return capacity[demandEdge[demand] ^ 1];
+            }
+
+            List<Take> takes(int demand) {
+                List<Take> takes = new ArrayList<>();
+                for (int i = 0; i < lotEdges[demand]; i++) {
+                    int edge = firstLotEdge[demand] + 2 * i;
+                    if (capacity[edge ^ 1] > 0) {
+                        takes.add(new Take(lots.get(to[edge] - 2 - demands.size()), capacity[edge ^ 1]));
+                    }
+                }
+                return takes;
+            }
+        }
+    }
+
+    // A hold on units of one inventory lot (blood type, component and expiration date) for an owner. Units move
+    // from the lot's available column to its reserved column when the lease is taken out; confirming it issues
+    // them, cancelling it or letting it expire returns them.
+    record Lease(String id, String owner, String bloodType, String component, String expDate, int units, long expiresAt, String status) {
+        static final String ACTIVE = "ACTIVE";
+        static final String CONFIRMED = "CONFIRMED";
+        static final String CANCELLED = "CANCELLED";
+        static final String EXPIRED = "EXPIRED";
+
+        static Lease parse(String line) {
+            String[] data = line.split(",");
+            return new Lease(data[0], data[1], data[2], data[3], data[4], Integer.parseInt(data[5]), Long.parseLong(data[6]), data[7]);
+        }
+
+        Lease with(String newStatus) {
+            return new Lease(id, owner, bloodType, component, expDate, units, expiresAt, newStatus);
+        }
+
+        String toCsv() {
+            return id + "," + owner + "," + bloodType + "," + component + "," + expDate + "," + units + "," + expiresAt + "," + status;
+        }
+
+        // Whether an inventory row is the lot this lease holds units of
+        boolean holds(String[] row) {
+            return row[0].equals(bloodType) && row[1].equals(component) && row[3].equals(expDate);
+        }
+
+        // Local date and time of an epoch-millisecond instant, to the minute
+        static String formatTime(long epochMillis) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()).truncatedTo(ChronoUnit.MINUTES).toString();
+        }
+    }
+
+    // LeaseManager class to take out, settle and expire blood reservations at this site. Leases are kept in the
+    // site's leases.csv; expiry is driven by a hashed timing wheel in memory, so inventory.csv is only touched
+    // when a lease actually lapses, never scanned on a timer. The active leases are loaded into the wheel at start
+    // and again whenever the change sequence of leases.csv moves (checked lock-free on every tick), so leases
+    // taken out by other instances expire here too; ones that lapsed while no instance ran go on the first tick.
+    static class LeaseManager {
+        static final String FILE = "leases.csv";
+        private static final long TICK_MS = Long.getLong("bbms.leaseTickMs", 1000); // Timer resolution
+        private static final int WHEEL_SLOTS = 512;
+        private static final long RETENTION_MS = 30L * 24 * 3_600_000; // Settled leases are kept this long past their expiry
+        private static final TimingWheel wheel = new TimingWheel(WHEEL_SLOTS, TICK_MS);
+        private static Thread ticker;
+        private static long loadedSequence = -1; // Change sequence of leases.csv whose active leases are in the wheel
+        private static boolean loadFailing; // Whether the last load failed, so the warning isn't repeated every tick
+
+        // Returns units left reserved without a lease, loads the active leases into the wheel and starts the expiry
+        // thread once per process
+        static synchronized void start() {
+            if (ticker != null) {
+                return;
+            }
+            try {
+                reconcile();
+            } catch (IOException e) {
+                System.out.println("WARNING: Reserved units could not be checked against the reservations - " + e.getMessage());
+            }
+            sync();
+            ticker = new Thread(LeaseManager::run, "lease-expiry");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+
+        private static void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(TICK_MS - now % TICK_MS));
+                sync();
+                List<String> due = wheel.advance(System.currentTimeMillis());
+                if (!due.isEmpty()) {
+                    try {
+                        expire(due);
+                    } catch (IOException e) {
+                        System.out.println("WARNING: Expired reservations could not be released, retrying - " + e.getMessage());
+                        for (String id : due) {
+                            wheel.schedule(id, System.currentTimeMillis() + TICK_MS);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Schedules the active leases if leases.csv changed since they were last loaded, whoever changed it. Leases
+        // already in the wheel are simply scheduled again, and ones settled meanwhile are skipped when they fire.
+        private static synchronized void sync() {
+            try {
+                long sequence = FileCoordinator.sequenceHint(file());
+                if (sequence == loadedSequence) {
+                    return;
+                }
+                for (Lease lease : active()) {
+                    wheel.schedule(lease.id(), lease.expiresAt());
+                }
+                loadedSequence = sequence;
+                loadFailing = false;
+            } catch (IOException e) {
+                if (!loadFailing) {
+                    loadFailing = true;
+                    System.out.println("WARNING: Reservations could not be loaded, retrying on every tick - " + e.getMessage());
+                }
+            }
+        }
+
+        // Leases file of this site
+        static String file() {
+            return SiteRegistry.homeFile(FILE);
+        }
+
+        // Moves units of the earliest-expiring available lot that has enough of them into its reserved column and
+        // records the lease; returns null if no lot can cover the units. The inventory and leases.csv are rewritten in
+        // one FileCoordinator.rewriteAll, so a crash leaves either both changes or neither.
+        static Lease reserve(String owner, String bloodType, String component, int units, long holdMillis) throws IOException {
+            String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+            String leaseId = IdGenerator.next("");
+            long expiresAt = System.currentTimeMillis() + holdMillis;
+            List<String> reserved = new ArrayList<>();
+            Lease[] lease = new Lease[1];
+            Map<String, FileCoordinator.Rewrite<?>> bodies = new HashMap<>();
+            // inventory.csv sorts before leases.csv in the site's directory, so rewriteAll runs this body first and
+            // the lease can name the lot it picked
+            bodies.put(inventoryFile, (inventory, out) -> {
+                int chosen = -1;
+                String chosenExpiry = null;
+                for (int i = 0; i < inventory.size(); i++) {
+                    String[] data = inventory.get(i).split(",");
+                    if (data[0].equals(bloodType) && data[1].equals(component) && data[5].equals("AVAILABLE")
+                            && Integer.parseInt(data[2]) >= units && (chosenExpiry == null || data[3].compareTo(chosenExpiry) < 0)) {
+                        chosen = i;
+                        chosenExpiry = data[3];
+                    }
+                }
+                if (chosen < 0) {
+                    throw new Abandoned();
+                }
+                for (int i = 0; i < inventory.size(); i++) {
+                    if (i == chosen) {
+                        String[] data = inventory.get(i).split(",");
+                        String row = data[0] + "," + data[1] + "," + (Integer.parseInt(data[2]) - units) + "," + data[3] + ","
+                                     + (Integer.parseInt(data[4]) + units) + "," + data[5];
+                        out.add(row);
+                        reserved.add(row);
+                    } else {
+                        out.add(inventory.get(i));
+                    }
+                }
+                lease[0] = new Lease(leaseId, owner, bloodType, component, chosenExpiry, units, expiresAt, Lease.ACTIVE);
+                return null;
+            });
+            bodies.put(file(), (leases, out) -> {
+                out.addAll(leases);
+                out.add(lease[0].toCsv());
+                return null;
+            });
+            try {
+                ChangeBus.commit(bodies.keySet(), () -> {
+                    FileCoordinator.rewriteAll(bodies);
+                    return List.of(new ChangeBus.RowChanges(ChangeType.BLOOD_RESERVED, inventoryFile, reserved));
+                });
+            } catch (Abandoned e) {
+                return null;
+            }
+            wheel.schedule(lease[0].id(), lease[0].expiresAt());
+            return lease[0];
+        }
+
+        // Confirms or cancels an active lease and applies it to the inventory; returns null if the lease is not active
+        static Lease settle(String leaseId, String status) throws IOException {
+            List<Lease> settled = close(Set.of(leaseId), status, Long.MAX_VALUE);
+            if (settled.isEmpty()) {
+                return null;
+            }
+            wheel.cancel(leaseId);
+            return settled.get(0);
+        }
+
+        // Returns the units of lapsed leases to available stock
+        static void expire(Collection<String> leaseIds) throws IOException {
+            close(new HashSet<>(leaseIds), Lease.EXPIRED, System.currentTimeMillis());
+        }
+
+        // Active leases at this site, soonest to expire first
+        static List<Lease> active() throws IOException {
+            List<Lease> leases = new ArrayList<>();
+            for (String line : FileCoordinator.readLines(file())) {
+                Lease lease = Lease.parse(line);
+                if (lease.status().equals(Lease.ACTIVE)) {
+                    leases.add(lease);
+                }
+            }
+            leases.sort(Comparator.comparingLong(Lease::expiresAt));
+            return leases;
+        }
+
+        // Moves the given leases from ACTIVE to the new status if they expire no later than the deadline, takes their
+        // units out of the reserved column (issuing them, or returning them to available stock) and returns the ones
+        // that moved, dropping settled leases past the retention period. Both files are rewritten in one
+        // FileCoordinator.rewriteAll; the leases are picked beforehand and the commit is abandoned and tried again if
+        // leases.csv changed meanwhile, so when two processes race to settle or expire the same lease only one of
+        // them gets it back.
+        private static List<Lease> close(Set<String> leaseIds, String status, long deadline) throws IOException {
+            String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+            boolean issue = status.equals(Lease.CONFIRMED);
+            while (true) {
+                List<String> seen = FileCoordinator.readLines(file());
+                long cutoff = System.currentTimeMillis() - RETENTION_MS;
+                List<Lease> closed = new ArrayList<>();
+                List<String> kept = new ArrayList<>();
+                for (String line : seen) {
+                    Lease lease = Lease.parse(line);
+                    if (!lease.status().equals(Lease.ACTIVE) && lease.expiresAt() < cutoff) {
+                        continue;
+                    }
+                    if (leaseIds.contains(lease.id()) && lease.status().equals(Lease.ACTIVE) && lease.expiresAt() <= deadline) {
+                        lease = lease.with(status);
+                        closed.add(lease);
+                    }
+                    kept.add(lease.toCsv());
+                }
+                if (closed.isEmpty()) {
+                    return closed;
+                }
+                List<String> released = new ArrayList<>();
+                Map<String, FileCoordinator.Rewrite<?>> bodies = new HashMap<>();
+                bodies.put(inventoryFile, (inventory, out) -> {
+                    released.addAll(release(inventory, out, closed, issue));
+                    return null;
+                });
+                bodies.put(file(), (leases, out) -> {
+                    if (!leases.equals(seen)) {
+                        throw new Abandoned();
+                    }
+                    out.addAll(kept);
+                    return null;
+                });
+                try {
+                    ChangeBus.commit(bodies.keySet(), () -> {
+                        FileCoordinator.rewriteAll(bodies);
+                        return List.of(new ChangeBus.RowChanges(issue ? ChangeType.INVENTORY_CONSUMED : ChangeType.BLOOD_RELEASED, inventoryFile, released));
+                    });
+                    return closed;
+                } catch (Abandoned e) {
+                    // Another process changed the leases since they were read; pick them again
+                }
+            }
+        }
+
+        // Writes the inventory with the units of closed leases taken out of their lots' reserved column, either
+        // issuing them or returning them to the available column, and returns the rows changed. Restocking can move
+        // a lot's expiration date, so a lease whose exact lot is gone falls back to another lot of the same type and
+        // component.
+        private static List<String> release(List<String> inventory, List<String> out, List<Lease> leases, boolean issue) {
+            String[][] rows = new String[inventory.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = inventory.get(i).split(",");
+            }
+            boolean[] touched = new boolean[rows.length];
+            for (Lease lease : leases) {
+                int lot = -1;
+                for (int i = 0; i < rows.length && lot < 0; i++) {
+                    if (lease.holds(rows[i]) && Integer.parseInt(rows[i][4]) > 0) {
+                        lot = i;
+                    }
+                }
+                for (int i = 0; i < rows.length && lot < 0; i++) {
+                    if (rows[i][0].equals(lease.bloodType()) && rows[i][1].equals(lease.component()) && Integer.parseInt(rows[i][4]) > 0) {
+                        lot = i;
+                    }
+                }
+                if (lot < 0) {
+                    System.out.println("WARNING: No reserved " + lease.bloodType() + " " + lease.component()
+                                       + " units left in the inventory for reservation " + lease.id());
+                    continue;
+                }
+                int held = Math.min(lease.units(), Integer.parseInt(rows[lot][4]));
+                rows[lot][4] = String.valueOf(Integer.parseInt(rows[lot][4]) - held);
+                if (!issue) {
+                    rows[lot][2] = String.valueOf(Integer.parseInt(rows[lot][2]) + held);
+                }
+                touched[lot] = true;
+            }
+            List<String> updated = new ArrayList<>();
+            for (int i = 0; i < rows.length; i++) {
+                if (touched[i]) {
+                    String row = String.join(",", rows[i]);
+                    out.add(row);
+                    updated.add(row);
+                } else {
+                    out.add(inventory.get(i));
+                }
+            }
+            return updated;
+        }
+
+        // Returns reserved units that no active lease holds to available stock, per blood type and component. Earlier
+        // versions committed the inventory and the lease separately, so a crash in between could leave such units.
+        static void reconcile() throws IOException {
+            String inventoryFile = SiteRegistry.homeFile("inventory.csv");
+            while (true) {
+                FileCoordinator.Snapshot snapshot = FileCoordinator.snapshot(inventoryFile, file());
+                List<String> seen = snapshot.lines(file());
+                if (orphaned(snapshot.lines(inventoryFile), new ArrayList<>(), seen).isEmpty()) {
+                    return;
+                }
+                List<String> returned = new ArrayList<>();
+                Map<String, FileCoordinator.Rewrite<?>> bodies = new HashMap<>();
+                bodies.put(inventoryFile, (inventory, out) -> {
+                    returned.addAll(orphaned(inventory, out, seen));
+                    return null;
+                });
+                bodies.put(file(), (leases, out) -> {
+                    if (!leases.equals(seen)) {
+                        throw new Abandoned();
+                    }
+                    out.addAll(leases);
+                    return null;
+                });
+                try {
+                    ChangeBus.commit(bodies.keySet(), () -> {
+                        FileCoordinator.rewriteAll(bodies);
+                        return List.of(new ChangeBus.RowChanges(ChangeType.BLOOD_RELEASED, inventoryFile, returned));
+                    });
+                    System.out.println("WARNING: Returned reserved units no reservation holds to available stock in " + returned.size() + " lot(s)");
+                    return;
+                } catch (Abandoned e) {
+                    // Leases were taken out or settled meanwhile; look again
+                }
+            }
+        }
+
+        // Writes the inventory with the reserved units beyond what the active leases hold moved back to the
+        // available column, and returns the rows changed
+        private static List<String> orphaned(List<String> inventory, List<String> out, List<String> leases) {
+            Map<String, Integer> held = new HashMap<>(); // "type,component" -> units held by active leases
+            for (String line : leases) {
+                Lease lease = Lease.parse(line);
+                if (lease.status().equals(Lease.ACTIVE)) {
+                    held.merge(lease.bloodType() + "," + lease.component(), lease.units(), Integer::sum);
+                }
+            }
+            List<String> returned = new ArrayList<>();
+            for (String line : inventory) {
+                String[] data = line.split(",");
+                int reserved = Integer.parseInt(data[4]);
+                String key = data[0] + "," + data[1];
+                int kept = Math.min(reserved, held.getOrDefault(key, 0));
+                held.put(key, held.getOrDefault(key, 0) - kept);
+                if (kept < reserved) {
+                    data[2] = String.valueOf(Integer.parseInt(data[2]) + reserved - kept);
+                    data[4] = String.valueOf(kept);
+                    line = String.join(",", data);
+                    returned.add(line);
+                }
+                out.add(line);
+            }
+            return returned;
+        }
+
+        // Raised inside a lease transaction to abandon it before anything is written: no lot can cover a
+        // reservation, or leases.csv changed since the leases to settle were read
+        private static final class Abandoned extends IOException {
+            private static final long serialVersionUID = 1L;
+        }
+
+        // Hashed timing wheel: a ring of slots, each covering one tick. A lease goes into the slot of its deadline
+        // tick modulo the ring size, so scheduling and cancelling are O(1); each tick visits one slot and fires the
+        // entries whose deadline has come, leaving ones that are whole turns of the ring away.
+        static final class TimingWheel {
+            private final List<Map<String, Long>> slots = new ArrayList<>(); // Lease ID -> deadline tick
+            private final Map<String, Integer> slotOf = new HashMap<>();
+            private final long tickMillis;
+            private long nextTick = -1; // First tick not yet visited
+
+            TimingWheel(int slotCount, long tickMillis) {
+                for (int i = 0; i < slotCount; i++) {
+                    slots.add(new HashMap<>());
+                }
+                this.tickMillis = tickMillis;
+            }
+
+            synchronized void schedule(String id, long deadlineMillis) {
+                cancel(id);
+                long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, nextTick);
+                int slot = (int) Math.floorMod(tick, (long) slots.size());
+                slots.get(slot).put(id, tick);
+                slotOf.put(id, slot);
+            }
+
+            synchronized void cancel(String id) {
+                Integer slot = slotOf.remove(id);
+                if (slot != null) {
+                    slots.get(slot).remove(id);
+                }
+            }
+
+            // Visits the slots of every tick up to now (each slot at most once after a long stall) and returns the
+            // IDs whose deadline has passed
+            synchronized List<String> advance(long nowMillis) {
+                long now = nowMillis / tickMillis;
+                if (nextTick < 0) {
+                    nextTick = now - slots.size() + 1; // First call: sweep the whole ring to fire leases that lapsed earlier
+                }
+                List<String> due = new ArrayList<>();
+                for (long tick = Math.max(nextTick, now - slots.size() + 1); tick <= now; tick++) {
+                    Iterator<Map.Entry<String, Long>> entries = slots.get((int) Math.floorMod(tick, (long) slots.size())).entrySet().iterator();
+                    while (entries.hasNext()) {
+                        Map.Entry<String, Long> entry = entries.next();
+                        if (entry.getValue() <= now) {
+                            due.add(entry.getKey());
+                            slotOf.remove(entry.getKey());
+                            entries.remove();
+                        }
+                    }
+                }
+                nextTick = Math.max(nextTick, now + 1);
+                return due;
+            }
+        }
+    }
+
+    // HistoryArchive class for the cold tier of tests.csv and each site's requests.csv. Tests that are COMPLETED
+    // and requests that are FULFILLED never change again, so the tiering job (--archive) moves them out of the
+    // hot file into gzip segments under archive/<dataset>/ next to it, one segment per month of the row's date.
+    // Each job run sorts the rows of a segment by user ID (the second column), appends them as gzip members of up
+    // to BLOCK_ROWS rows (a gzip file may hold several members) and records each member in index.csv as
+    // segment,offset,length,rows,firstKey,lastKey. Looking up one user's history therefore inflates about one
+    // member per segment and job run instead of the whole archive. Members are written and forced
+    // before the index commit and the index before the hot file loses the rows: a crash leaves rows in both tiers
+    // at worst, and readers keep the first copy of each row ID they see, hot tier first.
+    static class HistoryArchive {
+        private static final int BLOCK_ROWS = 512; // Rows per gzip member
+        private static final String UNDATED = "undated"; // Segment of rows from before dates were recorded
+
+        // The hot file of a tiered dataset and where its rows keep their date and status
+        record Tier(String hotFile, int dateColumn, int statusColumn, String terminalStatus) {
+            // Picks the layout from the dataset's file name (tests.csv or requests.csv)
+            static Tier of(String hotFile) {
+                return Paths.get(hotFile).getFileName().toString().equals("tests.csv")
+                       ? new Tier(hotFile, 3, 4, "COMPLETED") : new Tier(hotFile, 6, 5, "FULFILLED");
+            }
+
+            Path directory() {
+                String name = Paths.get(hotFile).getFileName().toString();
+                return Paths.get(hotFile).toAbsolutePath().resolveSibling("archive").resolve(name.substring(0, name.length() - 4));
+            }
+
+            String index() {
+                return directory().resolve("index.csv").toString();
+            }
+
+            // Whether a row has reached its final state and has been there for at least the given number of days
+            boolean archivable(String[] row, LocalDate cutoff) {
+                return row.length > statusColumn && row[statusColumn].equals(terminalStatus)
+                       && (row.length <= dateColumn || row[dateColumn].isEmpty() || !LocalDate.parse(row[dateColumn]).isAfter(cutoff));
+            }
+
+            // Month segment a row belongs to
+            String segment(String[] row) {
+                return row.length > dateColumn && row[dateColumn].length() >= 7 ? row[dateColumn].substring(0, 7) : UNDATED;
+            }
+        }
+
+        // One gzip member of a segment and the range of user IDs in it
+        record Member(String segment, long offset, long length, int rows, String firstKey, String lastKey) {
+            static Member parse(String line) {
+                String[] data = line.split(",");
+                return new Member(data[0], Long.parseLong(data[1]), Long.parseLong(data[2]), Integer.parseInt(data[3]), data[4], data[5]);
+            }
+
+            String toCsv() {
+                return segment + "," + offset + "," + length + "," + rows + "," + firstKey + "," + lastKey;
+            }
+
+            boolean mayHold(String key) {
+                return firstKey.compareTo(key) <= 0 && lastKey.compareTo(key) >= 0;
+            }
+        }
+
+        // The tiered datasets: tests.csv and the requests.csv of every site
+        static List<Tier> tiers() {
+            List<Tier> tiers = new ArrayList<>(List.of(Tier.of("tests.csv")));
+            for (Site site : SiteRegistry.all()) {
+                tiers.add(Tier.of(site.file("requests.csv")));
+            }
+            return tiers;
+        }
+
+        // Copies the segments and index to backup files; the index is held steady meanwhile, and segments only
+        // grow past what it lists, so the copies are consistent with it
+        static void backup(Tier tier) throws IOException {
+            if (!Files.exists(Paths.get(tier.index()))) {
+                return;
+            }
+            FileCoordinator.shared(tier.index(), () -> {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(tier.directory(), "{*.csv.gz,index.csv}")) {
+                    for (Path file : files) {
+                        Files.copy(file, file.resolveSibling(file.getFileName() + "backup_"), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                return null;
+            });
+        }
+
+        // Moves the terminal rows older than the given number of days out of the hot file; returns how many moved
+        static int archive(Tier tier, int afterDays) throws IOException {
+            if (!Files.exists(Paths.get(tier.hotFile()))) {
+                return 0;
+            }
+            LocalDate cutoff = LocalDate.now().minusDays(afterDays);
+            Map<String, List<String>> segments = new TreeMap<>();
+            Set<String> moved = new HashSet<>();
+            for (String line : FileCoordinator.readLines(tier.hotFile())) {
+                String[] data = line.split(",");
+                if (tier.archivable(data, cutoff)) {
+                    segments.computeIfAbsent(tier.segment(data), k -> new ArrayList<>()).add(line);
+                    moved.add(line);
+                }
+            }
+            if (moved.isEmpty()) {
+                return 0;
+            }
+            Files.createDirectories(tier.directory());
+            FileCoordinator.exclusive(tier.index(), () -> {
+                Path index = Paths.get(tier.index());
+                Map<String, Long> committedEnds = new HashMap<>();
+                for (Member member : members(Files.exists(index) ? Files.readAllLines(index) : List.of(), null)) {
+                    committedEnds.merge(member.segment(), member.offset() + member.length(), Math::max);
+                }
+                List<String> entries = new ArrayList<>();
+                for (Map.Entry<String, List<String>> segment : segments.entrySet()) {
+                    Path file = tier.directory().resolve(segment.getKey() + ".csv.gz");
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        // Cut off a member torn by a crash before its index entries were written
+                        long offset = committedEnds.getOrDefault(segment.getKey(), 0L);
+                        channel.truncate(offset);
+                        List<String> rows = segment.getValue();
+                        rows.sort(Comparator.comparing(HistoryArchive::key)); // Stable, so each user's rows keep their order
+                        for (int from = 0; from < rows.size(); from += BLOCK_ROWS) {
+                            List<String> block = rows.subList(from, Math.min(rows.size(), from + BLOCK_ROWS));
+                            ByteBuffer member = ByteBuffer.wrap(compress(block));
+                            long length = member.remaining();
+                            while (member.hasRemaining()) {
+                                channel.write(member, offset + member.position());
+                            }
+                            entries.add(new Member(segment.getKey(), offset, length, block.size(), key(block.get(0)),
+                                                   key(block.get(block.size() - 1))).toCsv());
+                            offset += length;
+                        }
+                        channel.force(true);
+                    }
+                }
+                Files.write(index, entries, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                return null;
+            });
+            GroupCommit.forceDirectory(tier.directory());
+            FileCoordinator.rewrite(tier.hotFile(), (lines, out) -> {
+                for (String line : lines) {
+                    if (!moved.contains(line)) {
+                        out.add(line);
+                    }
+                }
+                return null;
+            });
+            return moved.size();
+        }
+
+        // Archived rows whose user ID column (the second) matches the key, oldest segment first
+        static List<String> lookup(Tier tier, String key) throws IOException {
+            List<String> rows = new ArrayList<>();
+            for (Member member : members(indexLines(tier), key)) {
+                for (String row : inflate(tier, member)) {
+                    if (key(row).equals(key)) {
+                        rows.add(row);
+                    }
+                }
+            }
+            return rows;
+        }
+
+        // Streams every archived row, oldest segment first
+        static void scan(Tier tier, Consumer<String> rows) throws IOException {
+            scan(tier, segment -> true, rows);
+        }
+
+        // Streams the archived rows of the segments (yyyy-MM or undated) the filter accepts, oldest first; the
+        // other segments are not opened
+        static void scan(Tier tier, Predicate<String> segments, Consumer<String> rows) throws IOException {
+            for (Member member : members(indexLines(tier), null)) {
+                if (segments.test(member.segment())) {
+                    inflate(tier, member).forEach(rows);
+                }
+            }
+        }
+
+        // Rows of both tiers that match: archived rows first, then the hot ones; a row ID seen twice (left over by
+        // a job interrupted between the two tiers) is kept once, the hot copy winning
+        static <T> List<T> span(Tier tier, String key, List<T> hotRows, Function<T, String> id, Function<String, T> decoder) throws IOException {
+            Set<String> ids = new HashSet<>();
+            for (T row : hotRows) {
+                ids.add(id.apply(row));
+            }
+            List<T> rows = new ArrayList<>();
+            for (String line : lookup(tier, key)) {
+                T row = decoder.apply(line);
+                if (ids.add(id.apply(row))) {
+                    rows.add(row);
+                }
+            }
+            rows.addAll(hotRows);
+            return rows;
+        }
+
+        private static List<String> indexLines(Tier tier) throws IOException {
+            return Files.exists(Paths.get(tier.index())) ? FileCoordinator.readLines(tier.index()) : List.of();
+        }
+
+        // Members in the index, restricted to those whose key range covers the key when it is not null, ordered
+        // by segment (undated rows first) and position
+        private static List<Member> members(List<String> index, String key) {
+            List<Member> members = new ArrayList<>();
+            for (String line : index) {
+                Member member = Member.parse(line);
+                if (key == null || member.mayHold(key)) {
+                    members.add(member);
+                }
+            }
+            members.sort(Comparator.comparing((Member m) -> !m.segment().equals(UNDATED)).thenComparing(Member::segment)
+                                   .thenComparingLong(Member::offset));
+            return members;
+        }
+
+        // User ID of a row
+        private static String key(String row) {
+            int start = row.indexOf(',') + 1;
+            int end = row.indexOf(',', start);
+            return row.substring(start, end < 0 ? row.length() : end);
+        }
+
+        private static byte[] compress(List<String> rows) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), Charset.defaultCharset())) {
+                for (String row : rows) {
+                    writer.write(row);
+                    writer.write('\n');
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private static List<String> inflate(Tier tier, Member member) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) member.length());
+            try (FileChannel channel = FileChannel.open(tier.directory().resolve(member.segment() + ".csv.gz"), StandardOpenOption.READ)) {
+                while (buffer.hasRemaining() && channel.read(buffer, member.offset() + buffer.position()) > 0) {
+                    // Keep reading until the member is complete
+                }
+            }
+            List<String> rows = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position())), Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    rows.add(line);
+                }
+            }
+            return rows;
+        }
+    }
+
+    // Urgency of a recipient or blood request, interned from its label ("High", "Medium", "Low") when rows are read
+    enum Urgency {
+        HIGH("High"), MEDIUM("Medium"), LOW("Low");
+
+        final String label; // Label as stored in the CSV files
+
+        Urgency(String label) {
+            this.label = label;
+        }
+
+        // Returns the urgency for a label in any letter case, or null if it is not one of the three
+        static Urgency of(String label) {
+            for (Urgency urgency : values()) {
+                if (urgency.label.equalsIgnoreCase(label)) {
+                    return urgency;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Status of a row in inventory.csv
+    enum StockStatus { AVAILABLE, BLOCKED }
+
+    // Status of a row in tests.csv
+    enum TestStatus { PENDING, COMPLETED }
+
+    // Status of a row in requests.csv
+    enum RequestStatus { PENDING, FULFILLED }
+
+    // One row of a site's inventory.csv: bloodType,component,units,expDate,reserved,status. The group is null
+    // for a label outside the eight blood groups, which is kept as entered.
+    record InventoryItem(String bloodType, BloodGroup group, String component, int units, LocalDate expiry, int reserved, StockStatus status) {
+        static InventoryItem parse(String line) {
+            String[] data = line.split(",");
+            return new InventoryItem(data[0], BloodGroup.of(data[0]), data[1], Integer.parseInt(data[2]), LocalDate.parse(data[3]),
+                                     Integer.parseInt(data[4]), StockStatus.valueOf(data[5]));
+        }
+    }
+
+    // One row of tests.csv: id,userId,userType,requestDate,status,result (empty until the test is completed)
+    record TestRequest(String id, String userId, String userType, LocalDate requestDate, TestStatus status, String result) {
+        static TestRequest parse(String line) {
+            String[] data = line.split(",");
+            return new TestRequest(data[0], data[1], data[2], LocalDate.parse(data[3]), TestStatus.valueOf(data[4]), data.length > 5 ? data[5] : "");
+        }
+    }
+
+    // One row of a site's requests.csv: id,recipientId,bloodType,units,urgency,status,date,component. Rows from
+    // before dates and components were recorded have a null date and an empty component; the group and urgency
+    // are null for labels outside their enums.
+    record BloodRequest(String id, String recipientId, String bloodType, BloodGroup group, int units, Urgency urgency,
+                        RequestStatus status, LocalDate date, String component) {
+        static BloodRequest parse(String line) {
+            String[] data = line.split(",");
+            return new BloodRequest(data[0], data[1], data[2], BloodGroup.of(data[2]), Integer.parseInt(data[3]), Urgency.of(data[4]),
+                                    RequestStatus.valueOf(data[5]), data.length > 6 && !data[6].isEmpty() ? LocalDate.parse(data[6]) : null,
+                                    data.length > 7 ? data[7] : "");
+        }
+    }
+
+    // One row of a site's schedules.csv: donorId,date,location
+    record Schedule(String donorId, LocalDate date, String location) {
+        static Schedule parse(String line) {
+            String[] data = line.split(",", 3);
+            return new Schedule(data[0], LocalDate.parse(data[1]), data.length > 2 ? data[2] : "");
+        }
+    }
+
+    // One row of log.csv: date,userId,role,action,details (the details may contain commas)
+    record AuditEvent(LocalDate date, String userId, String role, String action, String details) {
+        static AuditEvent parse(String line) {
+            String[] data = line.split(",", 5);
+            return new AuditEvent(LocalDate.parse(data[0]), data[1], data[2], data[3], data.length > 4 ? data[4] : "");
+        }
+
+        private static final Pattern FIELD_BREAKS = Pattern.compile("[,\r\n]"); // Would shift the fields after them or start a bogus line
+        private static final Pattern LINE_BREAKS = Pattern.compile("[\r\n]");
+
+        // Typed input such as a failed login's user ID can hold anything, so commas and line breaks are blanked out
+        // of every field; the details are the last field and may keep their commas
+        String toCsv() {
+            return date + "," + FIELD_BREAKS.matcher(userId).replaceAll(" ") + "," + FIELD_BREAKS.matcher(role).replaceAll(" ") + ","
+                   + FIELD_BREAKS.matcher(action).replaceAll(" ") + "," + LINE_BREAKS.matcher(details).replaceAll(" ");
+        }
+    }
+
+    // RecordCache class to decode each version of a dataset into typed records once. Every caller of the same
+    // version shares one immutable list; a version that only appended lines to the cached one decodes just
+    // the new lines and reuses the records before them.
+    static final class RecordCache {
+        private record Entry(long sequence, List<String> lines, List<?> records) {}
+
+        private static final Map<String, Entry> entries = new ConcurrentHashMap<>(); // Record type @ dataset -> newest version
+
+        // Records of the current version of a dataset
+        static <T> List<T> of(String file, Class<T> type, Function<String, T> decoder) throws IOException {
+            return of(file, FileCoordinator.read(file), type, decoder);
+        }
+
+        // Records of a given version of a dataset, e.g. one pinned by a snapshot
+        @SuppressWarnings("unchecked")
+        static <T> List<T> of(String file, FileCoordinator.Versioned version, Class<T> type, Function<String, T> decoder) {
+            String key = type.getName() + "@" + file;
+            Entry entry = entries.get(key);
+            if (entry != null && entry.sequence() == version.sequence()) {
+                return (List<T>) entry.records();
+            }
+            List<String> lines = version.lines();
+            List<T> records = new ArrayList<>(lines.size());
+            int from = 0;
+            if (entry != null && FileCoordinator.Lines.extendsVersion(lines, entry.lines())) {
+                records.addAll((List<T>) entry.records());
+                from = entry.lines().size();
+            }
+            for (int i = from; i < lines.size(); i++) {
+                records.add(decoder.apply(lines.get(i)));
+            }
+            List<T> decoded = Collections.unmodifiableList(records);
+            if (entry == null || version.sequence() > entry.sequence()) {
+                entries.put(key, new Entry(version.sequence(), lines, decoded));
+            }
+            return decoded;
+        }
+    }
+
+    // QueryEngine class for one-off questions over donors, recipients, inventory, requests and tests, in a small
+    // query language:
+    //   [EXPLAIN] SELECT <* | field | COUNT | SUM(f) | AVG(f) | MIN(f) | MAX(f), ...> FROM <dataset>
+    //             [WHERE <field> <op> <value> [AND ...]] [GROUP BY <field>] [ORDER BY <column> [ASC | DESC]] [LIMIT <n>]
+    // Operators are = != < <= > >= and ~ (contains); text compares ignoring case. Values are numbers, dates
+    // (YYYY-MM-DD, TODAY or TODAY-<days>), TRUE/FALSE, or text, quoted with ' when it has spaces.
+    // Rows are decoded once per dataset version through the RecordCache. The planner looks up an exact ID in the
+    // search index, reads a user's archived requests or tests through the archive index, and otherwise scans:
+    // the cold tier is skipped when a status condition rules out terminal rows and pruned to the months a date
+    // condition allows. Conditions run cheapest first and stop at the first that fails; a LIMIT without grouping
+    // or ordering stops the scan once enough rows match, and large scans are split across a fork-join pool.
+    static final class QueryEngine {
+        private static final int PARALLEL_ROWS = Integer.getInteger("bbms.queryParallelRows", 50_000); // Scan in parallel from this size
+        private static final int MIN_CHUNK_ROWS = 4_096; // Smallest slice worth a parallel scan task
+        private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        enum Type { TEXT, NUMBER, DATE, BOOL }
+
+        // A queryable field; base fields read a slot of the decoded row, derived ones compute from it
+        record Column(String name, Type type, Function<Object[], Object> get) {
+            static Column of(String name, Type type, int slot) {
+                return new Column(name, type, row -> row[slot]);
+            }
+        }
+
+        // One file of a dataset, how its rows are decoded and, for tiered files, its archive
+        record Part(String file, Function<String, Object[]> decoder, HistoryArchive.Tier tier) {}
+
+        // A dataset: its fields, its files, the field looked up by the search index (donors and recipients) and
+        // the field the archive is indexed by (requests and tests)
+        record Dataset(String name, List<Column> columns, List<Part> parts, String idField, String archiveKey) {
+            Column column(String field) {
+                for (Column column : columns) {
+                    if (column.name().equalsIgnoreCase(field)) {
+                        return column;
+                    }
+                }
+                throw new IllegalArgumentException("Unknown field " + field + " in " + name + "; fields are "
+                                                   + String.join(", ", columns.stream().map(Column::name).toList()));
+            }
+        }
+
+        // field op value
+        record Condition(Column column, String op, Object value) {
+            boolean test(Object[] row) {
+                Object actual = column.get().apply(row);
+                if (actual == null) {
+                    return op.equals("!=");
+                }
+                if (op.equals("~")) {
+                    return actual.toString().toLowerCase().contains(value.toString().toLowerCase());
+                }
+                int order = compare(actual, value);
+                return switch (op) {
+                    case "=" -> order == 0;
+                    case "!=" -> order != 0;
+                    case "<" -> order < 0;
+                    case "<=" -> order <= 0;
+                    case ">" -> order > 0;
+                    default -> order >= 0;
+                };
+            }
+
+            // Rough evaluation cost, so cheap and selective conditions run first
+            int cost() {
+                int cost = switch (op) {
+                    case "=" -> 0;
+                    case "~" -> 3;
+                    default -> 1;
+                };
+                return cost + (column.type() == Type.DATE ? 1 : 0);
+            }
+
+            @Override
+            public String toString() {
+                return column.name() + " " + op + " " + (value instanceof String ? "'" + value + "'" : value);
+            }
+        }
+
+        // A SELECT item: a field, or an aggregate over a field (COUNT has none)
+        record Item(String function, Column column) {
+            boolean aggregate() {
+                return function != null;
+            }
+
+            String header() {
+                return function == null ? column.name() : function.equals("count") ? "count" : function + "(" + column.name() + ")";
+            }
+        }
+
+        // A parsed query
+        record Query(boolean explain, Dataset dataset, List<Item> items, List<Condition> conditions, Column groupBy,
+                     String orderBy, boolean descending, int limit) {
+            boolean aggregating() {
+                return groupBy != null || items.stream().anyMatch(Item::aggregate);
+            }
+
+            boolean matches(Object[] row) {
+                for (Condition condition : conditions) {
+                    if (!condition.test(row)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            // Whether the scan may stop once `limit` rows match
+            boolean shortCircuits() {
+                return limit > 0 && !aggregating() && orderBy == null;
+            }
+        }
+
+        // The result table, the plan that produced it and how many rows were examined
+        record Result(List<String> header, List<List<Object>> rows, List<String> plan, long examined, long elapsedNanos) {
+            void print(PrintWriter out) {
+                if (!header.isEmpty()) {
+                    out.println(String.join(" | ", header));
+                    out.println("-".repeat(Math.max(20, String.join(" | ", header).length())));
+                }
+                for (List<Object> row : rows) {
+                    StringJoiner line = new StringJoiner(" | ");
+                    for (Object value : row) {
+                        line.add(value == null ? "" : value instanceof Double d ? String.format("%.2f", d) : value.toString());
+                    }
+                    out.println(line);
+                }
+                out.printf("%d row(s), %d examined, %.1f ms%n", rows.size(), examined, elapsedNanos / 1e6);
+                out.flush();
+            }
+        }
+
+        // Running aggregates of one group
+        private static final class Group {
+            final Object key;
+            final double[] sums;
+            final long[] counts;
+            final Object[] mins;
+            final Object[] maxs;
+
+            Group(Object key, int items) {
+                this.key = key;
+                sums = new double[items];
+                counts = new long[items];
+                mins = new Object[items];
+                maxs = new Object[items];
+            }
+
+            void add(List<Item> items, Object[] row) {
+                for (int i = 0; i < items.size(); i++) {
+                    Item item = items.get(i);
+                    if (!item.aggregate()) {
+                        continue;
+                    }
+                    Object value = item.column() == null ? Boolean.TRUE : item.column().get().apply(row);
+                    if (value == null) {
+                        continue;
+                    }
+                    counts[i]++;
+                    if (value instanceof Long number) {
+                        sums[i] += number;
+                    }
+                    if (mins[i] == null || compare(value, mins[i]) < 0) {
+                        mins[i] = value;
+                    }
+                    if (maxs[i] == null || compare(value, maxs[i]) > 0) {
+                        maxs[i] = value;
+                    }
+                }
+            }
+
+            void merge(Group other) {
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += other.sums[i];
+                    counts[i] += other.counts[i];
+                    if (other.mins[i] != null && (mins[i] == null || compare(other.mins[i], mins[i]) < 0)) {
+                        mins[i] = other.mins[i];
+                    }
+                    if (other.maxs[i] != null && (maxs[i] == null || compare(other.maxs[i], maxs[i]) > 0)) {
+                        maxs[i] = other.maxs[i];
+                    }
+                }
+            }
+
+            List<Object> output(List<Item> items) {
+                List<Object> row = new ArrayList<>(items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    row.add(switch (items.get(i).function() == null ? "" : items.get(i).function()) {
+                        case "" -> key;
+                        case "count" -> counts[i];
+                        case "sum" -> (long) sums[i];
+                        case "avg" -> counts[i] == 0 ? null : sums[i] / counts[i];
+                        case "min" -> mins[i];
+                        default -> maxs[i];
+                    });
+                }
+                return row;
+            }
+        }
+
+        // Matching rows or groups found by one scan task
+        private static final class Partial {
+            private final Query query;
+            final List<Object[]> rows = new ArrayList<>();
+            final Map<Object, Group> groups = new LinkedHashMap<>();
+            long examined;
+
+            Partial(Query query) {
+                this.query = query;
+            }
+
+            // Takes one row; returns false once the scan can stop
+            boolean accept(Object[] row) {
+                examined++;
+                if (query.matches(row)) {
+                    if (query.aggregating()) {
+                        Object key = query.groupBy() == null ? "" : query.groupBy().get().apply(row);
+                        groups.computeIfAbsent(key, k -> new Group(k, query.items().size())).add(query.items(), row);
+                    } else {
+                        rows.add(row);
+                    }
+                }
+                return !query.shortCircuits() || rows.size() < query.limit();
+            }
+
+            void merge(Partial other) {
+                examined += other.examined;
+                rows.addAll(other.rows);
+                other.groups.forEach((key, group) -> groups.merge(key, group, (a, b) -> {
+                    a.merge(b);
+                    return a;
+                }));
+            }
+        }
+
+        // Parses, plans and runs a query
+        static Result run(String text) throws IOException {
+            long started = System.nanoTime();
+            Query query = parse(text);
+            List<String> plan = new ArrayList<>();
+            Partial result = execute(query, plan, query.explain());
+            if (query.explain()) {
+                return new Result(List.of("plan"), plan.stream().map(step -> List.<Object>of(step)).toList(), plan, 0, System.nanoTime() - started);
+            }
+            List<String> header = query.items().stream().map(Item::header).toList();
+            List<List<Object>> rows = new ArrayList<>();
+            if (query.aggregating()) {
+                if (result.groups.isEmpty() && query.groupBy() == null) {
+                    result.groups.put("", new Group("", query.items().size()));
+                }
+                for (Group group : result.groups.values()) {
+                    rows.add(group.output(query.items()));
+                }
+            } else {
+                for (Object[] row : result.rows) {
+                    List<Object> out = new ArrayList<>(query.items().size());
+                    for (Item item : query.items()) {
+                        out.add(item.column().get().apply(row));
+                    }
+                    rows.add(out);
+                }
+            }
+            if (query.orderBy() != null) {
+                int index = header.indexOf(query.orderBy());
+                if (index < 0) {
+                    throw new IllegalArgumentException("ORDER BY " + query.orderBy() + " is not a selected column; columns are " + String.join(", ", header));
+                }
+                Comparator<List<Object>> order = (a, b) -> a.get(index) == null ? (b.get(index) == null ? 0 : -1)
+                                                           : b.get(index) == null ? 1 : compare(a.get(index), b.get(index));
+                rows.sort(query.descending() ? order.reversed() : order);
+            }
+            if (query.limit() > 0 && rows.size() > query.limit()) {
+                rows = new ArrayList<>(rows.subList(0, query.limit()));
+            }
+            return new Result(header, rows, plan, result.examined, System.nanoTime() - started);
+        }
+
+        // Chooses the access path, describes it in the plan and, unless only explaining, runs it
+        private static Partial execute(Query query, List<String> plan, boolean explainOnly) throws IOException {
+            Dataset dataset = query.dataset();
+            Partial total = new Partial(query);
+            Condition byId = equality(query, dataset.idField());
+            Condition byKey = equality(query, dataset.archiveKey());
+            if (byId != null) {
+                // Exact ID: one probe of the search index's ID table instead of a scan
+                boolean recipients = dataset.name().equals("recipients");
+                plan.add("ACCESS  id lookup in the search index (" + byId + ")");
+                describeFilter(query, plan);
+                if (!explainOnly) {
+                    String row = PersonSearchIndex.current().row(recipients, byId.value().toString());
+                    if (row == null) {
+                        row = PersonSearchIndex.current().row(recipients, byId.value().toString().toUpperCase());
+                    }
+                    if (row != null) {
+                        total.accept(dataset.parts().get(0).decoder().apply(row));
+                    }
+                }
+                return total;
+            }
+            boolean coldTier = !ruledOutTerminal(query);
+            Predicate<String> segments = segmentFilter(query);
+            for (Part part : dataset.parts()) {
+                List<Object[]> hot = RecordCache.of(part.file(), Object[].class, part.decoder());
+                // About four slices per worker, so uneven slices still keep every core busy
+                int chunkRows = Math.max(MIN_CHUNK_ROWS, hot.size() / (POOL.getParallelism() * 4) + 1);
+                int chunks = hot.size() >= PARALLEL_ROWS && !query.shortCircuits() ? (hot.size() + chunkRows - 1) / chunkRows : 1;
+                plan.add("ACCESS  scan " + part.file() + " (" + hot.size() + " rows" + (chunks > 1 ? ", " + chunks + " parallel tasks" : "") + ")");
+                if (!explainOnly) {
+                    if (chunks > 1) {
+                        List<Callable<Partial>> tasks = new ArrayList<>();
+                        for (int chunk = 0; chunk < chunks; chunk++) {
+                            List<Object[]> slice = hot.subList(chunk * chunkRows, Math.min(hot.size(), (chunk + 1) * chunkRows));
+                            tasks.add(() -> {
+                                Partial partial = new Partial(query);
+                                for (Object[] row : slice) {
+                                    partial.accept(row);
+                                }
+                                return partial;
+                            });
+                        }
+                        for (Future<Partial> partial : POOL.invokeAll(tasks)) {
+                            try {
+                                total.merge(partial.get());
+                            } catch (InterruptedException | ExecutionException e) {
+                                throw new IOException("Parallel scan failed", e);
+                            }
+                        }
+                    } else {
+                        for (Object[] row : hot) {
+                            if (!total.accept(row)) {
+                                return total;
+                            }
+                        }
+                    }
+                }
+                if (part.tier() == null) {
+                    continue;
+                }
+                if (!coldTier) {
+                    plan.add("PRUNE   archive of " + part.file() + " skipped: it only holds " + part.tier().terminalStatus() + " rows");
+                } else if (byKey != null) {
+                    plan.add("ACCESS  archive index of " + part.file() + " (" + byKey + ")");
+                    if (!explainOnly) {
+                        for (String line : HistoryArchive.lookup(part.tier(), byKey.value().toString())) {
+                            if (!total.accept(part.decoder().apply(line))) {
+                                return total;
+                            }
+                        }
+                    }
+                } else {
+                    plan.add("ACCESS  stream archive of " + part.file() + (segments == null ? "" : ", months pruned by date"));
+                    if (!explainOnly) {
+                        boolean[] more = {true};
+                        HistoryArchive.scan(part.tier(), segments == null ? segment -> true : segments, line -> {
+                            if (more[0]) {
+                                more[0] = total.accept(part.decoder().apply(line));
+                            }
+                        });
+                        if (!more[0]) {
+                            return total;
+                        }
+                    }
+                }
+            }
+            describeFilter(query, plan);
+            return total;
+        }
+
+        private static void describeFilter(Query query, List<String> plan) {
+            if (!query.conditions().isEmpty()) {
+                plan.add("FILTER  " + String.join(" AND ", query.conditions().stream().map(Condition::toString).toList()));
+            }
+            if (query.aggregating()) {
+                plan.add("AGGREGATE " + (query.groupBy() == null ? "all rows" : "GROUP BY " + query.groupBy().name()));
+            }
+            if (query.orderBy() != null) {
+                plan.add("ORDER   " + query.orderBy() + (query.descending() ? " DESC" : ""));
+            }
+            if (query.limit() > 0) {
+                plan.add("LIMIT   " + query.limit() + (query.shortCircuits() ? " (scan stops early)" : ""));
+            }
+        }
+
+        // The equality condition on a field, if the query has one
+        private static Condition equality(Query query, String field) {
+            if (field == null) {
+                return null;
+            }
+            for (Condition condition : query.conditions()) {
+                if (condition.column().name().equals(field) && condition.op().equals("=")) {
+                    return condition;
+                }
+            }
+            return null;
+        }
+
+        // Whether a status condition excludes the terminal status, which is all the archive holds
+        private static boolean ruledOutTerminal(Query query) {
+            for (Part part : query.dataset().parts()) {
+                if (part.tier() == null) {
+                    continue;
+                }
+                for (Condition condition : query.conditions()) {
+                    if (condition.column().name().equals("status") && (condition.op().equals("=") || condition.op().equals("!="))) {
+                        boolean terminal = condition.value().toString().equalsIgnoreCase(part.tier().terminalStatus());
+                        if (condition.op().equals("=") != terminal) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            return false;
+        }
+
+        // Month segments that can hold rows matching the date conditions, or null if there are none
+        private static Predicate<String> segmentFilter(Query query) {
+            String from = null;
+            String to = null;
+            for (Condition condition : query.conditions()) {
+                if (!condition.column().name().equals("date") || condition.op().equals("!=") || condition.op().equals("~")) {
+                    continue;
+                }
+                String month = condition.value().toString().substring(0, 7);
+                if (!condition.op().startsWith("<") && (from == null || month.compareTo(from) > 0)) {
+                    from = month;
+                }
+                if (!condition.op().startsWith(">") && (to == null || month.compareTo(to) < 0)) {
+                    to = month;
+                }
+            }
+            if (from == null && to == null) {
+                return null;
+            }
+            String low = from;
+            String high = to;
+            return segment -> !segment.equals("undated") && (low == null || segment.compareTo(low) >= 0) && (high == null || segment.compareTo(high) <= 0);
+        }
+
+        private static int compare(Object a, Object b) {
+            if (a instanceof String x && b instanceof String y) {
+                return x.compareToIgnoreCase(y);
+            }
+            @SuppressWarnings("unchecked")
+            Comparable<Object> comparable = (Comparable<Object>) a;
+            return comparable.compareTo(b);
+        }
+
+        // The datasets and their fields
+        static Dataset dataset(String name) {
+            Type text = Type.TEXT;
+            Type number = Type.NUMBER;
+            Type date = Type.DATE;
+            return switch (name.toLowerCase()) {
+                case "donors" -> new Dataset("donors", List.of(Column.of("id", text, 0), Column.of("name", text, 1), Column.of("age", number, 2),
+                        Column.of("blood_type", text, 3), Column.of("contact", text, 4), Column.of("last_donation", date, 5),
+                        new Column("eligible", Type.BOOL, row -> row[5] == null || !((LocalDate) row[5]).isAfter(LocalDate.now().minusDays(90)))),
+                        List.of(new Part("donors.csv", QueryEngine::personRow, null)), "id", null);
+                case "recipients" -> new Dataset("recipients", List.of(Column.of("id", text, 0), Column.of("name", text, 1), Column.of("age", number, 2),
+                        Column.of("blood_type", text, 3), Column.of("contact", text, 4), Column.of("urgency", text, 5)),
+                        List.of(new Part("recipients.csv", QueryEngine::personRow, null)), "id", null);
+                case "inventory" -> {
+                    List<Part> parts = new ArrayList<>();
+                    for (Site site : SiteRegistry.all()) {
+                        parts.add(new Part(site.file("inventory.csv"), line -> inventoryRow(site.id(), line), null));
+                    }
+                    yield new Dataset("inventory", List.of(Column.of("site", text, 0), Column.of("blood_type", text, 1), Column.of("component", text, 2),
+                            Column.of("units", number, 3), Column.of("expiry", date, 4), Column.of("reserved", number, 5), Column.of("status", text, 6),
+                            new Column("days_to_expiry", number, row -> ChronoUnit.DAYS.between(LocalDate.now(), (LocalDate) row[4]))),
+                            parts, null, null);
+                }
+                case "requests" -> {
+                    List<Part> parts = new ArrayList<>();
+                    for (Site site : SiteRegistry.all()) {
+                        String file = site.file("requests.csv");
+                        parts.add(new Part(file, line -> requestRow(site.id(), line), HistoryArchive.Tier.of(file)));
+                    }
+                    yield new Dataset("requests", List.of(Column.of("site", text, 0), Column.of("id", text, 1), Column.of("recipient_id", text, 2),
+                            Column.of("blood_type", text, 3), Column.of("units", number, 4), Column.of("urgency", text, 5), Column.of("status", text, 6),
+                            Column.of("date", date, 7), Column.of("component", text, 8)),
+                            parts, null, "recipient_id");
+                }
+                case "tests" -> new Dataset("tests", List.of(Column.of("id", text, 0), Column.of("user_id", text, 1), Column.of("user_type", text, 2),
+                        Column.of("date", date, 3), Column.of("status", text, 4), Column.of("result", text, 5)),
+                        List.of(new Part("tests.csv", QueryEngine::testRow, HistoryArchive.Tier.of("tests.csv"))), null, "user_id");
+                default -> throw new IllegalArgumentException("Unknown dataset " + name + "; use donors, recipients, inventory, requests or tests");
+            };
+        }
+
+        // id,name,age,bloodType,contact,lastDonation-or-urgency (the last donation is a date for donors)
+        private static Object[] personRow(String line) {
+            String[] data = line.split(",", -1);
+            Object last = data.length > 5 ? data[5] : "";
+            if (data[0].startsWith("DONOR-")) {
+                last = ((String) last).isEmpty() ? null : LocalDate.parse((String) last);
+            }
+            return new Object[] {data[0], data[1], Long.parseLong(data[2]), data[3], data[4], last};
+        }
+
+        private static Object[] inventoryRow(String site, String line) {
+            InventoryItem item = InventoryItem.parse(line);
+            return new Object[] {site, item.bloodType(), item.component(), (long) item.units(), item.expiry(), (long) item.reserved(), item.status().name()};
+        }
+
+        private static Object[] requestRow(String site, String line) {
+            BloodRequest request = BloodRequest.parse(line);
+            return new Object[] {site, request.id(), request.recipientId(), request.bloodType(), (long) request.units(),
+                                 request.urgency() == null ? null : request.urgency().label, request.status().name(), request.date(), request.component()};
+        }
+
+        private static Object[] testRow(String line) {
+            TestRequest test = TestRequest.parse(line);
+            return new Object[] {test.id(), test.userId(), test.userType(), test.requestDate(), test.status().name(), test.result()};
+        }
+
+        // Recursive-descent parser over the tokens of a query
+        static Query parse(String text) {
+            List<String> tokens = tokenize(text);
+            int[] at = {0};
+            boolean explain = accept(tokens, at, "EXPLAIN");
+            expect(tokens, at, "SELECT");
+            List<String[]> selected = new ArrayList<>(); // function (or null), field (or null)
+            do {
+                String token = next(tokens, at);
+                String function = token.toLowerCase();
+                if (token.equals("*")) {
+                    selected.add(new String[] {null, "*"});
+                } else if (function.equals("count")) {
+                    if (accept(tokens, at, "(")) {
+                        next(tokens, at);
+                        expect(tokens, at, ")");
+                    }
+                    selected.add(new String[] {"count", null});
+                } else if (Set.of("sum", "avg", "min", "max").contains(function) && accept(tokens, at, "(")) {
+                    selected.add(new String[] {function, next(tokens, at)});
+                    expect(tokens, at, ")");
+                } else {
+                    selected.add(new String[] {null, token});
+                }
+            } while (accept(tokens, at, ","));
+            expect(tokens, at, "FROM");
+            Dataset dataset = dataset(next(tokens, at));
+            List<Condition> conditions = new ArrayList<>();
+            if (accept(tokens, at, "WHERE")) {
+                do {
+                    Column column = dataset.column(next(tokens, at));
+                    String op = next(tokens, at);
+                    if (!Set.of("=", "!=", "<", "<=", ">", ">=", "~").contains(op)) {
+                        throw new IllegalArgumentException("Expected a comparison after " + column.name() + " but found " + op);
+                    }
+                    conditions.add(new Condition(column, op, op.equals("~") ? next(tokens, at) : literal(column, next(tokens, at))));
+                } while (accept(tokens, at, "AND"));
+            }
+            Column groupBy = null;
+            if (accept(tokens, at, "GROUP")) {
+                expect(tokens, at, "BY");
+                groupBy = dataset.column(next(tokens, at));
+            }
+            String orderBy = null;
+            boolean descending = false;
+            if (accept(tokens, at, "ORDER")) {
+                expect(tokens, at, "BY");
+                orderBy = next(tokens, at).toLowerCase();
+                if (accept(tokens, at, "(")) {
+                    orderBy += "(" + next(tokens, at).toLowerCase() + ")";
+                    expect(tokens, at, ")");
+                }
+                descending = accept(tokens, at, "DESC");
+                if (!descending) {
+                    accept(tokens, at, "ASC");
+                }
+            }
+            int limit = 0;
+            if (accept(tokens, at, "LIMIT")) {
+                limit = Integer.parseInt(next(tokens, at));
+            }
+            if (at[0] < tokens.size()) {
+                throw new IllegalArgumentException("Unexpected " + tokens.get(at[0]));
+            }
+            List<Item> items = new ArrayList<>();
+            for (String[] item : selected) {
+                if ("*".equals(item[1])) {
+                    dataset.columns().forEach(column -> items.add(new Item(null, column)));
+                } else {
+                    items.add(new Item(item[0], item[1] == null ? null : dataset.column(item[1])));
+                }
+            }
+            boolean aggregating = groupBy != null || items.stream().anyMatch(Item::aggregate);
+            for (Item item : items) {
+                if (aggregating && !item.aggregate() && item.column() != groupBy) {
+                    throw new IllegalArgumentException(item.column().name() + " must be the GROUP BY field or inside an aggregate");
+                }
+                if (item.aggregate() && (item.function().equals("sum") || item.function().equals("avg")) && item.column().type() != Type.NUMBER) {
+                    throw new IllegalArgumentException(item.function().toUpperCase() + " needs a number field, not " + item.column().name());
+                }
+            }
+            conditions.sort(Comparator.comparingInt(Condition::cost));
+            return new Query(explain, dataset, items, conditions, groupBy, orderBy, descending, limit);
+        }
+
+        // Converts a value to the field's type
+        private static Object literal(Column column, String token) {
+            try {
+                return switch (column.type()) {
+                    case TEXT -> token;
+                    case NUMBER -> Long.parseLong(token);
+                    case BOOL -> {
+                        if (!token.equalsIgnoreCase("TRUE") && !token.equalsIgnoreCase("FALSE")) {
+                            throw new IllegalArgumentException(column.name() + " is TRUE or FALSE, not " + token);
+                        }
+                        yield Boolean.parseBoolean(token);
+                    }
+                    case DATE -> token.toUpperCase().startsWith("TODAY")
+                                 ? LocalDate.now().plusDays(token.length() > 5 ? Long.parseLong(token.substring(5)) : 0)
+                                 : LocalDate.parse(token);
+                };
+            } catch (NumberFormatException | java.time.format.DateTimeParseException e) {
+                throw new IllegalArgumentException("Bad " + column.type().name().toLowerCase() + " value for " + column.name() + ": " + token);
+            }
+        }
+
+        private static List<String> tokenize(String text) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    int end = text.indexOf('\'', i + 1);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed quote");
+                    }
+                    tokens.add(text.substring(i + 1, end));
+                    i = end + 1;
+                } else if ("<>!=".indexOf(c) >= 0) {
+                    int end = i + 1 < text.length() && text.charAt(i + 1) == '=' ? i + 2 : i + 1;
+                    tokens.add(text.substring(i, end));
+                    i = end;
+                } else if ("(),*~".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "'<>!=(),*~".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(text.substring(start, i));
+                }
+            }
+            return tokens;
+        }
+
+        private static String next(List<String> tokens, int[] at) {
+            if (at[0] >= tokens.size()) {
+                throw new IllegalArgumentException("Query ends too early");
+            }
+            return tokens.get(at[0]++);
+        }
+
+        private static boolean accept(List<String> tokens, int[] at, String keyword) {
+            if (at[0] < tokens.size() && tokens.get(at[0]).equalsIgnoreCase(keyword)) {
+                at[0]++;
+                return true;
+            }
+            return false;
+        }
+
+        private static void expect(List<String> tokens, int[] at, String keyword) {
+            if (!accept(tokens, at, keyword)) {
+                throw new IllegalArgumentException("Expected " + keyword + (at[0] < tokens.size() ? " but found " + tokens.get(at[0]) : ""));
+            }
+        }
+    }
+
+    // StockHistory class for the level of every blood type and component over time (timeseries/).
+    // Each inventory change records, for the changed lot's type and component, the units on hand (unexpired lots)
+    // and the units available to issue (unexpired, unblocked and unreserved) across all sites; a sample that
+    // repeats the previous levels is dropped. Samples sit in fixed week-long blocks: the first one of a block is
+    // stored against the block start and each later one as varint deltas from the one before, so a sample takes
+    // three or four bytes. When a day is over its samples are rolled up into one daily sample (low, high and
+    // closing levels), kept in year-long blocks of the same encoding. Each log has a fixed-width index of its
+    // blocks that is binary searched, so a range query reads only the blocks that overlap it: about 2 KB per
+    // year of daily history.
+    static final class StockHistory {
+        static final String DIRECTORY = "timeseries";
+        static final int RAW_RANGE_DAYS = 14; // Ranges up to this long list raw samples; longer ones use the daily rollups
+        private static final long RAW_BLOCK_SECONDS = 7 * 86_400L; // Width of a raw block
+        private static final int RAW_WIDTH = 2; // On hand, available
+        private static final int DAILY_WIDTH = 6; // Low, high and close of on hand, then of available
+        private static boolean started; // Whether the change listener is registered
+
+        // A point of a series: seconds since the epoch for raw samples, the epoch day for daily ones
+        record Sample(long time, int[] values) {}
+
+        // Result of a range query: the last sample before the range (null if none), the samples in it and the
+        // bytes read from disk to answer it
+        record Range(String series, boolean daily, Sample opening, List<Sample> samples, long bytesRead) {}
+
+        // One block log and its index. Index entries are fixed width: block start, data offset, data length,
+        // sample count, then the block's last sample, so appending needs no data read. Data is written before
+        // the index entry that covers it, and appends go to the end the index records, so bytes left by an
+        // interrupted append are overwritten rather than decoded.
+        static final class Log {
+            private final Path data;
+            private final Path index;
+            private final int width;
+            private final java.util.function.LongUnaryOperator blockOf; // Time -> start of its block
+            private final int entryBytes;
+            long bytesRead; // Data and index bytes read through this log
+
+            private record Entry(long start, long offset, int length, int count, Sample last) {}
+
+            Log(Path data, int width, java.util.function.LongUnaryOperator blockOf) {
+                this.data = data;
+                this.index = data.resolveSibling(data.getFileName() + ".idx");
+                this.width = width;
+                this.blockOf = blockOf;
+                this.entryBytes = 32 + 4 * width;
+            }
+
+            // The last sample written, or null for an empty log
+            Sample last() throws IOException {
+                if (!Files.exists(index)) {
+                    return null;
+                }
+                try (FileChannel idx = FileChannel.open(index, StandardOpenOption.READ)) {
+                    long entries = idx.size() / entryBytes;
+                    return entries == 0 ? null : entry(idx, entries - 1).last();
+                }
+            }
+
+            // Appends a sample; one earlier than the last is recorded at the last one's time
+            void append(Sample sample) throws IOException {
+                try (FileChannel idx = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                     FileChannel dat = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    long entries = idx.size() / entryBytes;
+                    Entry last = entries == 0 ? null : entry(idx, entries - 1);
+                    if (last != null && sample.time() < last.last().time()) {
+                        sample = new Sample(last.last().time(), sample.values());
+                    }
+                    long start = blockOf.applyAsLong(sample.time());
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    Entry updated;
+                    if (last != null && last.start() == start) {
+                        encode(bytes, sample, last.last());
+                        updated = new Entry(start, last.offset(), last.length() + bytes.size(), last.count() + 1, sample);
+                        entries--;
+                    } else {
+                        encode(bytes, sample, new Sample(start, new int[width]));
+                        updated = new Entry(start, last == null ? 0 : last.offset() + last.length(), bytes.size(), 1, sample);
+                    }
+                    writeFully(dat, ByteBuffer.wrap(bytes.toByteArray()), updated.offset() + updated.length() - bytes.size());
+                    ByteBuffer entry = ByteBuffer.allocate(entryBytes);
+                    entry.putLong(updated.start()).putLong(updated.offset()).putInt(updated.length()).putInt(updated.count()).putLong(sample.time());
+                    for (int value : sample.values()) {
+                        entry.putInt(value);
+                    }
+                    writeFully(idx, entry.flip(), entries * entryBytes);
+                }
+            }
+
+            // Samples with from <= time <= to, oldest first; returns the last sample before from, or null
+            Sample read(long from, long to, List<Sample> out) throws IOException {
+                if (!Files.exists(index)) {
+                    return null;
+                }
+                try (FileChannel idx = FileChannel.open(index, StandardOpenOption.READ);
+                     FileChannel dat = FileChannel.open(data, StandardOpenOption.READ)) {
+                    long entries = idx.size() / entryBytes;
+                    long low = 0;
+                    long high = entries - 1;
+                    long first = 0; // Last block starting at or before from, if any
+                    while (low <= high) {
+                        long mid = (low + high) >>> 1;
+                        if (entry(idx, mid).start() <= from) {
+                            first = mid;
+                            low = mid + 1;
+                        } else {
+                            high = mid - 1;
+                        }
+                    }
+                    Sample opening = first > 0 ? entry(idx, first - 1).last() : null;
+                    for (long i = first; i < entries; i++) {
+                        Entry entry = entry(idx, i);
+                        if (entry.start() > to) {
+                            break;
+                        }
+                        if (entry.last().time() < from) {
+                            opening = entry.last(); // The whole block is before the range
+                            continue;
+                        }
+                        ByteBuffer block = ByteBuffer.allocate(entry.length());
+                        while (block.hasRemaining() && dat.read(block, entry.offset() + block.position()) >= 0) {
+                            // Keep reading until the block is complete
+                        }
+                        bytesRead += entry.length();
+                        block.flip();
+                        Sample previous = new Sample(entry.start(), new int[width]);
+                        for (int n = 0; n < entry.count(); n++) {
+                            long time = previous.time() + readVarint(block);
+                            int[] values = new int[width];
+                            for (int k = 0; k < width; k++) {
+                                long zigzag = readVarint(block);
+                                values[k] = previous.values()[k] + (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+                            }
+                            previous = new Sample(time, values);
+                            if (time < from) {
+                                opening = previous;
+                            } else if (time <= to) {
+                                out.add(previous);
+                            }
+                        }
+                    }
+                    return opening;
+                }
+            }
+
+            private Entry entry(FileChannel idx, long i) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(entryBytes);
+                while (buffer.hasRemaining() && idx.read(buffer, i * entryBytes + buffer.position()) >= 0) {
+                    // Keep reading until the entry is complete
+                }
+                bytesRead += entryBytes;
+                buffer.flip();
+                long start = buffer.getLong();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                int count = buffer.getInt();
+                long time = buffer.getLong();
+                int[] values = new int[width];
+                for (int k = 0; k < width; k++) {
+                    values[k] = buffer.getInt();
+                }
+                return new Entry(start, offset, length, count, new Sample(time, values));
+            }
+
+            // Time delta as a varint, then each value's delta as a zigzag varint
+            private static void encode(ByteArrayOutputStream out, Sample sample, Sample previous) {
+                writeVarint(out, sample.time() - previous.time());
+                for (int k = 0; k < sample.values().length; k++) {
+                    long delta = (long) sample.values()[k] - previous.values()[k];
+                    writeVarint(out, (delta << 1) ^ (delta >> 63));
+                }
+            }
+
+            private static void writeVarint(ByteArrayOutputStream out, long value) {
+                while ((value & ~0x7FL) != 0) {
+                    out.write((int) (value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                out.write((int) value);
+            }
+
+            private static long readVarint(ByteBuffer in) {
+                long value = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = in.get();
+                    value |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        return value;
+                    }
+                }
+            }
+
+            private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+
+        // Records the levels of a lot's type and component after every inventory change, from now on
+        static synchronized void start() {
+            if (started) {
+                return;
+            }
+            started = true;
+            ChangeBus.subscribe(event -> {
+                if (event.dataset().endsWith("inventory.csv")) {
+                    String[] key = event.key().split("/", 2);
+                    try {
+                        record(key[0], key[1]);
+                    } catch (IOException e) {
+                        System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                        System.out.println("   ERROR: Failed to record stock history - " + e.getMessage());
+                        System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                    }
+                }
+            });
+        }
+
+        // Samples the current levels of one series. The levels are read under the series lock, so whichever
+        // change is recorded last also records the latest levels, even when changes commit concurrently.
+        static void record(String bloodType, String component) throws IOException {
+            Path dir = Paths.get(DIRECTORY);
+            Files.createDirectories(dir);
+            String series = series(bloodType, component);
+            FileCoordinator.exclusive(raw(dir, series).data.toString(), () -> {
+                append(dir, series, System.currentTimeMillis() / 1000, levels(bloodType, component));
+                return null;
+            });
+        }
+
+        // Appends a raw sample unless the levels are unchanged, first rolling up the day of the previous sample
+        // if this one starts a later day
+        static void append(Path dir, String series, long seconds, int[] levels) throws IOException {
+            Log raw = raw(dir, series);
+            Sample last = raw.last();
+            if (last != null && Arrays.equals(last.values(), levels)) {
+                return;
+            }
+            if (last != null && day(seconds) > day(last.time())) {
+                daily(dir, series).append(rollup(raw, day(last.time())));
+            }
+            raw.append(new Sample(seconds, levels));
+        }
+
+        // Last recorded levels of one type and component, or null if none were recorded
+        static int[] latest(String bloodType, String component) throws IOException {
+            Sample last = raw(Paths.get(DIRECTORY), series(bloodType, component)).last();
+            return last == null ? null : last.values();
+        }
+
+        // Levels of one type and component across all sites: units on hand, units available to issue
+        static int[] levels(String bloodType, String component) throws IOException {
+            LocalDate today = LocalDate.now();
+            int onHand = 0;
+            int available = 0;
+            for (Site site : SiteRegistry.all()) {
+                String file = site.file("inventory.csv");
+                if (!Files.exists(Paths.get(file))) {
+                    continue;
+                }
+                for (InventoryItem item : RecordCache.of(file, InventoryItem.class, InventoryItem::parse)) {
+                    if (item.bloodType().equals(bloodType) && item.component().equals(component) && !item.expiry().isBefore(today)) {
+                        onHand += item.units();
+                        available += item.status() == StockStatus.AVAILABLE ? item.units() - item.reserved() : 0;
+                    }
+                }
+            }
+            return new int[] {onHand, available};
+        }
+
+        // Samples of a date range: raw ones for short ranges, daily rollups otherwise. Days whose rollup has not
+        // been written yet (today, or days since the last change) are rolled up from the raw samples.
+        static Range range(String bloodType, String component, LocalDate from, LocalDate to) throws IOException {
+            Path dir = Paths.get(DIRECTORY);
+            String series = series(bloodType, component);
+            Log raw = raw(dir, series);
+            return FileCoordinator.shared(raw.data.toString(), () -> range(dir, series, from.toEpochDay(), to.toEpochDay()));
+        }
+
+        static Range range(Path dir, String series, long fromDay, long toDay) throws IOException {
+            Log raw = raw(dir, series);
+            List<Sample> samples = new ArrayList<>();
+            if (toDay - fromDay < RAW_RANGE_DAYS) {
+                Sample opening = raw.read(startOf(fromDay), startOf(toDay + 1) - 1, samples);
+                return new Range(series, false, opening, samples, raw.bytesRead);
+            }
+            Log daily = daily(dir, series);
+            Sample opening = daily.read(fromDay, toDay, samples);
+            Sample sealed = samples.isEmpty() ? daily.last() : samples.get(samples.size() - 1);
+            long unsealed = Math.max(fromDay, sealed == null ? fromDay : sealed.time() + 1);
+            if (unsealed <= toDay) {
+                List<Sample> recent = new ArrayList<>();
+                Sample carried = raw.read(startOf(unsealed), startOf(toDay + 1) - 1, recent);
+                if (opening == null && carried != null && samples.isEmpty()) {
+                    int[] close = carried.values();
+                    opening = new Sample(day(carried.time()), new int[] {close[0], close[0], close[0], close[1], close[1], close[1]});
+                }
+                int at = 0;
+                while (at < recent.size()) {
+                    long day = day(recent.get(at).time());
+                    int end = at;
+                    while (end < recent.size() && day(recent.get(end).time()) == day) {
+                        end++;
+                    }
+                    samples.add(rollup(day, carried, recent.subList(at, end)));
+                    carried = recent.get(end - 1);
+                    at = end;
+                }
+            }
+            return new Range(series, true, opening, samples, raw.bytesRead + daily.bytesRead);
+        }
+
+        // Daily sample of one day of raw samples
+        private static Sample rollup(Log raw, long day) throws IOException {
+            List<Sample> samples = new ArrayList<>();
+            Sample opening = raw.read(startOf(day), startOf(day + 1) - 1, samples);
+            return rollup(day, opening, samples);
+        }
+
+        // Low, high and close of each level over a day, counting the level the day started at
+        private static Sample rollup(long day, Sample opening, List<Sample> samples) {
+            int[] values = new int[DAILY_WIDTH];
+            for (int k = 0; k < RAW_WIDTH; k++) {
+                int first = opening != null ? opening.values()[k] : samples.get(0).values()[k];
+                int low = first;
+                int high = first;
+                for (Sample sample : samples) {
+                    low = Math.min(low, sample.values()[k]);
+                    high = Math.max(high, sample.values()[k]);
+                }
+                values[3 * k] = low;
+                values[3 * k + 1] = high;
+                values[3 * k + 2] = samples.isEmpty() ? first : samples.get(samples.size() - 1).values()[k];
+            }
+            return new Sample(day, values);
+        }
+
+        // File name stem of a series, e.g. O+_Whole-Blood
+        static String series(String bloodType, String component) {
+            return bloodType + "_" + component.replace(' ', '-');
+        }
+
+        private static Log raw(Path dir, String series) {
+            return new Log(dir.resolve(series + ".raw"), RAW_WIDTH, time -> Math.floorDiv(time, RAW_BLOCK_SECONDS) * RAW_BLOCK_SECONDS);
+        }
+
+        private static Log daily(Path dir, String series) {
+            return new Log(dir.resolve(series + ".daily"), DAILY_WIDTH, day -> LocalDate.ofEpochDay(day).withDayOfYear(1).toEpochDay());
+        }
+
+        // Local calendar day of a time in seconds, as an epoch day
+        static long day(long seconds) {
+            return LocalDate.ofInstant(Instant.ofEpochSecond(seconds), ZoneId.systemDefault()).toEpochDay();
+        }
+
+        // First second of a local calendar day
+        static long startOf(long day) {
+            return LocalDate.ofEpochDay(day).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+        }
+    }
+
+    // DonorLocator class for the donors nearest to a place, per blood group.
+    // A donor is placed at the location in their row (latitude and longitude after the last donation date) or,
+    // failing that, at the site of their latest scheduled donation; donors with neither are only returned after
+    // every located match. Each blood group has a k-d tree over its donors' points on the unit sphere, where
+    // straight-line distance orders points exactly as great-circle distance does. A nearest search descends to
+    // the query's cell and backtracks only into cells closer than the k-th match so far, so it visits about
+    // log n + k nodes. Saves made since the trees were built go to a short per-group list that is scanned in full,
+    // and the donor's earlier point is tombstoned; the trees are rebuilt once those pass an eighth of the registry.
+    static final class DonorLocator {
+        static final int CONTACT_LIMIT = 10; // Donors listed to a recipient when stock runs out
+        private static final int FEED_BATCH = 1024;
+        private static final double EARTH_RADIUS_KM = 6371.0;
+        private static DonorLocator instance;
+        private static long feedOffset; // Change feed position the instance is current up to
+        private static boolean subscribed;
+
+        // A matching donor and their distance from the query point (infinite when their location is unknown)
+        record Match(String row, double distanceKm) {}
+
+        private final Map<String, Integer> pointOf = new HashMap<>(); // Donor ID -> latest point
+        private final List<String> rows = new ArrayList<>(); // Point -> donor row
+        private double[] xyz = new double[3 * 1024]; // Point -> unit vector; x is NaN when the donor has no location
+        private int[] lastDonation = new int[1024]; // Point -> epoch day of the last donation, Integer.MIN_VALUE if none
+        private final BitSet deleted = new BitSet(); // Points replaced by a later save
+        private final int[][] trees = new int[BloodGroup.values().length][]; // Group -> points in k-d order
+        private final List<List<Integer>> recent = new ArrayList<>(); // Group -> located points added since the build
+        private final List<List<Integer>> unlocated = new ArrayList<>(); // Group -> points without a location
+        private final Map<String, Site> visitedSites; // Donor ID -> site of their latest scheduled donation
+        private int sinceBuild; // Located points added since the trees were built
+
+        private DonorLocator(Map<String, Site> visitedSites) {
+            this.visitedSites = visitedSites;
+            for (int g = 0; g < trees.length; g++) {
+                trees[g] = new int[0];
+                recent.add(new ArrayList<>());
+                unlocated.add(new ArrayList<>());
+            }
+        }
+
+        // Returns the locator, building it on first use and applying donor saves made since by any instance
+        static synchronized DonorLocator current() throws IOException {
+            if (!subscribed) {
+                ChangeBus.subscribe(DonorLocator::apply);
+                subscribed = true;
+            }
+            if (instance == null) {
+                rebuild();
+            }
+            while (true) {
+                ChangeBatch batch = ChangeFeed.read(feedOffset, FEED_BATCH);
+                batch.events().forEach(instance::accept);
+                boolean reloaded = batch.events().stream().anyMatch(event -> event.type() == ChangeType.FEED_TRIMMED
+                        || event.type() == ChangeType.DATASET_RELOADED && (event.dataset().equals("donors.csv") || event.dataset().endsWith("schedules.csv")));
+                if (reloaded || batch.events().isEmpty() && batch.nextOffset() < ChangeFeed.endOffset()) {
+                    // Saves whose events were lost or trimmed off, or unreadable data at the remembered position
+                    // (the feed was cut back after a crash)
+                    rebuild();
+                    continue;
+                }
+                feedOffset = batch.nextOffset();
+                if (batch.events().size() < FEED_BATCH) {
+                    break;
+                }
+            }
+            if (instance.deleted.cardinality() * 4 > Math.max(1024, instance.rows.size())) {
+                rebuild();
+            } else if (instance.sinceBuild * 8 > Math.max(8192, instance.pointOf.size())) {
+                instance.index();
+            }
+            return instance;
+        }
+
+        private static synchronized void apply(ChangeEvent event) {
+            if (instance != null) {
+                instance.accept(event);
+            }
+        }
+
+        // Rebuilds from the current files; the feed position is taken first so no save can fall in between
+        private static void rebuild() throws IOException {
+            long offset = ChangeFeed.endOffset();
+            List<String> donors = FileCoordinator.readLines("donors.csv");
+            instance = build(donors, new HashMap<>(CrossSiteSearch.locateDonors()));
+            feedOffset = offset;
+        }
+
+        static DonorLocator build(List<String> donors, Map<String, Site> visitedSites) {
+            DonorLocator locator = new DonorLocator(visitedSites);
+            donors.forEach(locator::put);
+            locator.index();
+            return locator;
+        }
+
+        // A scheduled donation moves a donor without a location of their own to that site
+        private synchronized void accept(ChangeEvent event) {
+            if (event.type() == ChangeType.DONOR_SAVED) {
+                put(event.row());
+            } else if (event.type() == ChangeType.SCHEDULE_SAVED) {
+                for (Site site : SiteRegistry.all()) {
+                    if (site.file("schedules.csv").equals(event.dataset())) {
+                        visitedSites.put(event.key(), site);
+                    }
+                }
+            }
+        }
+
+        // Adds or replaces a donor; a row identical to the indexed one is ignored
+        synchronized void put(String row) {
+            String[] data = row.split(",");
+            if (data.length < 5) {
+                return;
+            }
+            Integer previous = pointOf.get(data[0]);
+            if (previous != null) {
+                if (rows.get(previous).equals(row)) {
+                    return;
+                }
+                deleted.set(previous);
+            }
+            int point = rows.size();
+            rows.add(row);
+            pointOf.put(data[0], point);
+            if (point == lastDonation.length) {
+                lastDonation = Arrays.copyOf(lastDonation, point * 2);
+                xyz = Arrays.copyOf(xyz, point * 6);
+            }
+            lastDonation[point] = data.length > 5 && !data[5].isEmpty() ? (int) LocalDate.parse(data[5]).toEpochDay() : Integer.MIN_VALUE;
+            double[] location = null;
+            if (data.length > 7) {
+                location = new double[] {Double.parseDouble(data[6]), Double.parseDouble(data[7])};
+            } else if (visitedSites.containsKey(data[0])) {
+                Site site = visitedSites.get(data[0]);
+                location = new double[] {site.latitude(), site.longitude()};
+            }
+            BloodGroup group = BloodGroup.of(data[3]);
+            if (location == null) {
+                xyz[3 * point] = Double.NaN;
+                if (group != null) {
+                    unlocated.get(group.ordinal()).add(point);
+                }
+                return;
+            }
+            System.arraycopy(unitVector(location[0], location[1]), 0, xyz, 3 * point, 3);
+            if (group != null) {
+                recent.get(group.ordinal()).add(point);
+                sinceBuild++;
+            }
+        }
+
+        // Rebuilds each group's tree from its live points, including the ones added since the last build
+        private void index() {
+            for (int g = 0; g < trees.length; g++) {
+                int[] points = new int[trees[g].length + recent.get(g).size()];
+                int count = 0;
+                for (int point : trees[g]) {
+                    if (!deleted.get(point)) {
+                        points[count++] = point;
+                    }
+                }
+                for (int point : recent.get(g)) {
+                    if (!deleted.get(point)) {
+                        points[count++] = point;
+                    }
+                }
+                trees[g] = Arrays.copyOf(points, count);
+                build(trees[g], 0, count, 0);
+                recent.get(g).clear();
+                unlocated.get(g).removeIf(deleted::get);
+            }
+            sinceBuild = 0;
+        }
+
+        // Puts the median by the axis in the middle of the range, smaller points before it and larger after, then
+        // does the same for both halves on the next axis
+        private void build(int[] order, int lo, int hi, int axis) {
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                select(order, lo, hi - 1, mid, axis);
+                build(order, lo, mid, (axis + 1) % 3);
+                lo = mid + 1;
+                axis = (axis + 1) % 3;
+            }
+        }
+
+        // Quickselect: rearranges order[lo..hi] so that order[k] is the point that sorts there by the axis
+        private void select(int[] order, int lo, int hi, int k, int axis) {
+            while (hi > lo) {
+                double pivot = xyz[3 * order[(lo + hi) >>> 1] + axis];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (xyz[3 * order[i] + axis] < pivot) {
+                        i++;
+                    }
+                    while (xyz[3 * order[j] + axis] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int swap = order[i];
+                        order[i++] = order[j];
+                        order[j--] = swap;
+                    }
+                }
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        // Up to k donors of the given groups nearest to a point, nearest first; with a date, only donors whose last
+        // donation was on or before it. Donors without a location follow the located ones.
+        synchronized List<Match> nearest(double latitude, double longitude, Collection<BloodGroup> groups, int k, LocalDate lastDonatedBy) {
+            if (k <= 0) {
+                return List.of();
+            }
+            double[] query = unitVector(latitude, longitude);
+            int cutoff = lastDonatedBy == null ? Integer.MAX_VALUE : (int) lastDonatedBy.toEpochDay();
+            Best best = new Best(k);
+            for (BloodGroup group : groups) {
+                int[] tree = trees[group.ordinal()];
+                search(tree, 0, tree.length, 0, query, cutoff, best);
+                for (int point : recent.get(group.ordinal())) {
+                    if (!deleted.get(point) && lastDonation[point] <= cutoff) {
+                        best.offer(distanceSquared(point, query), point);
+                    }
+                }
+            }
+            Match[] located = new Match[best.size];
+            for (int i = located.length - 1; i >= 0; i--) { // The heap gives the farthest first
+                double chord = Math.sqrt(best.distances[0]);
+                located[i] = new Match(rows.get(best.points[0]), EARTH_RADIUS_KM * 2 * Math.asin(Math.min(1, chord / 2)));
+                best.poll();
+            }
+            List<Match> matches = new ArrayList<>(Arrays.asList(located));
+            for (BloodGroup group : groups) {
+                for (int point : unlocated.get(group.ordinal())) {
+                    if (matches.size() == k) {
+                        return matches;
+                    }
+                    if (!deleted.get(point) && lastDonation[point] <= cutoff) {
+                        matches.add(new Match(rows.get(point), Double.POSITIVE_INFINITY));
+                    }
+                }
+            }
+            return matches;
+        }
+
+        // Visits the subtree in order[lo..hi), nearer half first; the farther half only if the splitting plane is
+        // closer than the k-th best so far
+        private void search(int[] order, int lo, int hi, int axis, double[] query, int cutoff, Best best) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int point = order[mid];
+                if (!deleted.get(point) && lastDonation[point] <= cutoff) {
+                    best.offer(distanceSquared(point, query), point);
+                }
+                double gap = query[axis] - xyz[3 * point + axis];
+                int next = (axis + 1) % 3;
+                if (gap < 0) {
+                    search(order, lo, mid, next, query, cutoff, best);
+                    if (gap * gap >= best.worst()) {
+                        return;
+                    }
+                    lo = mid + 1;
+                } else {
+                    search(order, mid + 1, hi, next, query, cutoff, best);
+                    if (gap * gap >= best.worst()) {
+                        return;
+                    }
+                    hi = mid;
+                }
+                axis = next;
+            }
+        }
+
+        private double distanceSquared(int point, double[] query) {
+            double dx = xyz[3 * point] - query[0];
+            double dy = xyz[3 * point + 1] - query[1];
+            double dz = xyz[3 * point + 2] - query[2];
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        static double[] unitVector(double latitude, double longitude) {
+            double lat = Math.toRadians(latitude);
+            double lon = Math.toRadians(longitude);
+            return new double[] {Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+        }
+
+        // The k best points so far, in a max-heap on squared distance so the worst is at the root
+        private static final class Best {
+            final double[] distances;
+            final int[] points;
+            int size;
+
+            Best(int k) {
+                distances = new double[k];
+                points = new int[k];
+            }
+
+            double worst() {
+                return size < distances.length ? Double.POSITIVE_INFINITY : distances[0];
+            }
+
+            void offer(double distance, int point) {
+                if (size < distances.length) {
+                    int i = size++;
+                    while (i > 0 && distances[(i - 1) / 2] < distance) {
+                        distances[i] = distances[(i - 1) / 2];
+                        points[i] = points[(i - 1) / 2];
+                        i = (i - 1) / 2;
+                    }
+                    distances[i] = distance;
+                    points[i] = point;
+                } else if (distance < distances[0]) {
+                    siftDown(distance, point);
+                }
+            }
+
+            // Removes the worst point
+            void poll() {
+                size--;
+                if (size > 0) {
+                    siftDown(distances[size], points[size]);
+                }
+            }
+
+            private void siftDown(double distance, int point) {
+                int i = 0;
+                while (2 * i + 1 < size) {
+                    int child = 2 * i + 1;
+                    if (child + 1 < size && distances[child + 1] > distances[child]) {
+                        child++;
+                    }
+                    if (distances[child] <= distance) {
+                        break;
+                    }
+                    distances[i] = distances[child];
+                    points[i] = points[child];
+                    i = child;
+                }
+                distances[i] = distance;
+                points[i] = point;
+            }
+        }
+    }
+
+    // AuditIndex class for finding audit events by user, role, action and date without reading all of log.csv.
+    // log.csv is indexed in immutable segments (audit-index/), each covering a byte range of the log: a sorted
+    // term directory (user:<id>, role:<role>, action:<action>) and, per term, the byte offsets of the matching
+    // lines as varint deltas, so an offset takes one or two bytes. logAction hands the indexing to a background
+    // thread once the unindexed tail passes FLUSH_BYTES; queries scan that short tail directly. A new segment is
+    // merged with the one before it while it is at least half that one's size, which keeps about log2(events /
+    // flush) segments. days.csv maps each date to the offset of its first event, to bound date ranges.
+    // manifest.csv lists the live segments. It is replaced atomically under its own lock, and segments are
+    // deleted only under that lock, so readers (under the shared lock) never see half a merge.
+    static final class AuditIndex {
+        static final String LOG_FILE = "log.csv";
+        static final String DIRECTORY = "audit-index";
+        private static final String MANIFEST = "manifest.csv";
+        private static final String DAYS = "days.csv";
+        private static final long FLUSH_BYTES = Long.getLong("bbms.auditFlushBytes", 64 << 10); // Unindexed tail that triggers a flush
+        private static final int MAGIC = 0x41495831; // "AIX1"
+        private static final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "audit-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private static final AtomicBoolean flushQueued = new AtomicBoolean();
+        private static final Map<Path, Directory> directories = new ConcurrentHashMap<>(); // Segment file -> its term directory
+        private static volatile long indexedTo = -1; // End of the indexed part of the log as last seen, -1 if unknown
+
+        // One live segment as listed in the manifest: the log bytes [from, to) and its event count
+        record Segment(long from, long to, int events, String file) {
+            static Segment parse(String line) {
+                String[] data = line.split(",");
+                return new Segment(Long.parseLong(data[0]), Long.parseLong(data[1]), Integer.parseInt(data[2]), data[3]);
+            }
+
+            String toCsv() {
+                return from + "," + to + "," + events + "," + file;
+            }
+        }
+
+        // Where each term's postings sit in a segment file: data position, posting count, byte length
+        private record Directory(Map<String, long[]> terms) {}
+
+        // An event found by a search and the offset of its line in the log
+        record Hit(long offset, AuditEvent event) {}
+
+        // A search result: the matching events oldest first, how many lines came from the unindexed tail, and
+        // how many segments were consulted
+        record Result(List<Hit> hits, int tailEvents, int segments) {}
+
+        // Called after every audit append: queues a flush when enough of the log is unindexed
+        static void logged() {
+            try {
+                long size = Files.size(Paths.get(LOG_FILE));
+                if ((indexedTo < 0 || size - indexedTo >= FLUSH_BYTES) && flushQueued.compareAndSet(false, true)) {
+                    indexer.execute(() -> {
+                        flushQueued.set(false);
+                        try {
+                            flush(Paths.get(""), 0);
+                        } catch (IOException e) {
+                            System.out.println("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                            System.out.println("   ERROR: Failed to index the audit log - " + e.getMessage());
+                            System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                // The log is read again at the next append
+            }
+        }
+
+        // Indexes the complete lines past the indexed part of base/log.csv when there are at least minBytes of
+        // them, then merges segments of similar size; returns the new end of the indexed part
+        static long flush(Path base, long minBytes) throws IOException {
+            Path log = base.resolve(LOG_FILE);
+            Path dir = base.resolve(DIRECTORY);
+            Files.createDirectories(dir);
+            if (!Files.exists(dir.resolve(MANIFEST))) {
+                Files.createFile(dir.resolve(MANIFEST));
+            }
+            return FileCoordinator.exclusive(dir.resolve(MANIFEST).toString(), () -> {
+                List<Segment> segments = segments(dir);
+                long from = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).to();
+                long size = Files.exists(log) ? Files.size(log) : 0;
+                if (size < from) {
+                    // The log was replaced by a shorter one (e.g. copied back from a backup): start over
+                    for (Segment segment : segments) {
+                        Files.deleteIfExists(dir.resolve(segment.file()));
+                    }
+                    Files.deleteIfExists(dir.resolve(DAYS));
+                    segments = new ArrayList<>();
+                    from = 0;
+                }
+                if (size - from >= Math.max(1, minBytes)) {
+                    Map<String, List<Long>> postings = new TreeMap<>();
+                    String[] lastDay = {lastDay(dir)};
+                    List<String> days = new ArrayList<>();
+                    long[] end = {from};
+                    int events = readLines(log, from, size, (offset, line) -> {
+                        AuditEvent event = AuditEvent.parse(line);
+                        for (String term : terms(event)) {
+                            postings.computeIfAbsent(term, k -> new ArrayList<>()).add(offset);
+                        }
+                        if (!event.date().toString().equals(lastDay[0])) {
+                            lastDay[0] = event.date().toString();
+                            days.add(lastDay[0] + "," + offset);
+                        }
+                    }, end);
+                    if (events > 0) {
+                        segments.add(write(dir, from, end[0], events, postings));
+                        if (!days.isEmpty()) {
+                            Files.write(dir.resolve(DAYS), days, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                        }
+                        while (segments.size() >= 2 && segments.get(segments.size() - 1).events() * 2L >= segments.get(segments.size() - 2).events()) {
+                            Segment newer = segments.remove(segments.size() - 1);
+                            Segment older = segments.remove(segments.size() - 1);
+                            segments.add(merge(dir, older, newer));
+                        }
+                        writeManifest(dir, segments);
+                        deleteUnlisted(dir, segments);
+                    }
+                }
+                long indexed = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).to();
+                if (base.equals(Paths.get(""))) {
+                    indexedTo = indexed;
+                }
+                return indexed;
+            });
+        }
+
+        // Events in base/log.csv matching every given filter (null = any), oldest first; dates are inclusive
+        static Result search(Path base, String userId, String role, String action, LocalDate from, LocalDate to) throws IOException {
+            Path log = base.resolve(LOG_FILE);
+            Path dir = base.resolve(DIRECTORY);
+            List<String> terms = new ArrayList<>();
+            if (userId != null) {
+                terms.add("user:" + userId);
+            }
+            if (role != null) {
+                terms.add("role:" + role);
+            }
+            if (action != null) {
+                terms.add("action:" + action);
+            }
+            if (!Files.exists(dir.resolve(MANIFEST))) {
+                flush(base, Long.MAX_VALUE); // Creates the empty index; the whole log is then read as the tail
+            }
+            return FileCoordinator.shared(dir.resolve(MANIFEST).toString(), () -> {
+                List<Segment> segments = segments(dir);
+                long indexedEnd = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).to();
+                long size = Files.exists(log) ? Files.size(log) : 0;
+                if (size < indexedEnd) {
+                    throw new IOException("log.csv is shorter than its index; it is rebuilt at the next audit entry");
+                }
+                // Date bounds as log offsets: from the first event on or after `from` to the first one after `to`
+                long low = 0;
+                long high = Long.MAX_VALUE;
+                // (kept correct if the clock ever went backwards between entries)
+                if (from != null || to != null) {
+                    boolean reachedFrom = false;
+                    for (String line : Files.exists(dir.resolve(DAYS)) ? Files.readAllLines(dir.resolve(DAYS)) : List.<String>of()) {
+                        String[] data = line.split(",");
+                        LocalDate day = LocalDate.parse(data[0]);
+                        long offset = Long.parseLong(data[1]);
+                        reachedFrom |= from == null || !day.isBefore(from);
+                        if (!reachedFrom) {
+                            low = offset; // Every event before this day's first one is earlier than `from`
+                        }
+                        if (to == null || !day.isAfter(to)) {
+                            high = Long.MAX_VALUE; // A later day within range: the cut must come after it
+                        } else if (high == Long.MAX_VALUE) {
+                            high = offset;
+                        }
+                    }
+                }
+                List<Long> offsets = new ArrayList<>();
+                int consulted = 0;
+                for (Segment segment : segments) {
+                    if (segment.to() <= low || segment.from() >= high) {
+                        continue;
+                    }
+                    consulted++;
+                    if (terms.isEmpty()) {
+                        // Only a date range: every line of the overlapping part qualifies
+                        readLines(log, Math.max(segment.from(), low), Math.min(segment.to(), high), (offset, line) -> offsets.add(offset), new long[1]);
+                        continue;
+                    }
+                    for (long offset : intersect(dir, segment, terms)) {
+                        if (offset >= low && offset < high) {
+                            offsets.add(offset);
+                        }
+                    }
+                }
+                List<Hit> hits = new ArrayList<>();
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                    for (long offset : offsets) {
+                        AuditEvent event = AuditEvent.parse(lineAt(channel, offset));
+                        if (inRange(event, from, to)) {
+                            hits.add(new Hit(offset, event));
+                        }
+                    }
+                }
+                int[] tail = {0};
+                readLines(log, indexedEnd, size, (offset, line) -> {
+                    AuditEvent event = AuditEvent.parse(line);
+                    tail[0]++;
+                    if (inRange(event, from, to) && (userId == null || event.userId().equals(userId))
+                        && (role == null || event.role().equals(role)) && (action == null || event.action().equals(action))) {
+                        hits.add(new Hit(offset, event));
+                    }
+                }, new long[1]);
+                return new Result(hits, tail[0], consulted);
+            });
+        }
+
+        private static boolean inRange(AuditEvent event, LocalDate from, LocalDate to) {
+            return (from == null || !event.date().isBefore(from)) && (to == null || !event.date().isAfter(to));
+        }
+
+        private static List<String> terms(AuditEvent event) {
+            return List.of("user:" + event.userId(), "role:" + event.role(), "action:" + event.action());
+        }
+
+        // Offsets in a segment that every term lists, or an empty array if a term is absent
+        private static long[] intersect(Path dir, Segment segment, List<String> terms) throws IOException {
+            Directory directory = directory(dir, segment);
+            List<long[]> lists = new ArrayList<>();
+            for (String term : terms) {
+                long[] entry = directory.terms().get(term);
+                if (entry == null) {
+                    return new long[0];
+                }
+                lists.add(entry);
+            }
+            lists.sort(Comparator.comparingLong(entry -> entry[1])); // Shortest list first
+            long[] result = postings(dir, segment, lists.get(0));
+            for (int i = 1; i < lists.size() && result.length > 0; i++) {
+                long[] other = postings(dir, segment, lists.get(i));
+                int count = 0;
+                int j = 0;
+                for (long offset : result) {
+                    while (j < other.length && other[j] < offset) {
+                        j++;
+                    }
+                    if (j < other.length && other[j] == offset) {
+                        result[count++] = offset;
+                    }
+                }
+                result = Arrays.copyOf(result, count);
+            }
+            return result;
+        }
+
+        private static long[] postings(Path dir, Segment segment, long[] entry) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate((int) entry[2]);
+            try (FileChannel channel = FileChannel.open(dir.resolve(segment.file()), StandardOpenOption.READ)) {
+                while (data.hasRemaining() && channel.read(data, entry[0] + data.position()) >= 0) {
+                    // Keep reading until the list is complete
+                }
+            }
+            data.flip();
+            long[] offsets = new long[(int) entry[1]];
+            long offset = segment.from();
+            for (int i = 0; i < offsets.length; i++) {
+                offset += readVarint(data);
+                offsets[i] = offset;
+            }
+            return offsets;
+        }
+
+        // The term directory of a segment, read once; segment files never change after they are written
+        private static Directory directory(Path dir, Segment segment) throws IOException {
+            Path file = dir.resolve(segment.file()).toAbsolutePath();
+            Directory cached = directories.get(file);
+            if (cached != null) {
+                return cached;
+            }
+            Map<String, long[]> terms = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not an audit index segment: " + segment.file());
+                }
+                int count = in.readInt();
+                long position = in.readLong(); // Start of the posting data
+                for (int i = 0; i < count; i++) {
+                    String term = in.readUTF();
+                    int postings = in.readInt();
+                    int length = in.readInt();
+                    terms.put(term, new long[] {position, postings, length});
+                    position += length;
+                }
+            }
+            Directory directory = new Directory(terms);
+            directories.put(file, directory);
+            return directory;
+        }
+
+        // Writes a segment: header, term directory, then the postings of each term as varint deltas
+        private static Segment write(Path dir, long from, long to, int events, Map<String, List<Long>> postings) throws IOException {
+            Map<String, byte[]> encoded = new TreeMap<>();
+            for (Map.Entry<String, List<Long>> term : postings.entrySet()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                long previous = from;
+                for (long offset : term.getValue()) {
+                    writeVarint(bytes, offset - previous);
+                    previous = offset;
+                }
+                encoded.put(term.getKey(), bytes.toByteArray());
+            }
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(header)) {
+                for (Map.Entry<String, byte[]> term : encoded.entrySet()) {
+                    out.writeUTF(term.getKey());
+                    out.writeInt(postings.get(term.getKey()).size());
+                    out.writeInt(term.getValue().length);
+                }
+            }
+            String file = "segment-" + from + "-" + to + ".idx";
+            Path temp = dir.resolve(file + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(encoded.size());
+                out.writeLong(16 + header.size());
+                header.writeTo(out);
+                for (byte[] list : encoded.values()) {
+                    out.write(list);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, dir.resolve(file), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return new Segment(from, to, events, file);
+        }
+
+        // Joins two adjacent segments; the older one's offsets all come first, so each term's lists just concatenate
+        private static Segment merge(Path dir, Segment older, Segment newer) throws IOException {
+            Map<String, List<Long>> postings = new TreeMap<>();
+            for (Segment segment : List.of(older, newer)) {
+                for (Map.Entry<String, long[]> term : directory(dir, segment).terms().entrySet()) {
+                    List<Long> list = postings.computeIfAbsent(term.getKey(), k -> new ArrayList<>());
+                    for (long offset : postings(dir, segment, term.getValue())) {
+                        list.add(offset);
+                    }
+                }
+            }
+            return write(dir, older.from(), newer.to(), older.events() + newer.events(), postings);
+        }
+
+        private static List<Segment> segments(Path dir) throws IOException {
+            List<Segment> segments = new ArrayList<>();
+            for (String line : Files.readAllLines(dir.resolve(MANIFEST))) {
+                if (!line.isBlank()) {
+                    segments.add(Segment.parse(line));
+                }
+            }
+            return segments;
+        }
+
+        private static void writeManifest(Path dir, List<Segment> segments) throws IOException {
+            Path temp = dir.resolve(MANIFEST + ".tmp");
+            Files.write(temp, segments.stream().map(Segment::toCsv).toList());
+            Files.move(temp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Removes segment files the manifest no longer lists (merged away, or left by an interrupted flush)
+        private static void deleteUnlisted(Path dir, List<Segment> segments) throws IOException {
+            Set<String> live = new HashSet<>();
+            segments.forEach(segment -> live.add(segment.file()));
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*")) {
+                for (Path file : files) {
+                    if (!live.contains(file.getFileName().toString())) {
+                        directories.remove(file.toAbsolutePath());
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+
+        private static String lastDay(Path dir) throws IOException {
+            if (!Files.exists(dir.resolve(DAYS))) {
+                return "";
+            }
+            List<String> days = Files.readAllLines(dir.resolve(DAYS));
+            return days.isEmpty() ? "" : days.get(days.size() - 1).split(",")[0];
+        }
+
+        // Receives one log line and its offset
+        private interface LineVisitor {
+            void visit(long offset, String line);
+        }
+
+        // Visits the complete lines in [from, to) of the log; a line still being written is left for later.
+        // Returns the number of lines and sets end[0] to the end of the last one.
+        private static int readLines(Path file, long from, long to, LineVisitor visitor, long[] end) throws IOException {
+            end[0] = from;
+            if (to <= from) {
+                return 0;
+            }
+            int lines = 0;
+            try (FileChannel log = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long position = from;
+                long lineStart = from;
+                while (position < to) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+                    int read = log.read(buffer, position);
+                    if (read <= 0) {
+                        break;
+                    }
+                    byte[] bytes = buffer.array();
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (bytes[i] == '\n') {
+                            line.write(bytes, start, i - start);
+                            String text = line.toString(Charset.defaultCharset());
+                            visitor.visit(lineStart, text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+                            lines++;
+                            line.reset();
+                            start = i + 1;
+                            lineStart = position + start;
+                            end[0] = lineStart;
+                        }
+                    }
+                    line.write(bytes, start, read - start); // The start of a line that continues in the next block
+                    position += read;
+                }
+            }
+            return lines;
+        }
+
+        private static String lineAt(FileChannel log, long offset) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            while (true) {
+                buffer.clear();
+                int read = log.read(buffer, offset);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        String text = line.toString(Charset.defaultCharset());
+                        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+                    }
+                    line.write(b);
+                }
+                offset += read;
+            }
+            return line.toString(Charset.defaultCharset());
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long readVarint(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    // DataEncryption class for keeping donors.csv, recipients.csv and users.csv encrypted on disk (AES-GCM).
+    // A sealed file starts with a magic string and a random file ID, followed by chunks of whole lines:
+    //   [ciphertext length][12-byte nonce][ciphertext + 16-byte tag][ciphertext length]
+    // Each chunk is authenticated on its own, with the file ID and its own position as associated data, so a
+    // chunk can't be moved within or between files unnoticed. Every writer ends with an empty end marker chunk,
+    // authenticated as the last one (as in the STREAM construction), so chunks cut off the end are noticed too:
+    // a file that doesn't end with a marker, or whose chunks don't line up anywhere, fails to load with an error
+    // instead of losing the rows after the damage. An append seals the new lines into chunks over the end marker
+    // without reading anything before it, so a file only ever holds one marker and can't be cut back to an
+    // earlier append unnoticed; a marker anywhere but at the end is rejected. (An append cut short by a crash is
+    // undone under the dataset's lock before anyone reads it, putting the marker back, see FileCoordinator.appendAll.)
+    // Files written by the previous version, which kept the marker of every append, are resealed at start-up.
+    // A reader can start at any chunk and decrypt only the ones it needs. Ciphers and their direct buffers are
+    // pooled, so files are decrypted straight from the read buffer without copying through the heap.
+    // The key is an AES key in base64, read from the file named by -Dbbms.dataKeyFile or from BBMS_DATA_KEY.
+    // Without a key every file stays plain text, as before.
+    static final class DataEncryption {
+        static final Set<String> SENSITIVE = Set.of("donors.csv", "recipients.csv", "users.csv"); // Datasets holding PII or credentials
+        static final int CHUNK_BYTES = Integer.getInteger("bbms.sealChunkBytes", 64 << 10); // Plain text per chunk
+        private static final byte[] MAGIC = "BBMSGCM3".getBytes(Charset.forName("US-ASCII"));
+        private static final byte LENIENT_VERSION = '2'; // Earlier version, whose appends left end markers mid-file
+        private static final int FAMILY = MAGIC.length - 1; // Leading bytes shared by every version of the format
+        static final int HEADER = MAGIC.length + 16; // Magic and file ID
+        private static final int NONCE = 12;
+        private static final int TAG = 16;
+        private static final int FRAME = 4 + NONCE + TAG + 4; // Bytes a chunk adds to its plain text
+        private static final int WINDOW = 1 << 20; // Read-ahead of a chunk reader
+        private static final SecureRandom random = new SecureRandom();
+        private static final ConcurrentLinkedQueue<Worker> pool = new ConcurrentLinkedQueue<>();
+        private static final SecretKey KEY; // Null when no key is configured, or it is unusable (see KEY_ERROR)
+        private static final String KEY_ERROR; // Why the configured key can't be used, null if it can
+
+        static {
+            SecretKey key = null;
+            String error = null;
+            String keyFile = System.getProperty("bbms.dataKeyFile");
+            try {
+                String encoded = keyFile != null ? Files.readString(Paths.get(keyFile)).trim() : System.getenv("BBMS_DATA_KEY");
+                if (encoded != null && !encoded.isBlank()) {
+                    byte[] bytes = Base64.getDecoder().decode(encoded.trim());
+                    if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+                        throw new IllegalArgumentException("it is " + bytes.length + " bytes, not 16, 24 or 32");
+                    }
+                    key = new SecretKeySpec(bytes, "AES");
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                error = "the data key " + (keyFile != null ? "in " + keyFile : "in BBMS_DATA_KEY") + " is not a base64 AES key: " + e.getMessage();
+            }
+            KEY = key;
+            KEY_ERROR = error;
+        }
+
+        // A cipher with the direct buffers it reads from and writes to; borrowed from the pool for one file
+        private static final class Worker {
+            final Cipher cipher;
+            ByteBuffer plain = ByteBuffer.allocateDirect(CHUNK_BYTES);
+            ByteBuffer sealed = ByteBuffer.allocateDirect(CHUNK_BYTES + FRAME);
+            ByteBuffer window; // Read-ahead of a reader, allocated on first read
+            final byte[] nonce = new byte[NONCE];
+            final ByteBuffer aad = ByteBuffer.allocate(25);
+
+            Worker() throws GeneralSecurityException {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            }
+
+            // Makes sure both buffers hold a chunk of the given plain text size
+            void reserve(int plainBytes) {
+                if (plain.capacity() < plainBytes) {
+                    plain = ByteBuffer.allocateDirect(plainBytes);
+                    sealed = ByteBuffer.allocateDirect(plainBytes + FRAME);
+                }
+            }
+
+            ByteBuffer aad(byte[] fileId, long position, boolean last) {
+                return aad.clear().put(fileId, 0, 16).putLong(position).put((byte) (last ? 1 : 0)).flip();
+            }
+        }
+
+        // Receives the lines of a sealed file together with the position of the chunk they came from
+        interface LineVisitor {
+            // Returns false to stop reading
+            boolean visit(long chunk, int index, String line) throws IOException;
+        }
+
+        // Where lines of a dataset are written, plain or sealed
+        interface LineSink extends Closeable, Flushable {
+            void writeLine(String line) throws IOException;
+        }
+
+        // Whether new versions of the dataset are written sealed: a key is configured and the dataset is sensitive
+        static boolean seals(String dataset) {
+            return (KEY != null || KEY_ERROR != null) && SENSITIVE.contains(Paths.get(dataset).getFileName().toString());
+        }
+
+        static boolean configured() {
+            return KEY != null;
+        }
+
+        // Whether the file (as far as the channel can see) is a sealed one, in this or another version of the format
+        static boolean isSealed(FileChannel channel) throws IOException {
+            if (channel.size() < HEADER) {
+                return false;
+            }
+            ByteBuffer magic = ByteBuffer.allocate(FAMILY);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+                // Keep reading until the magic is complete
+            }
+            return Arrays.equals(magic.array(), 0, FAMILY, MAGIC, 0, FAMILY);
+        }
+
+        static boolean isSealed(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return false;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return isSealed(channel);
+            }
+        }
+
+        // Opens a writer for a new version of the dataset at target (e.g. a temp file or a backup), sealed if
+        // the dataset is, or one that appends to target in the format target already has
+        static LineSink sink(String dataset, Path target, boolean append) throws IOException {
+            boolean sealed = append && Files.exists(target) && Files.size(target) > 0 ? isSealed(target) : seals(dataset);
+            if (sealed) {
+                return new ChunkWriter(target, append);
+            }
+            BufferedWriter writer = new BufferedWriter(new FileWriter(target.toFile(), append));
+            return new LineSink() {
+                @Override
+                public void writeLine(String line) throws IOException {
+                    writer.write(line);
+                    writer.newLine();
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    writer.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+            };
+        }
+
+        // Decrypts the chunks of a sealed file below limit, from the chunk at `from` (0 = the first) on, handing
+        // each line to the visitor until it returns false; returns limit, or the start of the chunk the visitor
+        // stopped in. The chunks must line up exactly up to limit and the last one must be an end marker: anything
+        // else means the file was damaged or cut short, and is reported rather than read around.
+        static long readLines(Path file, FileChannel channel, long from, long limit, LineVisitor visitor) throws IOException {
+            Worker worker = borrow(file);
+            try {
+                byte[] header = header(file, channel);
+                byte[] fileId = Arrays.copyOfRange(header, MAGIC.length, HEADER);
+                boolean lenient = header[MAGIC.length - 1] == LENIENT_VERSION;
+                if (worker.window == null) {
+                    worker.window = ByteBuffer.allocateDirect(WINDOW);
+                }
+                ByteBuffer window = worker.window.clear().limit(0);
+                long windowStart = 0;
+                int readAhead = CHUNK_BYTES + FRAME; // Starts at one chunk, doubling as the reader keeps going
+                long position = Math.max(from, HEADER);
+                boolean ended = position > HEADER; // Whether the chunks read so far end with an end marker
+                byte[] bytes = new byte[0];
+                while (position < limit) {
+                    if (limit - position < FRAME) {
+                        throw damaged(file, position, "a chunk is cut short");
+                    }
+                    // Bring the frame into the window, refilling it from the chunk on when it runs past the end
+                    if (position < windowStart || position + 4 > windowStart + window.limit()) {
+                        windowStart = position;
+                        fill(channel, window, position, Math.min(limit, position + readAhead));
+                        readAhead = Math.min(window.capacity(), readAhead * 2);
+                    }
+                    int length = window.getInt((int) (position - windowStart));
+                    long end = position + 8 + NONCE + (long) length;
+                    if (length < TAG || end > limit) {
+                        throw damaged(file, position, length < TAG ? "invalid chunk length" : "a chunk runs past the end of the file");
+                    }
+                    if (end > windowStart + window.limit()) {
+                        if (end - position > window.capacity()) {
+                            window = ByteBuffer.allocateDirect((int) (end - position)); // Only for a chunk holding an oversized line
+                        }
+                        windowStart = position;
+                        fill(channel, window, position, Math.min(limit, Math.max(end, position + readAhead)));
+                        readAhead = Math.min(window.capacity(), readAhead * 2);
+                    }
+                    int at = (int) (position - windowStart);
+                    if (window.getInt(at + 4 + NONCE + length) != length) {
+                        throw damaged(file, position, "the chunk's lengths disagree");
+                    }
+                    boolean last = length == TAG; // Only an end marker has no plain text
+                    if (last && end < limit && !lenient) {
+                        throw damaged(file, position, "an end marker is followed by more chunks");
+                    }
+                    worker.reserve(length - TAG);
+                    window.get(at + 4, worker.nonce);
+                    ByteBuffer body = window.duplicate().limit(at + 4 + NONCE + length).position(at + 4 + NONCE);
+                    ByteBuffer plain = worker.plain.clear();
+                    try {
+                        worker.cipher.init(Cipher.DECRYPT_MODE, KEY, new GCMParameterSpec(TAG * 8, worker.nonce));
+                        worker.cipher.updateAAD(worker.aad(fileId, position, last));
+                        worker.cipher.doFinal(body, plain);
+                    } catch (AEADBadTagException e) {
+                        throw new IOException(file + " can't be decrypted at byte " + position + ": wrong data key, or the file was altered");
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException("decryption of " + file + " failed: " + e.getMessage(), e);
+                    }
+                    plain.flip();
+                    if (bytes.length < plain.remaining()) {
+                        bytes = new byte[plain.capacity()];
+                    }
+                    int size = plain.remaining();
+                    plain.get(bytes, 0, size);
+                    int lineStart = 0;
+                    int index = 0;
+                    for (int i = 0; i < size; i++) {
+                        if (bytes[i] == '\n') {
+                            int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                            if (!visitor.visit(position, index++, new String(bytes, lineStart, lineEnd - lineStart, Charset.defaultCharset()))) {
+                                return position;
+                            }
+                            lineStart = i + 1;
+                        }
+                    }
+                    ended = last;
+                    position = end;
+                }
+                if (!ended) {
+                    throw damaged(file, position, "it doesn't end with an end marker, so rows are missing from its end");
+                }
+                return position;
+            } finally {
+                release(worker);
+            }
+        }
+
+        private static IOException damaged(Path file, long position, String problem) {
+            return new IOException(file + " is damaged at byte " + position + " (" + problem + "); restore it from a backup");
+        }
+
+        // All lines of a sealed file below limit
+        static List<String> readLines(Path file, FileChannel channel, long limit) throws IOException {
+            List<String> lines = new ArrayList<>();
+            readLines(file, channel, 0, limit, (chunk, index, line) -> lines.add(line));
+            return lines;
+        }
+
+        // Whether a chunk starts at the position, judged by its leading and trailing lengths agreeing
+        static boolean isChunk(FileChannel channel, long position) throws IOException {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            if (position < HEADER || channel.read(length, position) < 4 || length.getInt(0) < TAG) {
+                return false;
+            }
+            ByteBuffer trailing = ByteBuffer.allocate(4);
+            long end = position + FRAME + length.getInt(0) - TAG;
+            return end <= channel.size() && channel.read(trailing, end - 4) == 4 && trailing.getInt(0) == length.getInt(0);
+        }
+
+        // Position of the first chunk at or after the given position, found by following the chunk lengths
+        // without decrypting anything; the end of the file if there is none
+        static long chunkAtOrAfter(FileChannel channel, long position) throws IOException {
+            long size = channel.size();
+            long chunk = HEADER;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (chunk < position && chunk + FRAME <= size) {
+                length.clear();
+                if (channel.read(length, chunk) < 4) {
+                    break;
+                }
+                chunk += FRAME + length.getInt(0) - TAG;
+            }
+            return Math.min(chunk, size);
+        }
+
+        // Writes lines sealed in chunks, either to a new file or appended to a sealed one over its end marker
+        static final class ChunkWriter implements LineSink {
+            private final Path file;
+            private final FileChannel channel;
+            private final Worker worker;
+            private final byte[] fileId;
+            private long position; // Where the next chunk goes
+
+            ChunkWriter(Path file, boolean append) throws IOException {
+                this(file, append, -1);
+            }
+
+            // With resumeAt set, writes from that chunk position on in place of everything after it
+            private ChunkWriter(Path file, boolean append, long resumeAt) throws IOException {
+                this.file = file;
+                this.worker = borrow(file);
+                try {
+                    channel = append ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                                     : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    long size = channel.size();
+                    if (size == 0) {
+                        fileId = new byte[16];
+                        random.nextBytes(fileId);
+                        write(ByteBuffer.allocate(HEADER).put(MAGIC).put(fileId).flip());
+                    } else {
+                        fileId = fileId(file, channel);
+                        if (resumeAt >= HEADER) {
+                            channel.truncate(resumeAt);
+                            position = resumeAt;
+                        } else if (!endsWithMarker(size)) {
+                            throw damaged(file, size, "it doesn't end with an end marker");
+                        } else {
+                            position = size - FRAME; // The new chunks take the marker's place, and a new one ends them
+                        }
+                    }
+                    worker.plain.clear();
+                } catch (IOException | RuntimeException e) {
+                    release(worker);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void writeLine(String line) throws IOException {
+                byte[] bytes = (line + System.lineSeparator()).getBytes(Charset.defaultCharset());
+                if (worker.plain.remaining() < bytes.length) {
+                    seal(false);
+                    worker.reserve(bytes.length); // A line longer than a chunk gets a chunk of its own
+                }
+                worker.plain.put(bytes);
+            }
+
+            // Seals the lines written so far into a chunk
+            @Override
+            public void flush() throws IOException {
+                seal(false);
+            }
+
+            // Seals the remaining lines and ends the file with an end marker
+            @Override
+            public void close() throws IOException {
+                try {
+                    seal(false);
+                    seal(true);
+                    channel.close();
+                } finally {
+                    release(worker);
+                }
+            }
+
+            // Seals the lines written so far into a chunk, or (last) writes an end marker, which holds no lines
+            private void seal(boolean last) throws IOException {
+                ByteBuffer plain = worker.plain.flip();
+                if (!plain.hasRemaining() && !last) {
+                    plain.clear();
+                    return;
+                }
+                int length = plain.remaining() + TAG;
+                random.nextBytes(worker.nonce);
+                ByteBuffer frame = worker.sealed.clear().putInt(length).put(worker.nonce);
+                try {
+                    worker.cipher.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(TAG * 8, worker.nonce));
+                    worker.cipher.updateAAD(worker.aad(fileId, position, last));
+                    worker.cipher.doFinal(plain, frame);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("encryption of " + file + " failed: " + e.getMessage(), e);
+                }
+                write(frame.putInt(length).flip());
+                plain.clear();
+            }
+
+            private void write(ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+
+            // Whether the file ends with a whole end marker, judged by its two lengths, without reading anything else
+            private boolean endsWithMarker(long size) throws IOException {
+                if (size < HEADER + FRAME) {
+                    return false;
+                }
+                ByteBuffer lengths = ByteBuffer.allocate(FRAME);
+                while (lengths.hasRemaining() && channel.read(lengths, size - FRAME + lengths.position()) > 0) {
+                    // Keep reading until the marker is complete
+                }
+                return !lengths.hasRemaining() && lengths.getInt(0) == TAG && lengths.getInt(FRAME - 4) == TAG;
+            }
+        }
+
+        // Where an append to the file starts writing: over the end marker of a sealed file, at the end of any other
+        static long appendStart(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return 0;
+            }
+            long size = Files.size(file);
+            return size >= HEADER + FRAME && isSealed(file) ? size - FRAME : size;
+        }
+
+        // Ends a sealed file with a new end marker at the position where an append cut short by a crash started,
+        // dropping whatever the append had written over the old marker
+        static void endAt(Path file, long position) throws IOException {
+            new ChunkWriter(file, true, position).close();
+        }
+
+        // Encrypts a plain dataset file, or reseals one in the previous format, in place through a rewrite;
+        // returns false if it was sealed in this format already
+        static boolean seal(String dataset) throws IOException {
+            Path path = Paths.get(dataset);
+            if (!seals(dataset) || !Files.exists(path) || Files.size(path) == 0 || isSealed(path) && !isLenient(path)) {
+                return false;
+            }
+            FileCoordinator.rewrite(dataset, (lines, out) -> out.addAll(lines));
+            return true;
+        }
+
+        // Seals a value kept outside the datasets, such as a change feed row or a checkpoint image: a nonce
+        // followed by the encrypted value, bound to the context it was sealed for
+        static byte[] sealValue(String context, byte[] value) throws IOException {
+            Worker worker = borrow(Paths.get(context));
+            try {
+                byte[] sealed = new byte[NONCE + value.length + TAG];
+                random.nextBytes(worker.nonce);
+                System.arraycopy(worker.nonce, 0, sealed, 0, NONCE);
+                worker.cipher.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(TAG * 8, worker.nonce));
+                worker.cipher.updateAAD(context.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                worker.cipher.doFinal(value, 0, value.length, sealed, NONCE);
+                return sealed;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("encryption for " + context + " failed: " + e.getMessage(), e);
+            } finally {
+                release(worker);
+            }
+        }
+
+        // Opens a value sealed by sealValue for the same context
+        static byte[] openValue(String context, byte[] sealed) throws IOException {
+            if (sealed.length < NONCE + TAG) {
+                throw new IOException("an encrypted value in " + context + " is cut short");
+            }
+            Worker worker = borrow(Paths.get(context));
+            try {
+                worker.cipher.init(Cipher.DECRYPT_MODE, KEY, new GCMParameterSpec(TAG * 8, sealed, 0, NONCE));
+                worker.cipher.updateAAD(context.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                return worker.cipher.doFinal(sealed, NONCE, sealed.length - NONCE);
+            } catch (AEADBadTagException e) {
+                throw new IOException("an encrypted value in " + context + " can't be decrypted: wrong data key, or it was altered");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("decryption for " + context + " failed: " + e.getMessage(), e);
+            } finally {
+                release(worker);
+            }
+        }
+
+        // Whether a sealed file is in the previous format, which may hold end markers mid-file
+        private static boolean isLenient(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return header(file, channel)[MAGIC.length - 1] == LENIENT_VERSION;
+            }
+        }
+
+        private static byte[] fileId(Path file, FileChannel channel) throws IOException {
+            return Arrays.copyOfRange(header(file, channel), MAGIC.length, HEADER);
+        }
+
+        // The magic and file ID a sealed file starts with, in this format or the previous one
+        private static byte[] header(Path file, FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Keep reading until the header is complete
+            }
+            if (header.position() < HEADER || !Arrays.equals(header.array(), 0, FAMILY, MAGIC, 0, FAMILY)) {
+                throw new IOException(file + " is not an encrypted data file");
+            }
+            byte version = header.get(MAGIC.length - 1);
+            if (version != MAGIC[MAGIC.length - 1] && version != LENIENT_VERSION) {
+                throw new IOException(file + " is in an encrypted format this version can't read");
+            }
+            return header.array();
+        }
+
+        private static void fill(FileChannel channel, ByteBuffer window, long position, long limit) throws IOException {
+            window.clear().limit((int) Math.min(window.capacity(), limit - position));
+            while (window.hasRemaining() && channel.read(window, position + window.position()) > 0) {
+                // Keep reading until the window is full
+            }
+            window.flip();
+        }
+
+        private static Worker borrow(Path file) throws IOException {
+            if (KEY == null) {
+                throw new IOException(KEY_ERROR != null ? KEY_ERROR : file + " is encrypted; set BBMS_DATA_KEY or -Dbbms.dataKeyFile to read it");
+            }
+            Worker worker = pool.poll();
+            if (worker == null) {
+                try {
+                    worker = new Worker();
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("AES/GCM is not available: " + e.getMessage(), e);
+                }
+            }
+            return worker;
+        }
+
+        private static void release(Worker worker) {
+            if (worker.plain.capacity() > CHUNK_BYTES) {
+                worker.plain = ByteBuffer.allocateDirect(CHUNK_BYTES); // Don't pool the buffers of an oversized line
+                worker.sealed = ByteBuffer.allocateDirect(CHUNK_BYTES + FRAME);
+            }
+            worker.plain.clear();
+            pool.offer(worker);
+        }
+    }
+
+    // Transaction class to apply a batch of inventory, request and schedule changes as one unit, such as a whole
+    // shipment or recall. Changes are only staged until commit, which rewrites every dataset they touch in a single
+    // FileCoordinator.rewriteAll: either all of them take effect or none do. A committed batch is then audited
+    // with one append to log.csv and announced on the change bus, change by change, in the order it was staged.
+    static final class Transaction {
+        private final String userId; // Who the changes are audited against
+        private final String role;
+        private final List<Step> steps = new ArrayList<>();
+
+        // One staged change: the dataset it rewrites, how it is announced and audited, and whether a change
+        // that finds nothing to change should abandon the whole batch
+        private record Step(String file, ChangeType type, String action, String details, boolean required,
+                            FileCoordinator.Rewrite<List<String>> change) {}
+
+        // Outcome of a commit: whether it took effect, the change that stopped it if not, and how many rows changed
+        record Result(boolean committed, String refusedChange, int changedRows) {}
+
+        // Raised inside the commit when a required change finds nothing to change
+        private static final class Refused extends IOException {
+            private static final long serialVersionUID = 1L;
+            private final transient Step step;
+
+            Refused(Step step) {
+                super("Nothing to change for: " + step.details());
+                this.step = step;
+            }
+        }
+
+        Transaction(String userId, String role) {
+            this.userId = userId;
+            this.role = role;
+        }
+
+        // Adds units of a type and component at this site, starting a new inventory line if there is none
+        Transaction addStock(String bloodType, String component, int units, String expDate) {
+            return stage(new Step(SiteRegistry.homeFile("inventory.csv"), ChangeType.INVENTORY_UPDATED, "Update Inventory",
+                                  "Updated " + bloodType + " " + component + " with " + units + " units", false,
+                                  FileHandler.addingStock(bloodType, component, units, expDate)));
+        }
+
+        // Blocks the available lines of a type and component holding at least the given units; required
+        Transaction blockUnits(String bloodType, String component, int units) {
+            return stage(new Step(SiteRegistry.homeFile("inventory.csv"), ChangeType.BLOOD_BLOCKED, "Block Blood",
+                                  "Blocked " + units + " units of " + bloodType + " " + component, true,
+                                  FileHandler.blockingUnits(bloodType, component, units)));
+        }
+
+        // Blocks every available line of a blood type; required
+        Transaction blockBloodType(String bloodType) {
+            return stage(new Step(SiteRegistry.homeFile("inventory.csv"), ChangeType.BLOOD_BLOCKED, "Block Blood Type",
+                                  "Blocked blood type " + bloodType, true, FileHandler.blockingType(bloodType)));
+        }
+
+        // Blocks the whole inventory of this site
+        Transaction blockEntireStock() {
+            return stage(new Step(SiteRegistry.homeFile("inventory.csv"), ChangeType.BLOOD_BLOCKED, "Block Entire Stock",
+                                  "Blocked entire blood stock", false, FileHandler.blockingAll()));
+        }
+
+        // Records a new pending blood request for one component at this site
+        Transaction recordRequest(String requestId, String recipientId, String bloodType, String component, int units, String urgency) {
+            String row = requestId + "," + recipientId + "," + bloodType + "," + units + "," + urgency + ",PENDING," + LocalDate.now() + "," + component;
+            return stage(new Step(SiteRegistry.homeFile("requests.csv"), ChangeType.REQUEST_RECORDED, "Request Blood",
+                                  "Requested " + units + " units of " + bloodType + " " + component + " for " + recipientId, false,
+                                  (requests, out) -> {
+                                      out.addAll(requests);
+                                      out.add(row);
+                                      return List.of(row);
+                                  }));
+        }
+
+        // Sets the status of one of this site's blood requests; required
+        Transaction setRequestStatus(String requestId, String status) {
+            return stage(new Step(SiteRegistry.homeFile("requests.csv"), ChangeType.REQUEST_RECORDED, "Update Request",
+                                  "Marked request " + requestId + " " + status, true,
+                                  (requests, out) -> {
+                                      List<String> updated = new ArrayList<>();
+                                      for (String line : requests) {
+                                          String[] data = line.split(",", -1);
+                                          if (data[0].equals(requestId) && !data[5].equals(status)) {
+                                              data[5] = status;
+                                              line = String.join(",", data);
+                                              updated.add(line);
+                                          }
+                                          out.add(line);
+                                      }
+                                      return updated;
+                                  }));
+        }
+
+        // Books a donation at a site
+        Transaction saveSchedule(String donorId, LocalDate date, Site site) {
+            String row = donorId + "," + date + "," + site.name();
+            return stage(new Step(site.file("schedules.csv"), ChangeType.SCHEDULE_SAVED, "Schedule Donation",
+                                  "Scheduled donation of " + donorId + " for " + date, false,
+                                  (schedules, out) -> {
+                                      out.addAll(schedules);
+                                      out.add(row);
+                                      return List.of(row);
+                                  }));
+        }
+
+        // Number of changes staged so far
+        int size() {
+            return steps.size();
+        }
+
+        // Descriptions of the staged changes, in order
+        List<String> describe() {
+            List<String> descriptions = new ArrayList<>();
+            for (Step step : steps) {
+                descriptions.add(step.details());
+            }
+            return descriptions;
+        }
+
+        // Drops every staged change
+        void discard() {
+            steps.clear();
+        }
+
+        // Applies the staged changes as one unit. If a required change finds nothing to change, nothing is
+        // written and the result names it; otherwise every touched dataset is committed once, the changes are
+        // audited with one append and announced. The batch is empty again afterwards either way.
+        Result commit() throws IOException {
+            if (steps.isEmpty()) {
+                return new Result(true, null, 0);
+            }
+            List<Step> batch = new ArrayList<>(steps);
+            steps.clear();
+            List<List<String>> changed = new ArrayList<>(Collections.nCopies(batch.size(), List.<String>of()));
+            Map<String, FileCoordinator.Rewrite<?>> bodies = new HashMap<>();
+            for (String file : new LinkedHashSet<>(batch.stream().map(Step::file).toList())) {
+                // Each dataset's changes are chained in staged order, each seeing the lines the previous one produced
+                bodies.put(file, (lines, out) -> {
+                    List<String> current = lines;
+                    for (int i = 0; i < batch.size(); i++) {
+                        Step step = batch.get(i);
+                        if (!step.file().equals(file)) {
+                            continue;
+                        }
+                        List<String> next = new ArrayList<>(current.size() + 1);
+                        List<String> rows = step.change().apply(current, next);
+                        if (step.required() && rows.isEmpty()) {
+                            throw new Refused(step);
+                        }
+                        changed.set(i, rows);
+                        current = next;
+                    }
+                    out.addAll(current);
+                    return null;
+                });
+            }
+            try {
+                ChangeBus.commit(bodies.keySet(), () -> {
+                    FileCoordinator.rewriteAll(bodies);
+                    List<ChangeBus.RowChanges> rowChanges = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        rowChanges.add(new ChangeBus.RowChanges(batch.get(i).type(), batch.get(i).file(), changed.get(i)));
+                    }
+                    return rowChanges;
+                });
+            } catch (Refused refused) {
+                return new Result(false, refused.step.details(), 0);
+            }
+            List<AuditEvent> events = new ArrayList<>(batch.size());
+            int changedRows = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                Step step = batch.get(i);
+                events.add(new AuditEvent(LocalDate.now(), userId, role, step.action(), step.details()));
+                changedRows += changed.get(i).size();
+            }
+            FileHandler.logActions(events);
+            return new Result(true, null, changedRows);
+        }
+
+        private Transaction stage(Step step) {
+            steps.add(step);
+            return this;
+        }
+    }
+
+    // IdGenerator class for record IDs that sort by creation time, in the style of Snowflake IDs. Each ID packs
+    // the milliseconds since 2024-01-01 (42 bits), the number of the node that issued it (10 bits) and a sequence
+    // within the millisecond (12 bits), written as 13 Crockford base-32 characters, so text order is issue order.
+    // New IDs therefore land at the end of sorted indexes instead of at random places, and the IDs one node issues
+    // are strictly increasing: a millisecond whose 4,096 sequence numbers are used up, or a clock that steps back,
+    // just continues from the last ID. Issuing is lock-free (one compare-and-set on the last time and sequence).
+    // Running instances must have distinct node numbers to never collide. Unless -Dbbms.nodeId (0-1023) fixes
+    // one, an instance leases the lowest free node number in nodes.csv (node,owner,expiresAt) when it issues its
+    // first ID, under the dataset's exclusive lock, renews the lease in the background and gives it up on exit.
+    // A lease that runs out (its instance died) frees the number. Issuing an ID checks the lease against the
+    // clock: if the background renewal has fallen behind (the instance stalled), the lease is renewed first, or,
+    // if it ran out and another instance took the number over, a new number is leased before the ID is issued.
+    static final class IdGenerator {
+        static final long EPOCH_MILLIS = 1_704_067_200_000L; // 2024-01-01T00:00:00Z
+        static final int MAX_NODE = 1023;
+        private static final int NODE_BITS = 10;
+        private static final int SEQUENCE_BITS = 12;
+        private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+        private static final char[] DIGITS = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray(); // Crockford base 32, in sort order
+        static final String NODES_FILE = "nodes.csv";
+        private static final long NODE_LEASE_MS = Long.getLong("bbms.nodeLeaseMs", 10 * 60_000);
+        private static final String OWNER = ProcessHandle.current().pid() + "-" + Long.toHexString(new SecureRandom().nextLong()); // This instance in nodes.csv
+        private static volatile IdGenerator instance; // This instance's generator, created with the first ID
+
+        private final long node;
+        private final AtomicLong last = new AtomicLong(); // Time and sequence of the last ID: millis << SEQUENCE_BITS | sequence
+        private volatile long leasedUntil = Long.MAX_VALUE; // When the node lease runs out (never for a configured or drawn node)
+
+        IdGenerator(int node) {
+            if (node < 0 || node > MAX_NODE) {
+                throw new IllegalArgumentException("Node number must be between 0 and " + MAX_NODE + ": " + node);
+            }
+            this.node = node;
+        }
+
+        // Issues a new ID from this instance's generator, after a human-friendly prefix such as "DONOR-"
+        static String next(String prefix) {
+            return prefix + current().nextId();
+        }
+
+        // Issues a new ID from this instance's generator as a number
+        static long nextNumber() {
+            return current().nextLong();
+        }
+
+        // This instance's generator, its node lease first renewed in line if less than half of it is left (the
+        // background renewal keeps three quarters, so only a stalled instance gets here)
+        private static IdGenerator current() {
+            IdGenerator generator = instance();
+            if (System.currentTimeMillis() < generator.leasedUntil - NODE_LEASE_MS / 2) {
+                return generator;
+            }
+            synchronized (IdGenerator.class) {
+                if (System.currentTimeMillis() >= instance.leasedUntil - NODE_LEASE_MS / 2) {
+                    try {
+                        renewLease();
+                    } catch (IOException | IllegalStateException e) {
+                        if (System.currentTimeMillis() >= instance.leasedUntil) {
+                            // No ID may be issued on a number whose lease ran out, so fall back as at start-up
+                            System.out.println("WARNING: Node number lease ran out and could not be renewed, using a random one - " + e.getMessage());
+                            instance = instance.movedTo(new SecureRandom().nextInt(MAX_NODE + 1), Long.MAX_VALUE);
+                        } else {
+                            System.out.println("WARNING: Node number lease could not be renewed - " + e.getMessage());
+                        }
+                    }
+                }
+                return instance;
+            }
+        }
+
+        // This instance's generator, on the node number from -Dbbms.nodeId or else a leased one
+        static IdGenerator instance() {
+            IdGenerator generator = instance;
+            if (generator != null) {
+                return generator;
+            }
+            synchronized (IdGenerator.class) {
+                if (instance == null) {
+                    Integer configured = Integer.getInteger("bbms.nodeId");
+                    instance = configured != null ? new IdGenerator(Math.floorMod(configured, MAX_NODE + 1)) : leaseOrDraw();
+                    if (configured == null) {
+                        Thread renewer = new Thread(IdGenerator::renewLoop, "node-lease");
+                        renewer.setDaemon(true);
+                        renewer.start();
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                            try {
+                                releaseNodes(OWNER);
+                            } catch (IOException e) {
+                                // The lease runs out on its own
+                            }
+                        }, "node-lease-release"));
+                    }
+                }
+                return instance;
+            }
+        }
+
+        // A generator on a node number leased for this instance; if nodes.csv can't be used, on a random number
+        private static IdGenerator leaseOrDraw() {
+            try {
+                long leasedUntil = System.currentTimeMillis() + NODE_LEASE_MS; // Taken first, so never later than the lease
+                return new IdGenerator(0).movedTo(leaseNode(OWNER), leasedUntil);
+            } catch (IOException | IllegalStateException e) {
+                System.out.println("WARNING: No node number could be leased for IDs, using a random one - " + e.getMessage());
+                return new IdGenerator(new SecureRandom().nextInt(MAX_NODE + 1));
+            }
+        }
+
+        // Renews this instance's lease well before it runs out
+        private static void renewLoop() {
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(NODE_LEASE_MS / 4));
+                synchronized (IdGenerator.class) {
+                    try {
+                        renewLease();
+                    } catch (IOException | IllegalStateException e) {
+                        System.out.println("WARNING: Node number lease could not be renewed - " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Renews this instance's node lease, or leases a new number if another instance holds the current one now;
+        // must be called holding the class lock
+        private static void renewLease() throws IOException {
+            IdGenerator generator = instance;
+            long leasedUntil = System.currentTimeMillis() + NODE_LEASE_MS;
+            if (renewNode(OWNER, generator.node())) {
+                generator.leasedUntil = leasedUntil;
+            } else {
+                instance = generator.movedTo(leaseNode(OWNER), leasedUntil);
+                System.out.println("WARNING: Node number " + generator.node() + " was leased to another instance; IDs now use node " + instance.node());
+            }
+        }
+
+        // A generator on another node number that carries on from this one's last ID, so IDs keep increasing
+        private IdGenerator movedTo(int node, long leasedUntil) {
+            IdGenerator moved = new IdGenerator(node);
+            moved.last.set(last.get());
+            moved.leasedUntil = leasedUntil;
+            return moved;
+        }
+
+        // Leases the lowest node number no live lease in nodes.csv holds, dropping leases that ran out
+        static int leaseNode(String owner) throws IOException {
+            return updateNodes((now, live) -> {
+                BitSet taken = new BitSet(MAX_NODE + 1);
+                for (String[] lease : live) {
+                    taken.set(Integer.parseInt(lease[0]));
+                }
+                int node = taken.nextClearBit(0);
+                if (node > MAX_NODE) {
+                    throw new IllegalStateException("all " + (MAX_NODE + 1) + " node numbers are leased");
+                }
+                live.add(new String[] {Integer.toString(node), owner, Long.toString(now + NODE_LEASE_MS)});
+                return node;
+            });
+        }
+
+        // Extends the owner's lease of a node number; false if another instance holds the number now
+        static boolean renewNode(String owner, int node) throws IOException {
+            return updateNodes((now, live) -> {
+                for (String[] lease : live) {
+                    if (Integer.parseInt(lease[0]) == node) {
+                        return false;
+                    }
+                }
+                live.add(new String[] {Integer.toString(node), owner, Long.toString(now + NODE_LEASE_MS)});
+                return true;
+            }, owner);
+        }
+
+        // Gives up every node number the owner leases
+        static void releaseNodes(String owner) throws IOException {
+            updateNodes((now, live) -> null, owner);
+        }
+
+        // Change made in place to the live leases of nodes.csv (node, owner, expiry)
+        private interface NodeUpdate<T> {
+            T apply(long now, List<String[]> live);
+        }
+
+        // Rewrites nodes.csv with its live leases, less those of the given owners, as the update leaves them
+        private static <T> T updateNodes(NodeUpdate<T> update, String... leavingOut) throws IOException {
+            Path file = Paths.get(NODES_FILE);
+            if (!Files.exists(file)) {
+                try {
+                    Files.createFile(file);
+                } catch (FileAlreadyExistsException e) {
+                    // Another instance created it first
+                }
+            }
+            Set<String> owners = Set.of(leavingOut);
+            return FileCoordinator.rewrite(NODES_FILE, (lines, out) -> {
+                long now = System.currentTimeMillis();
+                List<String[]> live = new ArrayList<>();
+                for (String line : lines) {
+                    String[] lease = line.split(",");
+                    if (lease.length == 3 && Long.parseLong(lease[2]) > now && !owners.contains(lease[1])) {
+                        live.add(lease);
+                    }
+                }
+                T result = update.apply(now, live);
+                for (String[] lease : live) {
+                    out.add(String.join(",", lease));
+                }
+                return result;
+            });
+        }
+
+        // The node number IDs of this generator carry
+        int node() {
+            return (int) node;
+        }
+
+        // Issues a new ID as text
+        String nextId() {
+            return encode(nextLong());
+        }
+
+        // Issues a new ID as a number; compare IDs as unsigned
+        long nextLong() {
+            while (true) {
+                long previous = last.get();
+                long stamp = Math.max((System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS, previous + 1);
+                if (last.compareAndSet(previous, stamp)) {
+                    return (stamp >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS) | node << SEQUENCE_BITS | (stamp & SEQUENCE_MASK);
+                }
+            }
+        }
+
+        // Writes an ID as 13 base-32 characters, most significant first, so that text order matches numeric order
+        static String encode(long id) {
+            char[] text = new char[13];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = DIGITS[(int) (id >>> (60 - 5 * i)) & 31];
+            }
+            return new String(text);
+        }
+    }
 }